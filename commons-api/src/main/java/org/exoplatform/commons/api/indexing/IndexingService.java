@@ -28,6 +28,12 @@ public abstract class IndexingService {
   protected static final String DATE_INDEXED = "se_dateIndexed";
   protected static final String LAST_UPDATE = "se_lastUpdate";
 
+  /**
+   * The event broadcast by the EventManager when an entry is written to the index, its data is the id of the entry.
+   * @LevelAPI Experimental
+   */
+  public static final String ENTRY_WRITTEN = "exo.commons.indexing.entry.written";
+
   /**
    * Adds a search entry.
    * @param searchEntry The search entry. 
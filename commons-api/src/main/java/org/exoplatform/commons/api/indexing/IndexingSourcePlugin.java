@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.api.indexing;
+
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+import org.exoplatform.container.component.BaseComponentPlugin;
+
+/**
+ * Is extended by the sources of search entries which can be reindexed, for
+ * instance when the index is lost or when the indexed fields change. The
+ * sources are added to the IndexingService by the configuration.
+ * @LevelAPI Experimental
+ */
+public abstract class IndexingSourcePlugin extends BaseComponentPlugin {
+
+  /**
+   * Sends all the entries of the source to an indexing service. The method
+   * is called in a background thread, it should read its source by pages so
+   * the reindex doesn't hold the whole source in memory.
+   * @param indexingService The indexing service receiving the entries.
+   * @throws Exception if the source can't be read, the entries already sent are kept.
+   * @LevelAPI Experimental
+   */
+  public abstract void reindex(IndexingService indexingService) throws Exception;
+
+  /**
+   * Tells if an entry comes from the source. Once a reindex of the source is
+   * complete, the entries of the source it didn't send again are removed from
+   * the index. By default no entry comes from the source, none is removed.
+   * @param id The id of the entry.
+   * @return true if the entry comes from the source.
+   * @LevelAPI Experimental
+   */
+  public boolean isSourceOf(SearchEntryId id) {
+    return false;
+  }
+}
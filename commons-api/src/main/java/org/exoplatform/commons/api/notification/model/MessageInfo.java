@@ -17,6 +17,7 @@
 package org.exoplatform.commons.api.notification.model;
 
 import org.exoplatform.services.mail.Message;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public class MessageInfo {
@@ -174,6 +175,25 @@ public class MessageInfo {
     return new JSONObject(this).toString();
   }
 
+  /**
+   * Makes the MessageInfo from the JSON string built by {@link #toJSON()}
+   * @param json
+   * @return
+   * @throws JSONException
+   */
+  public static MessageInfo fromJSON(String json) throws JSONException {
+    JSONObject object = new JSONObject(json);
+    MessageInfo info = new MessageInfo();
+    info.pluginId(object.optString("pluginId"))
+        .from(object.getString("from"))
+        .to(object.getString("to"))
+        .subject(object.getString("subject"))
+        .body(object.getString("body"))
+        .footer(object.optString("footer"))
+        .setCreatedTime(object.getLong("createdTime"));
+    return info;
+  }
+
   /**
    * Gets time to create MessageInfo and use it as node name
    * @return
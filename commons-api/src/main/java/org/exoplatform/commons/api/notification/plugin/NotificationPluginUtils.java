@@ -93,9 +93,7 @@ public class NotificationPluginUtils {
     startRequest(getOrganizationService());
     try {
       User user = getOrganizationService().getUserHandler().findUserByName(userId);
-      StringBuilder userInfor = new StringBuilder(getFullName(user));
-      userInfor.append("<").append(user.getEmail()).append(">");
-      return userInfor.toString();
+      return getEmailFormat(user);
     } catch (Exception e) {
       return null;
     } finally {
@@ -103,6 +101,17 @@ public class NotificationPluginUtils {
     }
   }
 
+  /**
+   * Gets the mail address of a user with the user's full name
+   * @param user
+   * @return
+   */
+  public static String getEmailFormat(User user) {
+    StringBuilder userInfor = new StringBuilder(getFullName(user));
+    userInfor.append("<").append(user.getEmail()).append(">");
+    return userInfor.toString();
+  }
+
   public static String getFrom(String from) {
     if (from != null && from.length() > 0 && from.indexOf("@") > 0) {
       return from;
@@ -50,6 +50,8 @@ public class NotificationCompletionService {
   private final boolean DEFAULT_ASYNC_EXECUTION = true;
 
   private int configThreadNumber;
+
+  private int threadNumber;
   
   private int keepAliveTime;
 
@@ -83,7 +85,7 @@ public class NotificationCompletionService {
       configAsyncExecution = DEFAULT_ASYNC_EXECUTION;
     }
     
-    int threadNumber = configThreadNumber <= 0 ? configThreadNumber : Runtime.getRuntime().availableProcessors();
+    threadNumber = configThreadNumber > 0 ? configThreadNumber : Runtime.getRuntime().availableProcessors();
 
     ThreadFactory threadFactory = new ThreadFactory() {
       public Thread newThread(Runnable runable) {
@@ -123,6 +125,23 @@ public class NotificationCompletionService {
     return configAsyncExecution;
   }
 
+  /**
+   * Gets the executor running the tasks, the tasks submitted directly
+   * to it are not tracked by the completion service.
+   * 
+   * @return the executor
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * @return the number of threads of the executor, 1 when the execution is not asynchronous
+   */
+  public int getThreadNumber() {
+    return configAsyncExecution ? threadNumber : 1;
+  }
+
   private class DirectExecutor implements Executor {
 
     public void execute(final Runnable runnable) {
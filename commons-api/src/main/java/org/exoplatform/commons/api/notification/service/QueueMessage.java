@@ -16,6 +16,8 @@
  */
 package org.exoplatform.commons.api.notification.service;
 
+import java.util.Collection;
+
 import org.exoplatform.commons.api.notification.model.MessageInfo;
 
 public interface QueueMessage {
@@ -26,6 +28,14 @@ public interface QueueMessage {
    * @return
    */
   boolean put(MessageInfo message);
+
+  /**
+   * Puts the messages into the queue in batches,
+   * each batch is persisted by one save.
+   * @param messages
+   * @return the number of messages accepted by the queue
+   */
+  int put(Collection<MessageInfo> messages);
   
   /**
    * Peek the message from queue and send
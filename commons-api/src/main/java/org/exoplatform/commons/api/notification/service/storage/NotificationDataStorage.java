@@ -49,5 +49,13 @@ public interface NotificationDataStorage {
    * @throws Exception
    */
   void removeMessageAfterSent() throws Exception;
+
+  /**
+   * Removes the messages sent by the digest run of the given context.
+   * 
+   * @param context the context of the digest run
+   * @throws Exception
+   */
+  void removeMessageAfterSent(NotificationContext context) throws Exception;
   
 }
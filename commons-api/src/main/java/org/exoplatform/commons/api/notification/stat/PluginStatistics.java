@@ -38,4 +38,25 @@ public interface PluginStatistics extends Serializable {
   
   void incrementCreateDigestCount();
 
+  /**
+   * @return the number of messages built by the plugin
+   */
+  long getExecutionCount();
+
+  /**
+   * @return the longest time spent by the plugin to build a message, in microseconds
+   */
+  long getExecutionMaxTime();
+
+  /**
+   * @param percentile the percentile, between 0 and 100, as 50 or 99
+   * @return the time in microseconds below which the given percentage of the messages are built
+   */
+  long getExecutionTimePercentile(double percentile);
+
+  /**
+   * @param time the time spent by the plugin to build a message, in microseconds
+   */
+  void executed(long time);
+
 }
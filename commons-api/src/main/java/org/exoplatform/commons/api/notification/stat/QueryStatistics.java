@@ -35,6 +35,12 @@ public interface QueryStatistics extends Serializable {
   long getExecutionMaxTime();
   
   long getExecutionMinTime();
+
+  /**
+   * @param percentile the percentile, between 0 and 100, as 50 or 99
+   * @return the execution time below which the given percentage of the executions are
+   */
+  long getExecutionTimePercentile(double percentile);
   
   void executed(long rows, long time);
 }
@@ -33,5 +33,21 @@ public interface QueueStatistics extends Serializable {
   void incrementPollCount();
   
   void incrementPutCount();
+
+  /**
+   * @return the longest time a message has waited in the queue, in milliseconds
+   */
+  long getWaitMaxTime();
+
+  /**
+   * @param percentile the percentile, between 0 and 100, as 50 or 99
+   * @return the time in milliseconds below which the given percentage of the messages have waited
+   */
+  long getWaitTimePercentile(double percentile);
+
+  /**
+   * @param time the time a message has waited in the queue, in milliseconds
+   */
+  void waited(long time);
   
 }
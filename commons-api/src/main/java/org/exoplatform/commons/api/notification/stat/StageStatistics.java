@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2003-2013 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.api.notification.stat;
+
+import java.io.Serializable;
+
+/**
+ * The latencies of a stage of the notification processing, in microseconds.
+ * 
+ * The latencies are counted in buckets growing by powers of 2: the bucket i
+ * counts the executions lasting less than 2^i microseconds and at least
+ * 2^(i-1) microseconds.
+ */
+public interface StageStatistics extends Serializable {
+
+  long getExecutionCount();
+
+  long getExecutionAvgTime();
+
+  long getExecutionMaxTime();
+
+  long getExecutionMinTime();
+
+  /**
+   * @return the number of executions by bucket
+   */
+  long[] getHistogram();
+
+  /**
+   * @param percentile the percentile, between 0 and 100, as 50 or 99
+   * @return the execution time below which the given percentage of the executions are
+   */
+  long getExecutionTimePercentile(double percentile);
+
+  /**
+   * @param time the execution time in microseconds
+   */
+  void executed(long time);
+}
@@ -53,6 +53,13 @@ public interface Statistics {
    * @return
    */
   public QueryStatistics getQueryStatistics(String queryString);
+
+  /**
+   * Gets StageStatistics by stage's name
+   * @param stage
+   * @return
+   */
+  public StageStatistics getStageStatistics(String stage);
   
   /**
    * Get global number of entity deletes
@@ -132,6 +139,13 @@ public interface Statistics {
    * Get the names of all entities
    */
   public String[] getPluginNames();
+
+  public String[] getQueueNames();
+
+  /**
+   * Get the names of all executed stages
+   */
+  public String[] getStages();
   
   /**
    * Gets the start time of statistics process
@@ -80,9 +80,30 @@ public interface StatisticsCollector {
    */
   public void pollQueue(String pluginId);
 
+  /**
+   * Callback indicating execution of poll queue
+   * @param pluginId
+   * @param waitTime the time the message has waited in the queue, in milliseconds
+   */
+  public void pollQueue(String pluginId, long waitTime);
+
+  /**
+   * Callback indicating a plugin has built a message
+   * @param pluginId
+   * @param time the time spent by the plugin, in microseconds
+   */
+  public void pluginExecuted(String pluginId, long time);
+
   /**
    * Callback indicating execution of put queue
    * @param pluginId
    */
   public void putQueue(String pluginId);
+
+  /**
+   * Callback indicating execution of a stage of the notification processing
+   * @param stage the stage's name
+   * @param time execution time in microseconds
+   */
+  public void stageExecuted(String stage, long time);
 }
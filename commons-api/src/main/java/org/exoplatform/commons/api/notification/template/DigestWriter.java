@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.api.notification.template;
+
+import groovy.lang.Writable;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The writer given to the plugins to build the digest of a user. It's backed by
+ * a buffer which can be reused for the next user, and it can be written into
+ * a template as a value without being converted to a String.
+ *
+ * The items of the digest are counted from their &lt;li&gt; tags with the rule
+ * of the former pattern &lt;li([^&gt;]+)&gt;(.+?)&lt;/li&gt;: a tag having at
+ * least one character after "li", followed by a content on the same line.
+ */
+public class DigestWriter extends Writer implements Writable {
+  private static final String LI_START   = "<li";
+
+  private static final String LI_END     = "</li>";
+
+  private static final int    CHUNK_SIZE = 4096;
+
+  private final StringBuilder buffer;
+
+  private final int           maxCapacity;
+
+  /**
+   * @param initialCapacity the initial size of the buffer
+   * @param maxCapacity the size of the buffer kept by {@link #reset()}, a bigger buffer is dropped
+   */
+  public DigestWriter(int initialCapacity, int maxCapacity) {
+    this.buffer = new StringBuilder(initialCapacity);
+    this.maxCapacity = maxCapacity;
+  }
+
+  /**
+   * @return the number of items written into the digest
+   */
+  public int getItemCount() {
+    int count = 0;
+    int index = buffer.indexOf(LI_START);
+    while (index >= 0) {
+      int end = endOfItem(index);
+      if (end >= 0) {
+        count++;
+        index = buffer.indexOf(LI_START, end);
+      } else {
+        index = buffer.indexOf(LI_START, index + 1);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the position of the first item in the digest, -1 if there is none
+   */
+  public int indexOfItem() {
+    return indexOfItem(0);
+  }
+
+  /**
+   * Replaces a part of the digest.
+   *
+   * @param start the beginning index, inclusive
+   * @param end the ending index, exclusive
+   * @param str the new content
+   */
+  public void replace(int start, int end, String str) {
+    buffer.replace(start, end, str);
+  }
+
+  public int indexOf(String str, int fromIndex) {
+    return buffer.indexOf(str, fromIndex);
+  }
+
+  public int length() {
+    return buffer.length();
+  }
+
+  /**
+   * Clears the digest so the writer can be used for the next user.
+   *
+   * @return false if the buffer has grown too much to be kept
+   */
+  public boolean reset() {
+    buffer.setLength(0);
+    return buffer.capacity() <= maxCapacity;
+  }
+
+  @Override
+  public void write(int c) {
+    buffer.append((char) c);
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) {
+    buffer.append(cbuf, off, len);
+  }
+
+  @Override
+  public void write(String str, int off, int len) {
+    buffer.append(str, off, off + len);
+  }
+
+  @Override
+  public Writer append(CharSequence csq) {
+    buffer.append(csq);
+    return this;
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * Writes the digest to the given writer by chunks, without building a String
+   * of the whole digest.
+   */
+  @Override
+  public Writer writeTo(Writer out) throws IOException {
+    char[] chunk = new char[Math.min(CHUNK_SIZE, Math.max(buffer.length(), 1))];
+    for (int i = 0; i < buffer.length(); i += chunk.length) {
+      int end = Math.min(i + chunk.length, buffer.length());
+      buffer.getChars(i, end, chunk, 0);
+      out.write(chunk, 0, end - i);
+    }
+    return out;
+  }
+
+  @Override
+  public String toString() {
+    return buffer.toString();
+  }
+
+  /**
+   * Finds the next item, a &lt;li tag followed by at least one character before its '&gt;'
+   * and by a content ending with &lt;/li&gt; on the same line.
+   *
+   * @return the index of the item or -1 if there is none
+   */
+  private int indexOfItem(int from) {
+    int index = buffer.indexOf(LI_START, from);
+    while (index >= 0 && endOfItem(index) < 0) {
+      index = buffer.indexOf(LI_START, index + 1);
+    }
+    return index;
+  }
+
+  /**
+   * @return the index after the &lt;/li&gt; closing the item at the index, -1 if it's not an item
+   */
+  private int endOfItem(int index) {
+    int tagEnd = buffer.indexOf(">", index + LI_START.length());
+    if (tagEnd <= index + LI_START.length()) {
+      return -1;
+    }
+    int close = buffer.indexOf(LI_END, tagEnd + 2);
+    if (close < 0) {
+      return -1;
+    }
+    for (int i = tagEnd + 1; i < close; i++) {
+      if (isLineTerminator(buffer.charAt(i))) {
+        return -1;
+      }
+    }
+    return close + LI_END.length();
+  }
+
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+}
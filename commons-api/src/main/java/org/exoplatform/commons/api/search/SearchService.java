@@ -21,6 +21,7 @@ import java.util.LinkedList;
 import java.util.Map;
 
 import org.exoplatform.commons.api.search.data.SearchContext;
+import org.exoplatform.commons.api.search.data.SearchResponse;
 import org.exoplatform.commons.api.search.data.SearchResult;
 
 /** 
@@ -61,4 +62,31 @@ public abstract class SearchService {
    * @LevelAPI Experimental 
    */
   public abstract Map<String, Collection<SearchResult>> search(SearchContext context, String query, Collection<String> sites, Collection<String> types, int offset, int limit, String sort, String order);  
+
+  /**
+   * Aggregates search results from all connectors, with the status of each connector.
+   * The implementations which search the connectors with a timeout return the results
+   * of the connectors which have answered in time, by default all the connectors of
+   * the results of {@link #search(SearchContext, String, Collection, Collection, int, int, String, String)} are OK.
+   * @param context The search context.
+   * @param query The query statement.
+   * @param sites Specified sites where the search is performed (for example, Acme, or Intranet).
+   * @param types Specified types by which the search is performed (for example, people, discussion, event, task, wiki, activity, social, file, document).
+   * @param offset The start point from which the search results are returned.
+   * @param limit The limitation number of search results.
+   * @param sort The sorting criteria (title, relevancy and date).
+   * @param order The sorting order (ascending and descending).
+   * @return The search results and the status by connector.
+   * @LevelAPI Experimental 
+   */
+  public SearchResponse searchWithStatus(SearchContext context, String query, Collection<String> sites, Collection<String> types, int offset, int limit, String sort, String order) {
+    long start = System.currentTimeMillis();
+    Map<String, Collection<SearchResult>> results = search(context, query, sites, types, offset, limit, sort, order);
+    long time = System.currentTimeMillis() - start;
+    SearchResponse response = new SearchResponse();
+    for (Map.Entry<String, Collection<SearchResult>> e : results.entrySet()) {
+      response.add(e.getKey(), SearchResponse.Status.OK, e.getValue(), time);
+    }
+    return response;
+  }
 }
@@ -6,6 +6,7 @@ import org.exoplatform.services.log.Log;
 import org.exoplatform.web.controller.QualifiedName;
 import org.exoplatform.web.controller.router.Router;
 
+import java.util.Collections;
 import java.util.Map;
 
 /**
@@ -83,6 +84,16 @@ public class SearchContext {
     return siteName;
   }
 
+  /**
+   * Get the router parameters put into the context, e.g. the site type, the lang, the path and the handler
+   * @return Map<QualifiedName, String>
+   * @LevelAPI Experimental
+   */
+  @SuppressWarnings("unchecked")
+  public Map<QualifiedName, String> getRouterParams() {
+    return Collections.unmodifiableMap(qualifiedName);
+  }
+
   /**
    * Contructor to create a context for search service
    * @param router
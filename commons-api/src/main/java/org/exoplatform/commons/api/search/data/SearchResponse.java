@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.api.search.data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The results of a search by connector, with the status of each connector, so
+ * the results of the connectors which have answered in time are returned even
+ * if some connectors have failed or timed out.
+ *
+ * @LevelAPI Experimental
+ */
+public class SearchResponse {
+
+  /**
+   * The outcome of the search of a connector.
+   * @LevelAPI Experimental
+   */
+  public static enum Status {
+    /** The connector has returned its results */
+    OK,
+    /** The connector hasn't answered before its timeout or the search deadline */
+    TIMEOUT,
+    /** The connector has thrown an exception */
+    FAILED,
+    /** The search of the connector couldn't be scheduled, all the search threads are busy */
+    REJECTED
+  }
+
+  private final Map<String, Collection<SearchResult>> results  = new LinkedHashMap<String, Collection<SearchResult>>();
+
+  private final Map<String, Status>                   statuses = new LinkedHashMap<String, Status>();
+
+  private final Map<String, Long>                     times    = new LinkedHashMap<String, Long>();
+
+  /**
+   * Adds the outcome of a connector.
+   * @param searchType The search type of the connector.
+   * @param status The status of the connector.
+   * @param connectorResults The results of the connector, only kept when the status is OK.
+   * @param time The time in milliseconds the connector has taken or has been waited for.
+   * @LevelAPI Experimental
+   */
+  public void add(String searchType, Status status, Collection<SearchResult> connectorResults, long time) {
+    statuses.put(searchType, status);
+    times.put(searchType, time);
+    if (status == Status.OK) {
+      results.put(searchType, connectorResults);
+    }
+  }
+
+  /**
+   * Gets the results of the connectors which have answered in time.
+   * @return A map of search types with search results.
+   * @LevelAPI Experimental
+   */
+  public Map<String, Collection<SearchResult>> getResults() {
+    return results;
+  }
+
+  /**
+   * Gets the status of all the connectors of the search.
+   * @return A map of search types with their status.
+   * @LevelAPI Experimental
+   */
+  public Map<String, Status> getStatuses() {
+    return Collections.unmodifiableMap(statuses);
+  }
+
+  /**
+   * Gets the status of a connector.
+   * @param searchType The search type of the connector.
+   * @return The status, null if the connector wasn't part of the search.
+   * @LevelAPI Experimental
+   */
+  public Status getStatus(String searchType) {
+    return statuses.get(searchType);
+  }
+
+  /**
+   * Gets the time a connector has taken.
+   * @param searchType The search type of the connector.
+   * @return The time in milliseconds, -1 if the connector wasn't part of the search.
+   * @LevelAPI Experimental
+   */
+  public long getTime(String searchType) {
+    Long time = times.get(searchType);
+    return time == null ? -1 : time;
+  }
+
+  /**
+   * @return true if all the connectors have returned their results
+   * @LevelAPI Experimental
+   */
+  public boolean isComplete() {
+    return results.size() == statuses.size();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("SearchResponse {statuses=%s, times=%s}", statuses, times);
+  }
+}
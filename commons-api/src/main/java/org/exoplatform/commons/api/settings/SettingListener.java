@@ -36,6 +36,14 @@ public abstract class SettingListener extends Listener<SettingService, SettingDa
    * @LevelAPI Experimental
    */
   public abstract void onSet(Event<SettingService, SettingData> event);
+  /**
+   * Calls back a function when several setting properties are saved at once.
+   * The values are given by {@link SettingData#getSettingValues()}.
+   * @param event The event that the setting service dispatches when the setting properties are saved successfully.
+   * @LevelAPI Experimental
+   */
+  public void onSetAll(Event<SettingService, SettingData> event) {
+  }
   /**
    * Calls back a function when a setting property is removed with a specified composite key (context, scope, key).
    * @param event The event that the setting service dispatches when a new setting property is removed successfully.
@@ -67,6 +75,9 @@ public abstract class SettingListener extends Listener<SettingService, SettingDa
     case SETTING_SET:
       onSet(event);
       break;
+    case SETTING_SET_ALL:
+      onSetAll(event);
+      break;
     case SETTING_REMOVE_KEY:
       onRemoveKey(event);
       break;
@@ -16,8 +16,11 @@
  */
 package org.exoplatform.commons.api.settings;
 
+import java.util.Map;
+
 import org.exoplatform.commons.api.settings.data.Context;
 import org.exoplatform.commons.api.settings.data.Scope;
+import org.exoplatform.commons.api.settings.data.SettingScope;
 
 /**
  * Stores and removes a value associated with a key in JCR.
@@ -37,6 +40,26 @@ public interface SettingService {
    */
   public void set(Context context, Scope scope, String key, SettingValue<?> value);
 
+  /**
+   * Sets several values of a context and a scope. The values are saved in
+   * the database at once, and only one event is dispatched for all of them.
+   * 
+   * @param context The context with which the values are associated.
+   * @param scope The scope with which the values are associated.
+   * @param values The values by key.
+   * @LevelAPI Experimental
+   */
+  public void setAll(Context context, Scope scope, Map<String, SettingValue<?>> values);
+
+  /**
+   * Sets the values of several contexts and scopes. The values are saved in
+   * the database at once, and only one event is dispatched for all of them.
+   * 
+   * @param values The values by key, for each context and scope.
+   * @LevelAPI Experimental
+   */
+  public void setAll(Map<SettingScope, Map<String, SettingValue<?>>> values);
+
   /**
    * Removes a value associated with a specified composite key.
    * 
@@ -80,4 +103,15 @@ public interface SettingService {
    */
   public SettingValue<?> get(Context context, Scope scope, String key);
 
+  /**
+   * Gets all values associated with a specified context and scope in
+   * the database, in one read.
+   * 
+   * @param context The context with which the values are associated.
+   * @param scope The scope with which the values are associated.
+   * @return The values by key, an empty map if there is no value.
+   * @LevelAPI Experimental
+   */
+  public Map<String, SettingValue<?>> get(Context context, Scope scope);
+
 }
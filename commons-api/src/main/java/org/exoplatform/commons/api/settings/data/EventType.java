@@ -27,6 +27,11 @@ public enum EventType {
    * @LevelAPI Experimental
    */
   SETTING_SET,
+  /**
+   * Type of the dispatched event when several setting properties are saved at once.
+   * @LevelAPI Experimental
+   */
+  SETTING_SET_ALL,
   /**
    * Type of the dispatched event when all setting properties are removed from a context (GLOBAL/USER context).
    * @LevelAPI Experimental
@@ -16,6 +16,8 @@
  */
 package org.exoplatform.commons.api.settings.data;
 
+import java.util.Map;
+
 import org.exoplatform.commons.api.settings.SettingValue;
 
 /**
@@ -29,6 +31,8 @@ public class SettingData {
   SettingContext    settingContext;
 
   SettingValue<?> settingValue;
+
+  Map<SettingScope, Map<String, SettingValue<?>>> settingValues;
   
   /**
    * Creates the setting data with the specified event type and context.
@@ -59,6 +63,22 @@ public class SettingData {
     this.settingValue = settingValue;
   }
 
+  /**
+   * Creates the setting data with the specified event type and the setting properties of several scopes.
+   * The setting context is the scope when all the properties belong to one scope, "null" otherwise.
+   * @param eventType The event type that has been dispatched.
+   * @param settingValues The event setting values by key, for each scope.
+   * @LevelAPI Experimental
+   */
+  public SettingData(EventType eventType, Map<SettingScope, Map<String, SettingValue<?>>> settingValues) {
+    super();
+    this.eventType = eventType;
+    this.settingValues = settingValues;
+    if (settingValues.size() == 1) {
+      this.settingContext = settingValues.keySet().iterator().next();
+    }
+  }
+
   /**
    * Gets an event type associated with the setting data.
    * @return The event type.
@@ -111,6 +131,15 @@ public class SettingData {
 	  //TODO: not set setting value in level Context and Scope	  
     this.settingValue = settingValue;
   }
+
+  /**
+   * Gets the setting values of the setting properties saved at once.
+   * @return The setting values by key for each scope, or "null" if the event is not about several setting properties.
+   * @LevelAPI Experimental
+   */
+  public Map<SettingScope, Map<String, SettingValue<?>>> getSettingValues() {
+    return settingValues;
+  }
   
   
   
@@ -18,6 +18,7 @@ package org.exoplatform.ws.frameworks.cometd;
  */
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Set;
 import org.mortbay.cometd.ChannelImpl;
 import org.mortbay.cometd.continuation.EXoContinuationBayeux;
 import org.mortbay.cometd.continuation.EXoContinuationClient;
@@ -79,6 +80,15 @@ public class ContinuationService
       return bayeux.getClientByEXoId(exoId);
    }
 
+   /**
+    * @param exoId the id of client (exoId).
+    * @return Get the clients by eXoId, one by page the user has open.
+    */
+   public Set<EXoContinuationClient> getClientsByExoId(String exoId)
+   {
+      return bayeux.getClientsByEXoId(exoId);
+   }
+
    /**
     * @param id the id of client (cometd id)
     * @return Get client by id (id generated by cometd service).
@@ -167,4 +177,13 @@ public class ContinuationService
       return bayeux.getUserToken(eXoId);
    }
 
+   /**
+    * Revokes the userTokens given so far to the client.
+    * @param eXoId the client id (as eXoId).
+    */
+   public void revokeUserToken(String eXoId)
+   {
+      bayeux.revokeUserToken(eXoId);
+   }
+
 }
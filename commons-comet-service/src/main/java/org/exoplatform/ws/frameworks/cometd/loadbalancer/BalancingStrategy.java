@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.loadbalancer;
+
+import java.util.Collection;
+
+/**
+ * Chooses the cometd node of a new client for the {@link LoadBalancerImpl}.
+ * 
+ * An implementation is given by its class name in the "strategy" parameter of
+ * the load balancer, it must have a public constructor without parameter.
+ */
+public interface BalancingStrategy
+{
+
+   /**
+    * Called each time a node is added, removed, or its state changes.
+    * @param aliveNodes the alive nodes of the cluster.
+    */
+   void update(Collection<Node> aliveNodes);
+
+   /**
+    * Chooses the node of a client and adds the connection to it.
+    * @param exoId the id of client.
+    * @return the node the client is connected to, null if all the nodes are overflowed.
+    */
+   Node assign(String exoId);
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.loadbalancer;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Places the nodes on a ring of hashes, each node at several points (the virtual
+ * nodes), and connects a new client to the first node following the hash of its
+ * id on the ring. A client keeps its node while the cluster doesn't change, and
+ * only the clients of a node are moved when it goes down.
+ * 
+ * When the node of a client is overflowed, the client is connected to the next
+ * node of the ring.
+ */
+public class ConsistentHashStrategy implements BalancingStrategy
+{
+
+   /**
+    * The default number of virtual nodes by node.
+    */
+   public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+   private final int virtualNodes;
+
+   /**
+    * The ring, replaced when the cluster changes.
+    */
+   private volatile SortedMap<Long, Node> ring = new TreeMap<Long, Node>();
+
+   public ConsistentHashStrategy()
+   {
+      this(DEFAULT_VIRTUAL_NODES);
+   }
+
+   /**
+    * @param virtualNodes the number of points of each node on the ring.
+    */
+   public ConsistentHashStrategy(int virtualNodes)
+   {
+      this.virtualNodes = Math.max(virtualNodes, 1);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void update(Collection<Node> aliveNodes)
+   {
+      SortedMap<Long, Node> newRing = new TreeMap<Long, Node>();
+      for (Node node : aliveNodes)
+      {
+         //each digest gives 4 points on the ring
+         for (int i = 0; i < (virtualNodes + 3) / 4; i++)
+         {
+            byte[] digest = digest(node.getId() + "-" + i);
+            for (int j = 0; j < 4; j++)
+            {
+               newRing.put(hash(digest, j), node);
+            }
+         }
+      }
+      this.ring = newRing;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public Node assign(String exoId)
+   {
+      SortedMap<Long, Node> current = ring;
+      if (current.isEmpty())
+         return null;
+      Set<Node> tried = new HashSet<Node>();
+      long hash = hash(digest(exoId), 0);
+      //walks the ring clockwise from the hash of the client
+      Node node = tryConnection(current.tailMap(hash).values(), tried);
+      if (node == null)
+         node = tryConnection(current.headMap(hash).values(), tried);
+      return node;
+   }
+
+   private static Node tryConnection(Collection<Node> nodes, Set<Node> tried)
+   {
+      for (Node node : nodes)
+      {
+         if (tried.add(node) && node.tryAddConnection())
+            return node;
+      }
+      return null;
+   }
+
+   private static long hash(byte[] digest, int index)
+   {
+      return ((long) (digest[3 + index * 4] & 0xFF) << 24) | ((long) (digest[2 + index * 4] & 0xFF) << 16)
+         | ((long) (digest[1 + index * 4] & 0xFF) << 8) | (digest[index * 4] & 0xFF);
+   }
+
+   private static byte[] digest(String key)
+   {
+      try
+      {
+         return MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IllegalStateException("MD5 is not supported", e);
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new IllegalStateException("UTF-8 is not supported", e);
+      }
+   }
+
+}
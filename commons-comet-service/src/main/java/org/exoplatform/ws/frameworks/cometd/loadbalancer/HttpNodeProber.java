@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.loadbalancer;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Considers a node alive when it answers a request on its health path, appended
+ * to its base URL, with a successful or a redirection status.
+ */
+public class HttpNodeProber implements NodeProber
+{
+   /**
+    * Class logger.
+    */
+   private static final Log LOG = ExoLogger.getLogger(HttpNodeProber.class);
+
+   private final String path;
+
+   private final int timeout;
+
+   /**
+    * @param path the health path requested on the base URL of the nodes.
+    * @param timeout the connect and read timeout in milliseconds.
+    */
+   public HttpNodeProber(String path, int timeout)
+   {
+      this.path = path == null ? "" : path;
+      this.timeout = timeout;
+   }
+
+   /**
+    * @return the health path requested on the base URL of the nodes, empty for the base URL.
+    */
+   public String getPath()
+   {
+      return path;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public boolean isAlive(Node node)
+   {
+      HttpURLConnection connection = null;
+      try
+      {
+         connection = (HttpURLConnection) new URL(node.getUrl() + path).openConnection();
+         connection.setConnectTimeout(timeout);
+         connection.setReadTimeout(timeout);
+         connection.setRequestMethod("GET");
+         connection.setUseCaches(false);
+         int status = connection.getResponseCode();
+         if (status >= HttpURLConnection.HTTP_OK && status < HttpURLConnection.HTTP_BAD_REQUEST)
+            return true;
+         if (LOG.isDebugEnabled())
+            LOG.debug("Cometd node " + node.getId() + " answers " + status + " at " + node.getUrl() + path);
+         return false;
+      }
+      catch (IOException e)
+      {
+         if (LOG.isDebugEnabled())
+            LOG.debug("Cometd node " + node.getId() + " doesn't answer at " + node.getUrl() + path + ": " + e.getMessage());
+         return false;
+      }
+      finally
+      {
+         if (connection != null)
+            connection.disconnect();
+      }
+   }
+
+}
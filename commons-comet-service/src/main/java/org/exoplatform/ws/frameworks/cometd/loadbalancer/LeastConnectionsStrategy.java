@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Connects a new client to the alive node having the lowest ratio of connections
+ * to its capacity.
+ */
+public class LeastConnectionsStrategy implements BalancingStrategy
+{
+
+   private volatile List<Node> nodes = new ArrayList<Node>();
+
+   /**
+    * {@inheritDoc}
+    */
+   public void update(Collection<Node> aliveNodes)
+   {
+      this.nodes = new ArrayList<Node>(aliveNodes);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public Node assign(String exoId)
+   {
+      List<Node> candidates = nodes;
+      //another client may take the last connection of the chosen node meanwhile
+      for (int attempt = 0; attempt < candidates.size(); attempt++)
+      {
+         Node least = null;
+         double leastLoad = Double.MAX_VALUE;
+         for (Node node : candidates)
+         {
+            int max = node.getMaxConnection();
+            int connected = node.getConnected();
+            if (!node.isAlive() || connected >= max)
+               continue;
+            double load = (double) connected / max;
+            if (load < leastLoad)
+            {
+               least = node;
+               leastLoad = load;
+            }
+         }
+         if (least == null)
+            return null;
+         if (least.tryAddConnection())
+            return least;
+      }
+      return null;
+   }
+
+}
@@ -19,19 +19,35 @@ package org.exoplatform.ws.frameworks.cometd.loadbalancer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.exoplatform.container.component.ComponentPlugin;
 import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
+import org.mortbay.cometd.continuation.UserTokenStore;
 import org.picocontainer.Startable;
 
 /**
  * Created by The eXo Platform SAS.
  * @author <a href="mailto:vitaly.parfonov@gmail.com">Vitaly Parfonov</a>
  * @version $Id: $
+ * 
+ * The node of a new client is chosen by a {@link BalancingStrategy}, given by the
+ * value-param "strategy": "least-connections" (default), "consistent-hash" or the
+ * class name of an implementation. When "health-check.interval" is set, the
+ * nodes are checked every "health-check.interval" milliseconds by requesting
+ * the dedicated "health-check.path" of each node, and the clients of a node
+ * going down are moved to the alive nodes. The health check is disabled by
+ * default. The nodes must share the property "exo.cometd.token.secret" so that
+ * a client moved to another node keeps its token, an error is logged at start
+ * when several nodes are configured without it.
  */
 public class LoadBalancerImpl implements LoadBalancer, Startable
 {
@@ -39,6 +55,14 @@ public class LoadBalancerImpl implements LoadBalancer, Startable
     * Class logger.
     */
    private static final Log LOG = ExoLogger.getLogger(LoadBalancerImpl.class);
+
+   public static final String STRATEGY_LEAST_CONNECTIONS = "least-connections";
+
+   public static final String STRATEGY_CONSISTENT_HASH = "consistent-hash";
+
+   private static final long DEFAULT_HEALTH_CHECK_INTERVAL = 0;
+
+   private static final int DEFAULT_HEALTH_CHECK_TIMEOUT = 2000;
    
    private LoadBalancerConf loadBalancerConf;
 
@@ -52,21 +76,41 @@ public class LoadBalancerImpl implements LoadBalancer, Startable
     */
    private ConcurrentHashMap<String, String> connectionMap = new ConcurrentHashMap<String, String>();
 
+   private final BalancingStrategy strategy;
+
+   private final NodeProber prober;
+
+   /**
+    * The period of the health check in milliseconds, 0 to disable it.
+    */
+   private final long healthCheckInterval;
+
+   private ScheduledExecutorService healthChecker;
+
    /**
     * @param params the initial parameters.
     */
    public LoadBalancerImpl(InitParams params)
    {
-//      if (params != null)
-//      {
-//         ObjectParameter parameter = params.getObjectParam("cometd.lb.configuration");
-//         LoadBalancerConf conf = (LoadBalancerConf) parameter.getObject();
-//         List<Node> list = conf.getNodes();
-//         for (Node node : list)
-//         {
-//            nodes.put(node.getId(), node);
-//         }
-//      }
+      this(createStrategy(getParam(params, "strategy", STRATEGY_LEAST_CONNECTIONS),
+                          Integer.parseInt(getParam(params, "virtual-nodes",
+                             String.valueOf(ConsistentHashStrategy.DEFAULT_VIRTUAL_NODES)))),
+           new HttpNodeProber(getParam(params, "health-check.path", ""),
+                              Integer.parseInt(getParam(params, "health-check.timeout",
+                                 String.valueOf(DEFAULT_HEALTH_CHECK_TIMEOUT)))),
+           Long.parseLong(getParam(params, "health-check.interval", String.valueOf(DEFAULT_HEALTH_CHECK_INTERVAL))));
+   }
+
+   /**
+    * @param strategy the choice of the node of a new client.
+    * @param prober the health check of the nodes.
+    * @param healthCheckInterval the period of the health check in milliseconds, 0 to disable it.
+    */
+   LoadBalancerImpl(BalancingStrategy strategy, NodeProber prober, long healthCheckInterval)
+   {
+      this.strategy = strategy;
+      this.prober = prober;
+      this.healthCheckInterval = healthCheckInterval;
    }
 
    /**
@@ -75,6 +119,7 @@ public class LoadBalancerImpl implements LoadBalancer, Startable
    public void addNode(Node node)
    {
       this.nodes.put(node.getId(), node);
+      updateStrategy();
    }
 
    /**
@@ -105,13 +150,12 @@ public class LoadBalancerImpl implements LoadBalancer, Startable
     */
    public boolean release(String exoId)
    {
-      String id = connectionMap.get(exoId);
+      String id = connectionMap.remove(exoId);
       if (id != null)
       {
          Node node = nodes.get(id);
-         node.delConnection();
-         connectionMap.remove(exoId);
-         nodes.put(node.getId(), node);
+         if (node != null)
+            node.delConnection();
          return true;
       }
       return false;
@@ -123,12 +167,73 @@ public class LoadBalancerImpl implements LoadBalancer, Startable
    public void removeNode(String id)
    {
       nodes.remove(id);
-      Set<String> set = connectionMap.keySet();
-      for (String key : set)
+      updateStrategy();
+      for (Map.Entry<String, String> entry : connectionMap.entrySet())
+      {
+         if (entry.getValue().equals(id))
+            connectionMap.remove(entry.getKey(), id);
+      }
+   }
+
+   /**
+    * Checks the health of all the nodes, the clients of the nodes going down
+    * are moved to the alive nodes.
+    */
+   public void checkNodes()
+   {
+      List<Node> down = new ArrayList<Node>();
+      boolean changed = false;
+      for (Node node : nodes.values())
+      {
+         boolean alive = prober.isAlive(node);
+         if (alive != node.isAlive())
+         {
+            LOG.info("Cometd node " + node.getId() + " at " + node.getUrl() + " is " + (alive ? "up" : "down"));
+            node.setAlive(alive);
+            changed = true;
+            if (!alive)
+               down.add(node);
+         }
+      }
+      if (changed)
+         updateStrategy();
+      for (Node node : down)
+      {
+         rebalance(node);
+      }
+   }
+
+   /**
+    * Moves the clients of a node gone down to the alive nodes.
+    * @param node the node gone down.
+    */
+   private void rebalance(Node node)
+   {
+      int moved = 0;
+      for (Map.Entry<String, String> entry : connectionMap.entrySet())
       {
-         if (connectionMap.get(key).equals(id))
-            connectionMap.remove(key);
+         String exoId = entry.getKey();
+         if (!entry.getValue().equals(node.getId()))
+            continue;
+         Node target = strategy.assign(exoId);
+         if (target == null)
+         {
+            if (connectionMap.remove(exoId, node.getId()))
+               node.delConnection();
+         }
+         else if (connectionMap.replace(exoId, node.getId(), target.getId()))
+         {
+            node.delConnection();
+            moved++;
+         }
+         else
+         {
+            //the client has been released or moved meanwhile
+            target.delConnection();
+         }
       }
+      if (LOG.isDebugEnabled())
+         LOG.debug(moved + " client(s) moved from the cometd node " + node.getId());
    }
 
    /**
@@ -137,27 +242,43 @@ public class LoadBalancerImpl implements LoadBalancer, Startable
     */
    private String getNodeURL(String exoId)
    {
-      if (connectionMap.containsKey(exoId))
+      String id = connectionMap.get(exoId);
+      if (id != null)
       {
-         return nodes.get(connectionMap.get(exoId)).getUrl();
+         Node node = nodes.get(id);
+         if (node != null && node.isAlive())
+            return node.getUrl();
+         //the node has been removed or is down
+         if (connectionMap.remove(exoId, id) && node != null)
+            node.delConnection();
       }
-      else
+      Node node = strategy.assign(exoId);
+      if (node == null)
       {
-         Collection<Node> ns = nodes.values();
-         for (Node node : ns)
-         {
-            if (node.getConnected() < node.getMaxConnection())
-            {
-               node.addConnection();
-               nodes.put(node.getId(), node);
-               connectionMap.put(exoId, node.getId());
-               return node.getUrl();
-            }
-         }
          if (LOG.isDebugEnabled())
             LOG.debug("Overflow new client cannot connect!");
          return null;
       }
+      String previous = connectionMap.putIfAbsent(exoId, node.getId());
+      if (previous != null)
+      {
+         //the client has been connected by a concurrent request
+         node.delConnection();
+         Node current = nodes.get(previous);
+         return current != null ? current.getUrl() : null;
+      }
+      return node.getUrl();
+   }
+
+   private void updateStrategy()
+   {
+      List<Node> alive = new ArrayList<Node>();
+      for (Node node : nodes.values())
+      {
+         if (node.isAlive())
+            alive.add(node);
+      }
+      strategy.update(alive);
    }
    
    
@@ -173,6 +294,38 @@ public class LoadBalancerImpl implements LoadBalancer, Startable
             nodes.put(node.getId(), node);
          }
       }
+      updateStrategy();
+      if (nodes.size() > 1 && !UserTokenStore.isSecretConfigured())
+         LOG.error(nodes.size() + " cometd nodes are configured without the " + UserTokenStore.SECRET_PROPERTY
+            + " property, the cometd tokens issued by a node are rejected by the others");
+      if (healthCheckInterval > 0)
+      {
+         healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+         {
+            public Thread newThread(Runnable r)
+            {
+               Thread thread = new Thread(r, "LoadBalancer-HealthCheck");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+         healthChecker.scheduleWithFixedDelay(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  checkNodes();
+               }
+               catch (Exception e)
+               {
+                  LOG.error("Failed to check the health of the cometd nodes", e);
+               }
+            }
+         }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+         if (prober instanceof HttpNodeProber && ((HttpNodeProber) prober).getPath().length() == 0)
+            LOG.warn("No health-check.path is configured, the health check of the cometd nodes requests their base URL");
+      }
    }
 
    /**
@@ -180,6 +333,52 @@ public class LoadBalancerImpl implements LoadBalancer, Startable
     */
    public void stop()
    {
+      if (healthChecker != null)
+         healthChecker.shutdownNow();
+   }
+
+   /**
+    * @return the number of connected clients.
+    */
+   public int getConnectionCount()
+   {
+      return connectionMap.size();
+   }
+
+   /**
+    * @param id the ID of cometd node.
+    * @return the node, null if there is no node with this ID.
+    */
+   Node getNode(String id)
+   {
+      return nodes.get(id);
+   }
+
+   private static BalancingStrategy createStrategy(String name, int virtualNodes)
+   {
+      if (STRATEGY_LEAST_CONNECTIONS.equals(name))
+         return new LeastConnectionsStrategy();
+      if (STRATEGY_CONSISTENT_HASH.equals(name))
+         return new ConsistentHashStrategy(virtualNodes);
+      try
+      {
+         return (BalancingStrategy) Class.forName(name, true, Thread.currentThread().getContextClassLoader()).newInstance();
+      }
+      catch (Exception e)
+      {
+         throw new IllegalArgumentException("Cannot create the balancing strategy " + name, e);
+      }
+   }
+
+   private static String getParam(InitParams params, String name, String defaultValue)
+   {
+      if (params != null)
+      {
+         ValueParam param = params.getValueParam(name);
+         if (param != null && param.getValue() != null && param.getValue().trim().length() > 0)
+            return param.getValue().trim();
+      }
+      return defaultValue;
    }
 
    
@@ -16,6 +16,8 @@
  */
 package org.exoplatform.ws.frameworks.cometd.loadbalancer;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by The eXo Platform SAS.
  * 
@@ -43,12 +45,12 @@ public class Node
    /**
     * How much already connected.
     */
-   private int connected;
+   private final AtomicInteger connected = new AtomicInteger();
 
    /**
     * True if node currently alive.
     */
-   private boolean alive;
+   private volatile boolean alive;
 
    /**
     * @param id the unique id  of node.
@@ -61,7 +63,6 @@ public class Node
       this.url = url;
       this.maxConnection = maxConenction;
       this.alive = true;
-      this.connected = 0;
    }
 
    /**
@@ -74,7 +75,6 @@ public class Node
       this.url = url;
       this.maxConnection = 0;
       this.alive = true;
-      this.connected = 0;
    }
 
    /**
@@ -122,7 +122,7 @@ public class Node
     */
    public void setConnected(int connected)
    {
-      this.connected = connected;
+      this.connected.set(connected);
    }
 
    /**
@@ -130,7 +130,7 @@ public class Node
     */
    public int getConnected()
    {
-      return connected;
+      return connected.get();
    }
 
    /**
@@ -154,7 +154,24 @@ public class Node
     */
    public void addConnection()
    {
-      this.connected++;
+      this.connected.incrementAndGet();
+   }
+
+   /**
+    * Add new connection if the node is alive and not overflowed.
+    * @return true if the connection has been added
+    */
+   public boolean tryAddConnection()
+   {
+      while (alive)
+      {
+         int current = connected.get();
+         if (current >= maxConnection)
+            return false;
+         if (connected.compareAndSet(current, current + 1))
+            return true;
+      }
+      return false;
    }
 
    /**
@@ -162,7 +179,12 @@ public class Node
     */
    public void delConnection()
    {
-      this.connected--;
+      while (true)
+      {
+         int current = connected.get();
+         if (current <= 0 || connected.compareAndSet(current, current - 1))
+            return;
+      }
    }
 
    /**
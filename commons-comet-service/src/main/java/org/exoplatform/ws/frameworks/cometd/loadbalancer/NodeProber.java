@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.loadbalancer;
+
+/**
+ * Checks the health of a cometd node for the {@link LoadBalancerImpl}.
+ */
+public interface NodeProber
+{
+
+   /**
+    * @param node the node to check.
+    * @return true if the node can take connections.
+    */
+   boolean isAlive(Node node);
+
+}
@@ -20,6 +20,7 @@ import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -27,6 +28,8 @@ import javax.ws.rs.core.Response.Status;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.rest.resource.ResourceContainer;
+import org.exoplatform.ws.frameworks.cometd.transport.ContinuationServiceDelegate;
+import org.exoplatform.ws.frameworks.cometd.transport.ContinuationServiceRemoteDelegate;
 
 /**
  * Created by The eXo Platform SAS.
@@ -48,6 +51,11 @@ public class RESTLoadBalancerService
     */
    private LoadBalancer balancer;
 
+   /**
+    * The delegate caching the nodes having subscribers by channel, null if the nodes are local.
+    */
+   private ContinuationServiceRemoteDelegate remoteDelegate;
+
    /**
     * @param balancer the strategy for load balancing of cometd cluster.
     */
@@ -56,6 +64,17 @@ public class RESTLoadBalancerService
       this.balancer = balancer;
    }
 
+   /**
+    * @param balancer the strategy for load balancing of cometd cluster.
+    * @param delegate the delivery of the messages to the cometd nodes.
+    */
+   public RESTLoadBalancerService(LoadBalancer balancer, ContinuationServiceDelegate delegate)
+   {
+      this(balancer);
+      if (delegate instanceof ContinuationServiceRemoteDelegate)
+         this.remoteDelegate = (ContinuationServiceRemoteDelegate) delegate;
+   }
+
    /**
     * @param exoid the client id.
     * @return base URL of cometd server in cluster for user.
@@ -66,7 +85,7 @@ public class RESTLoadBalancerService
    public Response getCometdURL(@PathParam("exoid") String exoid)
    {
       String url = balancer.connection(exoid);
-      if (!(url.equals("") || url.length() == 0))
+      if (url != null && url.length() > 0)
       {
          if (LOG.isDebugEnabled())
             LOG.debug("Client with exoid " + exoid + " get URL " + url + " for cometd connection");
@@ -93,6 +112,27 @@ public class RESTLoadBalancerService
       else
          return Response.serverError().build();
    }
+
+   /**
+    * Called by a cometd node when a channel gets its first subscriber or loses
+    * its last one on the node.
+    * @param channel the channel id.
+    * @return OK once the nodes of the channel are forgotten.
+    */
+   @GET
+   @Path("/channelchanged/")
+   public Response channelChanged(@QueryParam("channel") String channel)
+   {
+      if (channel == null || channel.length() == 0)
+         return Response.status(Status.BAD_REQUEST).build();
+      if (remoteDelegate != null)
+      {
+         remoteDelegate.invalidateChannel(channel);
+         if (LOG.isDebugEnabled())
+            LOG.debug("The subscribers of the channel " + channel + " changed on a cometd node");
+      }
+      return Response.ok().build();
+   }
    
     
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.transport;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.MediaType;
+
+import org.exoplatform.common.http.HTTPStatus;
+import org.exoplatform.common.http.client.HTTPConnection;
+import org.exoplatform.common.http.client.HTTPResponse;
+import org.exoplatform.common.http.client.ModuleException;
+import org.exoplatform.common.http.client.NVPair;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.ws.frameworks.json.impl.JsonException;
+import org.exoplatform.ws.frameworks.json.impl.JsonGeneratorImpl;
+
+/**
+ * Sends the messages to the cometd nodes by batch: the messages of a node are
+ * queued and posted together once the batch is full or the time window has
+ * elapsed, on a persistent connection kept by node. The batches of a node are
+ * sent one at a time, so the messages arrive in the order they were sent.
+ */
+public class BatchingTransport
+{
+   /**
+    * Class logger.
+    */
+   private static final Log LOG = ExoLogger.getLogger(BatchingTransport.class);
+
+   private static final NVPair[] JSON_HEADERS = new NVPair[]{new NVPair("Content-Type", MediaType.APPLICATION_JSON)};
+
+   private final String restContextName;
+
+   /**
+    * The time in milliseconds a message waits for other messages.
+    */
+   private final long window;
+
+   /**
+    * The maximum number of messages by request.
+    */
+   private final int batchSize;
+
+   /**
+    * The connect and read timeout in milliseconds.
+    */
+   private final int timeout;
+
+   private final ScheduledThreadPoolExecutor executor;
+
+   private final ConcurrentMap<String, NodeBatch> batches = new ConcurrentHashMap<String, NodeBatch>();
+
+   /**
+    * The persistent connections by node URL.
+    */
+   private final ConcurrentMap<String, HTTPConnection> connections = new ConcurrentHashMap<String, HTTPConnection>();
+
+   private final JsonGeneratorImpl generator = new JsonGeneratorImpl();
+
+   /**
+    * @param restContextName the name of the rest context of the nodes.
+    * @param window the time in milliseconds a message waits for other messages.
+    * @param batchSize the maximum number of messages by request.
+    * @param threads the number of threads sending the batches.
+    * @param timeout the connect and read timeout in milliseconds.
+    */
+   public BatchingTransport(String restContextName, long window, int batchSize, int threads, int timeout)
+   {
+      this.restContextName = restContextName;
+      this.window = Math.max(window, 0);
+      this.batchSize = Math.max(batchSize, 1);
+      this.timeout = timeout;
+      this.executor = new ScheduledThreadPoolExecutor(Math.max(threads, 1), new ThreadFactory()
+      {
+         private final AtomicInteger count = new AtomicInteger();
+
+         public Thread newThread(Runnable r)
+         {
+            Thread thread = new Thread(r, "CometdBatchingTransport-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   /**
+    * Queues a message for a node.
+    * @param nodeURL the base URL of the node.
+    * @param message the message.
+    */
+   public void send(String nodeURL, DelegateMessage message)
+   {
+      NodeBatch batch = batches.get(nodeURL);
+      if (batch == null)
+      {
+         batch = new NodeBatch(nodeURL);
+         NodeBatch previous = batches.putIfAbsent(nodeURL, batch);
+         if (previous != null)
+            batch = previous;
+      }
+      batch.messages.offer(message);
+      //a full batch is sent at once, even if a flush is already scheduled
+      if (batch.size.incrementAndGet() % batchSize == 0)
+         executor.execute(batch);
+      else if (batch.scheduled.compareAndSet(false, true))
+         executor.schedule(batch, window, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Sends a GET request on the persistent connection of a node.
+    * @param nodeURL the base URL of the node.
+    * @param path the path of the request from the rest context.
+    * @return the body of the response.
+    */
+   public String get(String nodeURL, String path) throws IOException, ModuleException
+   {
+      HTTPConnection connection = getConnection(nodeURL);
+      try
+      {
+         HTTPResponse response = connection.Get("/" + restContextName + path);
+         return new String(response.getData());
+      }
+      catch (IOException e)
+      {
+         connections.remove(nodeURL, connection);
+         throw e;
+      }
+   }
+
+   /**
+    * Sends the queued messages and stops the threads.
+    */
+   public void stop()
+   {
+      executor.shutdown();
+      for (NodeBatch batch : batches.values())
+      {
+         batch.run();
+      }
+   }
+
+   private HTTPConnection getConnection(String nodeURL) throws IOException
+   {
+      HTTPConnection connection = connections.get(nodeURL);
+      if (connection == null)
+      {
+         connection = new HTTPConnection(new URL(nodeURL));
+         connection.setTimeout(timeout);
+         HTTPConnection previous = connections.putIfAbsent(nodeURL, connection);
+         if (previous != null)
+            connection = previous;
+      }
+      return connection;
+   }
+
+   private void post(String nodeURL, List<DelegateMessage> messages)
+   {
+      HTTPConnection connection = null;
+      try
+      {
+         String json = generator.createJsonObject(new TransferMessages(messages)).toString();
+         connection = getConnection(nodeURL);
+         HTTPResponse response = connection.Post("/" + restContextName + "/continuation/sendbatch/", json, JSON_HEADERS);
+         if (response.getStatusCode() == HTTPStatus.OK)
+         {
+            if (LOG.isDebugEnabled())
+               LOG.debug("Send " + messages.size() + " message(s) to " + nodeURL + " success");
+         }
+         else
+         {
+            LOG.warn("Send " + messages.size() + " message(s) to " + nodeURL + " fail with status "
+               + response.getStatusCode());
+         }
+      }
+      catch (JsonException e)
+      {
+         LOG.error("error when create JSON object: ", e);
+      }
+      catch (IOException e)
+      {
+         LOG.error("IO exception when sending " + messages.size() + " message(s) to " + nodeURL + ": ", e);
+         if (connection != null)
+            connections.remove(nodeURL, connection);
+      }
+      catch (ModuleException e)
+      {
+         LOG.error("error when getting response: ", e);
+      }
+   }
+
+   /**
+    * The messages waiting for a node.
+    */
+   private class NodeBatch implements Runnable
+   {
+      private final String nodeURL;
+
+      private final Queue<DelegateMessage> messages = new ConcurrentLinkedQueue<DelegateMessage>();
+
+      private final AtomicInteger size = new AtomicInteger();
+
+      /**
+       * True while a flush is scheduled and hasn't started to drain the queue.
+       */
+      private final AtomicBoolean scheduled = new AtomicBoolean();
+
+      private NodeBatch(String nodeURL)
+      {
+         this.nodeURL = nodeURL;
+      }
+
+      public void run()
+      {
+         //the messages queued from now on schedule another flush
+         scheduled.set(false);
+         synchronized (this)
+         {
+            while (true)
+            {
+               List<DelegateMessage> batch = new ArrayList<DelegateMessage>();
+               DelegateMessage message;
+               while (batch.size() < batchSize && (message = messages.poll()) != null)
+               {
+                  batch.add(message);
+               }
+               if (batch.isEmpty())
+                  return;
+               size.addAndGet(-batch.size());
+               post(nodeURL, batch);
+            }
+         }
+      }
+   }
+
+}
@@ -17,36 +17,40 @@
 package org.exoplatform.ws.frameworks.cometd.transport;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.ws.rs.core.MediaType;
-
-import org.exoplatform.common.http.HTTPStatus;
-import org.exoplatform.common.http.client.HTTPConnection;
-import org.exoplatform.common.http.client.HTTPResponse;
 import org.exoplatform.common.http.client.ModuleException;
-import org.exoplatform.common.http.client.NVPair;
-import org.exoplatform.common.http.client.ProtocolNotSuppException;
 import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.ws.frameworks.cometd.loadbalancer.LoadBalancer;
-import org.exoplatform.ws.frameworks.json.impl.JsonException;
-import org.exoplatform.ws.frameworks.json.impl.JsonGeneratorImpl;
-import org.exoplatform.ws.frameworks.json.value.JsonValue;
+import org.picocontainer.Startable;
 
 /**
  * Created by The eXo Platform SAS.
  * 
  * @author <a href="mailto:vitaly.parfonov@gmail.com">Vitaly Parfonov</a>
  * @version $Id: $
+ * 
+ * The messages are sent to the nodes by batch through a {@link BatchingTransport},
+ * configured by the value-params "batch.window" (ms), "batch.size",
+ * "batch.threads" and "connection.timeout" (ms). The nodes having subscribers
+ * on a channel are kept "channel.cache.ttl" milliseconds, 0 to check them on
+ * each broadcast. They are checked again when the alive nodes change, or when a
+ * node notifies through {@link org.exoplatform.ws.frameworks.cometd.loadbalancer.RESTLoadBalancerService}
+ * that a channel got its first subscriber or lost its last one.
  */
 
-public class ContinuationServiceRemoteDelegate implements ContinuationServiceDelegate
+public class ContinuationServiceRemoteDelegate implements ContinuationServiceDelegate, Startable
 {
    /**
     * Class logger.
@@ -60,10 +64,47 @@ public class ContinuationServiceRemoteDelegate implements ContinuationServiceDel
     */
    private final String restContextName;
 
+   private final BatchingTransport transport;
+
+   /**
+    * The time in milliseconds the nodes of a channel are kept.
+    */
+   private final long channelCacheTTL;
+
+   /**
+    * The nodes having subscribers by channel.
+    */
+   private final ConcurrentMap<String, ChannelNodes> channelNodes = new ConcurrentHashMap<String, ChannelNodes>();
+
+   /**
+    * Increased by each invalidation, the nodes of a channel checked meanwhile aren't kept.
+    */
+   private final AtomicLong invalidations = new AtomicLong();
+
    public ContinuationServiceRemoteDelegate(LoadBalancer loadBalancer, ExoContainerContext context)
+   {
+      this(loadBalancer, context, null);
+   }
+
+   public ContinuationServiceRemoteDelegate(LoadBalancer loadBalancer, ExoContainerContext context, InitParams params)
+   {
+      this(loadBalancer, context.getRestContextName(), params);
+   }
+
+   /**
+    * @param loadBalancer the load balancer of the cometd nodes.
+    * @param restContextName the name of the rest context of the nodes.
+    * @param params the initial parameters, null for the default values.
+    */
+   ContinuationServiceRemoteDelegate(LoadBalancer loadBalancer, String restContextName, InitParams params)
    {
       this.loadBalancer = loadBalancer;
-      this.restContextName = context.getRestContextName();
+      this.restContextName = restContextName;
+      this.transport =
+         new BatchingTransport(restContextName, getParam(params, "batch.window", 10), (int) getParam(params,
+            "batch.size", 200), (int) getParam(params, "batch.threads", 2), (int) getParam(params,
+            "connection.timeout", 5000));
+      this.channelCacheTTL = getParam(params, "channel.cache.ttl", 10000);
    }
 
    /**
@@ -83,22 +124,11 @@ public class ContinuationServiceRemoteDelegate implements ContinuationServiceDel
       try
       {
          String baseURICometdServer = getBaseCometdURL(exoID);
-         URL url =
-            new URL(baseURICometdServer + "/" + restContextName + "/issubscribed/" + exoID + "/" + channel + "/");
-         HTTPConnection connection = new HTTPConnection(url);
-         HTTPResponse response = connection.Get(url.getFile());
-         String bol = new String(response.getData());
+         String bol =
+            transport.get(baseURICometdServer, "/continuation/issubscribed/" + exoID + "/?channel=" + channel);
          if (LOG.isDebugEnabled())
             LOG.debug("Check user " + exoID + " subscription to channel " + channel);
-         return new Boolean(bol);
-      } 
-      catch (MalformedURLException e) 
-      {
-         LOG.error("Malformed URL: ", e);
-      } 
-      catch (ProtocolNotSuppException e) 
-      {
-         LOG.error("Protocol is not supported: ", e);
+         return Boolean.valueOf(bol);
       } 
       catch (IOException e) 
       {
@@ -116,50 +146,14 @@ public class ContinuationServiceRemoteDelegate implements ContinuationServiceDel
     */
    public void sendMessage(String exoID, String channel, String message, String msgId)
    {
-      try
+      String baseURICometdServer = getBaseCometdURL(exoID);
+      if (baseURICometdServer == null)
       {
-         String baseURICometdServer = getBaseCometdURL(exoID);
-         URL url = new URL(baseURICometdServer + "/" + restContextName + "/continuation/sendprivatemessage/");
-         HTTPConnection connection = new HTTPConnection(url);
-         DelegateMessage transportData = new DelegateMessage(channel, exoID, message, msgId);
-         JsonGeneratorImpl generatorImpl = new JsonGeneratorImpl();
-         JsonValue json = generatorImpl.createJsonObject(transportData);
-         NVPair[] pairs = new NVPair[1];
-         pairs[0] = new NVPair("Content-Type", MediaType.APPLICATION_JSON);
-         HTTPResponse response = connection.Post(url.getFile(), json.toString(), pairs);
-         if (response.getStatusCode() == HTTPStatus.OK)
-         {
-            if (LOG.isDebugEnabled())
-               LOG.debug("Send private message : " + message + " to client " + exoID + " by cahnnel " + channel
-                  + " success");
-         }
-         else
-         {
-            if (LOG.isDebugEnabled())
-               LOG.debug("Send private message : " + message + " to client " + exoID + " by cahnnel " + channel
-                  + " fail!");
-         }
-      } 
-      catch (MalformedURLException e) 
-      {
-         LOG.error("Malformed URL: ", e);
-      } 
-      catch (ProtocolNotSuppException e) 
-      {
-         LOG.error("Protocol is not supported: ", e);
-      } 
-      catch (JsonException e) 
-      {
-         LOG.error("error when create JSON object: ", e);
-      } 
-      catch (IOException e) 
-      {
-         LOG.error("IO exception: ", e);
-      } 
-      catch (ModuleException e) 
-      {
-         LOG.error("error when getting response: ", e);
+         if (LOG.isDebugEnabled())
+            LOG.debug("Send private message : " + message + " to client " + exoID + " fail, no cometd node!");
+         return;
       }
+      transport.send(baseURICometdServer, new DelegateMessage(channel, exoID, message, msgId));
    }
 
    /**
@@ -167,86 +161,57 @@ public class ContinuationServiceRemoteDelegate implements ContinuationServiceDel
     */
    public void sendBroadcastMessage(String channel, String message, String msgId)
    {
-      try
+      List<String> us = getCometdURLsByChannel(channel);
+      if (us != null)
       {
-         List<String> us = getCometdURLsByChannel(channel);
-         if (us != null)
+         for (String u : us)
          {
-            for (String u : us)
-            {
-               URL url = new URL(u + "/" + restContextName + "/continuation/sendbroadcastmessage/");
-               DelegateMessage transportData = new DelegateMessage(channel, message, msgId);
-               JsonGeneratorImpl generatorImpl = new JsonGeneratorImpl();
-               JsonValue json = generatorImpl.createJsonObject(transportData);
-               HTTPConnection connection = new HTTPConnection(url);
-               NVPair[] pairs = new NVPair[1];
-               pairs[0] = new NVPair("Content-Type", MediaType.APPLICATION_JSON);
-               HTTPResponse response = connection.Post(url.getFile(), json.toString(), pairs);
-               if (response.getStatusCode() == HTTPStatus.OK)
-               {
-                  if (LOG.isDebugEnabled())
-                     LOG.debug("Send public message : " + message + " to channel " + channel + " success");
-               }
-               else
-               {
-                  if (LOG.isDebugEnabled())
-                     LOG.debug("Send public message : " + message + " to channel " + channel + " fail!");
-               }
-            }
+            transport.send(u, new DelegateMessage(channel, message, msgId));
          }
-      } 
-      catch (MalformedURLException e) 
-      {
-         LOG.error("Malformed URL: ", e);
-      } 
-      catch (ProtocolNotSuppException e) 
-      {
-         LOG.error("Protocol is not supported: ", e);
-      } 
-      catch (JsonException e) 
-      {
-         LOG.error("error when create JSON object: ", e);
-      } 
-      catch (IOException e) 
-      {
-         LOG.error("IO exception: ", e);
-      } 
-      catch (ModuleException e) 
-      {
-         LOG.error("error when getting response: ", e);
       }
    }
 
+   /**
+    * Forgets the nodes having subscribers on a channel, they are checked again
+    * on the next broadcast.
+    * @param channel id of channel.
+    */
+   public void invalidateChannel(String channel)
+   {
+      invalidations.incrementAndGet();
+      channelNodes.remove(channel);
+   }
+
    /**
     * @param channel id of channel.
     * @return Array of URL of cometd server there exist users subscribed on channel
     */
    private List<String> getCometdURLsByChannel(String channel)
    {
+      Collection<String> curls = loadBalancer.getAliveNodesURL();
+      Set<String> alive = new HashSet<String>(curls);
+      ChannelNodes cached = channelNodes.get(channel);
+      if (cached != null && cached.expirationTime > System.currentTimeMillis() && cached.aliveNodes.equals(alive))
+         return cached.urls;
+      long invalidation = invalidations.get();
       try
       {
-         Collection<String> curls = loadBalancer.getAliveNodesURL();
          List<String> urls = new ArrayList<String>();
          for (String curl : curls)
          {
-            String u = new String(curl + "/" + restContextName + "/continuation/haschannel?channel=" + channel);
-            URL url = new URL(u);
-            HTTPConnection connection = new HTTPConnection(url);
-            HTTPResponse response = connection.Get(url.getFile());
-            boolean b = Boolean.parseBoolean(new String(response.getData()));
+            boolean b = Boolean.parseBoolean(transport.get(curl, "/continuation/haschannel?channel=" + channel));
             if (b)
                urls.add(curl);
          }
+         if (channelCacheTTL > 0)
+         {
+            channelNodes.put(channel, new ChannelNodes(alive, urls, System.currentTimeMillis() + channelCacheTTL));
+            //a node may have notified a change while it was checked
+            if (invalidations.get() != invalidation)
+               channelNodes.remove(channel);
+         }
          return urls;
       }
-      catch (MalformedURLException e) 
-      {
-         LOG.error("Malformed URL: ", e);
-      } 
-      catch (ProtocolNotSuppException e) 
-      {
-         LOG.error("Protocol is not supported: ", e);
-      } 
       catch (IOException e) 
       {
          LOG.error("IO exception: ", e);
@@ -258,5 +223,50 @@ public class ContinuationServiceRemoteDelegate implements ContinuationServiceDel
       return null;
    }
 
+   /**
+    * {@inheritDoc}
+    */
+   public void start()
+   {
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void stop()
+   {
+      transport.stop();
+   }
+
+   private static long getParam(InitParams params, String name, long defaultValue)
+   {
+      if (params != null)
+      {
+         ValueParam param = params.getValueParam(name);
+         if (param != null && param.getValue() != null && param.getValue().trim().length() > 0)
+            return Long.parseLong(param.getValue().trim());
+      }
+      return defaultValue;
+   }
+
+   /**
+    * The nodes having subscribers on a channel, valid while the alive nodes
+    * don't change and no node notifies a change of the subscribers of the channel.
+    */
+   private static class ChannelNodes
+   {
+      private final Set<String> aliveNodes;
+
+      private final List<String> urls;
+
+      private final long expirationTime;
+
+      private ChannelNodes(Set<String> aliveNodes, List<String> urls, long expirationTime)
+      {
+         this.aliveNodes = aliveNodes;
+         this.urls = urls;
+         this.expirationTime = expirationTime;
+      }
+   }
  
 }
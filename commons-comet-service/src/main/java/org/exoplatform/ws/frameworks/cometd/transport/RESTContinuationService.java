@@ -132,4 +132,25 @@ public class RESTContinuationService
       return Response.ok().build();
    }
 
+   /**
+    * @param data the messages sent by batch, the messages with a clientId are private.
+    * @return Response with status
+    */
+   @POST
+   @Path("/sendbatch/")
+   @Consumes(MediaType.APPLICATION_JSON)
+   public Response sendBatch(TransferMessages data)
+   {
+      for (DelegateMessage message : data.getMessages())
+      {
+         if (message.getExoId() != null)
+            continuation.sendMessage(message.getExoId(), message.getChannel(), message.getMessage(), message.getId());
+         else
+            continuation.sendBroadcastMessage(message.getChannel(), message.getMessage(), message.getId());
+      }
+      if (LOG.isDebugEnabled())
+         LOG.debug("Send " + data.getMessages().size() + " message(s) by batch");
+      return Response.ok().build();
+   }
+
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of messages sent to a cometd node at once, the messages with an
+ * exoId are private messages, the others are broadcast on their channel.
+ */
+public class TransferMessages
+{
+
+   /**
+    * The messages, in the order they have been sent.
+    */
+   private List<DelegateMessage> messages = new ArrayList<DelegateMessage>();
+
+   /**
+    * 
+    */
+   public TransferMessages()
+   {
+   }
+
+   /**
+    * @param messages the messages of the batch.
+    */
+   public TransferMessages(List<DelegateMessage> messages)
+   {
+      this.messages = messages;
+   }
+
+   /**
+    * @return the messages
+    */
+   public List<DelegateMessage> getMessages()
+   {
+      return messages;
+   }
+
+   /**
+    * @param messages the messages to set
+    */
+   public void setMessages(List<DelegateMessage> messages)
+   {
+      this.messages = messages;
+   }
+
+}
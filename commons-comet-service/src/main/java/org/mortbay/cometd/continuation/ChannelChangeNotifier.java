@@ -0,0 +1,196 @@
+package org.mortbay.cometd.continuation;
+
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.exoplatform.commons.utils.PropertyManager;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Notifies the load balancers that a channel got its first subscriber or lost
+ * its last one on this cometd node, so they check again the nodes to which the
+ * messages of the channel are broadcast. The load balancers are given by the
+ * property {@value #BALANCER_URLS_PROPERTY}, a comma separated list of the URLs
+ * of their rest context, e.g. "http://portal1:8080/rest,http://portal2:8080/rest".
+ *
+ * The notifications are sent in the background, the pending notifications of a
+ * channel are sent once.
+ */
+public class ChannelChangeNotifier
+{
+
+   /**
+    * The URLs of the rest context of the load balancers.
+    */
+   public static final String BALANCER_URLS_PROPERTY = "exo.cometd.balancer.urls";
+
+   private static final int TIMEOUT = 5000;
+
+   /**
+    * Logger.
+    */
+   private static final Log LOG = ExoLogger.getLogger(ChannelChangeNotifier.class);
+
+   private final List<String> balancerURLs;
+
+   /**
+    * The channels waiting for their notification.
+    */
+   private final Set<String> pendings = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   private ExecutorService executor;
+
+   private boolean stopped;
+
+   /**
+    * Creates a notifier configured by the system properties.
+    */
+   public ChannelChangeNotifier()
+   {
+      this(getBalancerURLs());
+   }
+
+   /**
+    * @param balancerURLs the URLs of the rest context of the load balancers.
+    */
+   public ChannelChangeNotifier(List<String> balancerURLs)
+   {
+      this.balancerURLs = balancerURLs;
+   }
+
+   /**
+    * Notifies the load balancers in the background that the subscribers of a
+    * channel changed.
+    * @param channel the channel id.
+    */
+   public void channelChanged(final String channel)
+   {
+      if (balancerURLs.isEmpty() || !pendings.add(channel))
+         return;
+      ExecutorService executor = getExecutor();
+      if (executor == null)
+         return;
+      executor.execute(new Runnable()
+      {
+         public void run()
+         {
+            //a change from now on is notified again
+            pendings.remove(channel);
+            for (String url : balancerURLs)
+            {
+               notifyBalancer(url, channel);
+            }
+         }
+      });
+   }
+
+   /**
+    * Stops the thread sending the notifications, the next changes are not notified.
+    */
+   public synchronized void stop()
+   {
+      stopped = true;
+      if (executor != null)
+         executor.shutdownNow();
+   }
+
+   private void notifyBalancer(String balancerURL, String channel)
+   {
+      HttpURLConnection connection = null;
+      try
+      {
+         connection =
+            (HttpURLConnection)new URL(balancerURL + "/balancer/channelchanged/?channel="
+               + URLEncoder.encode(channel, "UTF-8")).openConnection();
+         connection.setConnectTimeout(TIMEOUT);
+         connection.setReadTimeout(TIMEOUT);
+         connection.setUseCaches(false);
+         int status = connection.getResponseCode();
+         if (status != HttpURLConnection.HTTP_OK)
+            LOG.warn("The load balancer " + balancerURL + " answers " + status + " to the change of the channel " + channel);
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new IllegalStateException("UTF-8 is not supported", e);
+      }
+      catch (IOException e)
+      {
+         LOG.warn("Cannot notify the load balancer " + balancerURL + " of the change of the channel " + channel + ": "
+            + e.getMessage());
+      }
+      finally
+      {
+         if (connection != null)
+            connection.disconnect();
+      }
+   }
+
+   /**
+    * @return the executor sending the notifications, null once stopped.
+    */
+   private synchronized ExecutorService getExecutor()
+   {
+      if (stopped)
+         return null;
+      if (executor == null)
+      {
+         executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+         {
+            public Thread newThread(Runnable r)
+            {
+               Thread thread = new Thread(r, "CometdChannelChangeNotifier");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return executor;
+   }
+
+   private static List<String> getBalancerURLs()
+   {
+      List<String> urls = new ArrayList<String>();
+      String value = PropertyManager.getProperty(BALANCER_URLS_PROPERTY);
+      if (value != null)
+      {
+         for (String url : value.split(","))
+         {
+            url = url.trim();
+            if (url.endsWith("/"))
+               url = url.substring(0, url.length() - 1);
+            if (url.length() > 0)
+               urls.add(url);
+         }
+      }
+      return urls;
+   }
+
+}
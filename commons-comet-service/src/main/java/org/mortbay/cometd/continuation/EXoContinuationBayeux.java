@@ -18,21 +18,25 @@ package org.mortbay.cometd.continuation;
  */
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import javax.servlet.ServletContext;
 
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.mortbay.cometd.ClientImpl;
+import org.picocontainer.Startable;
 
 import dojox.cometd.Channel;
 import dojox.cometd.Client;
 import dojox.cometd.Message;
 import dojox.cometd.SecurityPolicy;
+import dojox.cometd.SubscriptionListener;
 
 /**
  * Created by The eXo Platform SAS.
@@ -43,12 +47,19 @@ import dojox.cometd.SecurityPolicy;
 
 public class EXoContinuationBayeux
    extends ContinuationBayeux
+   implements Startable
 {
 
    /**
-    * Map for userToken.
+    * The tokens of the users.
     */
-   private static Map<String, String> userToken = new HashMap<String, String>();
+   private final UserTokenStore userTokens;
+
+   /**
+    * Notifies the load balancers of the channels getting their first subscriber
+    * or losing their last one.
+    */
+   private final ChannelChangeNotifier channelNotifier;
 
    /**
     * Generate userToken.
@@ -69,6 +80,13 @@ public class EXoContinuationBayeux
     * Used to send message to all client or a specific client that listen a specific channel
     */
    private ClientImpl systemClient;
+
+   /**
+    * The clients by eXoId, a user has a client by open page. The sets are only
+    * changed under the lock of the map, so they are read without lock.
+    */
+   private final ConcurrentMap<String, Set<EXoContinuationClient>> clientsByEXoId =
+      new ConcurrentHashMap<String, Set<EXoContinuationClient>>();
    
    /**
     * Logger.
@@ -81,7 +99,24 @@ public class EXoContinuationBayeux
    public EXoContinuationBayeux()
    {
       super();
-      this.setSecurityPolicy(new EXoSecurityPolicy());
+      this.userTokens = new UserTokenStore();
+      this.channelNotifier = new ChannelChangeNotifier();
+      this.setSecurityPolicy(new EXoSecurityPolicy(userTokens));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void start()
+   {
+   }
+
+   /**
+    * Stops the notifications of the channel changes when the container stops.
+    */
+   public void stop()
+   {
+      channelNotifier.stop();
    }
 
    /**
@@ -132,13 +167,16 @@ public class EXoContinuationBayeux
     */
    public String getUserToken(String eXoId)
    {
-      if (userToken.containsKey(eXoId))
-      {
-         return (String) userToken.get(eXoId);
-      }
-      String token = Long.toString(this.getRandom(System.identityHashCode(this) ^ System.currentTimeMillis()), 36);
-      userToken.put(eXoId, token);
-      return token;
+      return userTokens.getToken(eXoId);
+   }
+
+   /**
+    * Revokes the tokens given so far to a client.
+    * @param eXoId the client id.
+    */
+   public void revokeUserToken(String eXoId)
+   {
+      userTokens.revoke(eXoId);
    }
 
    /* ------------------------------------------------------------ */
@@ -160,6 +198,20 @@ public class EXoContinuationBayeux
          random = new Random();
       }
       random.setSeed(random.nextLong() ^ hashCode() ^ (context.hashCode() << 32) ^ Runtime.getRuntime().freeMemory());
+      addListener(new SubscriptionListener()
+      {
+         public void subscribed(Client client, Channel channel)
+         {
+            if (channel.getSubscribers().size() <= 1)
+               channelNotifier.channelChanged(channel.getId());
+         }
+
+         public void unsubscribed(Client client, Channel channel)
+         {
+            if (channel.getSubscribers().isEmpty())
+               channelNotifier.channelChanged(channel.getId());
+         }
+      });
       if (LOG.isDebugEnabled())
          LOG.debug("Initialized");
    }
@@ -170,18 +222,88 @@ public class EXoContinuationBayeux
     */
    public EXoContinuationClient getClientByEXoId(String eXoID)
    {
-      Set<String> ids = getClientIDs();
-      for (String id : ids)
+      Set<EXoContinuationClient> clients = getClientsByEXoId(eXoID);
+      return clients.isEmpty() ? null : clients.iterator().next();
+   }
+
+   /**
+    * @param eXoID the id of client.
+    * @return the clients with eXoID, one by page the user has open.
+    */
+   public Set<EXoContinuationClient> getClientsByEXoId(String eXoID)
+   {
+      Set<EXoContinuationClient> clients = eXoID == null ? null : clientsByEXoId.get(eXoID);
+      if (clients == null)
+         return Collections.emptySet();
+      return Collections.unmodifiableSet(clients);
+   }
+
+   /**
+    * Indexes a client under its current eXoId.
+    * @param client the client.
+    */
+   private void register(EXoContinuationClient client)
+   {
+      String eXoId = client.getEXoId();
+      if (eXoId == null)
+         return;
+      synchronized (clientsByEXoId)
       {
-         Client client = getClient(id);
-         if (client instanceof EXoContinuationClient)
+         Set<EXoContinuationClient> clients = clientsByEXoId.get(eXoId);
+         if (clients == null)
          {
-            EXoContinuationClient exoClient = (EXoContinuationClient) client;
-            if (exoClient.getEXoId() != null && exoClient.getEXoId().equals(eXoID))
-               return exoClient;
+            clients = new CopyOnWriteArraySet<EXoContinuationClient>();
+            clientsByEXoId.put(eXoId, clients);
          }
+         clients.add(client);
+      }
+   }
+
+   /**
+    * Removes a client from the index under its current eXoId.
+    * @param client the client.
+    */
+   private void unregister(EXoContinuationClient client)
+   {
+      String eXoId = client.getEXoId();
+      if (eXoId == null)
+         return;
+      synchronized (clientsByEXoId)
+      {
+         Set<EXoContinuationClient> clients = clientsByEXoId.get(eXoId);
+         if (clients != null && clients.remove(client) && clients.isEmpty())
+            clientsByEXoId.remove(eXoId);
+      }
+   }
+
+   /**
+    * Changes the eXoId of a client in the index. A client already removed isn't
+    * indexed again, it's checked under the same lock as its removal.
+    * @param client the client.
+    * @param eXoId the new eXoId of the client.
+    */
+   void reindex(EXoContinuationClient client, String eXoId)
+   {
+      synchronized (clientsByEXoId)
+      {
+         unregister(client);
+         client.eXoId = eXoId;
+         if (!client.removed)
+            register(client);
+      }
+   }
+
+   /**
+    * Removes a client from the index for good, when it's removed or has timed out.
+    * @param client the client.
+    */
+   void unregisterRemoved(EXoContinuationClient client)
+   {
+      synchronized (clientsByEXoId)
+      {
+         client.removed = true;
+         unregister(client);
       }
-      return null;
    }
 
    /**
@@ -225,13 +347,17 @@ public class EXoContinuationBayeux
     */
    public void sendMessage(String eXoId, String channel, Object data, String id)
    {
-      EXoContinuationClient toClient = getClientByEXoId(eXoId);
-      ClientImpl fromClient = getSystemClient();
-      if (toClient != null)
+      Set<EXoContinuationClient> toClients = getClientsByEXoId(eXoId);
+      if (!toClients.isEmpty())
       {
-         toClient.deliver(fromClient, channel, data, id);
+         ClientImpl fromClient = getSystemClient();
+         for (EXoContinuationClient toClient : toClients)
+         {
+            toClient.deliver(fromClient, channel, data, id);
+         }
          if (LOG.isDebugEnabled())
-            LOG.debug("Send message " + data.toString() + " on channel " + channel + " to client " + eXoId);
+            LOG.debug("Send message " + data.toString() + " on channel " + channel + " to " + toClients.size()
+                     + " client(s) " + eXoId);
       }
       else
       {
@@ -257,12 +383,26 @@ public class EXoContinuationBayeux
       implements SecurityPolicy
    {
 
+      /**
+       * The tokens of the users.
+       */
+      private final UserTokenStore userTokens;
+
       /**
        * 
        */
       public EXoSecurityPolicy()
+      {
+         this(new UserTokenStore());
+      }
+
+      /**
+       * @param userTokens the tokens of the users.
+       */
+      public EXoSecurityPolicy(UserTokenStore userTokens)
       {
          super();
+         this.userTokens = userTokens;
       }
 
       /**
@@ -318,7 +458,7 @@ public class EXoContinuationBayeux
       {
          String userId = (String) message.get("exoId");
          String eXoToken = (String) message.get("exoToken");
-         return (userId != null && userToken.containsKey(userId) && userToken.get(userId).equals(eXoToken));
+         return userTokens.isValid(userId, eXoToken);
       }
 
    }
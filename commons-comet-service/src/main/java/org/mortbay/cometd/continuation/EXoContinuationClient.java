@@ -33,12 +33,23 @@ public class EXoContinuationClient
     */
    protected String eXoId;
 
+   /**
+    * The bayeux indexing the client by eXoId.
+    */
+   private final EXoContinuationBayeux bayeux;
+
+   /**
+    * Set once the client is removed, under the lock of the index of the bayeux.
+    */
+   boolean removed;
+
    /**
     * @param bayeux the bayeux.
     */
    protected EXoContinuationClient(EXoContinuationBayeux bayeux)
    {
       super(bayeux);
+      this.bayeux = bayeux;
    }
 
    /**
@@ -54,6 +65,15 @@ public class EXoContinuationClient
     */
    public void setEXoId(String eXoId)
    {
-      this.eXoId = eXoId;
+      bayeux.reindex(this, eXoId);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void remove(boolean timeout)
+   {
+      super.remove(timeout);
+      bayeux.unregisterRemoved(this);
    }
 }
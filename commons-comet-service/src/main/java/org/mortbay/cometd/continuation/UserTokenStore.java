@@ -0,0 +1,335 @@
+package org.mortbay.cometd.continuation;
+
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.exoplatform.commons.utils.PropertyManager;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Issues and checks the tokens of the cometd clients. A token is made of its
+ * issue time and of an HMAC of the eXoId and of this time, so it's checked
+ * without lookup, on any node sharing the secret given by the property
+ * {@value #SECRET_PROPERTY}. Without this property each JVM uses its own random
+ * secret, so the property must be set to the same value on all the nodes of a
+ * cluster. A token expires after {@value #TTL_PROPERTY} milliseconds, one day by
+ * default. As a token is often checked by another node than the one which issued
+ * it, a token issued in the future of the checking node is accepted up to
+ * {@value #SKEW_PROPERTY} milliseconds, five seconds by default, to tolerate the
+ * clock differences between the nodes.
+ * 
+ * The store only keeps the revocations, until the tokens they apply to have
+ * expired, and at most {@value #MAX_REVOCATIONS_PROPERTY} of them. The
+ * revocations are local to the node: a token revoked on a node is still
+ * accepted by the other nodes until it expires.
+ */
+public class UserTokenStore
+{
+
+   /**
+    * The secret shared by the cometd nodes.
+    */
+   public static final String SECRET_PROPERTY = "exo.cometd.token.secret";
+
+   /**
+    * The time to live of a token in milliseconds.
+    */
+   public static final String TTL_PROPERTY = "exo.cometd.token.ttl";
+
+   /**
+    * The maximum number of revoked users kept.
+    */
+   public static final String MAX_REVOCATIONS_PROPERTY = "exo.cometd.token.revocations";
+
+   /**
+    * The maximum clock skew between the cometd nodes in milliseconds.
+    */
+   public static final String SKEW_PROPERTY = "exo.cometd.token.skew";
+
+   private static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L;
+
+   private static final int DEFAULT_MAX_REVOCATIONS = 100000;
+
+   private static final long DEFAULT_SKEW = 5000L;
+
+   private static final String ALGORITHM = "HmacSHA256";
+
+   /**
+    * The HMAC is truncated to 128 bits.
+    */
+   private static final int SIGNATURE_LENGTH = 16;
+
+   private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+   /**
+    * The secret used when none is configured, shared by the stores of the JVM.
+    */
+   private static final byte[] LOCAL_SECRET = new byte[32];
+
+   static
+   {
+      new SecureRandom().nextBytes(LOCAL_SECRET);
+   }
+
+   /**
+    * Logger.
+    */
+   private static final Log LOG = ExoLogger.getLogger(UserTokenStore.class);
+
+   private final SecretKeySpec key;
+
+   private final long ttl;
+
+   private final int maxRevocations;
+
+   private final long skew;
+
+   /**
+    * The time of the last revocation by eXoId, the tokens issued before are invalid.
+    */
+   private final ConcurrentMap<String, Long> revocations = new ConcurrentHashMap<String, Long>();
+
+   private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+   /**
+    * Creates a store configured by the system properties.
+    */
+   public UserTokenStore()
+   {
+      this(getSecret(), getLong(TTL_PROPERTY, DEFAULT_TTL), (int) getLong(MAX_REVOCATIONS_PROPERTY,
+         DEFAULT_MAX_REVOCATIONS), getLong(SKEW_PROPERTY, DEFAULT_SKEW));
+   }
+
+   /**
+    * @param secret the secret shared by the cometd nodes.
+    * @param ttl the time to live of a token in milliseconds.
+    * @param maxRevocations the maximum number of revoked users kept.
+    */
+   public UserTokenStore(byte[] secret, long ttl, int maxRevocations)
+   {
+      this(secret, ttl, maxRevocations, DEFAULT_SKEW);
+   }
+
+   /**
+    * @param secret the secret shared by the cometd nodes.
+    * @param ttl the time to live of a token in milliseconds.
+    * @param maxRevocations the maximum number of revoked users kept.
+    * @param skew the maximum clock skew between the cometd nodes in milliseconds.
+    */
+   public UserTokenStore(byte[] secret, long ttl, int maxRevocations, long skew)
+   {
+      this.key = new SecretKeySpec(secret, ALGORITHM);
+      this.ttl = ttl;
+      this.maxRevocations = maxRevocations;
+      this.skew = Math.max(0, skew);
+   }
+
+   /**
+    * @param eXoId the client id.
+    * @return a new token for the client.
+    */
+   public String getToken(String eXoId)
+   {
+      return getToken(eXoId, System.currentTimeMillis());
+   }
+
+   String getToken(String eXoId, long issueTime)
+   {
+      String time = Long.toString(issueTime, 36);
+      return time + "-" + toHex(sign(eXoId, time));
+   }
+
+   /**
+    * @param eXoId the client id.
+    * @param token the token given by the client.
+    * @return true if the token has been issued for the client, hasn't expired
+    *         and hasn't been revoked.
+    */
+   public boolean isValid(String eXoId, String token)
+   {
+      if (eXoId == null || token == null)
+         return false;
+      int separator = token.indexOf('-');
+      if (separator <= 0 || token.length() != separator + 1 + SIGNATURE_LENGTH * 2)
+         return false;
+      String time = token.substring(0, separator);
+      long issueTime;
+      try
+      {
+         issueTime = Long.parseLong(time, 36);
+      }
+      catch (NumberFormatException e)
+      {
+         return false;
+      }
+      long now = System.currentTimeMillis();
+      // tolerates the clock of the issuing node being slightly ahead of ours
+      if (issueTime - now > skew || now - issueTime >= ttl)
+         return false;
+      Long revocation = revocations.get(eXoId);
+      if (revocation != null && issueTime <= revocation)
+         return false;
+      byte[] expected = toHex(sign(eXoId, time)).getBytes();
+      //compares in constant time
+      return MessageDigest.isEqual(expected, token.substring(separator + 1).getBytes());
+   }
+
+   /**
+    * Revokes the tokens issued so far to a client, on this node.
+    * @param eXoId the client id.
+    */
+   public void revoke(String eXoId)
+   {
+      long now = System.currentTimeMillis();
+      if (revocations.size() >= maxRevocations)
+         evict(now);
+      revocations.put(eXoId, now);
+   }
+
+   /**
+    * @return the number of revoked users kept.
+    */
+   public int getRevocationCount()
+   {
+      return revocations.size();
+   }
+
+   /**
+    * Drops the revocations whose tokens have expired, then the oldest ones
+    * if the store is still full.
+    */
+   private void evict(long now)
+   {
+      long oldest = Long.MAX_VALUE;
+      for (Iterator<Map.Entry<String, Long>> it = revocations.entrySet().iterator(); it.hasNext();)
+      {
+         long time = it.next().getValue();
+         if (now - time >= ttl)
+            it.remove();
+         else
+            oldest = Math.min(oldest, time);
+      }
+      if (revocations.size() >= maxRevocations)
+      {
+         LOG.warn("The cometd token store keeps " + revocations.size()
+            + " revocations, the oldest are dropped before the tokens they apply to have expired");
+         //drops the oldest half of the remaining time window
+         long limit = oldest + (now - oldest) / 2;
+         for (Iterator<Map.Entry<String, Long>> it = revocations.entrySet().iterator(); it.hasNext();)
+         {
+            if (it.next().getValue() <= limit)
+               it.remove();
+         }
+      }
+   }
+
+   private byte[] sign(String eXoId, String time)
+   {
+      try
+      {
+         Mac mac = macs.get();
+         if (mac == null)
+         {
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            macs.set(mac);
+         }
+         return mac.doFinal((eXoId + ":" + time).getBytes("UTF-8"));
+      }
+      catch (GeneralSecurityException e)
+      {
+         throw new IllegalStateException(ALGORITHM + " is not supported", e);
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new IllegalStateException("UTF-8 is not supported", e);
+      }
+   }
+
+   private static String toHex(byte[] bytes)
+   {
+      char[] chars = new char[SIGNATURE_LENGTH * 2];
+      for (int i = 0; i < SIGNATURE_LENGTH; i++)
+      {
+         chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+         chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+      }
+      return new String(chars);
+   }
+
+   /**
+    * @return true if the secret shared by the cometd nodes is configured.
+    */
+   public static boolean isSecretConfigured()
+   {
+      String secret = PropertyManager.getProperty(SECRET_PROPERTY);
+      return secret != null && secret.length() > 0;
+   }
+
+   private static byte[] getSecret()
+   {
+      String secret = PropertyManager.getProperty(SECRET_PROPERTY);
+      if (!isSecretConfigured())
+      {
+         String balancers = PropertyManager.getProperty(ChannelChangeNotifier.BALANCER_URLS_PROPERTY);
+         if (balancers != null && balancers.trim().length() > 0)
+            LOG.error("No " + SECRET_PROPERTY + " property on a node of a cometd cluster, the cometd tokens are only"
+               + " valid on this node and the clients moved to another node are rejected");
+         else
+            LOG.warn("No " + SECRET_PROPERTY + " property, the cometd tokens are only valid on this node");
+         return LOCAL_SECRET;
+      }
+      try
+      {
+         return secret.getBytes("UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new IllegalStateException("UTF-8 is not supported", e);
+      }
+   }
+
+   private static long getLong(String name, long defaultValue)
+   {
+      String value = PropertyManager.getProperty(name);
+      if (value != null && value.trim().length() > 0)
+      {
+         try
+         {
+            return Long.parseLong(value.trim());
+         }
+         catch (NumberFormatException e)
+         {
+            LOG.warn("Invalid value " + value + " of the property " + name + ", " + defaultValue + " is used");
+         }
+      }
+      return defaultValue;
+   }
+
+}
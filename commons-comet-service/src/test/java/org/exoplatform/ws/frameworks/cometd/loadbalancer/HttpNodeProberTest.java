@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.loadbalancer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the transitions of the cometd nodes between up and down, as seen by
+ * the HTTP health check of their health path.
+ */
+public class HttpNodeProberTest
+   extends TestCase
+{
+   private static final String HEALTH_PATH = "/rest/health";
+
+   private final Map<String, Integer> statuses = new ConcurrentHashMap<String, Integer>();
+
+   private HttpServer server;
+
+   private String baseUrl;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/", new HttpHandler()
+      {
+         public void handle(HttpExchange exchange) throws IOException
+         {
+            Integer status = statuses.get(exchange.getRequestURI().getPath());
+            exchange.sendResponseHeaders(status == null ? 404 : status, -1);
+            exchange.close();
+         }
+      });
+      server.start();
+      baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      server.stop(0);
+   }
+
+   public void testProbe() throws Exception
+   {
+      HttpNodeProber prober = new HttpNodeProber(HEALTH_PATH, 2000);
+      Node node = new Node("node1", baseUrl, 10);
+      statuses.put(HEALTH_PATH, 200);
+      assertTrue(prober.isAlive(node));
+      statuses.put(HEALTH_PATH, 503);
+      assertFalse(prober.isAlive(node));
+      // the node must answer on its health path, not only on its base URL
+      statuses.put("/", 200);
+      statuses.remove(HEALTH_PATH);
+      assertFalse(prober.isAlive(node));
+      // nothing listens on the port of a stopped node
+      server.stop(0);
+      assertFalse(prober.isAlive(node));
+   }
+
+   public void testDownAndUp() throws Exception
+   {
+      LoadBalancerImpl balancer =
+         new LoadBalancerImpl(new LeastConnectionsStrategy(), new HttpNodeProber(HEALTH_PATH, 2000), 0);
+      String node2Url = baseUrl + "/node2";
+      balancer.addNode(new Node("node1", baseUrl, 10));
+      balancer.addNode(new Node("node2", node2Url, 10));
+      statuses.put(HEALTH_PATH, 200);
+      statuses.put("/node2" + HEALTH_PATH, 200);
+      balancer.checkNodes();
+      assertEquals(2, balancer.getAliveNodesURL().size());
+      assertNotNull(balancer.connection("user1"));
+      assertNotNull(balancer.connection("user2"));
+      // the node going down loses its clients
+      statuses.put("/node2" + HEALTH_PATH, 503);
+      balancer.checkNodes();
+      assertFalse(balancer.getNode("node2").isAlive());
+      assertEquals(Collections.singletonList(baseUrl), balancer.getAliveNodesURL());
+      assertEquals(0, balancer.getNode("node2").getConnected());
+      assertEquals(2, balancer.getNode("node1").getConnected());
+      assertEquals(baseUrl, balancer.connection("user1"));
+      assertEquals(baseUrl, balancer.connection("user2"));
+      // the node coming up again takes the new clients
+      statuses.put("/node2" + HEALTH_PATH, 200);
+      balancer.checkNodes();
+      assertTrue(balancer.getNode("node2").isAlive());
+      assertEquals(2, balancer.getAliveNodesURL().size());
+      assertEquals(node2Url, balancer.connection("user3"));
+   }
+}
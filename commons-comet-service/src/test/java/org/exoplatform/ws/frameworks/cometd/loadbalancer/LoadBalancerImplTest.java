@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.loadbalancer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Simulates the connections of 100 000 users by several threads and checks
+ * their distribution on the cometd nodes.
+ */
+public class LoadBalancerImplTest
+   extends TestCase
+{
+   private static final int NODES = 8;
+
+   private static final int USERS = 100000;
+
+   private static final int THREADS = 8;
+
+   private final Set<String> downNodes = Collections.synchronizedSet(new HashSet<String>());
+
+   private final NodeProber prober = new NodeProber()
+   {
+      public boolean isAlive(Node node)
+      {
+         return !downNodes.contains(node.getId());
+      }
+   };
+
+   public void testLeastConnections() throws Exception
+   {
+      LoadBalancerImpl balancer = createBalancer(new LeastConnectionsStrategy());
+      Map<String, Integer> distribution = connectAll(balancer);
+      for (Integer count : distribution.values())
+      {
+         //the concurrent choices can only differ by the number of threads
+         assertTrue("Uneven distribution " + distribution, Math.abs(count - USERS / NODES) <= THREADS);
+      }
+      checkCounters(balancer);
+   }
+
+   public void testConsistentHash() throws Exception
+   {
+      LoadBalancerImpl balancer = createBalancer(new ConsistentHashStrategy());
+      Map<String, Integer> distribution = connectAll(balancer);
+      for (Integer count : distribution.values())
+      {
+         assertTrue("Uneven distribution " + distribution, Math.abs(count - USERS / NODES) < USERS / NODES / 5);
+      }
+      checkCounters(balancer);
+      // a client keeps its node
+      String url = balancer.connection("user42");
+      assertEquals(url, balancer.connection("user42"));
+      assertTrue(balancer.release("user42"));
+      assertEquals(url, balancer.connection("user42"));
+   }
+
+   public void testNodeDown() throws Exception
+   {
+      LoadBalancerImpl balancer = createBalancer(new ConsistentHashStrategy());
+      Map<String, String> before = new HashMap<String, String>();
+      for (int i = 0; i < 10000; i++)
+      {
+         before.put("user" + i, balancer.connection("user" + i));
+      }
+      downNodes.add("node3");
+      balancer.checkNodes();
+      assertEquals(NODES - 1, balancer.getAliveNodesURL().size());
+      int moved = 0;
+      for (int i = 0; i < 10000; i++)
+      {
+         String url = balancer.connection("user" + i);
+         assertFalse(url.equals("http://node3"));
+         if (!url.equals(before.get("user" + i)))
+            moved++;
+      }
+      // only the clients of the node gone down are moved
+      int node3Users = 0;
+      for (String url : before.values())
+      {
+         if (url.equals("http://node3"))
+            node3Users++;
+      }
+      assertEquals(node3Users, moved);
+      assertEquals(0, balancer.getNode("node3").getConnected());
+      checkCounters(balancer);
+      //
+      downNodes.clear();
+      balancer.checkNodes();
+      assertEquals(NODES, balancer.getAliveNodesURL().size());
+   }
+
+   public void testOverflow() throws Exception
+   {
+      LoadBalancerImpl balancer = new LoadBalancerImpl(new LeastConnectionsStrategy(), prober, 0);
+      balancer.addNode(new Node("node1", "http://node1", 2));
+      assertNotNull(balancer.connection("user1"));
+      assertNotNull(balancer.connection("user2"));
+      assertNull(balancer.connection("user3"));
+      assertTrue(balancer.release("user1"));
+      assertNotNull(balancer.connection("user3"));
+      assertFalse(balancer.release("user4"));
+   }
+
+   private LoadBalancerImpl createBalancer(BalancingStrategy strategy)
+   {
+      LoadBalancerImpl balancer = new LoadBalancerImpl(strategy, prober, 0);
+      for (int i = 0; i < NODES; i++)
+      {
+         balancer.addNode(new Node("node" + i, "http://node" + i, USERS));
+      }
+      return balancer;
+   }
+
+   private Map<String, Integer> connectAll(final LoadBalancerImpl balancer) throws Exception
+   {
+      final Map<String, AtomicInteger> counts = new HashMap<String, AtomicInteger>();
+      for (int i = 0; i < NODES; i++)
+      {
+         counts.put("http://node" + i, new AtomicInteger());
+      }
+      final AtomicInteger next = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(THREADS);
+      for (int t = 0; t < THREADS; t++)
+      {
+         new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = next.getAndIncrement(); i < USERS; i = next.getAndIncrement())
+                  {
+                     counts.get(balancer.connection("user" + i)).incrementAndGet();
+                  }
+               }
+               finally
+               {
+                  done.countDown();
+               }
+            }
+         }.start();
+      }
+      done.await();
+      Map<String, Integer> distribution = new HashMap<String, Integer>();
+      for (Map.Entry<String, AtomicInteger> entry : counts.entrySet())
+      {
+         distribution.put(entry.getKey(), entry.getValue().get());
+      }
+      assertEquals(USERS, balancer.getConnectionCount());
+      return distribution;
+   }
+
+   private void checkCounters(LoadBalancerImpl balancer)
+   {
+      int connected = 0;
+      for (int i = 0; i < NODES; i++)
+      {
+         connected += balancer.getNode("node" + i).getConnected();
+      }
+      assertEquals(balancer.getConnectionCount(), connected);
+   }
+}
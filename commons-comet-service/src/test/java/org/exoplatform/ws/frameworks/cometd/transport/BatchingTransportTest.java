@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the messages are posted to the cometd nodes by batch, and that
+ * the requests to a node share its connection.
+ */
+public class BatchingTransportTest
+   extends TestCase
+{
+   private static final Pattern MESSAGE_ID = Pattern.compile("\"(m\\d+)\"");
+
+   private Node nodeA;
+
+   private Node nodeB;
+
+   private BatchingTransport transport;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      nodeA = new Node();
+      nodeB = new Node();
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      if (transport != null)
+         transport.stop();
+      nodeA.stop();
+      nodeB.stop();
+   }
+
+   public void testBatchByNode() throws Exception
+   {
+      transport = new BatchingTransport("rest", 200, 10, 2, 2000);
+      transport.send(nodeA.url, newMessage("m1"));
+      transport.send(nodeB.url, newMessage("m2"));
+      transport.send(nodeA.url, newMessage("m3"));
+      transport.send(nodeA.url, newMessage("m4"));
+      transport.send(nodeB.url, newMessage("m5"));
+      // the messages wait for the end of the window
+      assertTrue(nodeA.getBatches().isEmpty());
+      assertTrue(nodeB.getBatches().isEmpty());
+      nodeA.await(1);
+      nodeB.await(1);
+      assertEquals(Collections.singletonList(Arrays.asList("m1", "m3", "m4")), nodeA.getBatches());
+      assertEquals(Collections.singletonList(Arrays.asList("m2", "m5")), nodeB.getBatches());
+   }
+
+   public void testBatchSize() throws Exception
+   {
+      transport = new BatchingTransport("rest", 60000, 3, 2, 2000);
+      for (int i = 1; i <= 6; i++)
+      {
+         transport.send(nodeA.url, newMessage("m" + i));
+      }
+      // a full batch doesn't wait for the end of the window
+      nodeA.await(2);
+      transport.send(nodeA.url, newMessage("m7"));
+      transport.stop();
+      List<List<String>> expected = new ArrayList<List<String>>();
+      expected.add(Arrays.asList("m1", "m2", "m3"));
+      expected.add(Arrays.asList("m4", "m5", "m6"));
+      expected.add(Arrays.asList("m7"));
+      assertEquals(expected, nodeA.getBatches());
+   }
+
+   public void testPersistentConnection() throws Exception
+   {
+      transport = new BatchingTransport("rest", 0, 10, 1, 2000);
+      for (int i = 0; i < 5; i++)
+      {
+         assertEquals("true", transport.get(nodeA.url, "/continuation/haschannel?channel=/eXo/test"));
+      }
+      transport.send(nodeA.url, newMessage("m1"));
+      nodeA.await(1);
+      assertEquals(6, nodeA.getClientPorts().size());
+      // all the requests come from the same client port
+      assertEquals(1, new HashSet<Integer>(nodeA.getClientPorts()).size());
+   }
+
+   private static DelegateMessage newMessage(String id)
+   {
+      return new DelegateMessage("/eXo/test", "text", id);
+   }
+
+   /**
+    * A cometd node recording the batches it receives.
+    */
+   private static class Node
+      implements HttpHandler
+   {
+      private final HttpServer server;
+
+      private final String url;
+
+      private final List<List<String>> batches = new ArrayList<List<String>>();
+
+      private final List<Integer> clientPorts = new ArrayList<Integer>();
+
+      private Node() throws IOException
+      {
+         server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+         server.createContext("/", this);
+         server.start();
+         url = "http://127.0.0.1:" + server.getAddress().getPort();
+      }
+
+      public void handle(HttpExchange exchange) throws IOException
+      {
+         String body = read(exchange.getRequestBody());
+         synchronized (this)
+         {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            if (exchange.getRequestURI().getPath().equals("/rest/continuation/sendbatch/"))
+            {
+               List<String> ids = new ArrayList<String>();
+               Matcher matcher = MESSAGE_ID.matcher(body);
+               while (matcher.find())
+               {
+                  ids.add(matcher.group(1));
+               }
+               batches.add(ids);
+               notifyAll();
+            }
+         }
+         byte[] response = "true".getBytes("UTF-8");
+         exchange.sendResponseHeaders(200, response.length);
+         exchange.getResponseBody().write(response);
+         exchange.close();
+      }
+
+      private synchronized void await(int count) throws InterruptedException
+      {
+         long end = System.currentTimeMillis() + 5000;
+         while (batches.size() < count && System.currentTimeMillis() < end)
+         {
+            wait(100);
+         }
+         assertEquals(count, batches.size());
+      }
+
+      private synchronized List<List<String>> getBatches()
+      {
+         return new ArrayList<List<String>>(batches);
+      }
+
+      private synchronized List<Integer> getClientPorts()
+      {
+         return new ArrayList<Integer>(clientPorts);
+      }
+
+      private void stop()
+      {
+         server.stop(0);
+      }
+
+      private static String read(InputStream in) throws IOException
+      {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         byte[] buffer = new byte[1024];
+         int read;
+         while ((read = in.read(buffer)) != -1)
+         {
+            out.write(buffer, 0, read);
+         }
+         return out.toString("UTF-8");
+      }
+   }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.ws.frameworks.cometd.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.ws.frameworks.cometd.loadbalancer.LoadBalancer;
+import org.exoplatform.ws.frameworks.cometd.loadbalancer.Node;
+import org.exoplatform.ws.frameworks.cometd.loadbalancer.RESTLoadBalancerService;
+
+/**
+ * Checks that the broadcasts are only sent to the nodes having subscribers on
+ * the channel, and that the nodes of a channel are checked again when they may
+ * have changed.
+ */
+public class ContinuationServiceRemoteDelegateTest
+   extends TestCase
+{
+   private static final String CHANNEL = "/eXo/test";
+
+   private final List<String> aliveNodes = new CopyOnWriteArrayList<String>();
+
+   private CometdNode nodeA;
+
+   private CometdNode nodeB;
+
+   private ContinuationServiceRemoteDelegate delegate;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      nodeA = new CometdNode(true);
+      nodeB = new CometdNode(false);
+      aliveNodes.add(nodeA.url);
+      aliveNodes.add(nodeB.url);
+      InitParams params = new InitParams();
+      addParam(params, "channel.cache.ttl", "60000");
+      addParam(params, "batch.window", "0");
+      delegate = new ContinuationServiceRemoteDelegate(new NodesLoadBalancer(), "rest", params);
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      delegate.stop();
+      nodeA.stop();
+      nodeB.stop();
+   }
+
+   public void testCachedChannelNodes() throws Exception
+   {
+      for (int i = 0; i < 5; i++)
+      {
+         delegate.sendBroadcastMessage(CHANNEL, "text", "m" + i);
+      }
+      delegate.stop();
+      assertEquals(5, nodeA.received.get());
+      assertEquals(0, nodeB.received.get());
+      // the nodes were checked by the first broadcast only
+      assertEquals(1, nodeA.checks.get());
+      assertEquals(1, nodeB.checks.get());
+   }
+
+   public void testInvalidateChannel() throws Exception
+   {
+      delegate.sendBroadcastMessage(CHANNEL, "text", "m1");
+      nodeB.subscribed = true;
+      // the node B notifies the balancer of its first subscriber
+      RESTLoadBalancerService balancerService = new RESTLoadBalancerService(new NodesLoadBalancer(), delegate);
+      assertEquals(200, balancerService.channelChanged(CHANNEL).getStatus());
+      assertEquals(400, balancerService.channelChanged("").getStatus());
+      delegate.sendBroadcastMessage(CHANNEL, "text", "m2");
+      delegate.sendBroadcastMessage(CHANNEL, "text", "m3");
+      delegate.stop();
+      assertEquals(3, nodeA.received.get());
+      assertEquals(2, nodeB.received.get());
+      assertEquals(2, nodeA.checks.get());
+      assertEquals(2, nodeB.checks.get());
+   }
+
+   public void testAliveNodesChange() throws Exception
+   {
+      delegate.sendBroadcastMessage(CHANNEL, "text", "m1");
+      aliveNodes.remove(nodeB.url);
+      nodeB.subscribed = true;
+      delegate.sendBroadcastMessage(CHANNEL, "text", "m2");
+      aliveNodes.add(nodeB.url);
+      delegate.sendBroadcastMessage(CHANNEL, "text", "m3");
+      delegate.stop();
+      assertEquals(3, nodeA.received.get());
+      assertEquals(1, nodeB.received.get());
+      assertEquals(3, nodeA.checks.get());
+      assertEquals(2, nodeB.checks.get());
+   }
+
+   private static void addParam(InitParams params, String name, String value)
+   {
+      ValueParam param = new ValueParam();
+      param.setName(name);
+      param.setValue(value);
+      params.addParam(param);
+   }
+
+   /**
+    * A load balancer giving the alive nodes of the test.
+    */
+   private class NodesLoadBalancer
+      implements LoadBalancer
+   {
+      public String connection(String exoId)
+      {
+         return aliveNodes.isEmpty() ? null : aliveNodes.get(0);
+      }
+
+      public boolean release(String exoId)
+      {
+         return true;
+      }
+
+      public List<String> getAliveNodesURL()
+      {
+         return new ArrayList<String>(aliveNodes);
+      }
+
+      public void addNode(Node node)
+      {
+      }
+
+      public void removeNode(String id)
+      {
+      }
+   }
+
+   /**
+    * A cometd node counting the checks of the channel and the received messages.
+    */
+   private static class CometdNode
+      implements HttpHandler
+   {
+      private final HttpServer server;
+
+      private final String url;
+
+      private final AtomicInteger checks = new AtomicInteger();
+
+      private final AtomicInteger received = new AtomicInteger();
+
+      private volatile boolean subscribed;
+
+      private CometdNode(boolean subscribed) throws IOException
+      {
+         this.subscribed = subscribed;
+         server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+         server.createContext("/", this);
+         server.start();
+         url = "http://127.0.0.1:" + server.getAddress().getPort();
+      }
+
+      public void handle(HttpExchange exchange) throws IOException
+      {
+         String path = exchange.getRequestURI().getPath();
+         String response = "";
+         if (path.equals("/rest/continuation/haschannel"))
+         {
+            checks.incrementAndGet();
+            response = String.valueOf(subscribed);
+         }
+         else if (path.equals("/rest/continuation/sendbatch/"))
+         {
+            String body = new Scanner(exchange.getRequestBody(), "UTF-8").useDelimiter("\\A").next();
+            received.addAndGet(body.split("\"m\\d+\"", -1).length - 1);
+         }
+         byte[] data = response.getBytes("UTF-8");
+         exchange.sendResponseHeaders(200, data.length == 0 ? -1 : data.length);
+         if (data.length > 0)
+            exchange.getResponseBody().write(data);
+         exchange.close();
+      }
+
+      private void stop()
+      {
+         server.stop(0);
+      }
+   }
+}
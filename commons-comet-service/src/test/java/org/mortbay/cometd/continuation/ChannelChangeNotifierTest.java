@@ -0,0 +1,89 @@
+package org.mortbay.cometd.continuation;
+
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the notifications of the channel changes sent to the load balancers.
+ */
+public class ChannelChangeNotifierTest
+   extends TestCase
+{
+   private final List<String> queries = new CopyOnWriteArrayList<String>();
+
+   private HttpServer server;
+
+   private ChannelChangeNotifier notifier;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/rest/balancer/channelchanged/", new HttpHandler()
+      {
+         public void handle(HttpExchange exchange) throws IOException
+         {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            queries.add(exchange.getRequestURI().getQuery());
+         }
+      });
+      server.start();
+      notifier =
+         new ChannelChangeNotifier(Collections.singletonList("http://127.0.0.1:" + server.getAddress().getPort()
+            + "/rest"));
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      notifier.stop();
+      server.stop(0);
+   }
+
+   public void testChannelChanged() throws Exception
+   {
+      notifier.channelChanged("/eXo/test");
+      long end = System.currentTimeMillis() + 5000;
+      while (queries.isEmpty() && System.currentTimeMillis() < end)
+      {
+         Thread.sleep(10);
+      }
+      assertEquals(Collections.singletonList("channel=/eXo/test"), queries);
+   }
+
+   public void testStop() throws Exception
+   {
+      notifier.stop();
+      //the changes after the stop are not notified and don't start a thread again
+      notifier.channelChanged("/eXo/test");
+      Thread.sleep(200);
+      assertTrue(queries.isEmpty());
+   }
+
+}
@@ -0,0 +1,117 @@
+package org.mortbay.cometd.continuation;
+
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the index of the clients by eXoId, a user having a client by open page.
+ */
+public class EXoContinuationBayeuxTest
+   extends TestCase
+{
+
+   private EXoContinuationBayeux bayeux;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      bayeux = new EXoContinuationBayeux();
+      bayeux.initialize(newServletContext());
+   }
+
+   public void testTabs()
+   {
+      EXoContinuationClient tab1 = newClient("john");
+      EXoContinuationClient tab2 = newClient("john");
+      EXoContinuationClient other = newClient("mary");
+      assertEquals(2, bayeux.getClientsByEXoId("john").size());
+      assertTrue(bayeux.getClientsByEXoId("john").contains(tab1));
+      assertTrue(bayeux.getClientsByEXoId("john").contains(tab2));
+      assertSame(other, bayeux.getClientByEXoId("mary"));
+      // a client changing its eXoId moves in the index
+      tab2.setEXoId("mary");
+      assertEquals(1, bayeux.getClientsByEXoId("john").size());
+      assertEquals(2, bayeux.getClientsByEXoId("mary").size());
+      assertTrue(bayeux.getClientsByEXoId("unknown").isEmpty());
+      assertNull(bayeux.getClientByEXoId(null));
+   }
+
+   public void testRemove()
+   {
+      EXoContinuationClient tab1 = newClient("john");
+      EXoContinuationClient tab2 = newClient("john");
+      tab1.remove(false);
+      assertEquals(1, bayeux.getClientsByEXoId("john").size());
+      assertSame(tab2, bayeux.getClientByEXoId("john"));
+      tab2.remove(false);
+      assertTrue(bayeux.getClientsByEXoId("john").isEmpty());
+      // a removed client isn't indexed again
+      tab1.setEXoId("john");
+      assertTrue(bayeux.getClientsByEXoId("john").isEmpty());
+   }
+
+   public void testTimeout()
+   {
+      EXoContinuationClient tab1 = newClient("john");
+      EXoContinuationClient tab2 = newClient("john");
+      tab1.remove(true);
+      assertEquals(1, bayeux.getClientsByEXoId("john").size());
+      assertSame(tab2, bayeux.getClientByEXoId("john"));
+      // a late handshake of the timed out client doesn't bring it back
+      tab1.setEXoId("john");
+      assertEquals(1, bayeux.getClientsByEXoId("john").size());
+      tab2.remove(true);
+      assertNull(bayeux.getClientByEXoId("john"));
+   }
+
+   private EXoContinuationClient newClient(String eXoId)
+   {
+      EXoContinuationClient client = (EXoContinuationClient)bayeux.newRemoteClient();
+      client.setEXoId(eXoId);
+      return client;
+   }
+
+   private static ServletContext newServletContext()
+   {
+      return (ServletContext)Proxy.newProxyInstance(EXoContinuationBayeuxTest.class.getClassLoader(),
+         new Class<?>[]{ServletContext.class}, new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+               if ("getServletContextName".equals(method.getName()))
+                  return "cometd";
+               if ("hashCode".equals(method.getName()))
+                  return System.identityHashCode(proxy);
+               if ("equals".equals(method.getName()))
+                  return proxy == args[0];
+               if (method.getReturnType() == int.class)
+                  return 0;
+               if (method.getReturnType() == boolean.class)
+                  return false;
+               return null;
+            }
+         });
+   }
+
+}
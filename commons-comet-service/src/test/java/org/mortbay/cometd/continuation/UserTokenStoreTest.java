@@ -0,0 +1,102 @@
+package org.mortbay.cometd.continuation;
+
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.utils.PropertyManager;
+
+public class UserTokenStoreTest
+   extends TestCase
+{
+
+   private static final byte[] SECRET = "secret".getBytes();
+
+   public void testToken()
+   {
+      UserTokenStore store = new UserTokenStore(SECRET, 60000, 10);
+      String token = store.getToken("john");
+      assertTrue(store.isValid("john", token));
+      assertFalse(store.isValid("mary", token));
+      assertFalse(store.isValid("john", null));
+      assertFalse(store.isValid("john", "abc"));
+      assertFalse(store.isValid("john", token.substring(0, token.length() - 1) + "x"));
+      // another node sharing the secret accepts the token
+      assertTrue(new UserTokenStore(SECRET, 60000, 10).isValid("john", token));
+      assertFalse(new UserTokenStore("other".getBytes(), 60000, 10).isValid("john", token));
+   }
+
+   public void testExpiration()
+   {
+      UserTokenStore store = new UserTokenStore(SECRET, 60000, 10);
+      assertFalse(store.isValid("john", store.getToken("john", System.currentTimeMillis() - 60000)));
+      assertTrue(store.isValid("john", store.getToken("john", System.currentTimeMillis() - 30000)));
+      assertFalse(store.isValid("john", store.getToken("john", System.currentTimeMillis() + 30000)));
+   }
+
+   public void testClockSkew()
+   {
+      // the issuing node's clock is 2 seconds ahead of the validator's
+      UserTokenStore issuer = new UserTokenStore(SECRET, 60000, 10, 5000);
+      UserTokenStore validator = new UserTokenStore(SECRET, 60000, 10, 5000);
+      assertTrue(validator.isValid("john", issuer.getToken("john", System.currentTimeMillis() + 2000)));
+      // beyond the tolerated skew the token is rejected
+      assertFalse(validator.isValid("john", issuer.getToken("john", System.currentTimeMillis() + 10000)));
+      // without tolerance a token from the future is rejected
+      assertFalse(new UserTokenStore(SECRET, 60000, 10, 0).isValid("john",
+         issuer.getToken("john", System.currentTimeMillis() + 2000)));
+   }
+
+   public void testRevocation() throws Exception
+   {
+      UserTokenStore store = new UserTokenStore(SECRET, 60000, 10);
+      String token = store.getToken("john", System.currentTimeMillis() - 1);
+      store.revoke("john");
+      assertFalse(store.isValid("john", token));
+      Thread.sleep(2);
+      assertTrue(store.isValid("john", store.getToken("john")));
+      // the revocations are bounded
+      for (int i = 0; i < 100; i++)
+      {
+         store.revoke("user" + i);
+      }
+      assertTrue(store.getRevocationCount() <= 10);
+      // the revocations are local to the node
+      assertTrue(new UserTokenStore(SECRET, 60000, 10).isValid("john", token));
+   }
+
+   public void testSharedSecret()
+   {
+      String previous = PropertyManager.getProperty(UserTokenStore.SECRET_PROPERTY);
+      try
+      {
+         PropertyManager.setProperty(UserTokenStore.SECRET_PROPERTY, "");
+         assertFalse(UserTokenStore.isSecretConfigured());
+         PropertyManager.setProperty(UserTokenStore.SECRET_PROPERTY, "shared");
+         assertTrue(UserTokenStore.isSecretConfigured());
+         // the nodes configured with the same secret accept the tokens of each other
+         String token = new UserTokenStore().getToken("john");
+         assertTrue(new UserTokenStore().isValid("john", token));
+         assertTrue(new UserTokenStore("shared".getBytes(), 60000, 10).isValid("john", token));
+      }
+      finally
+      {
+         PropertyManager.setProperty(UserTokenStore.SECRET_PROPERTY, previous == null ? "" : previous);
+      }
+   }
+
+}
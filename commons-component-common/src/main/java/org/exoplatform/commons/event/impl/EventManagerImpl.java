@@ -18,13 +18,28 @@
 package org.exoplatform.commons.event.impl;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.exoplatform.commons.api.event.EventManager;
 import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.PropertiesParam;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
 import org.exoplatform.services.listener.Asynchronous;
 import org.exoplatform.services.listener.Event;
 import org.exoplatform.services.listener.Listener;
@@ -32,6 +47,7 @@ import org.exoplatform.services.listener.ListenerService;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.naming.InitialContextInitializer;
+import org.picocontainer.Startable;
 
 
 /**
@@ -40,15 +56,79 @@ import org.exoplatform.services.naming.InitialContextInitializer;
  *          minh.dang@exoplatform.com
  * Nov 14, 2012
  * 3:49:21 PM  
+ *
+ * The listeners are kept in copy-on-write lists, so the events are broadcast
+ * without lock while the listeners are registered and unregistered concurrently.
+ * The events of the types configured in the "async.lanes" properties param are
+ * dispatched by the threads of their lane, the value of a property is the capacity
+ * of the queue of the lane. When the queue is full, the "async.lane.rejection-policy"
+ * is applied: caller-runs (default), discard or discard-oldest. The lanes are shut
+ * down when the container stops, the next events are then dispatched by the caller.
  */
-public class EventManagerImpl<S, D> extends ListenerService implements EventManager<S, D> {
+@Managed
+@NameTemplate({@Property(key = "service", value = "eventmanager"), @Property(key = "view", value = "statistic") })
+@ManagedDescription("The event manager of the commons services")
+public class EventManagerImpl<S, D> extends ListenerService implements EventManager<S, D>, Startable {
+
+    /** The event types dispatched asynchronously, with the queue capacity of their lane */
+    public static final String ASYNC_LANES = "async.lanes";
+
+    /** The number of threads of a lane */
+    public static final String ASYNC_LANE_THREADS = "async.lane.threads";
+
+    /** The policy applied when the queue of a lane is full */
+    public static final String ASYNC_LANE_REJECTION_POLICY = "async.lane.rejection-policy";
+
+    /** The execution time in milliseconds from which a listener is logged as slow */
+    public static final String SLOW_LISTENER_THRESHOLD = "slow.listener.threshold";
+
+    public static final String CALLER_RUNS = "caller-runs";
+
+    public static final String DISCARD = "discard";
 
-    private Map<String, List<Listener<S, D>>> listenerMap = new HashMap<String, List<Listener<S, D>>>();
+    public static final String DISCARD_OLDEST = "discard-oldest";
+
+    private final ConcurrentMap<String, CopyOnWriteArrayList<RegisteredListener<S, D>>> listenerMap = new ConcurrentHashMap<String, CopyOnWriteArrayList<RegisteredListener<S, D>>>();
+
+    private final ConcurrentMap<String, DispatchLane> lanes = new ConcurrentHashMap<String, DispatchLane>();
+
+    private final int laneThreads;
+
+    private final String rejectionPolicy;
+
+    private final long slowThreshold;
 
     private static final Log LOG = ExoLogger.getLogger(EventManagerImpl.class);
 
     public EventManagerImpl(ExoContainerContext ctx, InitialContextInitializer initializer, InitParams params) {
         super(ctx, initializer, params);
+        laneThreads = Integer.parseInt(getValue(params, ASYNC_LANE_THREADS, "1"));
+        rejectionPolicy = getValue(params, ASYNC_LANE_REJECTION_POLICY, CALLER_RUNS);
+        slowThreshold = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(getValue(params, SLOW_LISTENER_THRESHOLD, "1000")));
+        PropertiesParam lanesParam = params == null ? null : params.getPropertiesParam(ASYNC_LANES);
+        if (lanesParam != null) {
+            for (Map.Entry<String, String> lane : lanesParam.getProperties().entrySet()) {
+                addDispatchLane(lane.getKey(), Integer.parseInt(lane.getValue().trim()));
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+    }
+
+    /**
+     * Shuts down the threads of the dispatch lanes, the events already queued
+     * are still dispatched.
+     */
+    @Override
+    public void stop() {
+        for (String eventName : lanes.keySet()) {
+            DispatchLane lane = lanes.remove(eventName);
+            if (lane != null) {
+                lane.shutdown();
+            }
+        }
     }
 
     /**
@@ -64,21 +144,25 @@ public class EventManagerImpl<S, D> extends ListenerService implements EventMana
      */
     @Override
     public void addEventListener(String eventName, Listener<S, D> listener) {
+        Listener<S, D> dispatched = listener;
         // Check is Listener or its superclass asynchronous, if so - wrap it in AsynchronousListener.
         Class<?> listenerClass = listener.getClass();
         do {
             if (listenerClass.isAnnotationPresent(Asynchronous.class)) {
-                listener = new AsynchronousListener<S, D>(listener);
+                dispatched = new AsynchronousListener<S, D>(listener);
                 break;
             }
             listenerClass = listenerClass.getSuperclass();
         } while (listenerClass != null);
-        List<Listener<S, D>> list = listenerMap.get(eventName);
+        CopyOnWriteArrayList<RegisteredListener<S, D>> list = listenerMap.get(eventName);
         if (list == null) {
-            list = new ArrayList<Listener<S, D>>();
+            list = new CopyOnWriteArrayList<RegisteredListener<S, D>>();
+            CopyOnWriteArrayList<RegisteredListener<S, D>> previous = listenerMap.putIfAbsent(eventName, list);
+            if (previous != null) {
+                list = previous;
+            }
         }
-        list.add(listener);
-        listenerMap.put(eventName, list);
+        list.add(new RegisteredListener<S, D>(eventName, listener, dispatched));
     }    
 
     /**
@@ -94,26 +178,37 @@ public class EventManagerImpl<S, D> extends ListenerService implements EventMana
      */
     @Override
     public void removeEventListener(String eventName, Listener<S, D> listener) {
-        List<Listener<S, D>> listeners = getEventListeners(eventName);
-        listeners.remove(listener);
-        if(listeners.size() == 0) listenerMap.remove(eventName);
-        listenerMap.put(eventName, listeners);
+        CopyOnWriteArrayList<RegisteredListener<S, D>> list = listenerMap.get(eventName);
+        if (list == null) {
+            return;
+        }
+        // the list is kept when it's empty, so a concurrent registration isn't lost
+        for (RegisteredListener<S, D> registered : list) {
+            if (registered.listener == listener || registered.dispatched == listener) {
+                list.remove(registered);
+                return;
+            }
+        }
     }    
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void broadcastEvent(Event<S, D> event) {
-        List<Listener<S, D>> listeners = getEventListeners(event.getEventName());
-        if (listeners.size() == 0) return;
-        for (Listener<S, D> listener : listeners) {
-            try {
-                listener.onEvent(event);
-            } catch (Exception e) {
-                LOG.error("Exception on broadcasting events occures: " + e.getMessage(), e);
+    public void broadcastEvent(final Event<S, D> event) {
+        final List<RegisteredListener<S, D>> listeners = listenerMap.get(event.getEventName());
+        if (listeners == null || listeners.isEmpty()) return;
+        DispatchLane lane = lanes.get(event.getEventName());
+        if (lane == null) {
+            dispatch(event, listeners);
+            return;
+        }
+        lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatch(event, listeners);
             }
-        }    
+        });
     }
 
     /**
@@ -121,10 +216,187 @@ public class EventManagerImpl<S, D> extends ListenerService implements EventMana
      */
     @Override
     public List<Listener<S, D>> getEventListeners(String type) {
-    	if(!listenerMap.containsKey(type)) {
-    		return new ArrayList<Listener<S, D>>();
-    	}
-        return listenerMap.get(type);
+        List<Listener<S, D>> result = new ArrayList<Listener<S, D>>();
+        List<RegisteredListener<S, D>> list = listenerMap.get(type);
+        if (list != null) {
+            for (RegisteredListener<S, D> registered : list) {
+                result.add(registered.dispatched);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Dispatches the events of a type by the threads of a lane, the lane is
+     * added only once for a type.
+     * @param eventName the event type
+     * @param queueSize the capacity of the queue of the lane
+     */
+    public void addDispatchLane(String eventName, int queueSize) {
+        if (lanes.containsKey(eventName)) {
+            return;
+        }
+        DispatchLane lane = new DispatchLane(eventName, laneThreads, queueSize, rejectionPolicy);
+        if (lanes.putIfAbsent(eventName, lane) != null) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Gets the execution times of a registered listener.
+     * @param eventName the event type
+     * @param listener the listener
+     * @return the statistics, null if the listener isn't registered for the event type
+     */
+    public ListenerStatistics getListenerStatistics(String eventName, Listener<S, D> listener) {
+        List<RegisteredListener<S, D>> list = listenerMap.get(eventName);
+        if (list != null) {
+            for (RegisteredListener<S, D> registered : list) {
+                if (registered.listener == listener || registered.dispatched == listener) {
+                    return registered.statistics;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Managed
+    @ManagedDescription("Gets the execution times of the listeners by event type")
+    public String getListenerStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (List<RegisteredListener<S, D>> list : listenerMap.values()) {
+            for (RegisteredListener<S, D> registered : list) {
+                sb.append(registered.statistics).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    @Managed
+    @ManagedDescription("Gets the state of the asynchronous dispatch lanes")
+    public String getLaneStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (DispatchLane lane : lanes.values()) {
+            sb.append(lane).append("\n");
+        }
+        return sb.toString();
+    }
+
+    @Managed
+    @ManagedDescription("Reset the execution times of the listeners")
+    public void clearListenerStatistics() {
+        for (List<RegisteredListener<S, D>> list : listenerMap.values()) {
+            for (RegisteredListener<S, D> registered : list) {
+                registered.statistics.clear();
+            }
+        }
+    }
+
+    private void dispatch(Event<S, D> event, List<RegisteredListener<S, D>> listeners) {
+        for (RegisteredListener<S, D> registered : listeners) {
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                registered.dispatched.onEvent(event);
+            } catch (Exception e) {
+                failed = true;
+                LOG.error("Exception on broadcasting events occures: " + e.getMessage(), e);
+            }
+            long time = System.nanoTime() - start;
+            registered.statistics.executed(time, failed);
+            if (time > slowThreshold) {
+                LOG.warn("The listener " + registered.statistics.getListenerName() + " took " + TimeUnit.NANOSECONDS.toMillis(time)
+                    + "ms to process the event " + event.getEventName());
+            }
+        }
+    }
+
+    private static String getValue(InitParams params, String name, String defaultValue) {
+        if (params == null) {
+            return defaultValue;
+        }
+        ValueParam param = params.getValueParam(name);
+        if (param == null || param.getValue() == null || param.getValue().trim().length() == 0) {
+            return defaultValue;
+        }
+        return param.getValue().trim();
+    }
+
+    /**
+     * A listener as it has been registered, with the listener which is called,
+     * wrapped when it's asynchronous, and its execution times.
+     */
+    private static class RegisteredListener<S, D> {
+        private final Listener<S, D>     listener;
+
+        private final Listener<S, D>     dispatched;
+
+        private final ListenerStatistics statistics;
+
+        RegisteredListener(String eventName, Listener<S, D> listener, Listener<S, D> dispatched) {
+            this.listener = listener;
+            this.dispatched = dispatched;
+            String name = listener.getName() != null ? listener.getName() : listener.getClass().getName();
+            this.statistics = new ListenerStatistics(eventName, name);
+        }
+    }
+
+    /**
+     * The threads and the bounded queue which dispatch the events of a type,
+     * the idle threads are released.
+     */
+    private static class DispatchLane implements RejectedExecutionHandler {
+        private final String                   eventName;
+
+        private final ThreadPoolExecutor       executor;
+
+        private final RejectedExecutionHandler policy;
+
+        private final AtomicLong               rejected = new AtomicLong();
+
+        DispatchLane(final String eventName, int threads, int queueSize, String rejectionPolicy) {
+            this.eventName = eventName;
+            if (DISCARD.equals(rejectionPolicy)) {
+                policy = new ThreadPoolExecutor.DiscardPolicy();
+            } else if (DISCARD_OLDEST.equals(rejectionPolicy)) {
+                policy = new ThreadPoolExecutor.DiscardOldestPolicy();
+            } else {
+                policy = new ThreadPoolExecutor.CallerRunsPolicy();
+            }
+            ThreadFactory threadFactory = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "EventManager-" + eventName + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                              new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, this);
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        void execute(Runnable task) {
+            executor.execute(task);
+        }
+
+        void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            rejected.incrementAndGet();
+            policy.rejectedExecution(r, executor);
+        }
+
+        @Override
+        public String toString() {
+            return eventName + ": queued=" + executor.getQueue().size() + ", active=" + executor.getActiveCount() + ", completed="
+                + executor.getCompletedTaskCount() + ", rejected=" + rejected.get();
+        }
     }
 
 }
@@ -0,0 +1,99 @@
+/***************************************************************************
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ *
+ **************************************************************************/
+package org.exoplatform.commons.event.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The execution times of a listener registered in the <code>EventManagerImpl</code>,
+ * the times are given in microseconds.
+ */
+public class ListenerStatistics {
+
+    private final String     eventName;
+
+    private final String     listenerName;
+
+    private final AtomicLong count     = new AtomicLong();
+
+    private final AtomicLong totalTime = new AtomicLong();
+
+    private final AtomicLong maxTime   = new AtomicLong();
+
+    private final AtomicLong failures  = new AtomicLong();
+
+    public ListenerStatistics(String eventName, String listenerName) {
+        this.eventName = eventName;
+        this.listenerName = listenerName;
+    }
+
+    /**
+     * Records an execution of the listener.
+     * @param time the execution time in nanoseconds
+     * @param failed true if the listener has thrown an exception
+     */
+    public void executed(long time, boolean failed) {
+        count.incrementAndGet();
+        totalTime.addAndGet(time);
+        long max = maxTime.get();
+        while (time > max && maxTime.compareAndSet(max, time) == false) {
+            max = maxTime.get();
+        }
+        if (failed) {
+            failures.incrementAndGet();
+        }
+    }
+
+    public String getEventName() {
+        return eventName;
+    }
+
+    public String getListenerName() {
+        return listenerName;
+    }
+
+    public long getExecutionCount() {
+        return count.get();
+    }
+
+    public long getExecutionAvgTime() {
+        long executions = count.get();
+        return executions == 0 ? 0 : totalTime.get() / executions / 1000;
+    }
+
+    public long getExecutionMaxTime() {
+        return maxTime.get() / 1000;
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public void clear() {
+        count.set(0);
+        totalTime.set(0);
+        maxTime.set(0);
+        failures.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return eventName + " " + listenerName + ": count=" + getExecutionCount() + ", avg=" + getExecutionAvgTime()
+            + "us, max=" + getExecutionMaxTime() + "us, failures=" + getFailureCount();
+    }
+}
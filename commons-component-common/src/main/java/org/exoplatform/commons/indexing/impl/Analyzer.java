@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * and without accents, so a word gives the same term with or without its accents.
+ * and without accents, so "\u00c9quipe" and "equipe" give the same term.
+ */
+final class Analyzer {
+
+  /** The longer tokens are dropped, they aren't words */
+  static final int MAX_TERM_LENGTH = 128;
+
+  private Analyzer() {
+  }
+
+  static List<String> tokenize(String text) {
+    List<String> terms = new ArrayList<String>();
+    if (text == null || text.length() == 0) {
+      return terms;
+    }
+    String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+    StringBuilder term = new StringBuilder();
+    for (int i = 0; i < normalized.length(); i++) {
+      char c = normalized.charAt(i);
+      if (Character.getType(c) == Character.NON_SPACING_MARK) {
+        continue;
+      }
+      if (Character.isLetterOrDigit(c)) {
+        term.append(Character.toLowerCase(c));
+      } else {
+        addTerm(terms, term);
+      }
+    }
+    addTerm(terms, term);
+    return terms;
+  }
+
+  private static void addTerm(List<String> terms, StringBuilder term) {
+    if (term.length() > 0 && term.length() <= MAX_TERM_LENGTH) {
+      terms.add(term.toString());
+    }
+    term.setLength(0);
+  }
+}
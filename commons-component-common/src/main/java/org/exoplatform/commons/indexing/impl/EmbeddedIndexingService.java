@@ -0,0 +1,712 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.exoplatform.commons.api.indexing.IndexingService;
+import org.exoplatform.commons.api.indexing.IndexingSourcePlugin;
+import org.exoplatform.commons.api.indexing.data.SearchEntry;
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * An embedded inverted index on the local disk, for the deployments without
+ * an external search engine.
+ *
+ * The entries are buffered in memory and written as an immutable segment
+ * when the buffer is full, every flush.interval and on {@link #flush()}, the
+ * written entries become searchable. A segment is read through a memory
+ * mapping of its file, see {@link Segment}. The deleted and updated entries
+ * are marked in the tombstones of their segment, and the segments are merged
+ * in the background once there are merge.factor segments, the merge drops
+ * the deleted entries.
+ *
+ * The list of the segments is written in the segments file of the directory
+ * by the flushes changing it, an idle flush writes nothing. The files of the
+ * directory which aren't listed are removed at startup. The files of the
+ * merged segments are removed once the merge is written, the searches still
+ * reading them keep their mapping.
+ *
+ * Init params:
+ * <ul>
+ * <li>directory: the directory of the index, ${exo.data.dir}/commons-index by default</li>
+ * <li>flush.size: the number of buffered entries written as a segment, 1000 by default</li>
+ * <li>flush.interval: the time in milliseconds between two writes of the buffer, 1000 by default</li>
+ * <li>merge.factor: the number of segments merged together, 10 by default</li>
+ * </ul>
+ */
+@Managed
+@NameTemplate({ @Property(key = "service", value = "indexing"), @Property(key = "view", value = "embedded") })
+@ManagedDescription("The embedded index of the search entries")
+public class EmbeddedIndexingService extends IndexingService implements Startable {
+
+  public static final String                 DIRECTORY      = "directory";
+
+  public static final String                 FLUSH_SIZE     = "flush.size";
+
+  public static final String                 FLUSH_INTERVAL = "flush.interval";
+
+  public static final String                 MERGE_FACTOR   = "merge.factor";
+
+  private static final String                MANIFEST       = "segments";
+
+  private static final float                 K1             = 1.2f;
+
+  private static final float                 B              = 0.75f;
+
+  private static final Log                   LOG            = ExoLogger.getLogger(EmbeddedIndexingService.class);
+
+  private final File                         directory;
+
+  private final int                          flushSize;
+
+  private final long                         flushInterval;
+
+  private final int                          mergeFactor;
+
+  /** Guards the buffer, the live documents, the generation and the writes of the segment list */
+  private final Object                       writeLock      = new Object();
+
+  private volatile List<Segment>             segments       = Collections.emptyList();
+
+  private final Map<String, DocRef>          liveDocs       = new HashMap<String, DocRef>();
+
+  private final Map<String, IndexedDocument> buffer         = new LinkedHashMap<String, IndexedDocument>();
+
+  private long                               nextGeneration = 1;
+
+  /** True when the segment list changed since the segments file was written */
+  private boolean                            segmentsChanged;
+
+  private final AtomicBoolean                merging        = new AtomicBoolean();
+
+  private volatile ScheduledExecutorService  executor;
+
+  public EmbeddedIndexingService(InitParams params) {
+    String path = getValue(params, DIRECTORY, null);
+    if (path == null) {
+      path = System.getProperty("exo.data.dir", System.getProperty("java.io.tmpdir")) + File.separator + "commons-index";
+    }
+    directory = new File(path);
+    flushSize = Integer.parseInt(getValue(params, FLUSH_SIZE, "1000"));
+    flushInterval = Long.parseLong(getValue(params, FLUSH_INTERVAL, "1000"));
+    mergeFactor = Math.max(2, Integer.parseInt(getValue(params, MERGE_FACTOR, "10")));
+  }
+
+  @Override
+  public void start() {
+    synchronized (writeLock) {
+      try {
+        load();
+      } catch (IOException e) {
+        LOG.error("Failed to open the index " + directory + ", the index is empty", e);
+      }
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "EmbeddedIndexingService-" + directory.getName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (flushInterval > 0) {
+      executor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+    scheduleMerge();
+  }
+
+  @Override
+  public void stop() {
+    ScheduledExecutorService current = executor;
+    executor = null;
+    if (current != null) {
+      current.shutdown();
+      try {
+        current.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void add(SearchEntry searchEntry) {
+    IndexedDocument document = IndexedDocument.create(searchEntry);
+    document.getFields().put(DATE_INDEXED, System.currentTimeMillis());
+    synchronized (writeLock) {
+      deleteLive(document.getKey());
+      buffer.put(document.getKey(), document);
+      flushIfFull();
+    }
+  }
+
+  /**
+   * Updates the content of an entry, a null value removes the field.
+   */
+  @Override
+  public void update(SearchEntryId id, Map<String, Object> changes) {
+    String key = IndexedDocument.key(id);
+    synchronized (writeLock) {
+      IndexedDocument current = buffer.get(key);
+      if (current == null) {
+        DocRef ref = liveDocs.get(key);
+        if (ref != null) {
+          current = ref.segment.getDocument(ref.doc);
+        }
+      }
+      if (current == null) {
+        LOG.debug("The entry " + id + " isn't indexed, it can't be updated");
+        return;
+      }
+      Map<String, Object> fields = new LinkedHashMap<String, Object>(current.getFields());
+      for (Map.Entry<String, Object> change : changes.entrySet()) {
+        if (change.getValue() == null) {
+          fields.remove(change.getKey());
+        } else {
+          fields.put(change.getKey(), change.getValue());
+        }
+      }
+      fields.put(LAST_UPDATE, System.currentTimeMillis());
+      deleteLive(key);
+      buffer.put(key, new IndexedDocument(current.getCollection(), current.getType(), current.getName(), fields));
+      flushIfFull();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void delete(SearchEntryId id) {
+    synchronized (writeLock) {
+      deleteLive(IndexedDocument.key(id));
+    }
+  }
+
+  /**
+   * Searches the written entries with a BM25 ranking of the terms of the query.
+   * @param query the text searched, its terms are optional
+   * @param collection the collection of the entries, null for all the collections
+   * @param type the type of the entries, null for all the types
+   * @param offset the index of the first hit
+   * @param limit the maximum number of hits
+   * @return the hits, the best first
+   * @LevelAPI Experimental
+   */
+  public List<IndexHit> search(String query, String collection, String type, int offset, int limit) {
+    List<IndexHit> hits = new ArrayList<IndexHit>();
+    List<String> terms = new ArrayList<String>(new LinkedHashSet<String>(Analyzer.tokenize(query)));
+    offset = Math.max(0, offset);
+    if (terms.isEmpty() || limit <= 0 || (long) offset + limit > Integer.MAX_VALUE) {
+      return hits;
+    }
+    List<Segment> snapshot = segments;
+    long docCount = 0;
+    long totalLength = 0;
+    for (Segment segment : snapshot) {
+      docCount += segment.getDocCount();
+      totalLength += segment.getTotalLength();
+    }
+    if (docCount == 0) {
+      return hits;
+    }
+    float avgLength = Math.max(1f, (float) totalLength / docCount);
+    int[][] termPositions = new int[snapshot.size()][terms.size()];
+    float[] idf = new float[terms.size()];
+    for (int t = 0; t < terms.size(); t++) {
+      long docFreq = 0;
+      for (int s = 0; s < snapshot.size(); s++) {
+        termPositions[s][t] = snapshot.get(s).findTerm(terms.get(t));
+        if (termPositions[s][t] >= 0) {
+          docFreq += snapshot.get(s).getDocFreq(termPositions[s][t]);
+        }
+      }
+      idf[t] = (float) Math.log(1 + (docCount - docFreq + 0.5) / (docFreq + 0.5));
+    }
+    //the heap keeps the best offset + limit documents, its head is the worst
+    int size = offset + limit;
+    PriorityQueue<ScoredDoc> heap = new PriorityQueue<ScoredDoc>(Math.min(size, 1024) + 1);
+    for (int s = 0; s < snapshot.size(); s++) {
+      Segment segment = snapshot.get(s);
+      Map<Integer, Float> scores = new HashMap<Integer, Float>();
+      for (int t = 0; t < terms.size(); t++) {
+        int termPosition = termPositions[s][t];
+        if (termPosition < 0) {
+          continue;
+        }
+        int postings = segment.getPostings(termPosition);
+        int docFreq = segment.getDocFreq(termPosition);
+        for (int i = 0; i < docFreq; i++) {
+          int doc = segment.getPostingDoc(postings, i);
+          if (segment.isDeleted(doc)) {
+            continue;
+          }
+          int freq = segment.getPostingFreq(postings, i);
+          float norm = K1 * (1 - B + B * segment.getLength(doc) / avgLength);
+          float score = idf[t] * freq * (K1 + 1) / (freq + norm);
+          Float previous = scores.get(doc);
+          scores.put(doc, previous == null ? score : previous + score);
+        }
+      }
+      for (Map.Entry<Integer, Float> score : scores.entrySet()) {
+        if (segment.matches(score.getKey(), collection, type) == false) {
+          continue;
+        }
+        ScoredDoc scored = new ScoredDoc(segment, score.getKey(), score.getValue());
+        if (heap.size() < size) {
+          heap.add(scored);
+        } else if (scored.compareTo(heap.peek()) > 0) {
+          heap.poll();
+          heap.add(scored);
+        }
+      }
+    }
+    ScoredDoc[] sorted = new ScoredDoc[heap.size()];
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      sorted[i] = heap.poll();
+    }
+    for (int i = offset; i < sorted.length; i++) {
+      hits.add(new IndexHit(sorted[i].segment.getDocument(sorted[i].doc).toEntry(), sorted[i].score));
+    }
+    return hits;
+  }
+
+  /**
+   * Writes the buffered entries and the deletions, they become searchable.
+   * @LevelAPI Experimental
+   */
+  @Managed
+  @ManagedDescription("Writes the buffered entries and the deletions")
+  public void flush() {
+    synchronized (writeLock) {
+      try {
+        flushBuffer();
+        commit();
+      } catch (IOException e) {
+        LOG.error("Failed to write the index " + directory, e);
+      }
+    }
+    scheduleMerge();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the number of entries of the index")
+  public int getEntryCount() {
+    synchronized (writeLock) {
+      return liveDocs.size() + buffer.size();
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Gets the number of segments of the index")
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the segments of the index")
+  public String getSegments() {
+    return segments.toString();
+  }
+
+  /**
+   * Deletes the entries of a source which haven't been added or updated
+   * since a time, they are the entries a reindex started at this time didn't
+   * send again. An entry moved by a merge meanwhile is kept until the next
+   * reindex.
+   * @param source the source of the entries
+   * @param since the start time of the reindex
+   * @return the number of deleted entries
+   */
+  int deleteStale(IndexingSourcePlugin source, long since) {
+    Map<String, DocRef> candidates;
+    synchronized (writeLock) {
+      candidates = new HashMap<String, DocRef>(liveDocs);
+    }
+    //the written documents are read without lock, an entry changed meanwhile has another reference
+    List<String> stale = new ArrayList<String>();
+    for (Map.Entry<String, DocRef> candidate : candidates.entrySet()) {
+      DocRef ref = candidate.getValue();
+      if (isStale(ref.segment.getDocument(ref.doc), source, since)) {
+        stale.add(candidate.getKey());
+      }
+    }
+    int deleted = 0;
+    synchronized (writeLock) {
+      for (String key : stale) {
+        if (liveDocs.get(key) == candidates.get(key)) {
+          deleteLive(key);
+          deleted++;
+        }
+      }
+      for (IndexedDocument document : new ArrayList<IndexedDocument>(buffer.values())) {
+        if (isStale(document, source, since)) {
+          deleteLive(document.getKey());
+          deleted++;
+        }
+      }
+    }
+    return deleted;
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Merges the smallest segments when there are merge.factor segments.
+   * @return true if segments have been merged
+   */
+  boolean merge() throws IOException {
+    List<Segment> merged;
+    long generation;
+    synchronized (writeLock) {
+      if (segments.size() < mergeFactor) {
+        return false;
+      }
+      merged = new ArrayList<Segment>(segments);
+      Collections.sort(merged, new Comparator<Segment>() {
+        public int compare(Segment s1, Segment s2) {
+          return s1.getLiveDocCount() - s2.getLiveDocCount();
+        }
+      });
+      merged = merged.subList(0, mergeFactor);
+      generation = nextGeneration++;
+    }
+    //the live documents are read without lock, the deletions made meanwhile are applied below
+    List<IndexedDocument> docs = new ArrayList<IndexedDocument>();
+    int[][] mapping = new int[merged.size()][];
+    for (int s = 0; s < merged.size(); s++) {
+      Segment segment = merged.get(s);
+      mapping[s] = new int[segment.getDocCount()];
+      for (int doc = 0; doc < segment.getDocCount(); doc++) {
+        if (segment.isDeleted(doc)) {
+          mapping[s][doc] = -1;
+        } else {
+          mapping[s][doc] = docs.size();
+          docs.add(segment.getDocument(doc));
+        }
+      }
+    }
+    Segment segment = null;
+    if (docs.isEmpty() == false) {
+      try {
+        Segment.write(directory, generation, docs);
+        segment = Segment.open(directory, generation);
+      } catch (IOException e) {
+        delete(Segment.segmentFile(directory, generation));
+        throw e;
+      }
+    }
+    synchronized (writeLock) {
+      for (int s = 0; s < merged.size(); s++) {
+        for (int doc = 0; doc < mapping[s].length; doc++) {
+          int target = mapping[s][doc];
+          if (target < 0) {
+            continue;
+          }
+          if (merged.get(s).isDeleted(doc)) {
+            segment.delete(target);
+          } else {
+            liveDocs.put(docs.get(target).getKey(), new DocRef(segment, target));
+          }
+        }
+      }
+      List<Segment> updated = new ArrayList<Segment>(segments);
+      updated.removeAll(merged);
+      if (segment != null) {
+        updated.add(segment);
+      }
+      segments = Collections.unmodifiableList(updated);
+      segmentsChanged = true;
+      commit();
+    }
+    for (Segment old : merged) {
+      delete(old.getFile());
+      delete(Segment.tombstonesFile(directory, old.getGeneration()));
+    }
+    return true;
+  }
+
+  private void scheduleMerge() {
+    ScheduledExecutorService current = executor;
+    if (current == null || segments.size() < mergeFactor || merging.compareAndSet(false, true) == false) {
+      return;
+    }
+    try {
+      current.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            merge();
+          } catch (Exception e) {
+            LOG.error("Failed to merge the segments of the index " + directory, e);
+          } finally {
+            merging.set(false);
+          }
+          scheduleMerge();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      merging.set(false);
+    }
+  }
+
+  private void flushIfFull() {
+    if (buffer.size() < flushSize) {
+      return;
+    }
+    try {
+      flushBuffer();
+      commit();
+    } catch (IOException e) {
+      LOG.error("Failed to write the index " + directory, e);
+    }
+    scheduleMerge();
+  }
+
+  /**
+   * Removes the live version of an entry, from the buffer or from its segment.
+   */
+  private void deleteLive(String key) {
+    if (buffer.remove(key) != null) {
+      return;
+    }
+    DocRef ref = liveDocs.remove(key);
+    if (ref != null) {
+      ref.segment.delete(ref.doc);
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (buffer.isEmpty()) {
+      return;
+    }
+    long generation = nextGeneration++;
+    List<IndexedDocument> docs = new ArrayList<IndexedDocument>(buffer.values());
+    Segment.write(directory, generation, docs);
+    Segment segment = Segment.open(directory, generation);
+    for (int doc = 0; doc < docs.size(); doc++) {
+      liveDocs.put(docs.get(doc).getKey(), new DocRef(segment, doc));
+    }
+    List<Segment> updated = new ArrayList<Segment>(segments);
+    updated.add(segment);
+    segments = Collections.unmodifiableList(updated);
+    segmentsChanged = true;
+    buffer.clear();
+  }
+
+  /**
+   * Writes the changed tombstones and the list of the segments if it changed.
+   */
+  private void commit() throws IOException {
+    for (Segment segment : segments) {
+      if (segment.getTombstones().isDirty()) {
+        segment.getTombstones().write(Segment.tombstonesFile(directory, segment.getGeneration()));
+      }
+    }
+    if (segmentsChanged == false) {
+      return;
+    }
+    File manifest = new File(directory, MANIFEST);
+    File tmp = new File(directory, MANIFEST + ".tmp");
+    FileOutputStream fos = new FileOutputStream(tmp);
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+    try {
+      writer.write(String.valueOf(nextGeneration));
+      writer.newLine();
+      for (Segment segment : segments) {
+        writer.write(String.valueOf(segment.getGeneration()));
+        writer.newLine();
+      }
+      writer.flush();
+      fos.getFD().sync();
+    } finally {
+      writer.close();
+    }
+    if (manifest.exists() && manifest.delete() == false) {
+      throw new IOException("Can't replace the file " + manifest);
+    }
+    if (tmp.renameTo(manifest) == false) {
+      throw new IOException("Can't rename the file " + tmp + " to " + manifest);
+    }
+    segmentsChanged = false;
+  }
+
+  /**
+   * Opens the segments of the list and removes the other files.
+   */
+  private void load() throws IOException {
+    if (directory.exists() == false && directory.mkdirs() == false) {
+      throw new IOException("Can't create the directory " + directory);
+    }
+    List<Segment> loaded = new ArrayList<Segment>();
+    Set<String> files = new HashSet<String>();
+    files.add(MANIFEST);
+    File manifest = new File(directory, MANIFEST);
+    if (manifest.exists()) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+      try {
+        nextGeneration = Long.parseLong(reader.readLine().trim());
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          if (line.trim().length() == 0) {
+            continue;
+          }
+          long generation = Long.parseLong(line.trim());
+          Segment segment = Segment.open(directory, generation);
+          loaded.add(segment);
+          files.add(Segment.segmentFile(directory, generation).getName());
+          files.add(Segment.tombstonesFile(directory, generation).getName());
+          for (int doc = 0; doc < segment.getDocCount(); doc++) {
+            if (segment.isDeleted(doc) == false) {
+              liveDocs.put(segment.getKey(doc), new DocRef(segment, doc));
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    segments = Collections.unmodifiableList(loaded);
+    File[] children = directory.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        //only the files of the index are deleted, the directory may be shared
+        if (child.isFile() && files.contains(child.getName()) == false && isIndexFile(child.getName())) {
+          delete(child);
+        }
+      }
+    }
+    LOG.info("The index " + directory + " has " + liveDocs.size() + " entries in " + loaded.size() + " segments");
+  }
+
+  private static boolean isStale(IndexedDocument document, IndexingSourcePlugin source, long since) {
+    if (source.isSourceOf(new SearchEntryId(document.getCollection(), document.getType(), document.getName())) == false) {
+      return false;
+    }
+    Object indexed = document.getFields().get(DATE_INDEXED);
+    Object updated = document.getFields().get(LAST_UPDATE);
+    long written = Math.max(indexed instanceof Number ? ((Number) indexed).longValue() : 0,
+                            updated instanceof Number ? ((Number) updated).longValue() : 0);
+    return written < since;
+  }
+
+  private static boolean isIndexFile(String name) {
+    return name.equals(MANIFEST + ".tmp") || Segment.isSegmentFile(name);
+  }
+
+  private static void delete(File file) {
+    if (file.exists() && file.delete() == false) {
+      LOG.debug("Can't remove the file " + file + ", it will be removed at the next start");
+    }
+  }
+
+  private static String getValue(InitParams params, String name, String defaultValue) {
+    if (params == null) {
+      return defaultValue;
+    }
+    ValueParam param = params.getValueParam(name);
+    if (param == null || param.getValue() == null || param.getValue().trim().length() == 0) {
+      return defaultValue;
+    }
+    return param.getValue().trim();
+  }
+
+  /**
+   * The segment and the number of the live version of an entry.
+   */
+  private static class DocRef {
+    private final Segment segment;
+
+    private final int     doc;
+
+    private DocRef(Segment segment, int doc) {
+      this.segment = segment;
+      this.doc = doc;
+    }
+  }
+
+  /**
+   * A document found by a search, ordered by score.
+   */
+  private static class ScoredDoc implements Comparable<ScoredDoc> {
+    private final Segment segment;
+
+    private final int     doc;
+
+    private final float   score;
+
+    private ScoredDoc(Segment segment, int doc, float score) {
+      this.segment = segment;
+      this.doc = doc;
+      this.score = score;
+    }
+
+    @Override
+    public int compareTo(ScoredDoc other) {
+      int result = Float.compare(score, other.score);
+      if (result == 0) {
+        result = segment.getGeneration() < other.segment.getGeneration() ? 1
+            : (segment.getGeneration() == other.segment.getGeneration() ? 0 : -1);
+      }
+      return result == 0 ? other.doc - doc : result;
+    }
+  }
+}
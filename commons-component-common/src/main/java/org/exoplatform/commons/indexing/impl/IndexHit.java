@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import org.exoplatform.commons.api.indexing.data.SearchEntry;
+
+/**
+ * A search entry found by the {@link EmbeddedIndexingService}, with its score.
+ * @LevelAPI Experimental
+ */
+public class IndexHit {
+
+  private final SearchEntry entry;
+
+  private final float       score;
+
+  public IndexHit(SearchEntry entry, float score) {
+    this.entry = entry;
+    this.score = score;
+  }
+
+  /**
+   * @return the entry as it has been indexed, the values of the content keep their type
+   * @LevelAPI Experimental
+   */
+  public SearchEntry getEntry() {
+    return entry;
+  }
+
+  /**
+   * @return the BM25 score of the entry for the query
+   * @LevelAPI Experimental
+   */
+  public float getScore() {
+    return score;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("IndexHit {id=%s, score=%s}", entry.getId(), score);
+  }
+}
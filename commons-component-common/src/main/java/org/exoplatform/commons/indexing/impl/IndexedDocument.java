@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.exoplatform.commons.api.indexing.data.SearchEntry;
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+
+/**
+ * A search entry as it's stored in a segment, the string values of the
+ * content are indexed.
+ */
+final class IndexedDocument {
+
+  private final String              collection;
+
+  private final String              type;
+
+  private final String              name;
+
+  private final Map<String, Object> fields;
+
+  IndexedDocument(String collection, String type, String name, Map<String, Object> fields) {
+    this.collection = collection;
+    this.type = type;
+    this.name = name;
+    this.fields = fields;
+  }
+
+  static IndexedDocument create(SearchEntry entry) {
+    SearchEntryId id = entry.getId();
+    Map<String, Object> fields = new LinkedHashMap<String, Object>();
+    if (entry.getContent() != null) {
+      for (Map.Entry<String, Object> field : entry.getContent().entrySet()) {
+        if (field.getKey() != null && field.getValue() != null) {
+          fields.put(field.getKey(), field.getValue());
+        }
+      }
+    }
+    return new IndexedDocument(nullToEmpty(id.getCollection()), nullToEmpty(id.getType()), nullToEmpty(id.getName()), fields);
+  }
+
+  static String key(SearchEntryId id) {
+    return key(id.getCollection(), id.getType(), id.getName());
+  }
+
+  static String key(String collection, String type, String name) {
+    return nullToEmpty(collection) + '/' + nullToEmpty(type) + '/' + nullToEmpty(name);
+  }
+
+  private static String nullToEmpty(String value) {
+    return value == null ? "" : value;
+  }
+
+  String getKey() {
+    return key(collection, type, name);
+  }
+
+  String getCollection() {
+    return collection;
+  }
+
+  String getType() {
+    return type;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  Map<String, Object> getFields() {
+    return fields;
+  }
+
+  /**
+   * @return the frequency of the terms of the string values
+   */
+  Map<String, Integer> analyze() {
+    Map<String, Integer> frequencies = new HashMap<String, Integer>();
+    for (Object value : fields.values()) {
+      if (value instanceof String) {
+        for (String term : Analyzer.tokenize((String) value)) {
+          Integer frequency = frequencies.get(term);
+          frequencies.put(term, frequency == null ? 1 : frequency + 1);
+        }
+      }
+    }
+    return frequencies;
+  }
+
+  SearchEntry toEntry() {
+    return new SearchEntry(collection, type, name, new HashMap<String, Object>(fields));
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.exoplatform.commons.api.indexing.IndexingService;
+import org.exoplatform.commons.api.indexing.IndexingSourcePlugin;
+import org.exoplatform.commons.api.indexing.data.SearchEntry;
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.container.xml.ValuesParam;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.core.ManageableRepository;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Reindexes the nodes found by a JCR query of the current repository. The
+ * entry of a node is named by the path of the node, its content is the
+ * single valued string, long, double, boolean and date properties. The
+ * entries of the collection and the type of the plugin which a reindex
+ * doesn't find anymore are removed, so each plugin has its own collection and
+ * type.
+ *
+ * Init params:
+ * <ul>
+ * <li>query: the query of the nodes</li>
+ * <li>language: the language of the query, sql by default</li>
+ * <li>workspace: the workspace of the nodes, the default workspace by default</li>
+ * <li>collection: the collection of the entries</li>
+ * <li>type: the type of the entries</li>
+ * <li>properties: the properties indexed, all the properties by default</li>
+ * </ul>
+ */
+public class JCRIndexingSourcePlugin extends IndexingSourcePlugin {
+
+  private static final Log        LOG = ExoLogger.getLogger(JCRIndexingSourcePlugin.class);
+
+  private final RepositoryService repositoryService;
+
+  private final String            query;
+
+  private final String            language;
+
+  private final String            workspace;
+
+  private final String            collection;
+
+  private final String            type;
+
+  private final Set<String>       properties;
+
+  @SuppressWarnings("unchecked")
+  public JCRIndexingSourcePlugin(RepositoryService repositoryService, InitParams params) {
+    this.repositoryService = repositoryService;
+    this.query = getValue(params, "query", null);
+    if (query == null) {
+      throw new IllegalArgumentException("The query of the indexing source is missing");
+    }
+    this.language = Query.XPATH.equalsIgnoreCase(getValue(params, "language", Query.SQL)) ? Query.XPATH : Query.SQL;
+    this.workspace = getValue(params, "workspace", null);
+    this.collection = getValue(params, "collection", "");
+    this.type = getValue(params, "type", "");
+    ValuesParam values = params.getValuesParam("properties");
+    this.properties = values == null || values.getValues().isEmpty() ? null : new HashSet<String>((List<String>) values.getValues());
+  }
+
+  @Override
+  public void reindex(IndexingService indexingService) throws Exception {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      ManageableRepository repository = repositoryService.getCurrentRepository();
+      String workspaceName = workspace != null ? workspace : repository.getConfiguration().getDefaultWorkspaceName();
+      Session session = sessionProvider.getSession(workspaceName, repository);
+      NodeIterator it = session.getWorkspace().getQueryManager().createQuery(query, language).execute().getNodes();
+      int count = 0;
+      while (it.hasNext()) {
+        Node node = it.nextNode();
+        indexingService.add(new SearchEntry(collection, type, node.getPath(), getContent(node)));
+        if (++count % 1000 == 0) {
+          LOG.info(count + " nodes of the source " + getName() + " are reindexed");
+        }
+      }
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  @Override
+  public boolean isSourceOf(SearchEntryId id) {
+    return collection.equals(id.getCollection()) && type.equals(id.getType());
+  }
+
+  private Map<String, Object> getContent(Node node) throws RepositoryException {
+    Map<String, Object> content = new HashMap<String, Object>();
+    PropertyIterator it = node.getProperties();
+    while (it.hasNext()) {
+      Property property = it.nextProperty();
+      if ((properties != null && properties.contains(property.getName()) == false) || property.getDefinition().isMultiple()) {
+        continue;
+      }
+      switch (property.getType()) {
+      case PropertyType.STRING:
+        content.put(property.getName(), property.getString());
+        break;
+      case PropertyType.LONG:
+        content.put(property.getName(), property.getLong());
+        break;
+      case PropertyType.DOUBLE:
+        content.put(property.getName(), property.getDouble());
+        break;
+      case PropertyType.BOOLEAN:
+        content.put(property.getName(), property.getBoolean());
+        break;
+      case PropertyType.DATE:
+        content.put(property.getName(), property.getDate().getTime());
+        break;
+      default:
+        break;
+      }
+    }
+    return content;
+  }
+
+  private static String getValue(InitParams params, String name, String defaultValue) {
+    ValueParam param = params == null ? null : params.getValueParam(name);
+    if (param == null || param.getValue() == null || param.getValue().trim().length() == 0) {
+      return defaultValue;
+    }
+    return param.getValue().trim();
+  }
+}
@@ -0,0 +1,715 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.exoplatform.commons.api.event.EventManager;
+import org.exoplatform.commons.api.indexing.IndexingService;
+import org.exoplatform.commons.api.indexing.IndexingSourcePlugin;
+import org.exoplatform.commons.api.indexing.data.SearchEntry;
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.listener.Event;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * Queues the changes of the search entries and writes them by batch to
+ * another IndexingService in a background thread, so the thread changing an
+ * entry doesn't wait for the index.
+ *
+ * The changes of the same entry are coalesced while they are queued: an add
+ * or a delete replaces the queued change, an update is merged into it. A
+ * batch is written when batch.size entries are queued or when the oldest
+ * change has waited batch.interval milliseconds. When queue.size entries are
+ * queued, the threads changing other entries wait for the next batch.
+ *
+ * The entries sent by a reindex, see {@link #reindex(String)}, go to a
+ * second queue of bulk.queue.size entries, which is written only when the
+ * changes made by the users are written, and a bulk entry is dropped when a
+ * user changed it since the reindex started. So a reindex waits for the
+ * index, not the users. Once a reindex is complete and written, the entries
+ * of the source which haven't been written since it started are removed
+ * from the index, see {@link IndexingSourcePlugin#isSourceOf(SearchEntryId)}.
+ *
+ * An {@link IndexingService#ENTRY_WRITTEN} event is broadcast once an entry
+ * is written, for instance to invalidate the cached search results.
+ *
+ * Init params:
+ * <ul>
+ * <li>queue.size: the maximum number of queued entries, 10000 by default</li>
+ * <li>bulk.queue.size: the maximum number of queued entries of the reindexes, 1000 by default</li>
+ * <li>batch.size: the maximum number of entries written by batch, 500 by default</li>
+ * <li>batch.interval: the maximum time in milliseconds a change waits to be written, 500 by default</li>
+ * </ul>
+ */
+@Managed
+@NameTemplate({ @Property(key = "service", value = "indexing"), @Property(key = "view", value = "queue") })
+@ManagedDescription("The queue of the changes of the search entries")
+public class QueuedIndexingService extends IndexingService implements Startable {
+
+  public static final String                     QUEUE_SIZE      = "queue.size";
+
+  public static final String                     BULK_QUEUE_SIZE = "bulk.queue.size";
+
+  public static final String                     BATCH_SIZE      = "batch.size";
+
+  public static final String                     BATCH_INTERVAL  = "batch.interval";
+
+  private static final Log                       LOG             = ExoLogger.getLogger(QueuedIndexingService.class);
+
+  private final IndexingService                  delegate;
+
+  private final EventManager<IndexingService, SearchEntryId> eventManager;
+
+  private final int                              queueSize;
+
+  private final int                              bulkQueueSize;
+
+  private final int                              batchSize;
+
+  private final long                             batchInterval;
+
+  private final Map<String, IndexingSourcePlugin> sources        = new ConcurrentHashMap<String, IndexingSourcePlugin>();
+
+  private final IndexingService                  bulkView        = new BulkIndexingService();
+
+  private final ReentrantLock                    lock            = new ReentrantLock();
+
+  private final Condition                        notEmpty        = lock.newCondition();
+
+  private final Condition                        notFull         = lock.newCondition();
+
+  private final Condition                        idle            = lock.newCondition();
+
+  /** The changes made by the users, guarded by the lock */
+  private final LinkedHashMap<String, Operation> queue           = new LinkedHashMap<String, Operation>();
+
+  /** The changes sent by the reindexes, guarded by the lock */
+  private final LinkedHashMap<String, Operation> bulkQueue       = new LinkedHashMap<String, Operation>();
+
+  /** The entries changed by the users since the reindexes started, guarded by the lock */
+  private Set<String>                            changed;
+
+  private int                                    reindexes;
+
+  private int                                    writing;
+
+  private int                                    waiting;
+
+  private boolean                                stopping;
+
+  private volatile boolean                       stopped;
+
+  private Thread                                 writer;
+
+  private ExecutorService                        reindexExecutor;
+
+  private final AtomicLong                       queuedCount     = new AtomicLong();
+
+  private final AtomicLong                       coalescedCount  = new AtomicLong();
+
+  private final AtomicLong                       droppedCount    = new AtomicLong();
+
+  private final AtomicLong                       writtenCount    = new AtomicLong();
+
+  private final AtomicLong                       failedCount     = new AtomicLong();
+
+  private long                                   rateStart;
+
+  private long                                   rateCount;
+
+  private volatile long                          rate;
+
+  public QueuedIndexingService(EmbeddedIndexingService indexingService,
+                               EventManager<IndexingService, SearchEntryId> eventManager,
+                               InitParams params) {
+    this((IndexingService) indexingService, eventManager, params);
+  }
+
+  /**
+   * @param delegate the index the changes are written to
+   * @param eventManager the event manager broadcasting the written entries, null for no events
+   * @param params the init params
+   */
+  protected QueuedIndexingService(IndexingService delegate,
+                                  EventManager<IndexingService, SearchEntryId> eventManager,
+                                  InitParams params) {
+    this.delegate = delegate;
+    this.eventManager = eventManager;
+    this.queueSize = Math.max(1, Integer.parseInt(getValue(params, QUEUE_SIZE, "10000")));
+    this.bulkQueueSize = Math.max(1, Integer.parseInt(getValue(params, BULK_QUEUE_SIZE, "1000")));
+    this.batchSize = Math.max(1, Integer.parseInt(getValue(params, BATCH_SIZE, "500")));
+    this.batchInterval = Long.parseLong(getValue(params, BATCH_INTERVAL, "500"));
+  }
+
+  /**
+   * Adds a source which can be reindexed.
+   * @param plugin the source
+   * @LevelAPI Experimental
+   */
+  public void addSourcePlugin(IndexingSourcePlugin plugin) {
+    sources.put(plugin.getName(), plugin);
+  }
+
+  @Override
+  public void start() {
+    rateStart = System.currentTimeMillis();
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        write();
+      }
+    }, "QueuedIndexingService-writer");
+    writer.setDaemon(true);
+    writer.start();
+    reindexExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "QueuedIndexingService-reindex");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+  }
+
+  @Override
+  public void stop() {
+    if (reindexExecutor != null) {
+      reindexExecutor.shutdownNow();
+    }
+    lock.lock();
+    try {
+      stopping = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (writer != null) {
+      try {
+        writer.join(30000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    //the changes made from now are written by the caller
+    List<Operation> remaining = new ArrayList<Operation>();
+    lock.lock();
+    try {
+      stopped = true;
+      remaining.addAll(queue.values());
+      remaining.addAll(bulkQueue.values());
+      queue.clear();
+      bulkQueue.clear();
+    } finally {
+      lock.unlock();
+    }
+    apply(remaining);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void add(SearchEntry searchEntry) {
+    submit(searchEntry.getId(), copy(searchEntry), null, false, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void update(SearchEntryId id, Map<String, Object> changes) {
+    submit(id, null, changes, false, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void delete(SearchEntryId id) {
+    submit(id, null, null, true, false);
+  }
+
+  /**
+   * Waits until the queued changes are written.
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if the changes are written
+   * @LevelAPI Experimental
+   */
+  public boolean awaitWritten(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    lock.lock();
+    try {
+      waiting++;
+      notEmpty.signalAll();
+      while (queue.isEmpty() == false || bulkQueue.isEmpty() == false || writing > 0) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0 || stopped) {
+          return stopped;
+        }
+        idle.await(remaining, TimeUnit.MILLISECONDS);
+      }
+      return true;
+    } finally {
+      waiting--;
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reindexes a source in the background, the changes made by the users are
+   * written first.
+   * @param plugin the source
+   * @return the reindex
+   * @LevelAPI Experimental
+   */
+  public Future<?> reindex(final IndexingSourcePlugin plugin) {
+    if (reindexExecutor == null) {
+      throw new IllegalStateException("The indexing queue isn't started");
+    }
+    return reindexExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.currentTimeMillis();
+        lock.lock();
+        try {
+          if (reindexes++ == 0) {
+            changed = new HashSet<String>();
+          }
+        } finally {
+          lock.unlock();
+        }
+        try {
+          LOG.info("Reindexing the source " + plugin.getName());
+          plugin.reindex(bulkView);
+          int removed = deleteStale(plugin, start);
+          LOG.info("The source " + plugin.getName() + " is reindexed in " + (System.currentTimeMillis() - start) + " ms, "
+              + removed + " stale entries are removed");
+        } catch (CancellationException e) {
+          LOG.info("The reindex of the source " + plugin.getName() + " is cancelled");
+        } catch (Exception e) {
+          LOG.error("Failed to reindex the source " + plugin.getName(), e);
+        } finally {
+          lock.lock();
+          try {
+            if (--reindexes == 0) {
+              changed = null;
+            }
+          } finally {
+            lock.unlock();
+          }
+        }
+      }
+    });
+  }
+
+  @Managed
+  @ManagedDescription("Reindexes a source in the background")
+  public void reindex(String source) {
+    IndexingSourcePlugin plugin = sources.get(source);
+    if (plugin == null) {
+      throw new IllegalArgumentException("Unknown indexing source " + source);
+    }
+    reindex(plugin);
+  }
+
+  @Managed
+  @ManagedDescription("Reindexes all the sources in the background")
+  public void reindexAll() {
+    for (IndexingSourcePlugin plugin : sources.values()) {
+      reindex(plugin);
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Gets the names of the sources which can be reindexed")
+  public String getSources() {
+    return sources.keySet().toString();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the number of queued entries")
+  public int getQueuedEntries() {
+    lock.lock();
+    try {
+      return queue.size() + bulkQueue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Gets the time in milliseconds the oldest queued change has waited")
+  public long getLag() {
+    lock.lock();
+    try {
+      long oldest = oldest();
+      return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Gets the number of entries written by second")
+  public long getThroughput() {
+    return rate;
+  }
+
+  @Managed
+  @ManagedDescription("Gets the number of changes queued since the start")
+  public long getQueuedCount() {
+    return queuedCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the number of changes coalesced with a queued change since the start")
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the number of reindexed entries dropped because a user changed them")
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the number of entries written since the start")
+  public long getWrittenCount() {
+    return writtenCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the number of entries which failed to be written since the start")
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  private void submit(SearchEntryId id, SearchEntry entry, Map<String, Object> changes, boolean delete, boolean bulk) {
+    String key = IndexedDocument.key(id);
+    lock.lock();
+    try {
+      if (stopped) {
+        //the writer is stopped, the change is written below
+      } else if (bulk) {
+        submitBulk(key, id, entry, changes, delete);
+        return;
+      } else {
+        if (changed != null) {
+          changed.add(key);
+        }
+        Operation operation = queue.get(key);
+        if (operation == null) {
+          operation = bulkQueue.remove(key);
+          if (operation != null) {
+            //the entry is written with the changes of the users
+            queue.put(key, operation);
+            notFull.signalAll();
+          }
+        }
+        if (operation != null) {
+          operation.merge(entry, changes, delete);
+          coalescedCount.incrementAndGet();
+          return;
+        }
+        while (queue.size() >= queueSize && stopping == false && Thread.currentThread().isInterrupted() == false) {
+          try {
+            notFull.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          operation = queue.get(key);
+          if (operation != null) {
+            operation.merge(entry, changes, delete);
+            coalescedCount.incrementAndGet();
+            return;
+          }
+        }
+        if (stopped == false) {
+          queue.put(key, new Operation(id).merge(entry, changes, delete));
+          queuedCount.incrementAndGet();
+          notEmpty.signal();
+          return;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    List<Operation> operations = new ArrayList<Operation>(1);
+    operations.add(new Operation(id).merge(entry, changes, delete));
+    apply(operations);
+  }
+
+  /**
+   * Removes the entries of a source which haven't been written since a
+   * reindex started, once the entries of the reindex are written.
+   * @return the number of removed entries
+   */
+  private int deleteStale(IndexingSourcePlugin plugin, long start) {
+    if (delegate instanceof EmbeddedIndexingService == false) {
+      return 0;
+    }
+    try {
+      while (awaitWritten(1000) == false) {
+        continue;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("The reindex is interrupted");
+    }
+    if (stopped) {
+      throw new CancellationException("The indexing queue is stopped");
+    }
+    return ((EmbeddedIndexingService) delegate).deleteStale(plugin, start);
+  }
+
+  private void submitBulk(String key, SearchEntryId id, SearchEntry entry, Map<String, Object> changes, boolean delete) {
+    while (true) {
+      if (stopping) {
+        throw new CancellationException("The indexing queue is stopped");
+      }
+      if ((changed != null && changed.contains(key)) || queue.containsKey(key)) {
+        //the change of the user is newer than the reindexed entry
+        droppedCount.incrementAndGet();
+        return;
+      }
+      Operation operation = bulkQueue.get(key);
+      if (operation != null) {
+        operation.merge(entry, changes, delete);
+        coalescedCount.incrementAndGet();
+        return;
+      }
+      if (bulkQueue.size() < bulkQueueSize) {
+        bulkQueue.put(key, new Operation(id).merge(entry, changes, delete));
+        queuedCount.incrementAndGet();
+        notEmpty.signal();
+        return;
+      }
+      try {
+        notFull.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("The reindex is interrupted");
+      }
+    }
+  }
+
+  /**
+   * Writes the queued changes by batch until the service is stopped.
+   */
+  private void write() {
+    List<Operation> batch = new ArrayList<Operation>(batchSize);
+    while (true) {
+      lock.lock();
+      try {
+        while (true) {
+          int size = queue.size() + bulkQueue.size();
+          if (size == 0) {
+            if (stopping) {
+              return;
+            }
+            notEmpty.await();
+          } else {
+            long wait = oldest() + batchInterval - System.currentTimeMillis();
+            if (size >= batchSize || wait <= 0 || waiting > 0 || stopping) {
+              break;
+            }
+            notEmpty.await(wait, TimeUnit.MILLISECONDS);
+          }
+        }
+        drain(queue, batch);
+        drain(bulkQueue, batch);
+        writing = batch.size();
+        notFull.signalAll();
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+      apply(batch);
+      batch.clear();
+      lock.lock();
+      try {
+        writing = 0;
+        if (queue.isEmpty() && bulkQueue.isEmpty()) {
+          idle.signalAll();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void drain(LinkedHashMap<String, Operation> source, List<Operation> batch) {
+    Iterator<Operation> it = source.values().iterator();
+    while (batch.size() < batchSize && it.hasNext()) {
+      batch.add(it.next());
+      it.remove();
+    }
+  }
+
+  private void apply(List<Operation> operations) {
+    for (Operation operation : operations) {
+      try {
+        if (operation.entry != null) {
+          delegate.add(operation.entry);
+        } else if (operation.deleted) {
+          delegate.delete(operation.id);
+        }
+        if (operation.changes != null) {
+          delegate.update(operation.id, operation.changes);
+        }
+        writtenCount.incrementAndGet();
+      } catch (RuntimeException e) {
+        failedCount.incrementAndGet();
+        LOG.error("Failed to index the entry " + operation.id, e);
+        continue;
+      }
+      if (eventManager != null) {
+        eventManager.broadcastEvent(new Event<IndexingService, SearchEntryId>(ENTRY_WRITTEN, this, operation.id));
+      }
+    }
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      rateCount += operations.size();
+      if (now - rateStart >= 1000) {
+        rate = rateCount * 1000 / (now - rateStart);
+        rateStart = now;
+        rateCount = 0;
+      }
+    }
+  }
+
+  /**
+   * @return the time the oldest queued change has been queued
+   */
+  private long oldest() {
+    long oldest = Long.MAX_VALUE;
+    if (queue.isEmpty() == false) {
+      oldest = queue.values().iterator().next().time;
+    }
+    if (bulkQueue.isEmpty() == false) {
+      oldest = Math.min(oldest, bulkQueue.values().iterator().next().time);
+    }
+    return oldest;
+  }
+
+  private static SearchEntry copy(SearchEntry entry) {
+    SearchEntryId id = entry.getId();
+    Map<String, Object> content = entry.getContent() == null ? new HashMap<String, Object>()
+        : new HashMap<String, Object>(entry.getContent());
+    return new SearchEntry(id.getCollection(), id.getType(), id.getName(), content);
+  }
+
+  private static String getValue(InitParams params, String name, String defaultValue) {
+    if (params == null) {
+      return defaultValue;
+    }
+    ValueParam param = params.getValueParam(name);
+    if (param == null || param.getValue() == null || param.getValue().trim().length() == 0) {
+      return defaultValue;
+    }
+    return param.getValue().trim();
+  }
+
+  /**
+   * The queued changes of an entry: the entry added or deleted, then the
+   * changes of the following updates.
+   */
+  private static class Operation {
+    private final SearchEntryId id;
+
+    private final long          time = System.currentTimeMillis();
+
+    private SearchEntry         entry;
+
+    private Map<String, Object> changes;
+
+    private boolean             deleted;
+
+    private Operation(SearchEntryId id) {
+      this.id = id;
+    }
+
+    private Operation merge(SearchEntry entry, Map<String, Object> changes, boolean delete) {
+      if (entry != null) {
+        this.entry = entry;
+        this.changes = null;
+        this.deleted = false;
+      } else if (delete) {
+        this.entry = null;
+        this.changes = null;
+        this.deleted = true;
+      } else if (deleted == false) {
+        //an update of a deleted entry does nothing
+        if (this.changes == null) {
+          this.changes = new LinkedHashMap<String, Object>();
+        }
+        this.changes.putAll(changes);
+      }
+      return this;
+    }
+  }
+
+  /**
+   * Queues the entries of the reindexes.
+   */
+  private class BulkIndexingService extends IndexingService {
+    @Override
+    public void add(SearchEntry searchEntry) {
+      submit(searchEntry.getId(), copy(searchEntry), null, false, true);
+    }
+
+    @Override
+    public void update(SearchEntryId id, Map<String, Object> changes) {
+      submit(id, null, changes, false, true);
+    }
+
+    @Override
+    public void delete(SearchEntryId id) {
+      submit(id, null, null, true, true);
+    }
+  }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable segment of the index, written once and then read through a
+ * read only memory mapping of its file. The deleted documents are kept in
+ * the tombstones of the segment, written in a separate file.
+ *
+ * The file holds, in this order:
+ * <ul>
+ * <li>the documents: id, length in terms, stored fields</li>
+ * <li>the document table: position and length of each document</li>
+ * <li>the postings of each term: document and term frequency</li>
+ * <li>the terms, sorted: term, document frequency, position of the postings</li>
+ * <li>the term table: position of each term, for a binary search</li>
+ * <li>the footer: the counts, the total length and the table positions</li>
+ * </ul>
+ * The positions are ints, a segment is less than 2GB.
+ */
+final class Segment {
+
+  static final String         SEGMENT_EXTENSION    = ".seg";
+
+  static final String         TOMBSTONES_EXTENSION = ".del";
+
+  /**
+   * The names of the segment and tombstones files, and of their temporary files.
+   */
+  private static final Pattern FILE_PATTERN        = Pattern.compile("_\\d+(\\" + SEGMENT_EXTENSION + "|\\"
+                                                        + TOMBSTONES_EXTENSION + ")(\\.tmp)?");
+
+  private static final int    MAGIC                = 0x65584f49;
+
+  private static final int    VERSION              = 1;
+
+  private static final int    FOOTER_SIZE          = 32;
+
+  private static final Charset UTF8                = Charset.forName("UTF-8");
+
+  private static final byte   STRING               = 0;
+
+  private static final byte   LONG                 = 1;
+
+  private static final byte   INTEGER              = 2;
+
+  private static final byte   DOUBLE               = 3;
+
+  private static final byte   BOOLEAN              = 4;
+
+  private static final byte   DATE                 = 5;
+
+  private final long          generation;
+
+  private final File          file;
+
+  private final ByteBuffer    buffer;
+
+  private final int           docCount;
+
+  private final int           termCount;
+
+  private final long          totalLength;
+
+  private final int           docTablePos;
+
+  private final int           termTablePos;
+
+  private Tombstones          tombstones;
+
+  private Segment(long generation, File file, ByteBuffer buffer) throws IOException {
+    this.generation = generation;
+    this.file = file;
+    this.buffer = buffer;
+    int footer = buffer.capacity() - FOOTER_SIZE;
+    if (footer < 0 || buffer.getInt(footer + 28) != MAGIC || buffer.getInt(footer + 24) != VERSION) {
+      throw new IOException("The file " + file + " isn't an index segment");
+    }
+    this.docCount = buffer.getInt(footer);
+    this.termCount = buffer.getInt(footer + 4);
+    this.totalLength = buffer.getLong(footer + 8);
+    this.docTablePos = buffer.getInt(footer + 16);
+    this.termTablePos = buffer.getInt(footer + 20);
+  }
+
+  static File segmentFile(File directory, long generation) {
+    return new File(directory, "_" + generation + SEGMENT_EXTENSION);
+  }
+
+  static File tombstonesFile(File directory, long generation) {
+    return new File(directory, "_" + generation + TOMBSTONES_EXTENSION);
+  }
+
+  /**
+   * @return true if the name is the one of a segment or tombstones file.
+   */
+  static boolean isSegmentFile(String name) {
+    return FILE_PATTERN.matcher(name).matches();
+  }
+
+  /**
+   * Maps the file of a segment with its tombstones.
+   */
+  static Segment open(File directory, long generation) throws IOException {
+    File file = segmentFile(directory, generation);
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      Segment segment = new Segment(generation, file, buffer);
+      segment.tombstones = Tombstones.read(tombstonesFile(directory, generation), segment.docCount);
+      return segment;
+    } finally {
+      //the mapping stays valid once the file is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes the documents in a new segment file.
+   */
+  static void write(File directory, long generation, List<IndexedDocument> docs) throws IOException {
+    File file = segmentFile(directory, generation);
+    TreeMap<String, List<int[]>> postings = new TreeMap<String, List<int[]>>();
+    int[] positions = new int[docs.size()];
+    int[] lengths = new int[docs.size()];
+    long totalLength = 0;
+    FileOutputStream fos = new FileOutputStream(file);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+    try {
+      for (int doc = 0; doc < docs.size(); doc++) {
+        IndexedDocument document = docs.get(doc);
+        Map<String, Integer> frequencies = document.analyze();
+        for (Map.Entry<String, Integer> frequency : frequencies.entrySet()) {
+          List<int[]> termPostings = postings.get(frequency.getKey());
+          if (termPostings == null) {
+            termPostings = new ArrayList<int[]>();
+            postings.put(frequency.getKey(), termPostings);
+          }
+          termPostings.add(new int[] { doc, frequency.getValue() });
+          lengths[doc] += frequency.getValue();
+        }
+        totalLength += lengths[doc];
+        positions[doc] = out.size();
+        writeDocument(out, document);
+      }
+      int docTablePos = out.size();
+      for (int doc = 0; doc < docs.size(); doc++) {
+        out.writeInt(positions[doc]);
+        out.writeInt(lengths[doc]);
+      }
+      int[] postingsPositions = new int[postings.size()];
+      int term = 0;
+      for (List<int[]> termPostings : postings.values()) {
+        postingsPositions[term++] = out.size();
+        for (int[] posting : termPostings) {
+          out.writeInt(posting[0]);
+          out.writeInt(posting[1]);
+        }
+      }
+      int[] termPositions = new int[postings.size()];
+      term = 0;
+      for (Map.Entry<String, List<int[]>> termPostings : postings.entrySet()) {
+        termPositions[term] = out.size();
+        writeString(out, termPostings.getKey());
+        out.writeInt(termPostings.getValue().size());
+        out.writeInt(postingsPositions[term++]);
+      }
+      int termTablePos = out.size();
+      for (int position : termPositions) {
+        out.writeInt(position);
+      }
+      out.writeInt(docs.size());
+      out.writeInt(postings.size());
+      out.writeLong(totalLength);
+      out.writeInt(docTablePos);
+      out.writeInt(termTablePos);
+      out.writeInt(VERSION);
+      out.writeInt(MAGIC);
+      //DataOutputStream.size() stops at Integer.MAX_VALUE
+      if (out.size() == Integer.MAX_VALUE) {
+        throw new IOException("The segment " + file + " is larger than 2GB");
+      }
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  long getGeneration() {
+    return generation;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  int getDocCount() {
+    return docCount;
+  }
+
+  int getLiveDocCount() {
+    return docCount - tombstones.cardinality();
+  }
+
+  long getTotalLength() {
+    return totalLength;
+  }
+
+  Tombstones getTombstones() {
+    return tombstones;
+  }
+
+  boolean isDeleted(int doc) {
+    return tombstones.get(doc);
+  }
+
+  /**
+   * @return true if the document wasn't already deleted
+   */
+  boolean delete(int doc) {
+    return tombstones.set(doc);
+  }
+
+  int getLength(int doc) {
+    return buffer.getInt(docTablePos + doc * 8 + 4);
+  }
+
+  /**
+   * @return the key of the document, see {@link IndexedDocument#getKey()}
+   */
+  String getKey(int doc) {
+    int position = buffer.getInt(docTablePos + doc * 8);
+    String collection = readString(position);
+    position = nextString(position);
+    String type = readString(position);
+    position = nextString(position);
+    return IndexedDocument.key(collection, type, readString(position));
+  }
+
+  /**
+   * @return true if the document is in the collection and of the type, when they are given
+   */
+  boolean matches(int doc, String collection, String type) {
+    int position = buffer.getInt(docTablePos + doc * 8);
+    if (collection != null && collection.equals(readString(position)) == false) {
+      return false;
+    }
+    return type == null || type.equals(readString(nextString(position)));
+  }
+
+  IndexedDocument getDocument(int doc) {
+    int position = buffer.getInt(docTablePos + doc * 8);
+    String collection = readString(position);
+    position = nextString(position);
+    String type = readString(position);
+    position = nextString(position);
+    String name = readString(position);
+    position = nextString(position);
+    int fieldCount = buffer.getInt(position);
+    position += 4;
+    Map<String, Object> fields = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < fieldCount; i++) {
+      String field = readString(position);
+      position = nextString(position);
+      byte valueType = buffer.get(position++);
+      Object value;
+      switch (valueType) {
+      case LONG:
+        value = buffer.getLong(position);
+        position += 8;
+        break;
+      case INTEGER:
+        value = buffer.getInt(position);
+        position += 4;
+        break;
+      case DOUBLE:
+        value = buffer.getDouble(position);
+        position += 8;
+        break;
+      case BOOLEAN:
+        value = buffer.get(position) != 0;
+        position += 1;
+        break;
+      case DATE:
+        value = new Date(buffer.getLong(position));
+        position += 8;
+        break;
+      default:
+        value = readString(position);
+        position = nextString(position);
+      }
+      fields.put(field, value);
+    }
+    return new IndexedDocument(collection, type, name, fields);
+  }
+
+  /**
+   * @return the position of the term entry, -1 if the segment doesn't have the term
+   */
+  int findTerm(String term) {
+    int low = 0;
+    int high = termCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int position = buffer.getInt(termTablePos + middle * 4);
+      int comparison = readString(position).compareTo(term);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return position;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param termPosition the position of the term entry, see {@link #findTerm(String)}
+   * @return the number of documents of the term
+   */
+  int getDocFreq(int termPosition) {
+    return buffer.getInt(nextString(termPosition));
+  }
+
+  /**
+   * @param termPosition the position of the term entry, see {@link #findTerm(String)}
+   * @return the position of the postings of the term, a document and a term frequency by posting
+   */
+  int getPostings(int termPosition) {
+    return buffer.getInt(nextString(termPosition) + 4);
+  }
+
+  int getPostingDoc(int postings, int index) {
+    return buffer.getInt(postings + index * 8);
+  }
+
+  int getPostingFreq(int postings, int index) {
+    return buffer.getInt(postings + index * 8 + 4);
+  }
+
+  private String readString(int position) {
+    int length = buffer.getInt(position);
+    byte[] bytes = new byte[length];
+    ByteBuffer view = buffer.duplicate();
+    view.position(position + 4);
+    view.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private int nextString(int position) {
+    return position + 4 + buffer.getInt(position);
+  }
+
+  private static void writeDocument(DataOutputStream out, IndexedDocument document) throws IOException {
+    writeString(out, document.getCollection());
+    writeString(out, document.getType());
+    writeString(out, document.getName());
+    out.writeInt(document.getFields().size());
+    for (Map.Entry<String, Object> field : document.getFields().entrySet()) {
+      writeString(out, field.getKey());
+      Object value = field.getValue();
+      if (value instanceof Long) {
+        out.writeByte(LONG);
+        out.writeLong((Long) value);
+      } else if (value instanceof Integer) {
+        out.writeByte(INTEGER);
+        out.writeInt((Integer) value);
+      } else if (value instanceof Double) {
+        out.writeByte(DOUBLE);
+        out.writeDouble((Double) value);
+      } else if (value instanceof Boolean) {
+        out.writeByte(BOOLEAN);
+        out.writeByte(((Boolean) value) ? 1 : 0);
+      } else if (value instanceof Date) {
+        out.writeByte(DATE);
+        out.writeLong(((Date) value).getTime());
+      } else {
+        out.writeByte(STRING);
+        writeString(out, String.valueOf(value));
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = (value == null ? "" : value).getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @Override
+  public String toString() {
+    return "Segment {generation=" + generation + ", docs=" + docCount + ", deleted=" + tombstones.cardinality() + "}";
+  }
+}
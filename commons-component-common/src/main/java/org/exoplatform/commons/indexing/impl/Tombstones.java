@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The deleted documents of a segment, a bit set read without lock by the
+ * searches while the writer sets bits.
+ */
+final class Tombstones {
+
+  private final int             size;
+
+  private final AtomicLongArray words;
+
+  private final AtomicInteger   count = new AtomicInteger();
+
+  private volatile boolean      dirty;
+
+  Tombstones(int size) {
+    this.size = size;
+    this.words = new AtomicLongArray((size + 63) >>> 6);
+  }
+
+  /**
+   * @return true if the document wasn't already deleted
+   */
+  boolean set(int doc) {
+    int index = doc >>> 6;
+    long mask = 1L << (doc & 63);
+    while (true) {
+      long word = words.get(index);
+      if ((word & mask) != 0) {
+        return false;
+      }
+      if (words.compareAndSet(index, word, word | mask)) {
+        count.incrementAndGet();
+        dirty = true;
+        return true;
+      }
+    }
+  }
+
+  boolean get(int doc) {
+    return (words.get(doc >>> 6) & (1L << (doc & 63))) != 0;
+  }
+
+  int cardinality() {
+    return count.get();
+  }
+
+  boolean isDirty() {
+    return dirty;
+  }
+
+  /**
+   * Writes the bit set to a temporary file renamed once complete.
+   */
+  void write(File file) throws IOException {
+    dirty = false;
+    try {
+      File tmp = new File(file.getPath() + ".tmp");
+      FileOutputStream fos = new FileOutputStream(tmp);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+      try {
+        out.writeInt(size);
+        out.writeInt(words.length());
+        for (int i = 0; i < words.length(); i++) {
+          out.writeLong(words.get(i));
+        }
+        out.flush();
+        fos.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (file.exists() && file.delete() == false) {
+        throw new IOException("Can't replace the file " + file);
+      }
+      if (tmp.renameTo(file) == false) {
+        throw new IOException("Can't rename the file " + tmp + " to " + file);
+      }
+    } catch (IOException e) {
+      dirty = true;
+      throw e;
+    }
+  }
+
+  static Tombstones read(File file, int size) throws IOException {
+    Tombstones tombstones = new Tombstones(size);
+    if (file.exists() == false) {
+      return tombstones;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != size) {
+        throw new IOException("The file " + file + " doesn't match its segment");
+      }
+      int length = in.readInt();
+      for (int i = 0; i < length; i++) {
+        long word = in.readLong();
+        tombstones.words.set(i, word);
+        tombstones.count.addAndGet(Long.bitCount(word));
+      }
+    } finally {
+      in.close();
+    }
+    return tombstones;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.cache;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+
+/**
+ * The key of a compiled Groovy template. The checksum of the template's text is
+ * a part of the key, a template changed on the disk is compiled again even if
+ * the cache has not been invalidated.
+ */
+public class TemplateCacheKey implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String      pluginId;
+
+  private final String      language;
+
+  private final long        checksum;
+
+  public TemplateCacheKey(String pluginId, String language, String template) {
+    this.pluginId = pluginId;
+    this.language = language;
+    this.checksum = checksum(template);
+  }
+
+  public String getPluginId() {
+    return pluginId;
+  }
+
+  public String getLanguage() {
+    return language;
+  }
+
+  public long getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * Computes the checksum of a template, the length of the text is kept in
+   * the high bits to reduce the collisions.
+   *
+   * @param template the text of the template
+   * @return
+   */
+  public static long checksum(String template) {
+    if (template == null) {
+      return 0;
+    }
+    CRC32 crc = new CRC32();
+    try {
+      crc.update(template.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      crc.update(template.getBytes());
+    }
+    return ((long) template.length() << 32) | crc.getValue();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof TemplateCacheKey))
+      return false;
+
+    TemplateCacheKey that = (TemplateCacheKey) o;
+
+    if (checksum != that.checksum)
+      return false;
+    if (pluginId != null ? !pluginId.equals(that.pluginId) : that.pluginId != null)
+      return false;
+    if (language != null ? !language.equals(that.language) : that.language != null)
+      return false;
+
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (int) (checksum ^ (checksum >>> 32));
+    result = 31 * result + (language != null ? language.hashCode() : 0);
+    result = 31 * result + (pluginId != null ? pluginId.hashCode() : 0);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "TemplateCacheKey[pluginId=" + pluginId + ", language=" + language + ", checksum=" + Long.toHexString(checksum) + "]";
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.cache;
+
+import java.io.Serializable;
+
+import org.exoplatform.services.cache.CachedObjectSelector;
+import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.services.cache.ObjectCacheInfo;
+
+/**
+ * Selects the template elements and the compiled templates of a plugin, the
+ * selected entries are removed from the cache.
+ */
+public class TemplateCacheSelector implements CachedObjectSelector<Serializable, Object> {
+  private final String pluginId;
+
+  /**
+   * @param pluginId the plugin's id, null to select the templates of all the plugins
+   */
+  public TemplateCacheSelector(String pluginId) {
+    this.pluginId = pluginId;
+  }
+
+  @Override
+  public boolean select(Serializable key, ObjectCacheInfo<? extends Object> ocinfo) {
+    if (pluginId == null) {
+      return true;
+    }
+    if (key instanceof ElementCacheKey) {
+      return pluginId.equals(((ElementCacheKey) key).getPlugId());
+    }
+    if (key instanceof TemplateCacheKey) {
+      return pluginId.equals(((TemplateCacheKey) key).getPluginId());
+    }
+    return false;
+  }
+
+  @Override
+  public void onSelect(ExoCache<? extends Serializable, ? extends Object> cache,
+                       Serializable key,
+                       ObjectCacheInfo<? extends Object> ocinfo) throws Exception {
+    cache.remove(key);
+  }
+}
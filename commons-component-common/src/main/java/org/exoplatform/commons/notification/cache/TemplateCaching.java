@@ -18,10 +18,13 @@ package org.exoplatform.commons.notification.cache;
 
 import org.exoplatform.commons.api.notification.template.Element;
 import org.exoplatform.commons.notification.template.TemplateUtils;
+import org.exoplatform.groovyscript.GroovyTemplate;
 import org.exoplatform.services.cache.CacheService;
 import org.exoplatform.services.cache.ExoCache;
 import org.exoplatform.services.cache.future.FutureExoCache;
 import org.exoplatform.services.cache.future.Loader;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
 
 /**
  * Created by The eXo Platform SAS
@@ -30,10 +33,16 @@ import org.exoplatform.services.cache.future.Loader;
  * Aug 18, 2013  
  */
 public class TemplateCaching {
+  private static final Log LOG = ExoLogger.getLogger(TemplateCaching.class);
 
   private ExoCache<ElementCacheKey, Element> templateCache;
   private FutureExoCache<ElementCacheKey, Element, Object> futureExoCache;
   private final static String CACHING_NAME = "common.notification.caching";
+
+  /** The compiled Groovy templates, the context of the loader is the template's text */
+  private ExoCache<TemplateCacheKey, GroovyTemplate> compiledCache;
+  private FutureExoCache<TemplateCacheKey, GroovyTemplate, String> futureCompiledCache;
+  private final static String COMPILED_CACHING_NAME = "common.notification.template.compiled";
   
   public TemplateCaching(CacheService cacheService) {
     templateCache = cacheService.getCacheInstance(CACHING_NAME);
@@ -46,6 +55,17 @@ public class TemplateCaching {
       }
     };
     futureExoCache = new FutureExoCache<ElementCacheKey, Element, Object>(loader, templateCache);
+    //
+    compiledCache = cacheService.getCacheInstance(COMPILED_CACHING_NAME);
+    Loader<TemplateCacheKey, GroovyTemplate, String> compiler = 
+          new Loader<TemplateCacheKey, GroovyTemplate, String>() {
+      @Override
+      public GroovyTemplate retrieve(String template, TemplateCacheKey key) throws Exception {
+        LOG.debug("Compiling the groovy template " + key);
+        return new GroovyTemplate(template);
+      }
+    };
+    futureCompiledCache = new FutureExoCache<TemplateCacheKey, GroovyTemplate, String>(compiler, compiledCache);
   }
   
   /**
@@ -74,6 +94,52 @@ public class TemplateCaching {
   public void put(ElementCacheKey cacheKey, Element value) {
     templateCache.put(cacheKey, value);
   }
+
+  /**
+   * Gets the compiled Groovy template of a plugin, the template is compiled once
+   * by the first thread asking for it, the other ones wait for it.
+   * 
+   * @param pluginId the plugin's id
+   * @param language the language of the template
+   * @param template the text of the template
+   * @return the compiled template, it can be rendered concurrently
+   */
+  public GroovyTemplate getGroovyTemplate(String pluginId, String language, String template) {
+    return futureCompiledCache.get(template, new TemplateCacheKey(pluginId, language, template));
+  }
+
+  /**
+   * Determines if the template has been compiled
+   * @param pluginId
+   * @param language
+   * @param template
+   * @return
+   */
+  public boolean isCompiled(String pluginId, String language, String template) {
+    return compiledCache.get(new TemplateCacheKey(pluginId, language, template)) != null;
+  }
+
+  /**
+   * Removes the template elements and the compiled templates of a plugin, they
+   * are loaded again by the next rendering.
+   * 
+   * @param pluginId the plugin's id, null for all the plugins
+   */
+  public void invalidate(String pluginId) {
+    try {
+      if (pluginId == null) {
+        templateCache.clearCache();
+        compiledCache.clearCache();
+      } else {
+        TemplateCacheSelector selector = new TemplateCacheSelector(pluginId);
+        templateCache.select(selector);
+        compiledCache.select(selector);
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to invalidate the templates of plugin " + pluginId);
+      LOG.debug(e.getMessage(), e);
+    }
+  }
   
 }
 
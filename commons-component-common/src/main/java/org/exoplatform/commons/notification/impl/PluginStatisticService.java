@@ -16,6 +16,10 @@
  */
 package org.exoplatform.commons.notification.impl;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.exoplatform.commons.notification.stat.StripedCounter;
 import org.exoplatform.management.annotations.Managed;
 import org.exoplatform.management.annotations.ManagedDescription;
 import org.exoplatform.management.jmx.annotations.NameTemplate;
@@ -27,47 +31,15 @@ import org.exoplatform.management.jmx.annotations.Property;
  * Author : eXoPlatform
  *          thanhvc@exoplatform.com
  * Dec 23, 2013  
+ *
+ * The counters of each plugin, by plugin id in lower case, are striped so the
+ * threads creating the notifications don't contend on them.
  */
-@SuppressWarnings("unused")
 @Managed
 @NameTemplate({@Property(key = "service", value = "notification"), @Property(key = "view", value = "PluginNotifStatistic") })
 @ManagedDescription("Notifiaction plugin statistics service.")
 public class PluginStatisticService {
-  private long activityCommentCreatedMessageCount = 0;
-  private long activityCommentCreatedNotifCount = 0;
-  private long activityCommentCreatedDigestCount = 0;
-  
-  private long activityMentionCreatedMessageCount = 0;
-  private long activityMentionCreatedNotifCount = 0;
-  private long activityMentionCreatedDigestCount = 0;
-  
-  private long likeCreatedMessageCount = 0;
-  private long likeCreatedNotifCount = 0;
-  private long likeCreatedDigestCount = 0;
-  
-  private long newUserCreatedMessageCount = 0;
-  private long newUserCreatedNotifCount = 0;
-  private long newUserCreatedDigestCount = 0;
-  
-  private long postActivityCreatedMessageCount = 0;
-  private long postActivityCreatedNotifCount = 0;
-  private long postActivityCreatedDigestCount = 0;
-  
-  private long postActivitySpaceCreatedMessageCount = 0;
-  private long postActivitySpaceCreatedNotifCount = 0;
-  private long postActivitySpaceCreatedDigestCount = 0;
-  
-  private long relationshipRecievedCreatedMessageCount = 0;
-  private long relationshipRecievedCreatedNotifCount = 0;
-  private long relationshipRecievedCreatedDigestCount = 0;
-  
-  private long requestJoinSpaceCreatedMessageCount = 0;
-  private long requestJoinSpaceCreatedNotifCount = 0;
-  private long requestJoinSpaceCreatedDigestCount = 0;
-  
-  private long spaceInvitationCreatedMessageCount = 0;
-  private long spaceInvitationCreatedNotifCount = 0;
-  private long spaceInvitationCreatedDigestCount = 0;
+  private final ConcurrentMap<String, PluginCounters> counters = new ConcurrentHashMap<String, PluginCounters>();
   
   /**
    * Increase value when plugin creates new message
@@ -75,26 +47,7 @@ public class PluginStatisticService {
    * @param pluginId
    */
   public void increaseCreatedMessageCount(String pluginId) {
-    if ("ActivityCommentPlugin".equalsIgnoreCase(pluginId)) {
-      this.activityCommentCreatedMessageCount++;
-    } else if ("ActivityMentionPlugin".equalsIgnoreCase(pluginId)) {
-      activityMentionCreatedMessageCount++;
-    } else if ("LikePlugin".equalsIgnoreCase(pluginId)) {
-      likeCreatedMessageCount++;
-    } else if ("NewUserPlugin".equalsIgnoreCase(pluginId)) {
-      newUserCreatedMessageCount++;
-    } else if ("PostActivityPlugin".equalsIgnoreCase(pluginId)) {
-      postActivityCreatedMessageCount++;
-    } else if ("PostActivitySpaceStreamPlugin".equalsIgnoreCase(pluginId)) {
-      postActivitySpaceCreatedMessageCount++;
-    } else if ("RelationshipRecievedRequestPlugin".equalsIgnoreCase(pluginId)) {
-      relationshipRecievedCreatedMessageCount++;
-    } else if ("RequestJoinSpacePlugin".equalsIgnoreCase(pluginId)) {
-      requestJoinSpaceCreatedMessageCount++;
-    } else if ("SpaceInvitationPlugin".equalsIgnoreCase(pluginId)) {
-      spaceInvitationCreatedMessageCount++;
-    }
-    
+    getCounters(pluginId).messages.increment();
   }
   
   /**
@@ -102,25 +55,7 @@ public class PluginStatisticService {
    * @param pluginId
    */
   public void increaseCreatedNotifCount(String pluginId) {
-    if ("ActivityCommentPlugin".equalsIgnoreCase(pluginId)) {
-      activityCommentCreatedNotifCount++;
-    } else if ("ActivityMentionPlugin".equalsIgnoreCase(pluginId)) {
-      activityMentionCreatedNotifCount++;
-    } else if ("LikePlugin".equalsIgnoreCase(pluginId)) {
-      likeCreatedNotifCount++;
-    } else if ("NewUserPlugin".equalsIgnoreCase(pluginId)) {
-      newUserCreatedNotifCount++;
-    } else if ("PostActivityPlugin".equalsIgnoreCase(pluginId)) {
-      postActivityCreatedNotifCount++;
-    } else if ("PostActivitySpaceStreamPlugin".equalsIgnoreCase(pluginId)) {
-      postActivitySpaceCreatedNotifCount++;
-    } else if ("RelationshipRecievedRequestPlugin".equalsIgnoreCase(pluginId)) {
-      relationshipRecievedCreatedNotifCount++;
-    } else if ("RequestJoinSpacePlugin".equalsIgnoreCase(pluginId)) {
-      requestJoinSpaceCreatedNotifCount++;
-    } else if ("SpaceInvitationPlugin".equalsIgnoreCase(pluginId)) {
-      spaceInvitationCreatedNotifCount++;
-    }
+    getCounters(pluginId).notifications.increment();
   }
   
   /**
@@ -129,161 +64,181 @@ public class PluginStatisticService {
    * @param pluginId
    */
   public void increaseCreatedDigestCount(String pluginId) {
-    if ("ActivityCommentPlugin".equalsIgnoreCase(pluginId)) {
-      this.activityCommentCreatedDigestCount++;
-    } else if ("ActivityMentionPlugin".equalsIgnoreCase(pluginId)) {
-      this.activityMentionCreatedDigestCount++;
-    } else if ("LikePlugin".equalsIgnoreCase(pluginId)) {
-      this.likeCreatedDigestCount++;
-    } else if ("NewUserPlugin".equalsIgnoreCase(pluginId)) {
-      this.newUserCreatedDigestCount++;
-    } else if ("PostActivityPlugin".equalsIgnoreCase(pluginId)) {
-      this.postActivityCreatedDigestCount++;
-    } else if ("PostActivitySpaceStreamPlugin".equalsIgnoreCase(pluginId)) {
-      this.postActivitySpaceCreatedDigestCount++;
-    } else if ("RelationshipRecievedRequestPlugin".equalsIgnoreCase(pluginId)) {
-      this.relationshipRecievedCreatedDigestCount++;
-    } else if ("RequestJoinSpacePlugin".equalsIgnoreCase(pluginId)) {
-      this.requestJoinSpaceCreatedDigestCount++;
-    } else if ("SpaceInvitationPlugin".equalsIgnoreCase(pluginId)) {
-      this.spaceInvitationCreatedDigestCount++;
-    }
+    getCounters(pluginId).digests.increment();
   }
 
   @Managed
   public long getActivityCommentCreatedMessageCount() {
-    return activityCommentCreatedMessageCount;
+    return getCount("ActivityCommentPlugin", CounterType.MESSAGES);
   }
 
   @Managed
   public long getActivityCommentCreatedNotifCount() {
-    return activityCommentCreatedNotifCount;
+    return getCount("ActivityCommentPlugin", CounterType.NOTIFICATIONS);
   }
 
   @Managed
   public long getActivityCommentCreatedDigestCount() {
-    return activityCommentCreatedDigestCount;
+    return getCount("ActivityCommentPlugin", CounterType.DIGESTS);
   }
 
   @Managed
   public long getActivityMentionCreatedMessageCount() {
-    return activityMentionCreatedMessageCount;
+    return getCount("ActivityMentionPlugin", CounterType.MESSAGES);
   }
 
   @Managed
   public long getActivityMentionCreatedNotifCount() {
-    return activityMentionCreatedNotifCount;
+    return getCount("ActivityMentionPlugin", CounterType.NOTIFICATIONS);
   }
 
   @Managed
   public long getActivityMentionCreatedDigestCount() {
-    return activityMentionCreatedDigestCount;
+    return getCount("ActivityMentionPlugin", CounterType.DIGESTS);
   }
 
   @Managed
   public long getLikeCreatedMessageCount() {
-    return likeCreatedMessageCount;
+    return getCount("LikePlugin", CounterType.MESSAGES);
   }
 
   @Managed
   public long getLikeCreatedNotifCount() {
-    return likeCreatedNotifCount;
+    return getCount("LikePlugin", CounterType.NOTIFICATIONS);
   }
 
   @Managed
   public long getLikeCreatedDigestCount() {
-    return likeCreatedDigestCount;
+    return getCount("LikePlugin", CounterType.DIGESTS);
   }
 
   @Managed
   public long getNewUserCreatedMessageCount() {
-    return newUserCreatedMessageCount;
+    return getCount("NewUserPlugin", CounterType.MESSAGES);
   }
 
   @Managed
   public long getNewUserCreatedNotifCount() {
-    return newUserCreatedNotifCount;
+    return getCount("NewUserPlugin", CounterType.NOTIFICATIONS);
   }
 
   @Managed
   public long getNewUserCreatedDigestCount() {
-    return newUserCreatedDigestCount;
+    return getCount("NewUserPlugin", CounterType.DIGESTS);
   }
 
   @Managed
   public long getPostActivityCreatedMessageCount() {
-    return postActivityCreatedMessageCount;
+    return getCount("PostActivityPlugin", CounterType.MESSAGES);
   }
 
   @Managed
   public long getPostActivityCreatedNotifCount() {
-    return postActivityCreatedNotifCount;
+    return getCount("PostActivityPlugin", CounterType.NOTIFICATIONS);
   }
 
   @Managed
   public long getPostActivityCreatedDigestCount() {
-    return postActivityCreatedDigestCount;
+    return getCount("PostActivityPlugin", CounterType.DIGESTS);
   }
 
   @Managed
   public long getPostActivitySpaceCreatedMessageCount() {
-    return postActivitySpaceCreatedMessageCount;
+    return getCount("PostActivitySpaceStreamPlugin", CounterType.MESSAGES);
   }
 
   @Managed
   public long getPostActivitySpaceCreatedNotifCount() {
-    return postActivitySpaceCreatedNotifCount;
+    return getCount("PostActivitySpaceStreamPlugin", CounterType.NOTIFICATIONS);
   }
 
   @Managed
   public long getPostActivitySpaceCreatedDigestCount() {
-    return postActivitySpaceCreatedDigestCount;
+    return getCount("PostActivitySpaceStreamPlugin", CounterType.DIGESTS);
   }
 
   @Managed
   public long getRelationshipRecievedCreatedMessageCount() {
-    return relationshipRecievedCreatedMessageCount;
+    return getCount("RelationshipRecievedRequestPlugin", CounterType.MESSAGES);
   }
 
   @Managed
   public long getRelationshipRecievedCreatedNotifCount() {
-    return relationshipRecievedCreatedNotifCount;
+    return getCount("RelationshipRecievedRequestPlugin", CounterType.NOTIFICATIONS);
   }
 
   @Managed
   public long getRelationshipRecievedCreatedDigestCount() {
-    return relationshipRecievedCreatedDigestCount;
+    return getCount("RelationshipRecievedRequestPlugin", CounterType.DIGESTS);
   }
 
   @Managed
   public long getRequestJoinSpaceCreatedMessageCount() {
-    return requestJoinSpaceCreatedMessageCount;
+    return getCount("RequestJoinSpacePlugin", CounterType.MESSAGES);
   }
 
   @Managed
   public long getRequestJoinSpaceCreatedNotifCount() {
-    return requestJoinSpaceCreatedNotifCount;
+    return getCount("RequestJoinSpacePlugin", CounterType.NOTIFICATIONS);
   }
 
   @Managed
   public long getRequestJoinSpaceCreatedDigestCount() {
-    return requestJoinSpaceCreatedDigestCount;
+    return getCount("RequestJoinSpacePlugin", CounterType.DIGESTS);
   }
 
   @Managed
   public long getSpaceInvitationCreatedMessageCount() {
-    return spaceInvitationCreatedMessageCount;
+    return getCount("SpaceInvitationPlugin", CounterType.MESSAGES);
   }
 
   @Managed
   public long getSpaceInvitationCreatedNotifCount() {
-    return spaceInvitationCreatedNotifCount;
+    return getCount("SpaceInvitationPlugin", CounterType.NOTIFICATIONS);
   }
 
   @Managed
   public long getSpaceInvitationCreatedDigestCount() {
-    return spaceInvitationCreatedDigestCount;
+    return getCount("SpaceInvitationPlugin", CounterType.DIGESTS);
+  }
+
+  private PluginCounters getCounters(String pluginId) {
+    String key = pluginId == null ? "" : pluginId.toLowerCase();
+    PluginCounters pc = counters.get(key);
+    if (pc == null) {
+      pc = new PluginCounters();
+      PluginCounters previous = counters.putIfAbsent(key, pc);
+      if (previous != null) {
+        pc = previous;
+      }
+    }
+    return pc;
+  }
+
+  private long getCount(String pluginId, CounterType type) {
+    PluginCounters pc = counters.get(pluginId.toLowerCase());
+    if (pc == null) {
+      return 0;
+    }
+    switch (type) {
+    case MESSAGES:
+      return pc.messages.sum();
+    case NOTIFICATIONS:
+      return pc.notifications.sum();
+    default:
+      return pc.digests.sum();
+    }
+  }
+
+  private enum CounterType {
+    MESSAGES, NOTIFICATIONS, DIGESTS
+  }
+
+  private static class PluginCounters {
+    private final StripedCounter messages      = new StripedCounter();
+
+    private final StripedCounter notifications = new StripedCounter();
+
+    private final StripedCounter digests       = new StripedCounter();
   }
-  
-  
 }
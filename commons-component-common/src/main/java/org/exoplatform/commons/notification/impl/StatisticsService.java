@@ -25,6 +25,7 @@ import org.exoplatform.commons.api.notification.stat.EntityStatistics;
 import org.exoplatform.commons.api.notification.stat.PluginStatistics;
 import org.exoplatform.commons.api.notification.stat.QueryStatistics;
 import org.exoplatform.commons.api.notification.stat.QueueStatistics;
+import org.exoplatform.commons.api.notification.stat.StageStatistics;
 import org.exoplatform.commons.api.notification.stat.Statistics;
 import org.exoplatform.commons.api.notification.stat.StatisticsCollector;
 import org.exoplatform.commons.notification.job.NotificationJob;
@@ -115,6 +116,72 @@ public class StatisticsService implements Startable {
   public QueryStatistics getQueryStatistics(String queryString) {
     return stats.getQueryStatistics(queryString);
   }
+  @Managed
+  @ManagedDescription("Gets the latencies in microseconds of a stage of the notification processing")
+  public StageStatistics getStageStatistics(String stage) {
+    return stats.getStageStatistics(stage);
+  }
+  @Managed
+  @ManagedDescription("Gets all the stages of the notification processing have been executed")
+  public String[] getStages() {
+    return stats.getStages();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the execution times in milliseconds by query template: count, p50, p99, max")
+  public String getQueryLatencies() {
+    StringBuilder sb = new StringBuilder();
+    for (String query : stats.getQueries()) {
+      QueryStatistics qs = stats.getQueryStatistics(query);
+      appendLatencies(sb, query, qs.getExecutionCount(), qs.getExecutionTimePercentile(50),
+                      qs.getExecutionTimePercentile(99), qs.getExecutionMaxTime());
+    }
+    return sb.toString();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the message building times in microseconds by plugin: count, p50, p99, max")
+  public String getPluginLatencies() {
+    StringBuilder sb = new StringBuilder();
+    for (String pluginId : stats.getPluginNames()) {
+      PluginStatistics ps = stats.getPluginStatistics(pluginId);
+      appendLatencies(sb, pluginId, ps.getExecutionCount(), ps.getExecutionTimePercentile(50),
+                      ps.getExecutionTimePercentile(99), ps.getExecutionMaxTime());
+    }
+    return sb.toString();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the waiting times in milliseconds of the messages in the queue by plugin: count, p50, p99, max")
+  public String getQueueLatencies() {
+    StringBuilder sb = new StringBuilder();
+    for (String pluginId : stats.getQueueNames()) {
+      QueueStatistics qs = stats.getQueueStatistics(pluginId);
+      appendLatencies(sb, pluginId, qs.getPollCount(), qs.getWaitTimePercentile(50),
+                      qs.getWaitTimePercentile(99), qs.getWaitMaxTime());
+    }
+    return sb.toString();
+  }
+
+  @Managed
+  @ManagedDescription("Gets the execution times in microseconds by stage of the notification processing: count, p50, p99, max")
+  public String getStageLatencies() {
+    StringBuilder sb = new StringBuilder();
+    for (String stage : stats.getStages()) {
+      StageStatistics ss = stats.getStageStatistics(stage);
+      appendLatencies(sb, stage, ss.getExecutionCount(), ss.getExecutionTimePercentile(50),
+                      ss.getExecutionTimePercentile(99), ss.getExecutionMaxTime());
+    }
+    return sb.toString();
+  }
+
+  private static void appendLatencies(StringBuilder sb, String name, long count, long p50, long p99, long max) {
+    sb.append(name).append(": count=").append(count)
+      .append(", p50=").append(p50)
+      .append(", p99=").append(p99)
+      .append(", max=").append(max)
+      .append("\n");
+  }
   
   @Managed
   @ManagedDescription("Gets daily setting for all user")
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service;
+
+import java.util.BitSet;
+
+import org.exoplatform.commons.api.settings.SettingService;
+import org.exoplatform.commons.api.settings.SettingValue;
+import org.exoplatform.commons.api.settings.data.Context;
+import org.exoplatform.commons.api.settings.data.Scope;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Keeps the progress of a partitioned digest run: for each pass of the run,
+ * the indexes of the user ranges which have been completely processed.
+ *
+ * The checkpoint is persisted by the {@link SettingService} after each completed
+ * range, so a run which has crashed can be restarted and only processes the
+ * ranges which have not been completed yet.
+ *
+ * The stored value looks like: <code>runId|partitionSize|0-41,43|0-9|</code>
+ */
+public class DigestCheckpoint {
+  private static final Log    LOG         = ExoLogger.getLogger(DigestCheckpoint.class);
+
+  private static final String NAME_SPACES = "exo:";
+
+  private static final String KEY_PREFIX  = "digestCheckpoint.";
+
+  /** The number of passes of a digest run */
+  public static final int     PASSES      = 3;
+
+  private final String        runId;
+
+  private final int           partitionSize;
+
+  private final BitSet[]      completed   = new BitSet[PASSES];
+
+  private final SettingService settingService;
+
+  private final String        key;
+
+  public DigestCheckpoint(SettingService settingService, String jobType, String runId, int partitionSize) {
+    this.settingService = settingService;
+    this.key = NAME_SPACES + KEY_PREFIX + jobType;
+    this.runId = runId;
+    this.partitionSize = partitionSize;
+    for (int i = 0; i < PASSES; i++) {
+      completed[i] = new BitSet();
+    }
+  }
+
+  /**
+   * Loads the progress stored for the same run id and partition size.
+   * The progress of an other run is ignored and will be overridden.
+   *
+   * @return true if the run is resumed from a stored progress
+   */
+  public synchronized boolean load() {
+    if (settingService == null) {
+      return false;
+    }
+    try {
+      SettingValue<?> value = settingService.get(Context.GLOBAL, Scope.GLOBAL, key);
+      if (value != null && value.getValue() != null) {
+        return decode(String.valueOf(value.getValue()));
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to load the digest checkpoint " + key);
+      LOG.debug(e.getMessage(), e);
+    }
+    return false;
+  }
+
+  /**
+   * Marks the given range of the pass as completed and stores the progress.
+   *
+   * @param pass the pass index, from 0
+   * @param range the range index, from 0
+   */
+  public synchronized void complete(int pass, int range) {
+    completed[pass].set(range);
+    store();
+  }
+
+  public synchronized boolean isCompleted(int pass, int range) {
+    return completed[pass].get(range);
+  }
+
+  /**
+   * Removes the stored progress once the run is finished.
+   */
+  public synchronized void clear() {
+    for (int i = 0; i < PASSES; i++) {
+      completed[i].clear();
+    }
+    if (settingService == null) {
+      return;
+    }
+    try {
+      settingService.remove(Context.GLOBAL, Scope.GLOBAL, key);
+    } catch (Exception e) {
+      LOG.warn("Failed to remove the digest checkpoint " + key);
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  public String getRunId() {
+    return runId;
+  }
+
+  public int getPartitionSize() {
+    return partitionSize;
+  }
+
+  private void store() {
+    if (settingService == null) {
+      return;
+    }
+    try {
+      settingService.set(Context.GLOBAL, Scope.GLOBAL, key, SettingValue.create(encode()));
+    } catch (Exception e) {
+      LOG.warn("Failed to store the digest checkpoint " + key);
+      LOG.debug(e.getMessage(), e);
+    }
+  }
+
+  synchronized String encode() {
+    StringBuilder sb = new StringBuilder(runId).append('|').append(partitionSize);
+    for (int i = 0; i < PASSES; i++) {
+      sb.append('|');
+      BitSet bits = completed[i];
+      int start = bits.nextSetBit(0);
+      boolean first = true;
+      while (start >= 0) {
+        int end = bits.nextClearBit(start) - 1;
+        if (!first) {
+          sb.append(',');
+        }
+        sb.append(start);
+        if (end > start) {
+          sb.append('-').append(end);
+        }
+        first = false;
+        start = bits.nextSetBit(end + 1);
+      }
+    }
+    return sb.toString();
+  }
+
+  synchronized boolean decode(String value) {
+    String[] parts = value.split("\\|", -1);
+    if (parts.length != PASSES + 2 || !runId.equals(parts[0])) {
+      return false;
+    }
+    try {
+      if (Integer.parseInt(parts[1]) != partitionSize) {
+        return false;
+      }
+      BitSet[] bits = new BitSet[PASSES];
+      for (int i = 0; i < PASSES; i++) {
+        bits[i] = new BitSet();
+        if (parts[i + 2].length() == 0) {
+          continue;
+        }
+        for (String item : parts[i + 2].split(",")) {
+          int dash = item.indexOf('-');
+          if (dash > 0) {
+            bits[i].set(Integer.parseInt(item.substring(0, dash)), Integer.parseInt(item.substring(dash + 1)) + 1);
+          } else {
+            bits[i].set(Integer.parseInt(item));
+          }
+        }
+      }
+      for (int i = 0; i < PASSES; i++) {
+        completed[i] = bits[i];
+      }
+      return true;
+    } catch (NumberFormatException e) {
+      LOG.warn("Invalid digest checkpoint " + value);
+      return false;
+    }
+  }
+}
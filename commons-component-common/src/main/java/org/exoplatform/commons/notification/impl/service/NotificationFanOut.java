@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.exoplatform.commons.api.notification.NotificationContext;
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+import org.exoplatform.commons.api.notification.model.UserSetting;
+import org.exoplatform.commons.api.notification.plugin.AbstractNotificationPlugin;
+import org.exoplatform.commons.api.notification.service.NotificationCompletionService;
+import org.exoplatform.commons.api.notification.service.setting.UserSettingService;
+import org.exoplatform.commons.api.notification.service.storage.NotificationDataStorage;
+import org.exoplatform.commons.notification.NotificationContextFactory;
+import org.exoplatform.commons.notification.NotificationUtils;
+import org.exoplatform.commons.notification.impl.NotificationContextImpl;
+import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.commons.utils.CommonsUtils;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Processes a notification in stages, so the thread creating the notification
+ * doesn't wait for all the recipients to be notified:
+ *
+ * 1. the recipients are resolved and split into batches,
+ * 2. the settings of the recipients of a batch are classified,
+ * 3. the instant mails of a batch are rendered,
+ * 4. the rendered mails are sent.
+ *
+ * The stages are connected by bounded queues and run on the executor of the
+ * NotificationCompletionService. When the queue of a stage is full, the
+ * producer processes the item itself, which slows it down without blocking a
+ * thread of the executor. The latency of each stage is reported to the
+ * StatisticsCollector when the statistics are enabled.
+ */
+public class NotificationFanOut {
+  private static final Log                      LOG            = ExoLogger.getLogger(NotificationFanOut.class);
+
+  public static final String                    RESOLVE_STAGE  = "fanout.resolve";
+
+  public static final String                    CLASSIFY_STAGE = "fanout.classify";
+
+  public static final String                    RENDER_STAGE   = "fanout.render";
+
+  public static final String                    DISPATCH_STAGE = "fanout.dispatch";
+
+  private final UserSettingService              userService;
+
+  private final NotificationDataStorage         storage;
+
+  /** The number of recipients of a batch */
+  private final int                             batchSize;
+
+  private final Stage<FanOut>                   resolve;
+
+  private final Stage<Batch>                    classify;
+
+  private final Stage<Batch>                    render;
+
+  private final Stage<List<MessageInfo>>        dispatch;
+
+  private volatile NotificationCompletionService completionService;
+
+  /**
+   * @param userService the user settings
+   * @param storage the storage of the digest notifications
+   * @param batchSize the number of recipients of a batch
+   * @param queueSize the capacity of the queue of each stage
+   * @param stageWorkers the number of threads running a stage at the same time
+   */
+  public NotificationFanOut(UserSettingService userService,
+                            NotificationDataStorage storage,
+                            int batchSize,
+                            int queueSize,
+                            int stageWorkers) {
+    this.userService = userService;
+    this.storage = storage;
+    this.batchSize = Math.max(batchSize, 1);
+    //
+    this.resolve = new Stage<FanOut>(RESOLVE_STAGE, queueSize, stageWorkers) {
+      @Override
+      void process(FanOut fanOut) throws Exception {
+        resolve(fanOut);
+      }
+    };
+    this.classify = new Stage<Batch>(CLASSIFY_STAGE, queueSize, stageWorkers) {
+      @Override
+      void process(Batch batch) throws Exception {
+        classify(batch);
+      }
+    };
+    this.render = new Stage<Batch>(RENDER_STAGE, queueSize, stageWorkers) {
+      @Override
+      void process(Batch batch) throws Exception {
+        render(batch);
+      }
+    };
+    this.dispatch = new Stage<List<MessageInfo>>(DISPATCH_STAGE, queueSize, stageWorkers) {
+      @Override
+      void process(List<MessageInfo> messages) throws Exception {
+        dispatch(messages);
+      }
+    };
+  }
+
+  /**
+   * Starts the processing of a notification, it returns once the notification
+   * is queued when the execution is asynchronous.
+   *
+   * @param notification the notification
+   */
+  public void process(NotificationInfo notification) {
+    resolve.submit(new FanOut(notification));
+  }
+
+  /**
+   * @return the number of items waiting in the queues of the stages
+   */
+  public int getPendingCount() {
+    return resolve.queue.size() + classify.queue.size() + render.queue.size() + dispatch.queue.size();
+  }
+
+  private void resolve(FanOut fanOut) {
+    NotificationInfo notification = fanOut.notification;
+    //the resolution holds the notification until all the batches are counted,
+    //so it's saved even when the recipients fail to be resolved
+    fanOut.batches.set(1);
+    try {
+      List<String> userIds = notification.getSendToUserIds();
+      if (notification.isSendAll()) {
+        userIds = userService.getUserSettingByPlugin(fanOut.pluginId);
+      }
+      if (userIds == null) {
+        return;
+      }
+      for (int from = 0; from < userIds.size(); from += batchSize) {
+        List<String> batch = new ArrayList<String>(userIds.subList(from, Math.min(from + batchSize, userIds.size())));
+        fanOut.batches.incrementAndGet();
+        classify.submit(new Batch(fanOut, batch));
+      }
+    } finally {
+      fanOut.complete(null, null, null);
+    }
+  }
+
+  private void classify(Batch batch) {
+    FanOut fanOut = batch.fanOut;
+    String pluginId = fanOut.pluginId;
+    List<String> instantly = new ArrayList<String>();
+    List<String> pendings = new ArrayList<String>();
+    List<String> dailys = new ArrayList<String>();
+    List<String> weeklys = new ArrayList<String>();
+    try {
+      for (String userId : batch.userIds) {
+        UserSetting userSetting = userService.get(userId);
+        //
+        if (userSetting.isActive() == false) {
+          continue;
+        }
+        if (userSetting.isInInstantly(pluginId)) {
+          instantly.add(userId);
+        }
+        if (userSetting.isActiveWithoutInstantly(pluginId)) {
+          pendings.add(userId);
+          if (userSetting.isInDaily(pluginId)) {
+            dailys.add(userId);
+          }
+          if (userSetting.isInWeekly(pluginId)) {
+            weeklys.add(userId);
+          }
+        }
+      }
+      if (instantly.size() > 0) {
+        render.submit(new Batch(fanOut, instantly));
+      }
+    } finally {
+      fanOut.complete(pendings, dailys, weeklys);
+    }
+  }
+
+  private void render(Batch batch) {
+    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
+    NotificationInfo template = batch.fanOut.template;
+    NotificationContext nCtx = NotificationContextImpl.cloneInstance();
+    AbstractNotificationPlugin plugin = nCtx.getPluginContainer().getPlugin(template.getKey());
+    if (plugin == null) {
+      return;
+    }
+    List<MessageInfo> messages = new ArrayList<MessageInfo>(batch.userIds.size());
+    for (String userId : batch.userIds) {
+      try {
+        nCtx.setNotificationInfo(template.clone().setTo(userId));
+        long startTime = stats ? System.nanoTime() : 0;
+        MessageInfo info = plugin.buildMessage(nCtx);
+        if (stats) {
+          NotificationContextFactory.getInstance().getStatisticsCollector().pluginExecuted(plugin.getId(), (System.nanoTime() - startTime) / 1000);
+        }
+        if (info == null) {
+          continue;
+        }
+        if (NotificationUtils.isValidEmailAddresses(info.getTo()) == true) {
+          messages.add(info);
+        } else {
+          LOG.warn(String.format("The email %s is not valid for sending notification", info.getTo()));
+        }
+        if (stats) {
+          NotificationContextFactory.getInstance().getStatisticsCollector().createMessageInfoCount(info.getPluginId());
+        }
+      } catch (Exception e) {
+        LOG.warn("Failed to build the instant message of the user " + userId);
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+    if (messages.size() > 0) {
+      dispatch.submit(messages);
+    }
+  }
+
+  private void dispatch(List<MessageInfo> messages) {
+    QueueMessageImpl queueMessage = CommonsUtils.getService(QueueMessageImpl.class);
+    for (MessageInfo message : messages) {
+      queueMessage.sendMessage(message.makeEmailNotification());
+    }
+  }
+
+  /**
+   * Saves the notification for the digests once all the recipients are classified.
+   */
+  private void finish(FanOut fanOut) {
+    NotificationInfo notification = fanOut.notification;
+    if (fanOut.pendings.size() > 0 || notification.isSendAll()) {
+      if (notification.isSendAll() == false) {
+        notification.setSendToDaily(merge(notification.getSendToDaily(), fanOut.dailys));
+        notification.setSendToWeekly(merge(notification.getSendToWeekly(), fanOut.weeklys));
+      }
+      notification.to(new ArrayList<String>(fanOut.pendings));
+      try {
+        storage.save(notification);
+      } catch (Exception e) {
+        LOG.warn("Failed to save the notification " + notification.getKey());
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Adds the users to the given array, as NotificationInfo#setSendToDaily(String)
+   * does for one user.
+   */
+  private static String[] merge(String[] src, Set<String> userIds) {
+    Set<String> merged = new LinkedHashSet<String>();
+    for (String userId : src) {
+      if (userId != null && userId.length() > 0) {
+        merged.add(userId);
+      }
+    }
+    merged.addAll(userIds);
+    if (merged.isEmpty()) {
+      return src;
+    }
+    return merged.toArray(new String[merged.size()]);
+  }
+
+  private Executor getExecutor() {
+    if (completionService == null) {
+      completionService = CommonsUtils.getService(NotificationCompletionService.class);
+    }
+    return completionService.getExecutor();
+  }
+
+  private boolean isAsync() {
+    return completionService != null && completionService.isAsync();
+  }
+
+  /**
+   * A notification being processed.
+   */
+  private class FanOut {
+    private final NotificationInfo notification;
+
+    /** The copy used to render the instant mails while the notification is completed */
+    private final NotificationInfo template;
+
+    private final String           pluginId;
+
+    /** The batches not classified yet */
+    private final AtomicInteger    batches  = new AtomicInteger();
+
+    private final Set<String>      pendings = new LinkedHashSet<String>();
+
+    private final Set<String>      dailys   = new LinkedHashSet<String>();
+
+    private final Set<String>      weeklys  = new LinkedHashSet<String>();
+
+    FanOut(NotificationInfo notification) {
+      this.notification = notification;
+      this.template = notification.clone();
+      this.pluginId = notification.getKey().getId();
+    }
+
+    void complete(List<String> batchPendings, List<String> batchDailys, List<String> batchWeeklys) {
+      if (batchPendings != null) {
+        synchronized (this) {
+          pendings.addAll(batchPendings);
+          dailys.addAll(batchDailys);
+          weeklys.addAll(batchWeeklys);
+        }
+      }
+      if (batches.decrementAndGet() == 0) {
+        synchronized (this) {
+          finish(this);
+        }
+      }
+    }
+  }
+
+  /**
+   * The recipients of a notification processed together.
+   */
+  private static class Batch {
+    private final FanOut       fanOut;
+
+    private final List<String> userIds;
+
+    Batch(FanOut fanOut, List<String> userIds) {
+      this.fanOut = fanOut;
+      this.userIds = userIds;
+    }
+  }
+
+  /**
+   * A stage of the processing, its queue is drained by at most the given
+   * number of tasks of the executor.
+   */
+  private abstract class Stage<T> implements Runnable {
+    private final String           name;
+
+    private final BlockingQueue<T> queue;
+
+    private final int              maxWorkers;
+
+    private final AtomicInteger    workers = new AtomicInteger();
+
+    Stage(String name, int queueSize, int maxWorkers) {
+      this.name = name;
+      this.queue = new ArrayBlockingQueue<T>(Math.max(queueSize, 1));
+      this.maxWorkers = Math.max(maxWorkers, 1);
+    }
+
+    void submit(T item) {
+      if (queue.offer(item)) {
+        schedule();
+      } else {
+        //the stage is saturated, the producer processes the item itself
+        execute(item);
+      }
+    }
+
+    private void schedule() {
+      for (int current = workers.get(); current < maxWorkers; current = workers.get()) {
+        if (workers.compareAndSet(current, current + 1)) {
+          try {
+            getExecutor().execute(this);
+          } catch (RejectedExecutionException e) {
+            //the caller drains the queue, its own session is left open
+            drain(false);
+          }
+          return;
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      drain(isAsync());
+    }
+
+    /**
+     * Processes the queued items and releases the worker.
+     *
+     * @param closeSession true to close the session opened on the thread of the worker
+     */
+    private void drain(boolean closeSession) {
+      try {
+        for (T item = queue.poll(); item != null; item = queue.poll()) {
+          execute(item);
+        }
+      } finally {
+        workers.decrementAndGet();
+        if (closeSession) {
+          NotificationSessionManager.closeSessionProvider();
+        }
+      }
+      //an item may have been queued after the last poll
+      if (queue.isEmpty() == false) {
+        schedule();
+      }
+    }
+
+    private void execute(T item) {
+      long startTime = System.nanoTime();
+      try {
+        process(item);
+      } catch (Exception e) {
+        LOG.warn("Failed to process the stage " + name + " of a notification.");
+        LOG.debug(e.getMessage(), e);
+      } finally {
+        if (NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled()) {
+          NotificationContextFactory.getInstance().getStatisticsCollector().stageExecuted(name, (System.nanoTime() - startTime) / 1000);
+        }
+      }
+    }
+
+    abstract void process(T item) throws Exception;
+  }
+}
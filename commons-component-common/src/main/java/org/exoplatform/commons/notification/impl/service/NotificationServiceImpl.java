@@ -29,18 +29,23 @@ import org.exoplatform.commons.api.notification.model.NotificationKey;
 import org.exoplatform.commons.api.notification.model.UserSetting;
 import org.exoplatform.commons.api.notification.model.UserSetting.FREQUENCY;
 import org.exoplatform.commons.api.notification.plugin.AbstractNotificationPlugin;
+import org.exoplatform.commons.api.notification.service.NotificationCompletionService;
 import org.exoplatform.commons.api.notification.service.QueueMessage;
 import org.exoplatform.commons.api.notification.service.setting.PluginSettingService;
 import org.exoplatform.commons.api.notification.service.setting.UserSettingService;
 import org.exoplatform.commons.api.notification.service.storage.NotificationDataStorage;
 import org.exoplatform.commons.api.notification.service.storage.NotificationService;
 import org.exoplatform.commons.api.notification.service.template.DigestorService;
+import org.exoplatform.commons.api.settings.SettingService;
 import org.exoplatform.commons.notification.NotificationContextFactory;
 import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.impl.AbstractService;
 import org.exoplatform.commons.notification.impl.NotificationContextImpl;
+import org.exoplatform.commons.notification.impl.service.template.DigestProfileCache;
+import org.exoplatform.commons.notification.job.NotificationJob;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.commons.utils.ListAccess;
+import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.organization.OrganizationService;
@@ -48,17 +53,56 @@ import org.exoplatform.services.organization.User;
 
 public class NotificationServiceImpl extends AbstractService implements NotificationService {
   private static final Log         LOG              = ExoLogger.getLogger(NotificationServiceImpl.class);
+
+  private static final String      DIGEST_MODE_SYS_KEY      = "conf.notification.service.NotificationService.digestMode";
+  private static final String      DIGEST_MODE_KEY          = "digestMode";
+  private static final String      DIGEST_PARTITION_SYS_KEY = "conf.notification.service.NotificationService.digestPartitionSize";
+  private static final String      DIGEST_PARTITION_KEY     = "digestPartitionSize";
+  private static final String      DIGEST_WORKERS_SYS_KEY   = "conf.notification.service.NotificationService.digestWorkers";
+  private static final String      DIGEST_WORKERS_KEY       = "digestWorkers";
+  private static final String      PROCESS_MODE_SYS_KEY     = "conf.notification.service.NotificationService.processMode";
+  private static final String      PROCESS_MODE_KEY         = "processMode";
+  private static final String      FANOUT_BATCH_SYS_KEY     = "conf.notification.service.NotificationService.fanOutBatchSize";
+  private static final String      FANOUT_BATCH_KEY         = "fanOutBatchSize";
+  private static final String      FANOUT_QUEUE_SYS_KEY     = "conf.notification.service.NotificationService.fanOutQueueSize";
+  private static final String      FANOUT_QUEUE_KEY         = "fanOutQueueSize";
+  private static final String      FANOUT_WORKERS_SYS_KEY   = "conf.notification.service.NotificationService.fanOutStageWorkers";
+  private static final String      FANOUT_WORKERS_KEY       = "fanOutStageWorkers";
+  /** The digest mode processing the ranges of users concurrently */
+  public static final String       PARALLEL_DIGEST_MODE     = "parallel";
+  /** The process mode handing the notifications to the staged fan-out, the serial one is the default */
+  public static final String       PIPELINE_PROCESS_MODE    = "pipeline";
   /** */
   private final NotificationDataStorage storage;
   /** */
   private final DigestorService digestorService;
   /** */
   private final UserSettingService userService;
+  /** The digest mode: serial by default or parallel */
+  private final boolean parallelDigest;
+  /** The number of users of a range processed by the parallel digest */
+  private final int partitionSize;
+  /** The number of workers of the parallel digest, 0 to use all the notification threads */
+  private final int workers;
+  /** The staged processing of the notifications, null to process them on the caller's thread */
+  private final NotificationFanOut fanOut;
 
-  public NotificationServiceImpl(UserSettingService userService, DigestorService digestorService, NotificationDataStorage storage) {
+  public NotificationServiceImpl(UserSettingService userService, DigestorService digestorService, NotificationDataStorage storage, InitParams params) {
     this.userService = userService;
     this.digestorService = digestorService;
     this.storage = storage;
+    this.parallelDigest = PARALLEL_DIGEST_MODE.equalsIgnoreCase(NotificationUtils.getSystemValue(params, DIGEST_MODE_SYS_KEY, DIGEST_MODE_KEY, "serial"));
+    this.partitionSize = NotificationUtils.getSystemValue(params, DIGEST_PARTITION_SYS_KEY, DIGEST_PARTITION_KEY, 100);
+    this.workers = NotificationUtils.getSystemValue(params, DIGEST_WORKERS_SYS_KEY, DIGEST_WORKERS_KEY, 0);
+    if (PIPELINE_PROCESS_MODE.equalsIgnoreCase(NotificationUtils.getSystemValue(params, PROCESS_MODE_SYS_KEY, PROCESS_MODE_KEY, "serial"))) {
+      this.fanOut = new NotificationFanOut(userService,
+                                           storage,
+                                           NotificationUtils.getSystemValue(params, FANOUT_BATCH_SYS_KEY, FANOUT_BATCH_KEY, 200),
+                                           NotificationUtils.getSystemValue(params, FANOUT_QUEUE_SYS_KEY, FANOUT_QUEUE_KEY, 1000),
+                                           NotificationUtils.getSystemValue(params, FANOUT_WORKERS_SYS_KEY, FANOUT_WORKERS_KEY, 2));
+    } else {
+      this.fanOut = null;
+    }
   }
   
   @Override
@@ -75,6 +119,11 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
       return;
     }
     //
+    if (fanOut != null) {
+      fanOut.process(notification);
+      return;
+    }
+    //
     UserSettingService notificationService = CommonsUtils.getService(UserSettingService.class);
     List<String> userIds = notification.getSendToUserIds();
     //
@@ -118,7 +167,11 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
     AbstractNotificationPlugin plugin = nCtx.getPluginContainer().getPlugin(notification.getKey());
     if (plugin != null) {
       nCtx.setNotificationInfo(notification);
+      long startTime = stats ? System.nanoTime() : 0;
       MessageInfo info = plugin.buildMessage(nCtx);
+      if (stats) {
+        NotificationContextFactory.getInstance().getStatisticsCollector().pluginExecuted(plugin.getId(), (System.nanoTime() - startTime) / 1000);
+      }
       
       if (info != null) {
         if (NotificationUtils.isValidEmailAddresses(info.getTo()) == true) {
@@ -162,6 +215,31 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
      * 2. apply Strategy pattern and Factory Pattern
      */
     UserSetting defaultConfigPlugins = getDefaultUserSetting(notifContext.getPluginSettingService().getActivePluginIds());
+    DigestProfileCache profiles = new DigestProfileCache();
+    notifContext.append(NotificationJob.DIGEST_PROFILES, profiles);
+    try {
+      digest(notifContext, defaultConfigPlugins);
+    } finally {
+      notifContext.remove(NotificationJob.DIGEST_PROFILES);
+      LOG.debug("Users loaded by the digest: " + profiles);
+    }
+  }
+
+  private void digest(NotificationContext notifContext, UserSetting defaultConfigPlugins) throws Exception {
+    if (parallelDigest) {
+      NotificationCompletionService completionService = CommonsUtils.getService(NotificationCompletionService.class);
+      int threads = workers > 0 ? workers : completionService.getThreadNumber();
+      long startTime = System.currentTimeMillis();
+      try {
+        new PartitionedDigestProcessor(this, userService, completionService.getExecutor(), threads, partitionSize)
+            .digest(notifContext, defaultConfigPlugins, createCheckpoint(notifContext));
+      } finally {
+        //Clear the messages sent by this run
+        storage.removeMessageAfterSent(notifContext);
+      }
+      LOG.debug("Time to run the parallel digest: " + (System.currentTimeMillis() - startTime) + "ms.");
+      return;
+    }
     //process for users used setting
     /**
      * Tested with 5000 users:
@@ -173,38 +251,40 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
     List<UserSetting> sentUsers = new ArrayList<UserSetting>();
     long startTime = System.currentTimeMillis();
     int limit = 100;
-    int offset = 0;
-    while (true) {
-      List<UserSetting> userDigestSettings = this.userService.getDigestSettingForAllUser(notifContext, offset, limit);
-      if(userDigestSettings.size() == 0) {
-        break;
+    try {
+      int offset = 0;
+      while (true) {
+        List<UserSetting> userDigestSettings = this.userService.getDigestSettingForAllUser(notifContext, offset, limit);
+        if(userDigestSettings.size() == 0) {
+          break;
+        }
+        send(notifContext, userDigestSettings);
+        offset += limit;
+        sentUsers.addAll(userDigestSettings);
       }
-      send(notifContext, userDigestSettings);
-      offset += limit;
-      sentUsers.addAll(userDigestSettings);
-    }
-    LOG.debug("Time to run process users have settings: " + (System.currentTimeMillis() - startTime) + "ms.");
-    long startTimeDefault = System.currentTimeMillis();
-    //process for users used default setting
-    offset = 0;
-    while (true) {
-      List<UserSetting> defaultMixinUsers = this.userService.getDigestDefaultSettingForAllUser(offset, limit);
-      if (defaultMixinUsers.size() == 0) {
-        break;
+      LOG.debug("Time to run process users have settings: " + (System.currentTimeMillis() - startTime) + "ms.");
+      long startTimeDefault = System.currentTimeMillis();
+      //process for users used default setting
+      offset = 0;
+      while (true) {
+        List<UserSetting> defaultMixinUsers = this.userService.getDigestDefaultSettingForAllUser(offset, limit);
+        if (defaultMixinUsers.size() == 0) {
+          break;
+        }
+        sendDefault(notifContext, defaultMixinUsers, defaultConfigPlugins);
+        offset += limit;
+        sentUsers.addAll(defaultMixinUsers);
       }
-      sendDefault(notifContext, defaultMixinUsers, defaultConfigPlugins);
-      offset += limit;
-      sentUsers.addAll(defaultMixinUsers);
+      //provided the sentUser for excluding to process sending mail
+      //get list of user who has the isActivate = FALSE
+      sentUsers.addAll(this.userService.getUserSettingWithDeactivate());
+      //
+      sendUserWithNoSetting(notifContext, defaultConfigPlugins, sentUsers);
+      LOG.debug("Time to run process users used default settings: " + (System.currentTimeMillis() - startTimeDefault) + "ms.");
+    } finally {
+      //Clear the messages sent by this run, also when it failed
+      storage.removeMessageAfterSent(notifContext);
     }
-    //provided the sentUser for excluding to process sending mail
-    //get list of user who has the isActivate = FALSE
-    sentUsers.addAll(this.userService.getUserSettingWithDeactivate());
-    //
-    sendUserWithNoSetting(notifContext, defaultConfigPlugins, sentUsers);
-    
-    //Clear all stored message
-    storage.removeMessageAfterSent();
-    LOG.debug("Time to run process users used default settings: " + (System.currentTimeMillis() - startTimeDefault) + "ms.");
   }
 
   /**
@@ -270,54 +350,89 @@ public class NotificationServiceImpl extends AbstractService implements Notifica
     }
   }
   
-  private void send(NotificationContext context, List<UserSetting> userSettings) {
-    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    
-    for (UserSetting userSetting : userSettings) {
-      if (NotificationUtils.isDeletedMember(userSetting.getUserId())) {
-        continue;
-      }
-      
-      Map<NotificationKey, List<NotificationInfo>> notificationMessageMap = storage.getByUser(context, userSetting);
-
-      if (notificationMessageMap.size() > 0) {
-        MessageInfo messageInfo = this.digestorService.buildMessage(context, notificationMessageMap, userSetting);
-        if (messageInfo != null) {
-          //
-          CommonsUtils.getService(QueueMessage.class).put(messageInfo);
-          
-          if (stats) {
-            NotificationContextFactory.getInstance().getStatisticsCollector().createMessageInfoCount(messageInfo.getPluginId());
-            NotificationContextFactory.getInstance().getStatisticsCollector().putQueue(messageInfo.getPluginId());
-          }
-        }
-      }
+  /**
+   * Creates the checkpoint of the current digest run, a run restarted the same day
+   * for a daily job or the same week for a weekly job resumes from it.
+   * 
+   * @param context the job context
+   * @return the checkpoint
+   */
+  private DigestCheckpoint createCheckpoint(NotificationContext context) {
+    Calendar cal = Calendar.getInstance();
+    String jobType;
+    String runId;
+    if (Boolean.TRUE.equals(context.value(NotificationJob.JOB_WEEKLY))) {
+      jobType = "weekly";
+      runId = jobType + "-" + cal.get(Calendar.YEAR) + "-" + cal.get(Calendar.WEEK_OF_YEAR);
+    } else {
+      jobType = "daily";
+      runId = jobType + "-" + cal.get(Calendar.YEAR) + "-" + cal.get(Calendar.DAY_OF_YEAR) + "-" + context.value(NotificationJob.DAY_OF_JOB);
     }
+    return new DigestCheckpoint(CommonsUtils.getService(SettingService.class), jobType, runId, partitionSize);
+  }
+
+  void send(NotificationContext context, List<UserSetting> userSettings) {
+    digestPage(context, userSettings);
   }
   
-  private void sendDefault(NotificationContext context, List<UserSetting> userSettings, UserSetting defaultConfigPlugins) {
-    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    
+  void sendDefault(NotificationContext context, List<UserSetting> userSettings, UserSetting defaultConfigPlugins) {
+    List<UserSetting> defaultSettings = new ArrayList<UserSetting>(userSettings.size());
     for (UserSetting userSetting : userSettings) {
-      if (NotificationUtils.isDeletedMember(userSetting.getUserId())) {
-        continue;
-      }
+      defaultSettings.add(defaultConfigPlugins.clone().setUserId(userSetting.getUserId()).setLastUpdateTime(userSetting.getLastUpdateTime()));
+    }
+    digestPage(context, defaultSettings);
+  }
 
-      userSetting = defaultConfigPlugins.clone().setUserId(userSetting.getUserId()).setLastUpdateTime(userSetting.getLastUpdateTime());
-      Map<NotificationKey, List<NotificationInfo>> notificationMessageMap = storage.getByUser(context, userSetting);
+  /**
+   * Builds the digest of a page of users. The users are loaded at once by the
+   * profile cache of the run, and the messages are enqueued at once.
+   * 
+   * @param context the job context
+   * @param userSettings the settings of the users
+   */
+  private void digestPage(NotificationContext context, List<UserSetting> userSettings) {
+    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
+    DigestProfileCache profiles = context.value(NotificationJob.DIGEST_PROFILES);
+    List<String> userIds = new ArrayList<String>(userSettings.size());
+    for (UserSetting userSetting : userSettings) {
+      userIds.add(userSetting.getUserId());
+    }
+    if (profiles != null) {
+      profiles.prefetch(userIds);
+    }
+    
+    List<MessageInfo> messages = new ArrayList<MessageInfo>(userSettings.size());
+    try {
+      for (UserSetting userSetting : userSettings) {
+        boolean deleted = (profiles != null) ? profiles.isDeletedMember(userSetting.getUserId())
+                                             : NotificationUtils.isDeletedMember(userSetting.getUserId());
+        if (deleted) {
+          continue;
+        }
+        
+        Map<NotificationKey, List<NotificationInfo>> notificationMessageMap = storage.getByUser(context, userSetting);
 
-      if (notificationMessageMap.size() > 0) {
-        MessageInfo messageInfo = this.digestorService.buildMessage(context, notificationMessageMap, userSetting);
-        if (messageInfo != null) {
-          //
-          CommonsUtils.getService(QueueMessage.class).put(messageInfo);
-          
-          if (stats) {
-            NotificationContextFactory.getInstance().getStatisticsCollector().createMessageInfoCount(messageInfo.getPluginId());
-            NotificationContextFactory.getInstance().getStatisticsCollector().putQueue(messageInfo.getPluginId());
+        if (notificationMessageMap.size() > 0) {
+          MessageInfo messageInfo = this.digestorService.buildMessage(context, notificationMessageMap, userSetting);
+          if (messageInfo != null) {
+            //
+            messages.add(messageInfo);
+            
+            if (stats) {
+              NotificationContextFactory.getInstance().getStatisticsCollector().createMessageInfoCount(messageInfo.getPluginId());
+              NotificationContextFactory.getInstance().getStatisticsCollector().putQueue(messageInfo.getPluginId());
+            }
           }
         }
       }
+    } finally {
+      if (profiles != null) {
+        profiles.evict(userIds);
+      }
+    }
+    //enqueue the messages of this page of users at once
+    if (messages.size() > 0) {
+      CommonsUtils.getService(QueueMessage.class).put(messages);
     }
   }
   
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.exoplatform.commons.api.notification.NotificationContext;
+import org.exoplatform.commons.api.notification.model.UserSetting;
+import org.exoplatform.commons.api.notification.service.setting.UserSettingService;
+import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.commons.utils.CommonsUtils;
+import org.exoplatform.commons.utils.ListAccess;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+
+/**
+ * Processes a digest run by partitioning the user space into ranges of
+ * <code>partitionSize</code> users and processing the ranges concurrently.
+ *
+ * The run has the same three passes than the serial digest: the users having
+ * their own setting, the users having the default setting mixin and then the
+ * users of the organization who have no setting yet. The ranges of a pass are
+ * claimed dynamically by the workers, the calling thread being one of them so
+ * a pass always makes progress even when the executor is busy.
+ *
+ * Each completed range is recorded in the {@link DigestCheckpoint}, a restarted
+ * run skips the completed ranges and only re-reads the user ids of the first
+ * two passes to exclude them from the last one. The ranges are offsets in the
+ * users of a pass, so the users must keep the same order and the run must not
+ * change them: the settings are read ordered by path and the default setting
+ * mixin of the users of the last pass is only added once the run is done.
+ */
+public class PartitionedDigestProcessor {
+  private static final Log              LOG               = ExoLogger.getLogger(PartitionedDigestProcessor.class);
+
+  /** The pass processing the users having their own setting */
+  public static final int               PASS_SETTING      = 0;
+
+  /** The pass processing the users having the default setting mixin */
+  public static final int               PASS_DEFAULT      = 1;
+
+  /** The pass processing the users who have no setting */
+  public static final int               PASS_NO_SETTING   = 2;
+
+  private final NotificationServiceImpl notificationService;
+
+  private final UserSettingService      userService;
+
+  private final Executor                executor;
+
+  private final int                     workers;
+
+  private final int                     partitionSize;
+
+  /** The number of users processed by the last run, for the statistics */
+  private final AtomicLong              processedUsers    = new AtomicLong();
+
+  public PartitionedDigestProcessor(NotificationServiceImpl notificationService,
+                                    UserSettingService userService,
+                                    Executor executor,
+                                    int workers,
+                                    int partitionSize) {
+    this.notificationService = notificationService;
+    this.userService = userService;
+    this.executor = executor;
+    this.workers = Math.max(1, workers);
+    this.partitionSize = Math.max(1, partitionSize);
+  }
+
+  /**
+   * Runs the three passes of the digest, resuming from the given checkpoint.
+   * The checkpoint is cleared when all the passes are done, it's kept when
+   * one of them fails so the next run can resume.
+   *
+   * @param context the job context
+   * @param defaultSetting the default setting of the users without own setting
+   * @param checkpoint the progress of the run
+   * @throws Exception if one of the ranges can not be processed
+   */
+  public void digest(final NotificationContext context,
+                     final UserSetting defaultSetting,
+                     final DigestCheckpoint checkpoint) throws Exception {
+    processedUsers.set(0);
+    if (checkpoint.load()) {
+      LOG.info("Resuming the digest run " + checkpoint.getRunId());
+    }
+    final Set<String> sentUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    //the users of the last pass get the default setting mixin once the run is done,
+    //adding it during the run would shift the ranges of the second pass of a resumed run
+    final Queue<User> addMixinUsers = new ConcurrentLinkedQueue<User>();
+    //
+    long startTime = System.currentTimeMillis();
+    runPass(new Pass(PASS_SETTING, Integer.MAX_VALUE) {
+      @Override
+      boolean process(int range) {
+        List<UserSetting> users = userService.getDigestSettingForAllUser(context, range * partitionSize, partitionSize);
+        if (users.size() == 0) {
+          return false;
+        }
+        if (checkpoint.isCompleted(PASS_SETTING, range) == false) {
+          notificationService.send(context, users);
+          processedUsers.addAndGet(users.size());
+          checkpoint.complete(PASS_SETTING, range);
+        }
+        addUserIds(sentUsers, users);
+        return true;
+      }
+    });
+    LOG.debug("Time to run process users have settings: " + (System.currentTimeMillis() - startTime) + "ms.");
+    //
+    startTime = System.currentTimeMillis();
+    runPass(new Pass(PASS_DEFAULT, Integer.MAX_VALUE) {
+      @Override
+      boolean process(int range) {
+        List<UserSetting> users = userService.getDigestDefaultSettingForAllUser(range * partitionSize, partitionSize);
+        if (users.size() == 0) {
+          return false;
+        }
+        if (checkpoint.isCompleted(PASS_DEFAULT, range) == false) {
+          notificationService.sendDefault(context, users, defaultSetting);
+          processedUsers.addAndGet(users.size());
+          checkpoint.complete(PASS_DEFAULT, range);
+        }
+        addUserIds(sentUsers, users);
+        return true;
+      }
+    });
+    //provided the sentUser for excluding to process sending mail
+    addUserIds(sentUsers, userService.getUserSettingWithDeactivate());
+    //
+    final ListAccess<User> allUsers = getAllUsers();
+    final int size = allUsers.getSize();
+    //only lazy adding mixin-type(defaultSetting) when the user's size > sent notification's size.
+    if (size > sentUsers.size()) {
+      int ranges = (size + partitionSize - 1) / partitionSize;
+      runPass(new Pass(PASS_NO_SETTING, ranges) {
+        @Override
+        boolean process(int range) throws Exception {
+          if (checkpoint.isCompleted(PASS_NO_SETTING, range)) {
+            return true;
+          }
+          User[] users = loadUsers(allUsers, size, range * partitionSize, partitionSize);
+          if (users.length == 0) {
+            return false;
+          }
+          List<UserSetting> usersDefaultSettings = new ArrayList<UserSetting>();
+          List<User> rangeUsers = new ArrayList<User>();
+          for (int i = 0; i < users.length; i++) {
+            if (sentUsers.contains(users[i].getUserName()) == false) {
+              Calendar cal = Calendar.getInstance();
+              cal.setTime(users[i].getCreatedDate());
+              usersDefaultSettings.add(UserSetting.getInstance().setUserId(users[i].getUserName()).setLastUpdateTime(cal));
+              rangeUsers.add(users[i]);
+            }
+          }
+          notificationService.sendDefault(context, usersDefaultSettings, defaultSetting);
+          addMixinUsers.addAll(rangeUsers);
+          processedUsers.addAndGet(usersDefaultSettings.size());
+          checkpoint.complete(PASS_NO_SETTING, range);
+          return true;
+        }
+      });
+    }
+    LOG.debug("Time to run process users used default settings: " + (System.currentTimeMillis() - startTime) + "ms.");
+    //
+    checkpoint.clear();
+    //the mixins lost by a crash before this point are added by the next run
+    if (addMixinUsers.isEmpty() == false) {
+      userService.addMixin(addMixinUsers.toArray(new User[addMixinUsers.size()]));
+    }
+  }
+
+  /**
+   * @return the number of users processed by the last run, not counting the
+   * users of the ranges completed before a resume.
+   */
+  public long getProcessedUsers() {
+    return processedUsers.get();
+  }
+
+  private void runPass(final Pass pass) throws Exception {
+    final AtomicInteger nextRange = new AtomicInteger();
+    final AtomicInteger endRange = new AtomicInteger(pass.ranges);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    //
+    final Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        while (failure.get() == null) {
+          int range = nextRange.getAndIncrement();
+          if (range >= endRange.get()) {
+            return;
+          }
+          try {
+            if (pass.process(range) == false) {
+              //no more users from this range, the next ones are empty too
+              int end = endRange.get();
+              while (range < end && endRange.compareAndSet(end, range) == false) {
+                end = endRange.get();
+              }
+              return;
+            }
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      }
+    };
+    //
+    PassRun passRun = new PassRun();
+    ExoContainer container = ExoContainerContext.getCurrentContainer();
+    String repositoryName = getCurrentRepositoryName();
+    int tasks = Math.min(workers, pass.ranges) - 1;
+    for (int i = 0; i < tasks; i++) {
+      try {
+        executor.execute(new WorkerTask(worker, passRun, Thread.currentThread(), container, repositoryName));
+      } catch (RejectedExecutionException e) {
+        LOG.debug("The digest worker was rejected, the remaining ranges are processed by the other workers");
+        break;
+      }
+    }
+    //the calling thread is one of the workers
+    worker.run();
+    passRun.closeAndAwait();
+    //
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    LOG.debug(String.format("Done the digest pass %s with %s ranges.", pass.index, Math.min(nextRange.get(), endRange.get())));
+  }
+
+  private static void addUserIds(Set<String> userIds, List<UserSetting> users) {
+    for (UserSetting userSetting : users) {
+      userIds.add(userSetting.getUserId());
+    }
+  }
+
+  private static ListAccess<User> getAllUsers() throws Exception {
+    OrganizationService organizationService = CommonsUtils.getService(OrganizationService.class);
+    CommonsUtils.startRequest(organizationService);
+    try {
+      return organizationService.getUserHandler().findAllUsers();
+    } finally {
+      CommonsUtils.endRequest(organizationService);
+    }
+  }
+
+  private static User[] loadUsers(ListAccess<User> allUsers, int size, int index, int length) throws Exception {
+    if (index >= size) {
+      return new User[0];
+    }
+    OrganizationService organizationService = CommonsUtils.getService(OrganizationService.class);
+    CommonsUtils.startRequest(organizationService);
+    try {
+      return allUsers.load(index, Math.min(length, size - index));
+    } finally {
+      CommonsUtils.endRequest(organizationService);
+    }
+  }
+
+  private static String getCurrentRepositoryName() {
+    try {
+      return CommonsUtils.getRepository().getConfiguration().getName();
+    } catch (Exception e) {
+      LOG.debug("Failed to get the current repository name", e);
+      return null;
+    }
+  }
+
+  /**
+   * One pass of the digest, processing the users of a range.
+   */
+  private abstract static class Pass {
+    final int index;
+
+    /** The number of ranges if known, otherwise the pass ends at the first empty range */
+    final int ranges;
+
+    Pass(int index, int ranges) {
+      this.index = index;
+      this.ranges = ranges;
+    }
+
+    /**
+     * @return false if the range is empty
+     */
+    abstract boolean process(int range) throws Exception;
+  }
+
+  /**
+   * Tracks the workers running a pass. A worker which starts after the pass
+   * has been closed by the calling thread has nothing left to do.
+   */
+  private static class PassRun {
+    private int     active;
+
+    private boolean closed;
+
+    synchronized boolean enter() {
+      if (closed) {
+        return false;
+      }
+      active++;
+      return true;
+    }
+
+    synchronized void exit() {
+      active--;
+      notifyAll();
+    }
+
+    synchronized void closeAndAwait() throws InterruptedException {
+      closed = true;
+      while (active > 0) {
+        wait();
+      }
+    }
+  }
+
+  /**
+   * Runs a worker on a thread of the executor with the container, the
+   * repository and the session provider of the notification job.
+   */
+  private static class WorkerTask implements Runnable {
+    private final Runnable     worker;
+
+    private final PassRun      passRun;
+
+    private final Thread       caller;
+
+    private final ExoContainer container;
+
+    private final String       repositoryName;
+
+    WorkerTask(Runnable worker, PassRun passRun, Thread caller, ExoContainer container, String repositoryName) {
+      this.worker = worker;
+      this.passRun = passRun;
+      this.caller = caller;
+      this.container = container;
+      this.repositoryName = repositoryName;
+    }
+
+    @Override
+    public void run() {
+      if (passRun.enter() == false) {
+        return;
+      }
+      //the executor runs the task directly, the calling thread is already set up
+      if (Thread.currentThread() == caller) {
+        try {
+          worker.run();
+        } finally {
+          passRun.exit();
+        }
+        return;
+      }
+      try {
+        ExoContainerContext.setCurrentContainer(container);
+        if (repositoryName != null) {
+          CommonsUtils.getService(RepositoryService.class).setCurrentRepositoryName(repositoryName);
+        }
+        NotificationSessionManager.createSystemProvider();
+        worker.run();
+      } catch (Exception e) {
+        LOG.warn("Failed to run the digest worker");
+        LOG.debug(e.getMessage(), e);
+      } finally {
+        NotificationSessionManager.closeSessionProvider();
+        passRun.exit();
+      }
+    }
+  }
+}
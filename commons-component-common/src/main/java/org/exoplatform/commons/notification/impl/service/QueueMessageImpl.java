@@ -16,27 +16,18 @@
  */
 package org.exoplatform.commons.notification.impl.service;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.GregorianCalendar;
-import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Session;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 
 import org.exoplatform.commons.api.notification.model.MessageInfo;
 import org.exoplatform.commons.api.notification.service.QueueMessage;
@@ -44,13 +35,13 @@ import org.exoplatform.commons.notification.NotificationConfiguration;
 import org.exoplatform.commons.notification.NotificationContextFactory;
 import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.impl.AbstractService;
-import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.commons.notification.impl.service.queue.JCRMailQueueStorage;
+import org.exoplatform.commons.notification.impl.service.queue.MailQueueStorage;
 import org.exoplatform.commons.notification.job.SendEmailNotificationJob;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.management.annotations.ManagedBy;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
-import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.mail.MailService;
@@ -58,7 +49,6 @@ import org.exoplatform.services.mail.Message;
 import org.exoplatform.services.scheduler.JobInfo;
 import org.exoplatform.services.scheduler.JobSchedulerService;
 import org.exoplatform.services.scheduler.PeriodInfo;
-import org.json.JSONObject;
 import org.picocontainer.Startable;
 import org.quartz.JobDataMap;
 
@@ -70,32 +60,48 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
   private static final String            MAX_TO_SEND_KEY       = "numberOfMailPerBatch";
   private static final String            DELAY_TIME_SYS_KEY    = "conf.notification.service.QueueMessage.period";
   private static final String            DELAY_TIME_KEY        = "period";
+  private static final String            PAGE_SIZE_SYS_KEY     = "conf.notification.service.QueueMessage.pageSize";
+  private static final String            PAGE_SIZE_KEY         = "pageSize";
   private static final String            CACHE_REPO_NAME       = "repositoryName";
-  private static final int               BUFFER_SIZE           = 32;
-  private static int                     LIMIT                 = 20;
-  private static long                    sinceTime             = 0;
+  /** The number of messages persisted by one session save */
+  static final int                       PERSIST_BATCH_SIZE    = 200;
 
+  private int                            LIMIT                 = 20;
   private int                            MAX_TO_SEND;
   private long                           DELAY_TIME;
+  /** The number of messages loaded by one query when draining the queue, independent of the number of mails sent per job */
+  private int                            PAGE_SIZE;
   /** .. */
   private SendEmailService               sendEmailService;
   /** .. */
   private MailService                    mailService;
   /** .. */
   private NotificationConfiguration      configuration;
-  /** The lock protecting all mutators */
-  transient final ReentrantLock lock = new ReentrantLock();
-  /** using the set to keep the messages. */
-  private Set<MessageInfo> messages = Collections.synchronizedSet(new HashSet<MessageInfo>());
-  /** .. */
-  private ThreadLocal<Set<String>> idsRemovingLocal = new ThreadLocal<Set<String>>();
+  /** The storage keeping the messages of the queue */
+  private MailQueueStorage               storage;
+  /** The lock allowing only one drain of the queue at a time */
+  private final ReentrantLock drainLock = new ReentrantLock();
+  /** The created time of the last message read by the drain, 0 means the head of the queue */
+  private volatile long drainCursor = 0;
+  /** The messages of the last page loaded which are not sent yet, guarded by the drain lock */
+  private final LinkedList<MessageInfo> drainBuffer = new LinkedList<MessageInfo>();
   
   public QueueMessageImpl(InitParams params) {
-    this.configuration = CommonsUtils.getService(NotificationConfiguration.class);
-    this.mailService = CommonsUtils.getService(MailService.class);
+    this(params,
+         CommonsUtils.getService(NotificationConfiguration.class),
+         CommonsUtils.getService(MailQueueStorage.class),
+         CommonsUtils.getService(MailService.class));
+  }
+
+  QueueMessageImpl(InitParams params, NotificationConfiguration configuration, MailQueueStorage storage, MailService mailService) {
+    this.configuration = configuration;
+    this.mailService = mailService;
+    //uses the JCR storage when no other storage is configured
+    this.storage = storage != null ? storage : new JCRMailQueueStorage(configuration);
 
     MAX_TO_SEND = NotificationUtils.getSystemValue(params, MAX_TO_SEND_SYS_KEY, MAX_TO_SEND_KEY, 20);
     DELAY_TIME = NotificationUtils.getSystemValue(params, DELAY_TIME_SYS_KEY, DELAY_TIME_KEY, 120) * 1000;
+    PAGE_SIZE = Math.max(1, NotificationUtils.getSystemValue(params, PAGE_SIZE_SYS_KEY, PAGE_SIZE_KEY, 200));
   }
   
   public void setManagementView(SendEmailService managementView) {
@@ -147,183 +153,106 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
 
   @Override
   public boolean put(MessageInfo message) {
-    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    //
-    if (message == null || message.getTo() == null || message.getTo().length() == 0) {
-      return false;
-    }
-    //
-    if (NotificationUtils.isValidEmailAddresses(message.getTo()) == false) {
-      LOG.warn(String.format("The email %s is not valid for sending notification", message.getTo()));
-      return false;
-    }
-    //
-    if (stats) {
-      LOG.info("Tenant Name:: " + CommonsUtils.getRepository().getConfiguration().getName());
-      LOG.info("Message::From: " + message.getFrom() + " To: " + message.getTo() + " body: " + message.getBody());
-    }
-    saveMessageInfo(message);
-    //
-    sendEmailService.addCurrentCapacity();
-    return true;
+    return put(Collections.singletonList(message)) == 1;
   }
 
   @Override
-  public void send() {
+  public int put(Collection<MessageInfo> messages) {
     final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    SessionProvider sProvider = SessionProvider.createSystemProvider();
-    try {
-      //
-      load(sProvider);
-      if (idsRemovingLocal.get() == null) {
-        idsRemovingLocal.set(new HashSet<String>());
+    //
+    List<MessageInfo> accepted = new ArrayList<MessageInfo>(messages.size());
+    for (MessageInfo message : messages) {
+      if (message == null || message.getTo() == null || message.getTo().length() == 0) {
+        continue;
       }
       //
-      if (messages.size() > 0) {
-        LOG.info(messages.size() + " message(s) will be sent.");
+      if (NotificationUtils.isValidEmailAddresses(message.getTo()) == false) {
+        LOG.warn(String.format("The email %s is not valid for sending notification", message.getTo()));
+        continue;
       }
-      
-      for (MessageInfo messageInfo : messages) {
-        if (messageInfo != null && !idsRemovingLocal.get().contains(messageInfo.getId())
-            && sendMessage(messageInfo.makeEmailNotification())) {
-          
-          LOG.debug("Message sent to user: " + messageInfo.getTo());
-          //
-          idsRemovingLocal.get().add(messageInfo.getId());
-          if (stats) {
-            NotificationContextFactory.getInstance().getStatisticsCollector().pollQueue(messageInfo.getPluginId());
-          }
-        }
+      //
+      if (stats) {
+        LOG.info("Tenant Name:: " + CommonsUtils.getRepository().getConfiguration().getName());
+        LOG.info("Message::From: " + message.getFrom() + " To: " + message.getTo() + " body: " + message.getBody());
       }
-    } catch (Exception e) {
-      LOG.warn("Failed to send message.");
-      LOG.debug(e.getMessage(), e);
-    } finally {
-      sProvider.close();
-      removeMessageInfo();
+      accepted.add(message);
     }
-  }
-
-  /**
-   * Loading the messageInfo as buffer with Limit
-   * and sinceTime
-   * @param sProvider
-   */
-  private void load(SessionProvider sProvider) {
-    try {
-      NodeIterator iterator = getMessageInfoNodes(sProvider);
-      while (iterator.hasNext()) {
-        Node node = iterator.nextNode();
-        long createdTime = Long.parseLong(node.getName());
-        if ((sinceTime == 0 || sinceTime < createdTime)) {
-          MessageInfo messageInfo = getMessageInfo(node);
-          messageInfo.setId(node.getUUID());
-          messages.add(messageInfo);
-
-          sinceTime = createdTime;
-        } else {
-          sinceTime = 0;
-          messages.clear();
-          break;
-        }
+    //
+    int saved = 0;
+    for (int from = 0; from < accepted.size(); from += PERSIST_BATCH_SIZE) {
+      List<MessageInfo> batch = accepted.subList(from, Math.min(from + PERSIST_BATCH_SIZE, accepted.size()));
+      if (storage.save(batch)) {
+        saved += batch.size();
       }
-    } catch (Exception e) {
-      LOG.warn("Failed to load message.");
-      LOG.debug(e.getMessage(), e);
     }
+    //
+    sendEmailService.addCurrentCapacity(saved);
+    return saved;
   }
 
-  private void saveMessageInfo(MessageInfo message) {
-    final ReentrantLock lock = this.lock;
-    SessionProvider sProvider = NotificationSessionManager.createSystemProvider();
-    try {
-      lock.lock();
-      message.setCreatedTime(System.currentTimeMillis());
-      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
-      Node messageInfoNode = messageInfoHome.addNode(String.valueOf(message.getCreatedTime()), NTF_MESSAGE_INFO);
-      if (messageInfoNode.canAddMixin("mix:referenceable")) {
-        messageInfoNode.addMixin("mix:referenceable");
-      }
-
-      //
-      saveData(messageInfoNode, compress(message.toJSON()));
-      sessionSave(messageInfoHome);
-
-    } catch (Exception e) {
-      LOG.warn("Failed to save message.");
-      LOG.debug(e.getMessage() + message.toJSON(), e);
-    } finally {
-      lock.unlock();
+  @Override
+  public void send() {
+    //the job can be fired again while the previous drain is still running
+    if (drainLock.tryLock() == false) {
+      LOG.debug("The queue is being drained by another thread.");
+      return;
     }
-  }
-
-  private void removeMessageInfo() {
-    SessionProvider sProvider = SessionProvider.createSystemProvider();
-    final ReentrantLock lock = this.lock;
-    List<String> ids = new ArrayList<String>(idsRemovingLocal.get()) ;
+    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
     try {
-      lock.lock();
-      Session session = getSession(sProvider, configuration.getWorkspace());
-      for (String messageId : ids) {
-        session.getNodeByUUID(messageId).remove();
+      int remaining = LIMIT;
+      boolean tail = false;
+      while (remaining > 0) {
+        if (drainBuffer.isEmpty()) {
+          if (tail) {
+            //the failed messages are retried by the next drain only
+            break;
+          }
+          //a page is usually bigger than the number of mails sent per job,
+          //the rest of the page is sent by the next jobs without querying again
+          List<MessageInfo> page = storage.load(drainCursor, PAGE_SIZE);
+          if (page.size() < PAGE_SIZE) {
+            //reached the tail of the queue, the next page is read again from the head
+            //so that the messages failed to send are retried.
+            tail = true;
+            drainCursor = 0;
+          } else {
+            drainCursor = page.get(page.size() - 1).getCreatedTime();
+          }
+          if (page.isEmpty()) {
+            break;
+          }
+          drainBuffer.addAll(page);
+        }
         //
-        sendEmailService.removeCurrentCapacity();
-        LOG.debug("Removing messageId: " + messageId);
+        List<MessageInfo> batch = new ArrayList<MessageInfo>(Math.min(remaining, drainBuffer.size()));
+        while (batch.size() < remaining && drainBuffer.isEmpty() == false) {
+          batch.add(drainBuffer.poll());
+        }
+        LOG.info(batch.size() + " message(s) will be sent.");
+        //
+        List<String> sentIds = new ArrayList<String>(batch.size());
+        for (MessageInfo messageInfo : batch) {
+          if (sendMessage(messageInfo.makeEmailNotification())) {
+            LOG.debug("Message sent to user: " + messageInfo.getTo());
+            //
+            sentIds.add(messageInfo.getId());
+            if (stats) {
+              long waitTime = messageInfo.getCreatedTime() > 0 ? System.currentTimeMillis() - messageInfo.getCreatedTime() : 0;
+              NotificationContextFactory.getInstance().getStatisticsCollector().pollQueue(messageInfo.getPluginId(), waitTime);
+            }
+          }
+        }
+        sendEmailService.removeCurrentCapacity(storage.remove(sentIds));
+        remaining -= batch.size();
       }
-      session.save();
     } catch (Exception e) {
-      LOG.warn("Failed to remove message.");
+      LOG.warn("Failed to send message.");
       LOG.debug(e.getMessage(), e);
     } finally {
-      messages.clear();
-      idsRemovingLocal.get().removeAll(ids);
-      lock.unlock();
-      sProvider.close();
+      drainLock.unlock();
     }
   }
 
-  private NodeIterator getMessageInfoNodes(SessionProvider sProvider) {
-    try {
-      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
-      QueryManager qm = messageInfoHome.getSession().getWorkspace().getQueryManager();
-      StringBuilder sqlQuery = new StringBuilder();
-      sqlQuery.append("SELECT * FROM ").append(NTF_MESSAGE_INFO)
-              .append(" WHERE jcr:path LIKE '").append(messageInfoHome.getPath()).append("/%' AND NOT jcr:path LIKE '")
-              .append(messageInfoHome.getPath()).append("/%/%'")
-              .append(" ORDER BY exo:name");
-      QueryImpl query = (QueryImpl) qm.createQuery(sqlQuery.toString(), Query.SQL);
-      query.setOffset(0);
-      query.setLimit(LIMIT);
-      QueryResult result = query.execute();
-      return result.getNodes();
-    } catch (Exception e) {
-      LOG.warn("Failed to get message from node.");
-      LOG.debug(e.getMessage(), e);
-    }
-    return null;
-  }
-
-  private MessageInfo getMessageInfo(Node messageInfoNode) {
-    try {
-      String messageJson = getDataJson(messageInfoNode);
-      JSONObject object = new JSONObject(messageJson);
-      MessageInfo info = new MessageInfo();
-      info.pluginId(object.optString("pluginId"))
-          .from(object.getString("from"))
-          .to(object.getString("to"))
-          .subject(object.getString("subject"))
-          .body(object.getString("body"))
-          .footer(object.optString("footer"))
-          .setCreatedTime(object.getLong("createdTime"));
-      //
-      return info;
-    } catch (Exception e) {
-      LOG.warn("Failed to map message between node and model.");
-      LOG.debug(e.getMessage(), e);
-    }
-    return null;
-  }
-
   public boolean sendMessage(Message message) {
     if (sendEmailService.isOn() == false) {
       try {
@@ -345,45 +274,6 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
     return true;
   }
 
-  private void saveData(Node node, InputStream is) throws Exception {
-    Node fileNode = node.addNode("datajson", "nt:file");
-    Node nodeContent = fileNode.addNode("jcr:content", "nt:resource");
-    //
-    nodeContent.setProperty("jcr:mimeType", "application/x-gzip");
-    nodeContent.setProperty("jcr:data", is);
-    nodeContent.setProperty("jcr:lastModified", Calendar.getInstance().getTimeInMillis());
-  }
-
-  private String getDataJson(Node node) throws Exception {
-    Node fileNode = node.getNode("datajson");
-    Node nodeContent = fileNode.getNode("jcr:content");
-    InputStream stream = nodeContent.getProperty("jcr:data").getStream();
-    return decompress(stream);
-  }
-
-  private static InputStream compress(String string) throws IOException {
-    ByteArrayOutputStream os = new ByteArrayOutputStream(string.length());
-    GZIPOutputStream gos = new GZIPOutputStream(os);
-    gos.write(string.getBytes());
-    gos.close();
-    byte[] compressed = os.toByteArray();
-    os.close();
-    return new ByteArrayInputStream(compressed);
-  }
-
-  private static String decompress(InputStream is) throws IOException {
-    GZIPInputStream gis = new GZIPInputStream(is, BUFFER_SIZE);
-    StringBuilder string = new StringBuilder();
-    byte[] data = new byte[BUFFER_SIZE];
-    int bytesRead;
-    while ((bytesRead = gis.read(data)) != -1) {
-      string.append(new String(data, 0, bytesRead));
-    }
-    gis.close();
-    is.close();
-    return string.toString();
-  }
-
   public String removeAll() {
     SessionProvider sProvider = SessionProvider.createSystemProvider();
     int t = 0, j = 0;
@@ -393,12 +283,16 @@ public class QueueMessageImpl extends AbstractService implements QueueMessage, S
       Node root = session.getRootNode();
       //
       LOG.trace("Removing messages: ");
-      if (root.hasNode("eXoNotification/messageInfoHome")) {
-        NodeIterator it = root.getNode("eXoNotification/messageInfoHome").getNodes();
-        //
-        removeNodes(session, it);
+      int removed = storage.removeAll();
+      sendEmailService.removeCurrentCapacity(removed);
+      drainLock.lock();
+      try {
+        drainBuffer.clear();
+        drainCursor = 0;
+      } finally {
+        drainLock.unlock();
       }
-      LOG.trace("Done to removed messages! ");
+      LOG.trace("Done to removed " + removed + " messages! ");
       //
       LOG.trace("Removing notification info... ");
       NodeIterator it = root.getNode("eXoNotification/messageHome").getNodes();
@@ -16,6 +16,8 @@
  */
 package org.exoplatform.commons.notification.impl.service;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.exoplatform.management.ManagementAware;
 import org.exoplatform.management.ManagementContext;
 import org.exoplatform.management.annotations.Impact;
@@ -36,7 +38,7 @@ public class SendEmailService implements ManagementAware {
 
   private long        sentCounter     = 0;
 
-  private long        currentCapacity = 0;
+  private final AtomicLong currentCapacity = new AtomicLong();
 
   private int         emailPerSend  = 0;
 
@@ -67,12 +69,28 @@ public class SendEmailService implements ManagementAware {
   }
 
   public void addCurrentCapacity() {
-    ++currentCapacity;
+    addCurrentCapacity(1);
+  }
+
+  public void addCurrentCapacity(int number) {
+    if (number > 0) {
+      currentCapacity.addAndGet(number);
+    }
   }
 
   public void removeCurrentCapacity() {
-    if (currentCapacity > 0) {
-      --currentCapacity;
+    removeCurrentCapacity(1);
+  }
+
+  public void removeCurrentCapacity(int number) {
+    if (number <= 0) {
+      return;
+    }
+    while (true) {
+      long current = currentCapacity.get();
+      if (currentCapacity.compareAndSet(current, Math.max(0, current - number))) {
+        return;
+      }
     }
   }
 
@@ -80,7 +98,7 @@ public class SendEmailService implements ManagementAware {
   @ManagedDescription("Current mail service capacity should be available.")
   @Impact(ImpactType.READ)
   public long getCurrentCapacity() {
-    return currentCapacity;
+    return currentCapacity.get();
   }
 
   @Managed
@@ -158,7 +176,7 @@ public class SendEmailService implements ManagementAware {
   @ManagedDescription("Removes all notification data that stored in database.")
   @Impact(ImpactType.READ)
   public String resetTestMail() {
-    currentCapacity = 0;
+    currentCapacity.set(0);
     resetCounter();
     isOn = true;
     emailPerSend = 120;
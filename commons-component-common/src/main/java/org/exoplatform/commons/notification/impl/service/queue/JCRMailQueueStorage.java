@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.exoplatform.commons.notification.NotificationConfiguration;
+import org.exoplatform.commons.notification.impl.AbstractService;
+import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * The default storage of the mail queue, each message is kept as
+ * gzip'd JSON in a ntf:messageInfo node under the messageInfoHome node.
+ */
+public class JCRMailQueueStorage extends AbstractService implements MailQueueStorage {
+  private static final Log          LOG             = ExoLogger.getExoLogger(JCRMailQueueStorage.class);
+
+  private static final int          BUFFER_SIZE     = 32;
+
+  private final NotificationConfiguration configuration;
+  /** The lock protecting all mutators */
+  private final ReentrantLock       lock            = new ReentrantLock();
+  /** The last created time given to a message */
+  private final AtomicLong          lastCreatedTime = new AtomicLong();
+
+  public JCRMailQueueStorage(NotificationConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  @Override
+  public boolean save(List<MessageInfo> messages) {
+    if (messages.isEmpty()) {
+      return true;
+    }
+    final ReentrantLock lock = this.lock;
+    SessionProvider sProvider = NotificationSessionManager.createSystemProvider();
+    try {
+      lock.lock();
+      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
+      for (MessageInfo message : messages) {
+        message.setCreatedTime(nextCreatedTime());
+        Node messageInfoNode = messageInfoHome.addNode(String.valueOf(message.getCreatedTime()), NTF_MESSAGE_INFO);
+        if (messageInfoNode.canAddMixin("mix:referenceable")) {
+          messageInfoNode.addMixin("mix:referenceable");
+        }
+        //
+        saveData(messageInfoNode, compress(message.toJSON()));
+      }
+      sessionSave(messageInfoHome);
+      return true;
+    } catch (Exception e) {
+      LOG.warn("Failed to save " + messages.size() + " message(s).");
+      LOG.debug(e.getMessage(), e);
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<MessageInfo> load(long cursor, int limit) {
+    List<MessageInfo> page = new ArrayList<MessageInfo>(limit);
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    try {
+      NodeIterator iterator = getMessageInfoNodes(sProvider, cursor, limit);
+      while (iterator != null && iterator.hasNext()) {
+        Node node = iterator.nextNode();
+        MessageInfo messageInfo = getMessageInfo(node);
+        if (messageInfo != null) {
+          messageInfo.setId(node.getUUID());
+          messageInfo.setCreatedTime(Long.parseLong(node.getName()));
+          page.add(messageInfo);
+        }
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to load message.");
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      sProvider.close();
+    }
+    return page;
+  }
+
+  @Override
+  public int remove(List<String> ids) {
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    final ReentrantLock lock = this.lock;
+    int removed = 0;
+    try {
+      lock.lock();
+      Session session = getSession(sProvider, configuration.getWorkspace());
+      for (String messageId : ids) {
+        session.getNodeByUUID(messageId).remove();
+        ++removed;
+        LOG.debug("Removing messageId: " + messageId);
+      }
+      session.save();
+      return removed;
+    } catch (Exception e) {
+      LOG.warn("Failed to remove message.");
+      LOG.debug(e.getMessage(), e);
+      return 0;
+    } finally {
+      lock.unlock();
+      sProvider.close();
+    }
+  }
+
+  @Override
+  public int removeAll() {
+    SessionProvider sProvider = SessionProvider.createSystemProvider();
+    int removed = 0;
+    try {
+      Session session = getSession(sProvider, configuration.getWorkspace());
+      Node root = session.getRootNode();
+      if (root.hasNode(NOTIFICATION_HOME_NODE + "/" + MESSAGE_INFO_HOME_NODE)) {
+        NodeIterator it = root.getNode(NOTIFICATION_HOME_NODE + "/" + MESSAGE_INFO_HOME_NODE).getNodes();
+        int size = Integer.valueOf(System.getProperty("sizePersiter", "200"));
+        while (it.hasNext()) {
+          it.nextNode().remove();
+          ++removed;
+          if (removed % size == 0) {
+            session.save();
+          }
+        }
+        session.save();
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to remove all messages.");
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      sProvider.close();
+    }
+    return removed;
+  }
+
+  /**
+   * The created time is used as node name, it must be unique
+   * even when many messages are saved in the same millisecond.
+   * 
+   * @return
+   */
+  private long nextCreatedTime() {
+    while (true) {
+      long last = lastCreatedTime.get();
+      long next = Math.max(System.currentTimeMillis(), last + 1);
+      if (lastCreatedTime.compareAndSet(last, next)) {
+        return next;
+      }
+    }
+  }
+
+  private NodeIterator getMessageInfoNodes(SessionProvider sProvider, long cursor, int limit) {
+    try {
+      Node messageInfoHome = getMessageInfoHomeNode(sProvider, configuration.getWorkspace());
+      QueryManager qm = messageInfoHome.getSession().getWorkspace().getQueryManager();
+      StringBuilder sqlQuery = new StringBuilder();
+      sqlQuery.append("SELECT * FROM ").append(NTF_MESSAGE_INFO)
+              .append(" WHERE jcr:path LIKE '").append(messageInfoHome.getPath()).append("/%' AND NOT jcr:path LIKE '")
+              .append(messageInfoHome.getPath()).append("/%/%'");
+      if (cursor > 0) {
+        sqlQuery.append(" AND exo:name > '").append(cursor).append("'");
+      }
+      sqlQuery.append(" ORDER BY exo:name");
+      QueryImpl query = (QueryImpl) qm.createQuery(sqlQuery.toString(), Query.SQL);
+      query.setOffset(0);
+      query.setLimit(limit);
+      QueryResult result = query.execute();
+      return result.getNodes();
+    } catch (Exception e) {
+      LOG.warn("Failed to get message from node.");
+      LOG.debug(e.getMessage(), e);
+    }
+    return null;
+  }
+
+  private MessageInfo getMessageInfo(Node messageInfoNode) {
+    try {
+      return MessageInfo.fromJSON(getDataJson(messageInfoNode));
+    } catch (Exception e) {
+      LOG.warn("Failed to map message between node and model.");
+      LOG.debug(e.getMessage(), e);
+    }
+    return null;
+  }
+
+  private void saveData(Node node, InputStream is) throws Exception {
+    Node fileNode = node.addNode("datajson", "nt:file");
+    Node nodeContent = fileNode.addNode("jcr:content", "nt:resource");
+    //
+    nodeContent.setProperty("jcr:mimeType", "application/x-gzip");
+    nodeContent.setProperty("jcr:data", is);
+    nodeContent.setProperty("jcr:lastModified", Calendar.getInstance().getTimeInMillis());
+  }
+
+  private String getDataJson(Node node) throws Exception {
+    Node fileNode = node.getNode("datajson");
+    Node nodeContent = fileNode.getNode("jcr:content");
+    InputStream stream = nodeContent.getProperty("jcr:data").getStream();
+    return decompress(stream);
+  }
+
+  private static InputStream compress(String string) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream(string.length());
+    GZIPOutputStream gos = new GZIPOutputStream(os);
+    gos.write(string.getBytes());
+    gos.close();
+    byte[] compressed = os.toByteArray();
+    os.close();
+    return new ByteArrayInputStream(compressed);
+  }
+
+  private static String decompress(InputStream is) throws IOException {
+    GZIPInputStream gis = new GZIPInputStream(is, BUFFER_SIZE);
+    StringBuilder string = new StringBuilder();
+    byte[] data = new byte[BUFFER_SIZE];
+    int bytesRead;
+    while ((bytesRead = gis.read(data)) != -1) {
+      string.append(new String(data, 0, bytesRead));
+    }
+    gis.close();
+    is.close();
+    return string.toString();
+  }
+}
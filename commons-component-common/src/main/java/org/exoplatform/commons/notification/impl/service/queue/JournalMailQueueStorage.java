@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.exoplatform.commons.notification.NotificationUtils;
+import org.exoplatform.commons.notification.impl.service.queue.JournalSegment.Record;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * A mail queue storage on the local disk, which doesn't depend on JCR.
+ * 
+ * The messages are appended to a journal made of memory-mapped segments,
+ * so that enqueuing is a sequential write and draining is a sequential read.
+ * Sent messages are acknowledged in place, the ack offset is the offset before
+ * which all the records are acknowledged and it is kept in the ack file.
+ * The segments before the ack offset are deleted, and the old segments holding
+ * only a few pending records are compacted by moving these records to the tail.
+ * A moved record keeps the id it was loaded with, so that a message loaded before
+ * the compaction is still removed by its id once it is sent.
+ * 
+ * To use it, register the component with the key
+ * org.exoplatform.commons.notification.impl.service.queue.MailQueueStorage
+ */
+public class JournalMailQueueStorage implements MailQueueStorage, Startable {
+  private static final Log      LOG                       = ExoLogger.getExoLogger(JournalMailQueueStorage.class);
+
+  private static final String   DIRECTORY_SYS_KEY         = "conf.notification.service.QueueMessage.journal.directory";
+  private static final String   DIRECTORY_KEY             = "directory";
+  private static final String   SEGMENT_SIZE_SYS_KEY      = "conf.notification.service.QueueMessage.journal.segmentSize";
+  private static final String   SEGMENT_SIZE_KEY          = "segmentSize";
+  private static final String   COMPACTION_RATIO_KEY      = "compactionRatio";
+  private static final String   FORCE_ON_WRITE_KEY        = "forceOnWrite";
+  private static final String   ACK_FILE_NAME             = "ack.offset";
+  private static final String   CHARSET                   = "UTF-8";
+  /** The default size of a segment, in MB */
+  private static final int      DEFAULT_SEGMENT_SIZE      = 16;
+  /** The default percentage of pending records under which a segment is compacted */
+  private static final int      DEFAULT_COMPACTION_RATIO  = 10;
+
+  private final File            directory;
+
+  private final int             segmentSize;
+
+  private final int             compactionRatio;
+
+  private final boolean         forceOnWrite;
+
+  /** The lock protecting the segments and the offsets */
+  private final ReentrantLock   lock                      = new ReentrantLock();
+  /** The segments ordered by their base offset, the last one is the active segment */
+  private final TreeMap<Long, JournalSegment> segments    = new TreeMap<Long, JournalSegment>();
+
+  private RandomAccessFile      ackFile;
+
+  private long                  ackOffset;
+
+  private long                  lastCreatedTime;
+  /** The cursor returned by the last load and the offset to read the next page from */
+  private long                  hintCursor                = -1;
+
+  private long                  hintOffset;
+  /** The current offset of the records moved by the compaction, by their previous offsets */
+  private final Map<Long, Long> relocations               = new HashMap<Long, Long>();
+  /** The previous offsets of the records moved by the compaction, by their current offset */
+  private final Map<Long, List<Long>> origins             = new HashMap<Long, List<Long>>();
+
+  public JournalMailQueueStorage(InitParams params) {
+    String defaultDirectory = System.getProperty("gatein.data.dir", System.getProperty("java.io.tmpdir"))
+        + File.separator + "notification" + File.separator + "mailqueue";
+    this.directory = new File(NotificationUtils.getSystemValue(params, DIRECTORY_SYS_KEY, DIRECTORY_KEY, defaultDirectory));
+    this.segmentSize = NotificationUtils.getSystemValue(params, SEGMENT_SIZE_SYS_KEY, SEGMENT_SIZE_KEY, DEFAULT_SEGMENT_SIZE) * 1024 * 1024;
+    this.compactionRatio = NotificationUtils.getValueParam(params, COMPACTION_RATIO_KEY, DEFAULT_COMPACTION_RATIO);
+    this.forceOnWrite = Boolean.valueOf(NotificationUtils.getValueParam(params, FORCE_ON_WRITE_KEY, "true"));
+    //
+    try {
+      open();
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to open the mail queue journal in " + directory.getAbsolutePath(), e);
+    }
+  }
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop() {
+    final ReentrantLock lock = this.lock;
+    try {
+      lock.lock();
+      for (JournalSegment segment : segments.values()) {
+        segment.close();
+      }
+      segments.clear();
+      ackFile.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close the mail queue journal.");
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void open() throws IOException {
+    if (directory.exists() == false && directory.mkdirs() == false) {
+      throw new IOException("Can't create the directory " + directory.getAbsolutePath());
+    }
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(JournalSegment.FILE_SUFFIX);
+      }
+    });
+    Arrays.sort(files);
+    for (File file : files) {
+      JournalSegment segment = JournalSegment.open(file);
+      segments.put(segment.getBaseOffset(), segment);
+    }
+    //
+    ackFile = new RandomAccessFile(new File(directory, ACK_FILE_NAME), "rw");
+    ackOffset = ackFile.length() >= 8 ? ackFile.readLong() : 0;
+    if (segments.isEmpty()) {
+      segments.put(ackOffset, JournalSegment.create(directory, ackOffset, segmentSize));
+    } else if (ackOffset < segments.firstKey()) {
+      ackOffset = segments.firstKey();
+    }
+    //
+    for (JournalSegment segment : segments.values()) {
+      long offset = segment.getBaseOffset();
+      Record record;
+      while ((record = read(segment, offset)) != null) {
+        lastCreatedTime = Math.max(lastCreatedTime, record.createdTime);
+        offset = record.getNextOffset();
+      }
+    }
+    LOG.info(String.format("Mail queue journal opened in %s with %s segment(s).", directory.getAbsolutePath(), segments.size()));
+  }
+
+  @Override
+  public boolean save(List<MessageInfo> messages) {
+    if (messages.isEmpty()) {
+      return true;
+    }
+    final ReentrantLock lock = this.lock;
+    try {
+      lock.lock();
+      for (MessageInfo message : messages) {
+        lastCreatedTime = Math.max(System.currentTimeMillis(), lastCreatedTime + 1);
+        message.setCreatedTime(lastCreatedTime);
+        message.setId(String.valueOf(append(lastCreatedTime, message.toJSON().getBytes(CHARSET))));
+      }
+      if (forceOnWrite) {
+        activeSegment().force();
+      }
+      return true;
+    } catch (IOException e) {
+      LOG.warn("Failed to save " + messages.size() + " message(s).");
+      LOG.debug(e.getMessage(), e);
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<MessageInfo> load(long cursor, int limit) {
+    List<MessageInfo> page = new ArrayList<MessageInfo>(limit);
+    final ReentrantLock lock = this.lock;
+    try {
+      lock.lock();
+      // continues the sequential read where the previous page stopped
+      long offset = (cursor > 0 && cursor == hintCursor) ? hintOffset : ackOffset;
+      long lastRead = cursor;
+      while (page.size() < limit) {
+        Record record = next(offset);
+        if (record == null) {
+          break;
+        }
+        offset = record.getNextOffset();
+        if (record.acked || record.createdTime <= cursor) {
+          continue;
+        }
+        try {
+          MessageInfo message = MessageInfo.fromJSON(new String(record.payload, CHARSET));
+          message.setId(String.valueOf(record.offset));
+          message.setCreatedTime(record.createdTime);
+          page.add(message);
+          lastRead = record.createdTime;
+        } catch (Exception e) {
+          LOG.warn("Failed to map message at offset " + record.offset + " of the journal.");
+          LOG.debug(e.getMessage(), e);
+        }
+      }
+      hintCursor = lastRead;
+      hintOffset = offset;
+    } finally {
+      lock.unlock();
+    }
+    return page;
+  }
+
+  @Override
+  public int remove(List<String> ids) {
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    int removed = 0;
+    final ReentrantLock lock = this.lock;
+    try {
+      lock.lock();
+      for (String id : ids) {
+        long offset = resolve(Long.parseLong(id));
+        Map.Entry<Long, JournalSegment> entry = segments.floorEntry(offset);
+        if (entry != null && entry.getValue().ack((int) (offset - entry.getKey()))) {
+          ++removed;
+        }
+      }
+      advanceAckOffset();
+      compact();
+      if (forceOnWrite) {
+        for (JournalSegment segment : segments.values()) {
+          segment.force();
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to remove message.");
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      lock.unlock();
+    }
+    return removed;
+  }
+
+  @Override
+  public int removeAll() {
+    int removed = 0;
+    final ReentrantLock lock = this.lock;
+    try {
+      lock.lock();
+      long endOffset = activeSegment().getEndOffset();
+      for (JournalSegment segment : segments.values()) {
+        removed += segment.getPendingRecords();
+        segment.delete();
+      }
+      segments.clear();
+      segments.put(endOffset, JournalSegment.create(directory, endOffset, segmentSize));
+      writeAckOffset(endOffset);
+      relocations.clear();
+      origins.clear();
+      hintCursor = -1;
+    } catch (IOException e) {
+      LOG.warn("Failed to remove all messages.");
+      LOG.debug(e.getMessage(), e);
+    } finally {
+      lock.unlock();
+    }
+    return removed;
+  }
+
+  /**
+   * @return the number of messages which are not acknowledged yet
+   */
+  public int getPendingMessages() {
+    final ReentrantLock lock = this.lock;
+    try {
+      lock.lock();
+      int pending = 0;
+      for (JournalSegment segment : segments.values()) {
+        pending += segment.getPendingRecords();
+      }
+      return pending;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of segment files of the journal
+   */
+  public int getSegments() {
+    final ReentrantLock lock = this.lock;
+    try {
+      lock.lock();
+      return segments.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private JournalSegment activeSegment() {
+    return segments.lastEntry().getValue();
+  }
+
+  private long append(long createdTime, byte[] payload) throws IOException {
+    JournalSegment active = activeSegment();
+    if (active.hasRoom(payload.length) == false) {
+      active.force();
+      long baseOffset = active.getEndOffset();
+      int capacity = Math.max(segmentSize, JournalSegment.HEADER_SIZE + payload.length);
+      active = JournalSegment.create(directory, baseOffset, capacity);
+      segments.put(baseOffset, active);
+    }
+    return active.append(createdTime, payload);
+  }
+
+  /**
+   * Reads the record at the offset, moving to the next segment
+   * when the offset is at the end of a segment.
+   */
+  private Record next(long offset) {
+    Map.Entry<Long, JournalSegment> entry = segments.floorEntry(offset);
+    if (entry == null) {
+      // the segment of this offset was compacted
+      entry = segments.firstEntry();
+      offset = entry.getKey();
+    }
+    while (entry != null) {
+      Record record = read(entry.getValue(), offset);
+      if (record != null) {
+        return record;
+      }
+      entry = segments.higherEntry(entry.getKey());
+      if (entry != null) {
+        offset = entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the current offset of the record loaded at the offset
+   */
+  private long resolve(long offset) {
+    Long relocated = relocations.get(offset);
+    return relocated != null ? relocated : offset;
+  }
+
+  private Record read(JournalSegment segment, long offset) {
+    if (offset >= segment.getEndOffset()) {
+      return null;
+    }
+    return segment.read((int) (offset - segment.getBaseOffset()));
+  }
+
+  /**
+   * Moves the ack offset over the acknowledged records
+   * and deletes the segments which are entirely before it.
+   */
+  private void advanceAckOffset() throws IOException {
+    long offset = ackOffset;
+    Record record;
+    while ((record = next(offset)) != null && record.acked) {
+      offset = record.getNextOffset();
+    }
+    if (record == null) {
+      offset = activeSegment().getEndOffset();
+    } else {
+      offset = record.offset;
+    }
+    if (offset != ackOffset) {
+      writeAckOffset(offset);
+    }
+    // the records moved before the ack offset are acknowledged
+    Iterator<Map.Entry<Long, List<Long>>> it = origins.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Long, List<Long>> origin = it.next();
+      if (origin.getKey() < ackOffset) {
+        relocations.keySet().removeAll(origin.getValue());
+        it.remove();
+      }
+    }
+    //
+    while (segments.size() > 1) {
+      Map.Entry<Long, JournalSegment> first = segments.firstEntry();
+      if (first.getValue().getEndOffset() > ackOffset) {
+        break;
+      }
+      segments.remove(first.getKey());
+      first.getValue().delete();
+    }
+  }
+
+  /**
+   * Moves the pending records of the oldest segment to the tail of the journal
+   * when they are only a few, so that the segment file can be deleted.
+   * The moved records are still found by their previous offsets.
+   */
+  private void compact() throws IOException {
+    if (segments.size() < 2) {
+      return;
+    }
+    JournalSegment oldest = segments.firstEntry().getValue();
+    int pending = oldest.getPendingRecords();
+    if (pending * 100 > oldest.getRecords() * compactionRatio) {
+      return;
+    }
+    long offset = oldest.getBaseOffset();
+    Record record;
+    while ((record = read(oldest, offset)) != null) {
+      if (record.acked == false) {
+        lastCreatedTime = Math.max(System.currentTimeMillis(), lastCreatedTime + 1);
+        long moved = append(lastCreatedTime, record.payload);
+        oldest.ack((int) (record.offset - oldest.getBaseOffset()));
+        // a record moved again is still found by all the offsets it was loaded with
+        List<Long> ids = origins.remove(record.offset);
+        if (ids == null) {
+          ids = new ArrayList<Long>(1);
+        }
+        ids.add(record.offset);
+        for (Long id : ids) {
+          relocations.put(id, moved);
+        }
+        origins.put(moved, ids);
+      }
+      offset = record.getNextOffset();
+    }
+    activeSegment().force();
+    LOG.debug(String.format("Compacted the segment %s, %s pending record(s) moved.", oldest.getBaseOffset(), pending));
+    advanceAckOffset();
+  }
+
+  private void writeAckOffset(long offset) throws IOException {
+    ackFile.seek(0);
+    ackFile.writeLong(offset);
+    if (forceOnWrite) {
+      ackFile.getFD().sync();
+    }
+    ackOffset = offset;
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped file of the journal holding a sequence of records.
+ * 
+ * Each record is laid out as:
+ * <pre>
+ * | length (int) | status (byte) | createdTime (long) | checksum (int) | payload (length bytes) |
+ * </pre>
+ * The checksum is the CRC32 of the created time and the payload, the status is
+ * the only byte rewritten once the record is appended. A zero length marks the end
+ * of the segment, a record with a wrong checksum is a torn write and is dropped
+ * when the segment is opened again.
+ * 
+ * The segment is not thread-safe, the journal guards it with its lock.
+ */
+class JournalSegment {
+
+  static final String    FILE_SUFFIX = ".log";
+
+  static final int       HEADER_SIZE = 17;
+
+  static final byte      PENDING     = 0;
+
+  static final byte      ACKED       = 1;
+
+  private static final int STATUS_POSITION      = 4;
+
+  private static final int CREATED_TIME_POSITION = 5;
+
+  private static final int CHECKSUM_POSITION    = 13;
+
+  /** The offset of the first byte of this segment in the journal */
+  private final long             baseOffset;
+
+  private final File             file;
+
+  private final RandomAccessFile raf;
+
+  private final MappedByteBuffer buffer;
+
+  private final int              capacity;
+
+  /** The position after the last valid record */
+  private int                    writePosition;
+
+  private int                    records;
+
+  private int                    ackedRecords;
+
+  private JournalSegment(File file, long baseOffset, int capacity) throws IOException {
+    this.file = file;
+    this.baseOffset = baseOffset;
+    this.capacity = capacity;
+    this.raf = new RandomAccessFile(file, "rw");
+    this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+  }
+
+  /**
+   * Creates a new empty segment starting at the given offset.
+   */
+  static JournalSegment create(File directory, long baseOffset, int capacity) throws IOException {
+    File file = new File(directory, fileName(baseOffset));
+    return new JournalSegment(file, baseOffset, capacity);
+  }
+
+  /**
+   * Opens an existing segment and recovers its write position.
+   */
+  static JournalSegment open(File file) throws IOException {
+    String name = file.getName();
+    long baseOffset = Long.parseLong(name.substring(0, name.length() - FILE_SUFFIX.length()));
+    JournalSegment segment = new JournalSegment(file, baseOffset, (int) file.length());
+    segment.recover();
+    return segment;
+  }
+
+  static String fileName(long baseOffset) {
+    return String.format("%020d%s", baseOffset, FILE_SUFFIX);
+  }
+
+  private void recover() {
+    int position = 0;
+    Record record;
+    while ((record = read(position)) != null) {
+      ++records;
+      if (record.acked) {
+        ++ackedRecords;
+      }
+      position += HEADER_SIZE + record.payload.length;
+    }
+    writePosition = position;
+    // a torn record was left by a crash, clears it so that it can't be read after the next append
+    if (capacity - position >= 4 && buffer.getInt(position) != 0) {
+      for (int i = position; i < capacity; i++) {
+        buffer.put(i, (byte) 0);
+      }
+      buffer.force();
+    }
+  }
+
+  long getBaseOffset() {
+    return baseOffset;
+  }
+
+  /**
+   * @return the offset after the last record of this segment
+   */
+  long getEndOffset() {
+    return baseOffset + writePosition;
+  }
+
+  int getRecords() {
+    return records;
+  }
+
+  int getPendingRecords() {
+    return records - ackedRecords;
+  }
+
+  boolean hasRoom(int payloadLength) {
+    return writePosition + HEADER_SIZE + payloadLength <= capacity;
+  }
+
+  /**
+   * Appends the record at the end of the segment.
+   * 
+   * @return the offset of the record in the journal
+   */
+  long append(long createdTime, byte[] payload) {
+    int position = writePosition;
+    ByteBuffer view = buffer.duplicate();
+    view.position(position + STATUS_POSITION);
+    view.put(PENDING);
+    view.putLong(createdTime);
+    view.putInt(checksum(createdTime, payload));
+    view.put(payload);
+    // the length is written last, a record is visible only once it is complete
+    buffer.putInt(position, payload.length);
+    writePosition = position + HEADER_SIZE + payload.length;
+    ++records;
+    return baseOffset + position;
+  }
+
+  /**
+   * Reads the record at the position in the segment.
+   * 
+   * @return the record or null if there is no valid record at this position
+   */
+  Record read(int position) {
+    if (position < 0 || capacity - position < HEADER_SIZE) {
+      return null;
+    }
+    int length = buffer.getInt(position);
+    if (length <= 0 || length > capacity - position - HEADER_SIZE) {
+      return null;
+    }
+    long createdTime = buffer.getLong(position + CREATED_TIME_POSITION);
+    byte[] payload = new byte[length];
+    ByteBuffer view = buffer.duplicate();
+    view.position(position + HEADER_SIZE);
+    view.get(payload);
+    if (buffer.getInt(position + CHECKSUM_POSITION) != checksum(createdTime, payload)) {
+      return null;
+    }
+    return new Record(baseOffset + position, createdTime,
+                      buffer.get(position + STATUS_POSITION) == ACKED, payload);
+  }
+
+  /**
+   * Marks the record at the position as acknowledged.
+   * 
+   * @return true if the record was pending
+   */
+  boolean ack(int position) {
+    if (position < 0 || position >= writePosition || buffer.get(position + STATUS_POSITION) == ACKED) {
+      return false;
+    }
+    buffer.put(position + STATUS_POSITION, ACKED);
+    ++ackedRecords;
+    return true;
+  }
+
+  void force() {
+    buffer.force();
+  }
+
+  void close() {
+    try {
+      buffer.force();
+      raf.close();
+    } catch (IOException e) {
+      // the data was already forced, nothing else to do
+    }
+  }
+
+  boolean delete() {
+    close();
+    return file.delete();
+  }
+
+  private static int checksum(long createdTime, byte[] payload) {
+    CRC32 crc = new CRC32();
+    for (int i = 56; i >= 0; i -= 8) {
+      crc.update((int) (createdTime >>> i) & 0xFF);
+    }
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * A record read from a segment.
+   */
+  static class Record {
+    final long    offset;
+
+    final long    createdTime;
+
+    final boolean acked;
+
+    final byte[]  payload;
+
+    Record(long offset, long createdTime, boolean acked, byte[] payload) {
+      this.offset = offset;
+      this.createdTime = createdTime;
+      this.acked = acked;
+      this.payload = payload;
+    }
+
+    long getNextOffset() {
+      return offset + HEADER_SIZE + payload.length;
+    }
+  }
+}
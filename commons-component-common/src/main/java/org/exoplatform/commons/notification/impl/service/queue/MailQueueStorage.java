@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.util.List;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+
+/**
+ * The storage of the mail queue used by QueueMessageImpl.
+ * 
+ * The JCR storage is used by default, another storage can be used
+ * by registering it in the container with this interface as key.
+ */
+public interface MailQueueStorage {
+
+  /**
+   * Persists the messages at the tail of the queue.
+   * The storage gives each message its id and its created time,
+   * the created times are increasing in the order of the queue.
+   * 
+   * @param messages
+   * @return true if all the messages were persisted
+   */
+  boolean save(List<MessageInfo> messages);
+
+  /**
+   * Loads the messages which were created after the cursor,
+   * in the order of the queue.
+   * 
+   * @param cursor the created time of the last message read, 0 to read from the head
+   * @param limit the max number of messages to load
+   * @return
+   */
+  List<MessageInfo> load(long cursor, int limit);
+
+  /**
+   * Removes the messages from the queue by their ids.
+   * 
+   * @param ids
+   * @return the number of messages removed
+   */
+  int remove(List<String> ids);
+
+  /**
+   * Removes all the messages of the queue.
+   * 
+   * @return the number of messages removed
+   */
+  int removeAll();
+}
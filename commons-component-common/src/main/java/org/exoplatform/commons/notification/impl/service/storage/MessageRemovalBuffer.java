@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers the changes to apply on the notification messages served by a digest
+ * run. The changes are coalesced per message node: all the recipients removed
+ * from a node are applied by one property update when the buffer is drained.
+ *
+ * The buffer is shared by the workers of one digest run.
+ */
+public class MessageRemovalBuffer {
+
+  private final ConcurrentMap<String, Removal> removals = new ConcurrentHashMap<String, Removal>();
+
+  /** The number of changes not drained yet */
+  private final AtomicLong                     pending  = new AtomicLong();
+
+  /**
+   * Removes the node at the end of the run.
+   *
+   * @param path the path of the message node
+   */
+  public void removeNode(String path) {
+    while (true) {
+      Removal removal = getRemoval(path);
+      synchronized (removal) {
+        if (removal.drained == false) {
+          if (removal.removeNode == false) {
+            removal.removeNode = true;
+            removal.mutations++;
+            pending.incrementAndGet();
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Clears the daily recipients of the node at the end of the run.
+   *
+   * @param path the path of the message node
+   */
+  public void clearDaily(String path) {
+    while (true) {
+      Removal removal = getRemoval(path);
+      synchronized (removal) {
+        if (removal.drained == false) {
+          if (removal.clearDaily == false) {
+            removal.clearDaily = true;
+            removal.mutations++;
+            pending.incrementAndGet();
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes a recipient from the daily recipients of the node.
+   *
+   * @param path the path of the message node
+   * @param userId the recipient
+   */
+  public void removeDailyRecipient(String path, String userId) {
+    while (true) {
+      Removal removal = getRemoval(path);
+      synchronized (removal) {
+        if (removal.drained == false) {
+          if (removal.dailyRecipients.add(userId)) {
+            removal.mutations++;
+            pending.incrementAndGet();
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Takes the buffered changes out of the buffer.
+   *
+   * @param all false to keep the node removals and daily clears for the end of the run
+   * @return the changes, one per node
+   */
+  public List<Removal> drain(boolean all) {
+    List<Removal> drained = new ArrayList<Removal>();
+    for (Removal removal : removals.values()) {
+      synchronized (removal) {
+        if (all == false && (removal.removeNode || removal.clearDaily)) {
+          continue;
+        }
+        removal.drained = true;
+        removals.remove(removal.path, removal);
+        pending.addAndGet(-removal.mutations);
+      }
+      drained.add(removal);
+    }
+    return drained;
+  }
+
+  public long getPending() {
+    return pending.get();
+  }
+
+  public boolean isEmpty() {
+    return removals.isEmpty();
+  }
+
+  private Removal getRemoval(String path) {
+    Removal removal = removals.get(path);
+    if (removal == null) {
+      Removal newRemoval = new Removal(path);
+      removal = removals.putIfAbsent(path, newRemoval);
+      if (removal == null) {
+        removal = newRemoval;
+      }
+    }
+    return removal;
+  }
+
+  /**
+   * The changes of one message node.
+   */
+  public static class Removal {
+    private final String      path;
+
+    private final Set<String> dailyRecipients = new HashSet<String>();
+
+    private boolean           removeNode;
+
+    private boolean           clearDaily;
+
+    private int               mutations;
+
+    private boolean           drained;
+
+    Removal(String path) {
+      this.path = path;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public synchronized boolean isRemoveNode() {
+      return removeNode;
+    }
+
+    public synchronized boolean isClearDaily() {
+      return clearDaily;
+    }
+
+    public synchronized Set<String> getDailyRecipients() {
+      return Collections.unmodifiableSet(new HashSet<String>(dailyRecipients));
+    }
+
+    /**
+     * @return the number of changes coalesced in this one
+     */
+    public synchronized int getMutations() {
+      return mutations;
+    }
+  }
+}
@@ -16,16 +16,19 @@
  */
 package org.exoplatform.commons.notification.impl.service.storage;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
-import javax.jcr.Item;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Session;
@@ -43,25 +46,74 @@ import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.impl.AbstractService;
 import org.exoplatform.commons.notification.impl.NotificationSessionManager;
 import org.exoplatform.commons.notification.job.NotificationJob;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
+@Managed
+@ManagedDescription("Notification messages storage")
+@NameTemplate({ 
+  @Property(key = "service", value = "notification"), 
+  @Property(key = "view", value = "storage")
+})
 public class NotificationDataStorageImpl extends AbstractService implements NotificationDataStorage {
   private static final Log         LOG              = ExoLogger.getLogger(NotificationDataStorageImpl.class);
 
-  private static final String       REMOVE_ALL       = "removeAll";
-  
-  private static final String       REMOVE_DAILY     = "removeDaily";
-
   private String                    workspace;
 
   private final ReentrantLock lock = new ReentrantLock();
 
-  private Map<String, Set<String>>  removeByCallBack = new ConcurrentHashMap<String, Set<String>>();
+  private static final String       INDEX_ENTRIES_SYS_KEY   = "conf.notification.service.NotificationDataStorage.maxIndexEntries";
+
+  private static final String       INDEX_ENTRIES_KEY       = "maxIndexEntries";
+
+  private static final String       INDEX_DIRECTORY_SYS_KEY = "conf.notification.service.NotificationDataStorage.indexDirectory";
+
+  private static final String       INDEX_DIRECTORY_KEY     = "indexDirectory";
+
+  private static final String       REMOVAL_BATCH_SYS_KEY   = "conf.notification.service.NotificationDataStorage.removalBatchSize";
+
+  private static final String       REMOVAL_BATCH_KEY       = "removalBatchSize";
+
+  private static final String       REMOVAL_FLUSH_SYS_KEY   = "conf.notification.service.NotificationDataStorage.removalFlushThreshold";
+
+  private static final String       REMOVAL_FLUSH_KEY       = "removalFlushThreshold";
+
+  private static final String       EXO_DATE_CREATED        = "exo:dateCreated";
+
+  /** The removals of the messages served by each digest run, keyed by the run's context */
+  private final ConcurrentMap<NotificationContext, MessageRemovalBuffer> removalBuffers = new ConcurrentHashMap<NotificationContext, MessageRemovalBuffer>();
+
+  /** The number of message nodes saved by one session save when flushing the removals */
+  private final int                 removalBatchSize;
+
+  /** The number of pending recipient removals of a run which triggers a flush before the end of the run */
+  private final int                 removalFlushThreshold;
+
+  private final AtomicLong          flushedRemovals  = new AtomicLong();
+
+  private final AtomicLong          flushedNodes     = new AtomicLong();
+
+  /** The indexes of the pending notifications by plugin, built once per digest run and keyed by the run's context */
+  private final ConcurrentMap<NotificationContext, RunIndexes> indexes = new ConcurrentHashMap<NotificationContext, RunIndexes>();
+
+  /** The number of recipients kept in memory by an index before it's spilled to disk */
+  private final int                 maxIndexEntries;
 
-  public NotificationDataStorageImpl(NotificationConfiguration configuration) {
+  private final File                indexDirectory;
+
+  public NotificationDataStorageImpl(NotificationConfiguration configuration, InitParams params) {
     this.workspace = configuration.getWorkspace();
+    this.maxIndexEntries = NotificationUtils.getSystemValue(params, INDEX_ENTRIES_SYS_KEY, INDEX_ENTRIES_KEY, 1000000);
+    String defaultDirectory = System.getProperty("java.io.tmpdir") + File.separator + "notification" + File.separator + "index";
+    this.indexDirectory = new File(NotificationUtils.getSystemValue(params, INDEX_DIRECTORY_SYS_KEY, INDEX_DIRECTORY_KEY, defaultDirectory));
+    this.removalBatchSize = Math.max(1, NotificationUtils.getSystemValue(params, REMOVAL_BATCH_SYS_KEY, REMOVAL_BATCH_KEY, 200));
+    this.removalFlushThreshold = NotificationUtils.getSystemValue(params, REMOVAL_FLUSH_SYS_KEY, REMOVAL_FLUSH_KEY, 10000);
   }
 
   @Override
@@ -100,7 +152,7 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
       boolean isWeekly = context.value(NotificationJob.JOB_WEEKLY);
       if (isWeekly) {
         for (String pluginId : setting.getWeeklyProviders()) {
-          putMap(notificationData, NotificationKey.key(pluginId), getWeeklyNotifs(sProvider, pluginId, setting.getUserId()));
+          putMap(notificationData, NotificationKey.key(pluginId), getWeeklyNotifs(sProvider, context, pluginId, setting.getUserId()));
         }
       }
       //
@@ -113,6 +165,7 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
     } catch (Exception e) {
       LOG.error("Failed to get the NotificationMessage by user: " + setting.getUserId(), e);
     }
+    flushIfNeeded(context);
 
     return notificationData;
   }
@@ -141,13 +194,16 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
     
     List<NotificationInfo> messages = new ArrayList<NotificationInfo>();
     Node plugInDayNode = getParentNodeByDate(sProvider, workspace, context, pluginId);
-    NodeIterator iter = getDailyNodes(plugInDayNode, userId);
-    Session session = plugInDayNode.getSession();
-    while (iter.hasNext()) {
-      Node node = iter.nextNode();
-      NotificationInfo model = fillModel(node);
-      messages.add(model.setTo(userId));
-      removeDaily(session, model, node.getPath());
+    NotificationIndex index = getIndex(context, plugInDayNode, false);
+    MessageRemovalBuffer buffer = getRemovalBuffer(context);
+    for (int seq : index.getMessages(userId)) {
+      NotificationInfo model = index.getMessage(seq);
+      if (userId.equals(model.getFrom())) {
+        continue;
+      }
+      model = model.clone().setTo(userId);
+      messages.add(model);
+      removeDaily(buffer, model, index.getPath(seq), index.served(seq));
     }
     return messages;
   }
@@ -173,67 +229,159 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
   }
 
   private List<NotificationInfo> getWeeklyNotifs(SessionProvider sProvider,
+                                                 NotificationContext context,
                                                  String pluginId,
                                                  String userId) throws Exception {
     List<NotificationInfo> messages = new ArrayList<NotificationInfo>();
     Node messageHomeNode = getMessageNodeByPluginId(sProvider, workspace, pluginId);
-    NodeIterator iter = getWeeklyNodes(messageHomeNode, userId);
-    while (iter.hasNext()) {
-      Node node = iter.nextNode();
-      NotificationInfo model = fillModel(node);
-      messages.add(model.setTo(userId));
-      removeWeekly(model, node.getPath());
+    NotificationIndex index = getIndex(context, messageHomeNode, true);
+    MessageRemovalBuffer buffer = getRemovalBuffer(context);
+    for (int seq : index.getMessages(userId)) {
+      NotificationInfo model = index.getMessage(seq);
+      if (userId.equals(model.getFrom())) {
+        continue;
+      }
+      model = model.clone().setTo(userId);
+      messages.add(model);
+      removeWeekly(buffer, model, index.getPath(seq), index.served(seq));
     }
     return messages;
   }
 
-  private NodeIterator getWeeklyNodes(Node messageHomeNode, String userId) throws Exception {
+  /**
+   * Gets the index of the pending notifications under the given node, it's built
+   * by the first digest worker of the run asking for it, the others wait for it.
+   * The index is kept until the end of the run: it counts the recipients served
+   * by the run, an index built again would not know the ones already served.
+   * 
+   * @param context the context of the digest run
+   * @param parentNode the plugin's node for weekly or the plugin's day node for daily
+   * @param isWeekly
+   * @return
+   * @throws Exception
+   */
+  private NotificationIndex getIndex(NotificationContext context, final Node parentNode, final boolean isWeekly) throws Exception {
+    RunIndexes runIndexes = indexes.get(context);
+    if (runIndexes == null) {
+      RunIndexes newIndexes = new RunIndexes();
+      runIndexes = indexes.putIfAbsent(context, newIndexes);
+      if (runIndexes == null) {
+        runIndexes = newIndexes;
+      }
+    }
+    final String key = parentNode.getPath() + (isWeekly ? "#weekly" : "#daily");
+    final long runStart = runIndexes.startTime;
+    FutureTask<NotificationIndex> task = runIndexes.active.get(key);
+    if (task == null) {
+      FutureTask<NotificationIndex> newTask = new FutureTask<NotificationIndex>(new Callable<NotificationIndex>() {
+        @Override
+        public NotificationIndex call() throws Exception {
+          return buildIndex(key, parentNode, isWeekly, runStart);
+        }
+      });
+      task = runIndexes.active.putIfAbsent(key, newTask);
+      if (task == null) {
+        task = newTask;
+        task.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      runIndexes.active.remove(key, task);
+      throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Builds the index of the messages under the given node. The messages created
+   * after the start of the run are left for the next run, so all the indexes of
+   * a run see the messages as they were when the run started.
+   */
+  private NotificationIndex buildIndex(String key, Node parentNode, boolean isWeekly, long runStart) throws Exception {
     final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    long startTime = 0;
-    if ( stats ) startTime = System.currentTimeMillis();
+    long startTime = System.currentTimeMillis();
     //
-    userId = userId.replace("'", "''");
     StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(NTF_MESSAGE).append(" WHERE ");
-    strQuery.append(" jcr:path LIKE '").append(messageHomeNode.getPath()).append("/%'");
-    strQuery.append(" AND (").append(NTF_SEND_TO_WEEKLY).append("='").append(userId).append("'");
-    strQuery.append(" OR ").append(NTF_SEND_TO_WEEKLY).append("='").append(NotificationInfo.FOR_ALL_USER)
-            .append("') AND ").append(NTF_FROM).append("<>'").append(userId).append("'");
+    if (isWeekly) {
+      strQuery.append(" jcr:path LIKE '").append(parentNode.getPath()).append("/%'");
+    } else {
+      strQuery.append(" (jcr:path LIKE '").append(parentNode.getPath()).append("/%'")
+              .append(" AND NOT jcr:path LIKE '").append(parentNode.getPath()).append("/%/%')");
+    }
     strQuery.append(" order by ").append(NTF_ORDER).append(ASCENDING).append(", exo:dateCreated").append(DESCENDING);
 
-    QueryManager qm = messageHomeNode.getSession().getWorkspace().getQueryManager();
+    QueryManager qm = parentNode.getSession().getWorkspace().getQueryManager();
     Query query = qm.createQuery(strQuery.toString(), Query.SQL);
     NodeIterator it = query.execute().getNodes();
+    //
+    NotificationIndex index = new NotificationIndex(key, indexDirectory, maxIndexEntries);
+    try {
+      while (it.hasNext()) {
+        Node node = it.nextNode();
+        if (node.hasProperty(EXO_DATE_CREATED) && node.getProperty(EXO_DATE_CREATED).getDate().getTimeInMillis() > runStart) {
+          continue;
+        }
+        NotificationInfo model = fillModel(node);
+        String[] recipients = isWeekly ? model.getSendToWeekly() : model.getSendToDaily();
+        if (recipients.length > 0) {
+          index.add(model, node.getPath(), recipients);
+        }
+      }
+      index.build();
+    } catch (Exception e) {
+      index.close();
+      throw e;
+    }
     
-    //record statistics insert entity
     if (stats) {
       NotificationContextFactory.getInstance().getStatisticsCollector().queryExecuted(strQuery.toString(), it.getSize(), System.currentTimeMillis() - startTime);
     }
-    return it;
+    LOG.debug(String.format("Built the notification index %s of %s messages in %sms", key, index.size(), System.currentTimeMillis() - startTime));
+    return index;
   }
-  
-  private NodeIterator getDailyNodes(Node pluginDayNode, String userId) throws Exception {
-    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    long startTime = 0;
-    if ( stats ) startTime = System.currentTimeMillis();
-    //
-    userId = userId.replace("'", "''");
-    
-    StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(NTF_MESSAGE).append(" WHERE ");
-    strQuery.append(" (jcr:path LIKE '").append(pluginDayNode.getPath()).append("/%'")
-              .append(" AND NOT jcr:path LIKE '").append(pluginDayNode.getPath()).append("/%/%')");
-    strQuery.append(" AND (").append(NTF_SEND_TO_DAILY).append("='").append(userId).append("'");
-    strQuery.append(" OR ").append(NTF_SEND_TO_DAILY).append("='").append(NotificationInfo.FOR_ALL_USER)
-              .append("') AND ").append(NTF_FROM).append("<>'").append(userId).append("'");
-    strQuery.append(" order by ").append(NTF_ORDER).append(ASCENDING).append(", exo:dateCreated").append(DESCENDING);
 
-    QueryManager qm = pluginDayNode.getSession().getWorkspace().getQueryManager();
-    Query query = qm.createQuery(strQuery.toString(), Query.SQL);
-    NodeIterator it = query.execute().getNodes();
-    
-    if (stats) {
-      NotificationContextFactory.getInstance().getStatisticsCollector().queryExecuted(strQuery.toString(), it.getSize(), System.currentTimeMillis() - startTime);
+  /**
+   * Closes the indexes of a digest run at the end of the run.
+   * 
+   * @param context the context of the run, null for all the runs
+   */
+  private void closeIndexes(NotificationContext context) {
+    List<RunIndexes> closed = new ArrayList<RunIndexes>();
+    if (context != null) {
+      RunIndexes runIndexes = indexes.remove(context);
+      if (runIndexes != null) {
+        closed.add(runIndexes);
+      }
+    } else {
+      for (NotificationContext key : indexes.keySet()) {
+        RunIndexes runIndexes = indexes.remove(key);
+        if (runIndexes != null) {
+          closed.add(runIndexes);
+        }
+      }
+    }
+    for (RunIndexes runIndexes : closed) {
+      for (FutureTask<NotificationIndex> task : runIndexes.active.values()) {
+        try {
+          if (task.isDone()) {
+            task.get().close();
+          }
+        } catch (Exception e) {
+          LOG.debug(e.getMessage(), e);
+        }
+      }
     }
-    return it;
+  }
+
+  /**
+   * The indexes of a digest run.
+   */
+  private static class RunIndexes {
+    private final ConcurrentMap<String, FutureTask<NotificationIndex>> active    = new ConcurrentHashMap<String, FutureTask<NotificationIndex>>();
+
+    /** The time of the first request of the run, the messages created later are not indexed */
+    private final long                                                 startTime = System.currentTimeMillis();
   }
 
   private NotificationInfo fillModel(Node node) throws Exception {
@@ -250,111 +398,187 @@ public class NotificationDataStorageImpl extends AbstractService implements Noti
     return message;
   }
 
-  private void putRemoveMap(String key, String value) {
-    Set<String> set = removeByCallBack.get(key);
-    if (set == null) {
-      set = new HashSet<String>();
-      removeByCallBack.put(key, set);
-    }
-    set.add(value);
-  }
-
   /**
    * In the case if the notification plug-in allows to impact all of user.
    * In the case Daily, the notifiation_send_to_daily will be remove the sendAll value and still keep it for weekly
    * 
-   * @param session
+   * @param buffer the removals of the digest run
    * @param message
    * @param path
+   * @param remaining the number of recipients of the message still to serve by the digest
    * @throws Exception
    */
-  private void removeDaily(Session session, NotificationInfo message, String path) throws Exception {
-    if (message.getSendToDaily().length == 1 && message.getSendToWeekly().length == 0) {
-      putRemoveMap(REMOVE_ALL, path);
+  private void removeDaily(MessageRemovalBuffer buffer, NotificationInfo message, String path, int remaining) throws Exception {
+    if (remaining == 0 && message.getSendToWeekly().length == 0) {
+      buffer.removeNode(path);
     } if (message.getSendToDaily().length > 0 &&  NotificationInfo.FOR_ALL_USER.equals(message.getSendToDaily()[0])) {
-      putRemoveMap(REMOVE_DAILY, path);
+      buffer.clearDaily(path);
     } else {
-      removeProperty(session, path, NTF_SEND_TO_DAILY, message.getTo());
+      buffer.removeDailyRecipient(path, message.getTo());
     }
   }
 
-  private void removeWeekly(NotificationInfo message, String path) throws Exception {
-    if (message.isSendAll() || message.getSendToWeekly().length == 1) {
-      putRemoveMap(REMOVE_ALL, path);
+  private void removeWeekly(MessageRemovalBuffer buffer, NotificationInfo message, String path, int remaining) throws Exception {
+    if (message.isSendAll() || remaining == 0) {
+      buffer.removeNode(path);
     }
   }
 
-  private void removeProperty(Session session, String path, String property, String value) {
-    final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    try {
-      Node node = (Node) session.getItem(path);
-      List<String> values = NotificationUtils.valuesToList(node.getProperty(property).getValues());
-      if (values.contains(value)) {
-        values.remove(value);
-        if (values.isEmpty()) {
-          values.add("");
-        }
-        node.setProperty(property, values.toArray(new String[values.size()]));
-        node.save();
-        
-        //record entity update here
-        if (stats) {
-          NotificationContextFactory.getInstance().getStatisticsCollector().updateEntity(NTF_MESSAGE);
-        }
+  private MessageRemovalBuffer getRemovalBuffer(NotificationContext context) {
+    MessageRemovalBuffer buffer = removalBuffers.get(context);
+    if (buffer == null) {
+      MessageRemovalBuffer newBuffer = new MessageRemovalBuffer();
+      buffer = removalBuffers.putIfAbsent(context, newBuffer);
+      if (buffer == null) {
+        buffer = newBuffer;
       }
-    } catch (Exception e) {
-      LOG.warn(String.format("Failed to remove property %s of value %s on node ", property, value));
     }
+    return buffer;
   }
 
-  @Override
-  public void removeMessageAfterSent() throws Exception {
+  /**
+   * Applies the recipient removals of a run when there are too many of them pending,
+   * the node removals are kept for the end of the run.
+   * The digest workers don't wait for a flush done by an other one.
+   * 
+   * @param context the context of the digest run
+   */
+  private void flushIfNeeded(NotificationContext context) {
+    MessageRemovalBuffer buffer = removalBuffers.get(context);
+    if (buffer == null || buffer.getPending() < removalFlushThreshold) {
+      return;
+    }
+    final ReentrantLock localLock = lock;
+    if (localLock.tryLock()) {
+      try {
+        flushRemovals(buffer, false);
+      } finally {
+        localLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Applies the buffered removals: one property update or one remove per message node,
+   * saved by batches of removalBatchSize nodes.
+   * 
+   * @param buffer the removals of the digest run
+   * @param all false to apply only the recipient removals
+   */
+  private void flushRemovals(MessageRemovalBuffer buffer, boolean all) {
     final boolean stats = NotificationContextFactory.getInstance().getStatistics().isStatisticsEnabled();
-    SessionProvider sProvider = NotificationSessionManager.createSystemProvider();
+    final ReentrantLock localLock = lock;
+    localLock.lock();
     try {
-      Node notificationHome = getNotificationHomeNode(sProvider, workspace);
-      Session session = notificationHome.getSession();
-      // remove all
-      Set<String> listPaths = removeByCallBack.get(REMOVE_ALL);
-      removeByCallBack.remove(REMOVE_ALL);
-      if (listPaths != null && listPaths.size() > 0) {
-        for (String nodePath : listPaths) {
-          try {
-            session.getItem(nodePath).remove();
+      List<MessageRemovalBuffer.Removal> removals = buffer.drain(all);
+      if (removals.isEmpty()) {
+        return;
+      }
+      SessionProvider sProvider = NotificationSessionManager.getOrCreateSessionProvider();
+      Session session = getNotificationHomeNode(sProvider, workspace).getSession();
+      int nodes = 0;
+      long mutations = 0;
+      for (MessageRemovalBuffer.Removal removal : removals) {
+        String nodePath = removal.getPath();
+        try {
+          if (session.itemExists(nodePath) == false) {
+            continue;
+          }
+          Node node = (Node) session.getItem(nodePath);
+          if (removal.isRemoveNode()) {
+            node.remove();
             //record entity delete here
             if (stats) {
               NotificationContextFactory.getInstance().getStatisticsCollector().deleteEntity(NTF_MESSAGE);
             }
-            
             LOG.debug("Remove NotificationMessage " + nodePath);
-          } catch (Exception e) {
-            LOG.warn("Failed to remove node of NotificationMessage " + nodePath + "\n" + e.getMessage());
-            LOG.debug("Remove NotificationMessage " + nodePath, e);
-          }
-        }
-        session.save();
-      }
-      
-      listPaths = removeByCallBack.get(REMOVE_DAILY);
-      if (listPaths != null && listPaths.size() > 0) {
-        for (String nodePath : listPaths) {
-          try {
-            Item item = session.getItem(nodePath);
-            if (item.isNode()) {
-              Node node = (Node) item;
-              node.setProperty(NTF_SEND_TO_DAILY, new String[] { "" });
+          } else {
+            List<String> values = new ArrayList<String>();
+            if (removal.isClearDaily() == false) {
+              values = NotificationUtils.valuesToList(node.getProperty(NTF_SEND_TO_DAILY).getValues());
+              values.removeAll(removal.getDailyRecipients());
+            }
+            if (values.isEmpty()) {
+              values.add("");
+            }
+            node.setProperty(NTF_SEND_TO_DAILY, values.toArray(new String[values.size()]));
+            //record entity update here
+            if (stats) {
+              NotificationContextFactory.getInstance().getStatisticsCollector().updateEntity(NTF_MESSAGE);
             }
-            LOG.debug("Remove SendToDaily property " + nodePath);
-          } catch (Exception e) {
-            LOG.warn("Failed to remove SendToDaily property of " + nodePath + "\n" + e.getMessage());
-            LOG.debug("Remove SendToDaily property " + nodePath, e);
+            LOG.debug("Remove SendToDaily values of " + nodePath);
           }
+          mutations += removal.getMutations();
+          if (++nodes % removalBatchSize == 0) {
+            session.save();
+          }
+        } catch (Exception e) {
+          LOG.warn("Failed to apply the removals on NotificationMessage " + nodePath + "\n" + e.getMessage());
+          LOG.debug("Remove NotificationMessage " + nodePath, e);
         }
-        session.save();
       }
+      session.save();
+      flushedNodes.addAndGet(nodes);
+      flushedRemovals.addAndGet(mutations);
     } catch (Exception e) {
       LOG.warn("Failed to remove message after sent email notification", e);
+    } finally {
+      localLock.unlock();
     }
   }
 
+  @Override
+  public void removeMessageAfterSent(NotificationContext context) throws Exception {
+    try {
+      MessageRemovalBuffer buffer = removalBuffers.remove(context);
+      if (buffer != null) {
+        flushRemovals(buffer, true);
+      }
+    } finally {
+      closeIndexes(context);
+    }
+  }
+
+  @Override
+  public void removeMessageAfterSent() throws Exception {
+    try {
+      for (NotificationContext context : removalBuffers.keySet()) {
+        MessageRemovalBuffer buffer = removalBuffers.remove(context);
+        if (buffer != null) {
+          flushRemovals(buffer, true);
+        }
+      }
+    } finally {
+      closeIndexes(null);
+    }
+  }
+
+  @Managed
+  @ManagedDescription("The number of recipient removals and node removals waiting to be applied")
+  public long getPendingRemovals() {
+    long pending = 0;
+    for (MessageRemovalBuffer buffer : removalBuffers.values()) {
+      pending += buffer.getPending();
+    }
+    return pending;
+  }
+
+  @Managed
+  @ManagedDescription("The number of recipient removals and node removals applied")
+  public long getFlushedRemovals() {
+    return flushedRemovals.get();
+  }
+
+  @Managed
+  @ManagedDescription("The number of message nodes updated or removed by the applied removals")
+  public long getFlushedNodes() {
+    return flushedNodes.get();
+  }
+
+  @Managed
+  @ManagedDescription("The number of digest runs having removals waiting to be applied")
+  public int getActiveDigestRuns() {
+    return removalBuffers.size();
+  }
+
 }
@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * The inverted index of the pending notifications of a plugin for a digest:
+ * from the recipient to the notifications sent to him, the notifications sent
+ * to all the users ({@link NotificationInfo#FOR_ALL_USER}) being kept in a
+ * separate bucket merged with the recipient's ones.
+ *
+ * The notifications are added in the order of the digest, each one is identified
+ * by its position. When the number of entries kept in memory exceeds the limit,
+ * the notifications and the postings are spilled to files: the postings are
+ * written in sorted runs merged into one file looked up by a sparse index.
+ *
+ * The index is built by one thread then read concurrently by the digest workers.
+ */
+public class NotificationIndex {
+  private static final Log             LOG             = ExoLogger.getLogger(NotificationIndex.class);
+
+  /** The number of recipients between two keys of the sparse index */
+  private static final int             BLOCK_SIZE      = 64;
+
+  /** The number of spilled notifications kept in memory */
+  private static final int             CACHE_SIZE      = 1024;
+
+  private static final int[]           EMPTY           = new int[0];
+
+  private final int                    maxEntries;
+
+  private final File                   directory;
+
+  private final String                 name;
+
+  /** The JCR path of each notification */
+  private final List<String>           paths           = new ArrayList<String>();
+
+  private final IntList                forAll          = new IntList();
+
+  private int[]                        forAllSeqs;
+
+  /** The number of recipients who have not been served yet, per notification */
+  private AtomicIntegerArray           remaining;
+
+  private IntList                      recipientCounts = new IntList();
+
+  private int                          entries;
+
+  // in memory
+  private List<NotificationInfo>       messages        = new ArrayList<NotificationInfo>();
+
+  private Map<String, IntList>         building        = new HashMap<String, IntList>();
+
+  private Map<String, int[]>           postings;
+
+  // spilled to disk
+  private File                         messageFile;
+
+  private DataOutputStream             messageOutput;
+
+  private ByteArrayOutputStream        recordBuffer;
+
+  private long                         messageFileLength;
+
+  private final List<Long>             messageOffsets  = new ArrayList<Long>();
+
+  private final List<File>             runs            = new ArrayList<File>();
+
+  private File                         postingFile;
+
+  private String[]                     blockKeys;
+
+  private long[]                       blockOffsets;
+
+  private RandomAccessFile             messageReader;
+
+  private RandomAccessFile             postingReader;
+
+  private Map<Integer, NotificationInfo> cache;
+
+  /**
+   * @param name the name of the index, used to name the spill files
+   * @param directory the directory of the spill files
+   * @param maxEntries the number of recipients and postings kept in memory before spilling
+   */
+  public NotificationIndex(String name, File directory, int maxEntries) {
+    this.name = name.replaceAll("[^A-Za-z0-9_-]", "_");
+    this.directory = directory;
+    this.maxEntries = Math.max(1, maxEntries);
+  }
+
+  /**
+   * Adds a notification with its recipients, the notifications must be added in
+   * the order they are returned to a recipient.
+   *
+   * @param message the notification
+   * @param path the JCR path of the notification
+   * @param recipients the recipients of the digest, daily or weekly
+   * @throws IOException if the index can not be spilled
+   */
+  public void add(NotificationInfo message, String path, String[] recipients) throws IOException {
+    int seq = paths.size();
+    paths.add(path);
+    if (Arrays.asList(recipients).contains(NotificationInfo.FOR_ALL_USER)) {
+      forAll.add(seq);
+      recipientCounts.add(-1);
+    } else {
+      int count = 0;
+      for (String recipient : recipients) {
+        IntList seqs = building.get(recipient);
+        if (seqs == null) {
+          seqs = new IntList();
+          building.put(recipient, seqs);
+        }
+        //a recipient listed twice is served once
+        if (seqs.size() == 0 || seqs.last() != seq) {
+          seqs.add(seq);
+          count++;
+        }
+      }
+      recipientCounts.add(count);
+      entries += count;
+    }
+    //
+    if (messageOutput != null) {
+      writeMessage(message);
+    } else {
+      messages.add(message);
+      entries += message.getSendToDaily().length + message.getSendToWeekly().length;
+    }
+    if (entries > maxEntries) {
+      spill();
+    }
+  }
+
+  /**
+   * Ends the building of the index, it's read only from now.
+   *
+   * @throws IOException if the spilled postings can not be merged
+   */
+  public void build() throws IOException {
+    remaining = new AtomicIntegerArray(recipientCounts.toArray());
+    recipientCounts = null;
+    forAllSeqs = forAll.toArray();
+    if (messageOutput == null) {
+      postings = new HashMap<String, int[]>(building.size());
+      for (Map.Entry<String, IntList> entry : building.entrySet()) {
+        postings.put(entry.getKey(), entry.getValue().toArray());
+      }
+      building = null;
+      return;
+    }
+    //
+    writeRun();
+    building = null;
+    messageOutput.close();
+    messageOutput = null;
+    mergeRuns();
+    messageReader = new RandomAccessFile(messageFile, "r");
+    postingReader = new RandomAccessFile(postingFile, "r");
+    cache = Collections.synchronizedMap(new LinkedHashMap<Integer, NotificationInfo>(CACHE_SIZE, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, NotificationInfo> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    });
+    LOG.debug(String.format("The notification index %s is spilled, %s notifications", name, paths.size()));
+  }
+
+  /**
+   * Gets the notifications of a recipient, in the order they have been added.
+   *
+   * @param recipient the user id
+   * @return the positions of the notifications
+   * @throws IOException if the spilled postings can not be read
+   */
+  public int[] getMessages(String recipient) throws IOException {
+    int[] seqs = postings != null ? postings.get(recipient) : readPostings(recipient);
+    if (seqs == null) {
+      seqs = EMPTY;
+    }
+    if (forAllSeqs.length == 0) {
+      return seqs;
+    }
+    //merge the broadcast bucket, both are sorted
+    int[] all = forAllSeqs;
+    int[] merged = new int[seqs.length + all.length];
+    int i = 0, j = 0, k = 0;
+    while (i < seqs.length || j < all.length) {
+      if (j >= all.length || (i < seqs.length && seqs[i] < all[j])) {
+        merged[k++] = seqs[i++];
+      } else if (i >= seqs.length || all[j] < seqs[i]) {
+        merged[k++] = all[j++];
+      } else {
+        merged[k++] = seqs[i++];
+        j++;
+      }
+    }
+    return k == merged.length ? merged : Arrays.copyOf(merged, k);
+  }
+
+  /**
+   * @param seq the position of the notification
+   * @return the notification, shared by the recipients
+   * @throws IOException if the spilled notification can not be read
+   */
+  public NotificationInfo getMessage(int seq) throws IOException {
+    if (messages != null) {
+      return messages.get(seq);
+    }
+    NotificationInfo message = cache.get(seq);
+    if (message == null) {
+      message = readMessage(seq);
+      cache.put(seq, message);
+    }
+    return message;
+  }
+
+  public String getPath(int seq) {
+    return paths.get(seq);
+  }
+
+  /**
+   * @param seq the position of the notification
+   * @return true if the notification is sent to all the users
+   */
+  public boolean isForAll(int seq) {
+    return remaining.get(seq) < 0;
+  }
+
+  /**
+   * Records that a recipient of the notification has been served.
+   *
+   * @param seq the position of the notification
+   * @return the number of recipients still to serve, -1 for the notifications sent to all the users
+   */
+  public int served(int seq) {
+    if (remaining.get(seq) < 0) {
+      return -1;
+    }
+    return remaining.decrementAndGet(seq);
+  }
+
+  public int size() {
+    return paths.size();
+  }
+
+  public boolean isSpilled() {
+    return messages == null;
+  }
+
+  /**
+   * Releases the spill files.
+   */
+  public void close() {
+    closeQuietly(messageReader);
+    closeQuietly(postingReader);
+    if (messageOutput != null) {
+      try {
+        messageOutput.close();
+      } catch (IOException e) {
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+    delete(messageFile);
+    delete(postingFile);
+    for (File run : runs) {
+      delete(run);
+    }
+  }
+
+  private void spill() throws IOException {
+    if (messageOutput == null) {
+      if (!directory.exists() && !directory.mkdirs()) {
+        throw new IOException("Can not create the directory " + directory);
+      }
+      messageFile = File.createTempFile(name + "-", ".msg", directory);
+      messageOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(messageFile)));
+      recordBuffer = new ByteArrayOutputStream();
+      for (NotificationInfo message : messages) {
+        writeMessage(message);
+      }
+      messages = null;
+    }
+    writeRun();
+    entries = 0;
+  }
+
+  private void writeMessage(NotificationInfo message) throws IOException {
+    recordBuffer.reset();
+    DataOutputStream out = new DataOutputStream(recordBuffer);
+    writeString(out, message.getId());
+    writeString(out, message.getKey().getId());
+    writeString(out, message.getFrom());
+    out.writeInt(message.getOrder());
+    Map<String, String> ownerParameter = message.getOwnerParameter();
+    out.writeInt(ownerParameter.size());
+    for (Map.Entry<String, String> parameter : ownerParameter.entrySet()) {
+      writeString(out, parameter.getKey());
+      writeString(out, parameter.getValue());
+    }
+    writeArray(out, message.getSendToDaily());
+    writeArray(out, message.getSendToWeekly());
+    out.flush();
+    messageOffsets.add(messageFileLength);
+    recordBuffer.writeTo(messageOutput);
+    messageFileLength += recordBuffer.size();
+  }
+
+  private NotificationInfo readMessage(int seq) throws IOException {
+    long start = messageOffsets.get(seq);
+    long end = seq + 1 < messageOffsets.size() ? messageOffsets.get(seq + 1) : messageFileLength;
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(messageReader, start, end)));
+    NotificationInfo message = NotificationInfo.instance().setId(readString(in)).key(readString(in)).setFrom(readString(in));
+    message.setOrder(in.readInt());
+    Map<String, String> ownerParameter = new HashMap<String, String>();
+    for (int i = in.readInt(); i > 0; i--) {
+      ownerParameter.put(readString(in), readString(in));
+    }
+    return message.setOwnerParameter(ownerParameter).setSendToDaily(readArray(in)).setSendToWeekly(readArray(in));
+  }
+
+  /**
+   * Writes the postings being built as a run sorted by recipient.
+   */
+  private void writeRun() throws IOException {
+    if (building.isEmpty()) {
+      return;
+    }
+    List<String> keys = new ArrayList<String>(building.keySet());
+    Collections.sort(keys);
+    File run = File.createTempFile(name + "-", ".run", directory);
+    runs.add(run);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+    try {
+      for (String key : keys) {
+        writeString(out, key);
+        int[] seqs = building.get(key).toArray();
+        out.writeInt(seqs.length);
+        for (int seq : seqs) {
+          out.writeInt(seq);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    building.clear();
+  }
+
+  /**
+   * Merges the sorted runs into the posting file, the runs being written in the
+   * order of the notifications the postings of a recipient stay sorted.
+   */
+  private void mergeRuns() throws IOException {
+    postingFile = File.createTempFile(name + "-", ".idx", directory);
+    List<String> keys = new ArrayList<String>();
+    List<Long> offsets = new ArrayList<Long>();
+    PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+    for (int i = 0; i < runs.size(); i++) {
+      RunReader reader = new RunReader(runs.get(i), i);
+      if (reader.next()) {
+        queue.add(reader);
+      } else {
+        reader.close();
+      }
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(postingFile)));
+    long offset = 0;
+    int count = 0;
+    try {
+      while (!queue.isEmpty()) {
+        RunReader reader = queue.poll();
+        String key = reader.key;
+        IntList seqs = new IntList();
+        seqs.addAll(reader.seqs);
+        advance(queue, reader);
+        while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+          RunReader same = queue.poll();
+          seqs.addAll(same.seqs);
+          advance(queue, same);
+        }
+        if (count++ % BLOCK_SIZE == 0) {
+          keys.add(key);
+          offsets.add(offset);
+        }
+        bytes.reset();
+        DataOutputStream entry = new DataOutputStream(bytes);
+        writeString(entry, key);
+        int[] values = seqs.toArray();
+        entry.writeInt(values.length);
+        for (int value : values) {
+          entry.writeInt(value);
+        }
+        entry.flush();
+        bytes.writeTo(out);
+        offset += bytes.size();
+      }
+    } finally {
+      out.close();
+      for (RunReader reader : queue) {
+        reader.close();
+      }
+    }
+    offsets.add(offset);
+    blockKeys = keys.toArray(new String[keys.size()]);
+    blockOffsets = new long[offsets.size()];
+    for (int i = 0; i < blockOffsets.length; i++) {
+      blockOffsets[i] = offsets.get(i);
+    }
+    for (File run : runs) {
+      delete(run);
+    }
+    runs.clear();
+  }
+
+  private static void advance(PriorityQueue<RunReader> queue, RunReader reader) throws IOException {
+    if (reader.next()) {
+      queue.add(reader);
+    } else {
+      reader.close();
+    }
+  }
+
+  private int[] readPostings(String recipient) throws IOException {
+    int block = Arrays.binarySearch(blockKeys, recipient);
+    if (block < 0) {
+      block = -block - 2;
+      if (block < 0) {
+        return null;
+      }
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(postingReader,
+                                                                           blockOffsets[block],
+                                                                           blockOffsets[block + 1])));
+    for (int i = 0; i < BLOCK_SIZE && in.available() > 0; i++) {
+      String key = readString(in);
+      int[] seqs = new int[in.readInt()];
+      for (int j = 0; j < seqs.length; j++) {
+        seqs[j] = in.readInt();
+      }
+      int compare = key.compareTo(recipient);
+      if (compare == 0) {
+        return seqs;
+      } else if (compare > 0) {
+        break;
+      }
+    }
+    return null;
+  }
+
+  private static byte[] read(RandomAccessFile file, long start, long end) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+    FileChannel channel = file.getChannel();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, start + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    return buffer.array();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = (value == null ? "" : value).getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static void writeArray(DataOutputStream out, String[] values) throws IOException {
+    out.writeInt(values.length);
+    for (String value : values) {
+      writeString(out, value);
+    }
+  }
+
+  private static String[] readArray(DataInputStream in) throws IOException {
+    String[] values = new String[in.readInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = readString(in);
+    }
+    return values;
+  }
+
+  private static void closeQuietly(RandomAccessFile file) {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  private static void delete(File file) {
+    if (file != null && file.exists() && !file.delete()) {
+      LOG.warn("Failed to delete the notification index file " + file);
+    }
+  }
+
+  /**
+   * Reads the postings of a sorted run, ordered by recipient then by run.
+   */
+  private static class RunReader implements Comparable<RunReader> {
+    private final DataInputStream in;
+
+    private final int             index;
+
+    private String                key;
+
+    private int[]                 seqs;
+
+    RunReader(File run, int index) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+      this.index = index;
+    }
+
+    boolean next() throws IOException {
+      try {
+        key = readString(in);
+      } catch (EOFException e) {
+        return false;
+      }
+      seqs = new int[in.readInt()];
+      for (int i = 0; i < seqs.length; i++) {
+        seqs[i] = in.readInt();
+      }
+      return true;
+    }
+
+    void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public int compareTo(RunReader o) {
+      int compare = key.compareTo(o.key);
+      return compare != 0 ? compare : index - o.index;
+    }
+  }
+
+  /**
+   * A growable list of int.
+   */
+  private static class IntList {
+    private int[] values = new int[4];
+
+    private int   size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    void addAll(int[] others) {
+      for (int value : others) {
+        add(value);
+      }
+    }
+
+    int size() {
+      return size;
+    }
+
+    int last() {
+      return values[size - 1];
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
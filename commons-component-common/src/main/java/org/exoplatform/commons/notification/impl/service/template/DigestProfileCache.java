@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+* modify it under the terms of the GNU Affero General Public License
+* as published by the Free Software Foundation; either version 3
+* of the License, or (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.template;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exoplatform.commons.api.notification.plugin.NotificationPluginUtils;
+import org.exoplatform.commons.notification.NotificationUtils;
+import org.exoplatform.commons.utils.CommonsUtils;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+
+/**
+ * The users' data needed to build the digest mails of a digest run.
+ *
+ * The users of a page are loaded together before their digest is built, and
+ * evicted once it's done. The values which are the same for all the users,
+ * as the portal name, are computed once for the run.
+ */
+public class DigestProfileCache {
+  private static final Log LOG = ExoLogger.getLogger(DigestProfileCache.class);
+
+  private final ConcurrentMap<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
+
+  private final AtomicLong                     prefetched = new AtomicLong();
+
+  private final AtomicLong                     misses     = new AtomicLong();
+
+  private volatile String                      portalName;
+
+  private volatile String                      portalHome;
+
+  private volatile String                      from;
+
+  private volatile String                      profileUrlPrefix;
+
+  /**
+   * Loads the users of a page, the users already loaded are skipped.
+   *
+   * @param userIds the users' ids
+   */
+  public void prefetch(Collection<String> userIds) {
+    OrganizationService organizationService = CommonsUtils.getService(OrganizationService.class);
+    CommonsUtils.startRequest(organizationService);
+    try {
+      for (String userId : userIds) {
+        if (profiles.containsKey(userId)) {
+          continue;
+        }
+        profiles.putIfAbsent(userId, loadProfile(organizationService, userId));
+        prefetched.incrementAndGet();
+      }
+    } finally {
+      CommonsUtils.endRequest(organizationService);
+    }
+  }
+
+  /**
+   * Removes the users of a page once their digest is built.
+   *
+   * @param userIds the users' ids
+   */
+  public void evict(Collection<String> userIds) {
+    for (String userId : userIds) {
+      profiles.remove(userId);
+    }
+  }
+
+  /**
+   * @param userId the user's id
+   * @return true if the user doesn't exist anymore
+   */
+  public boolean isDeletedMember(String userId) {
+    Profile profile = profiles.get(userId);
+    if (profile == null) {
+      return NotificationUtils.isDeletedMember(userId);
+    }
+    return profile.deleted;
+  }
+
+  /**
+   * Gets the profile of a user, it's loaded when it has not been prefetched.
+   *
+   * @param userId the user's id
+   * @return the profile
+   */
+  public Profile getProfile(String userId) {
+    Profile profile = profiles.get(userId);
+    if (profile == null) {
+      misses.incrementAndGet();
+      OrganizationService organizationService = CommonsUtils.getService(OrganizationService.class);
+      CommonsUtils.startRequest(organizationService);
+      try {
+        profile = loadProfile(organizationService, userId);
+      } finally {
+        CommonsUtils.endRequest(organizationService);
+      }
+    }
+    return profile;
+  }
+
+  public String getPortalName() {
+    if (portalName == null) {
+      portalName = NotificationPluginUtils.getBrandingPortalName();
+    }
+    return portalName;
+  }
+
+  public String getPortalHome() {
+    if (portalHome == null) {
+      portalHome = NotificationUtils.getPortalHome(getPortalName());
+    }
+    return portalHome;
+  }
+
+  /**
+   * @return the sender of the digest mails
+   */
+  public String getFrom() {
+    if (from == null) {
+      from = NotificationPluginUtils.getFrom(null);
+    }
+    return from;
+  }
+
+  public String getProfileUrl(String userId) {
+    if (profileUrlPrefix == null) {
+      profileUrlPrefix = NotificationUtils.getProfileUrl("");
+    }
+    return profileUrlPrefix + userId;
+  }
+
+  public long getPrefetched() {
+    return prefetched.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return "DigestProfileCache[prefetched=" + prefetched.get() + ", misses=" + misses.get() + "]";
+  }
+
+  private Profile loadProfile(OrganizationService organizationService, String userId) {
+    try {
+      User user = organizationService.getUserHandler().findUserByName(userId);
+      if (user == null) {
+        return new Profile(userId, true, null, null);
+      }
+      String to = userId.indexOf("@") < 0 ? NotificationPluginUtils.getEmailFormat(user) : userId;
+      return new Profile(userId, false, user.getFirstName(), to);
+    } catch (Exception e) {
+      LOG.debug("Failed to load the user " + userId, e);
+      return new Profile(userId, false, null, null);
+    }
+  }
+
+  /**
+   * The data of a user, the language is loaded by the first digest which needs it.
+   */
+  public static class Profile {
+    private final String    userId;
+
+    private final boolean   deleted;
+
+    private final String    firstName;
+
+    private final String    to;
+
+    private volatile String language;
+
+    Profile(String userId, boolean deleted, String firstName, String to) {
+      this.userId = userId;
+      this.deleted = deleted;
+      this.firstName = firstName;
+      this.to = to;
+    }
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public String getFirstName() {
+      return firstName;
+    }
+
+    /**
+     * @return the mail address of the user with the user's full name
+     */
+    public String getTo() {
+      return to;
+    }
+
+    public String getLanguage() {
+      if (language == null) {
+        language = NotificationPluginUtils.getLanguage(userId);
+      }
+      return language;
+    }
+  }
+}
@@ -16,14 +16,10 @@
  */
 package org.exoplatform.commons.notification.impl.service.template;
 
-import java.io.StringWriter;
-import java.io.Writer;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.exoplatform.commons.api.notification.NotificationContext;
 import org.exoplatform.commons.api.notification.model.MessageInfo;
@@ -31,10 +27,10 @@ import org.exoplatform.commons.api.notification.model.NotificationInfo;
 import org.exoplatform.commons.api.notification.model.NotificationKey;
 import org.exoplatform.commons.api.notification.model.UserSetting;
 import org.exoplatform.commons.api.notification.plugin.AbstractNotificationPlugin;
-import org.exoplatform.commons.api.notification.plugin.NotificationPluginUtils;
 import org.exoplatform.commons.api.notification.service.setting.PluginSettingService;
 import org.exoplatform.commons.api.notification.service.template.DigestorService;
 import org.exoplatform.commons.api.notification.service.template.TemplateContext;
+import org.exoplatform.commons.api.notification.template.DigestWriter;
 import org.exoplatform.commons.notification.NotificationConfiguration;
 import org.exoplatform.commons.notification.NotificationContextFactory;
 import org.exoplatform.commons.notification.NotificationUtils;
@@ -52,7 +48,17 @@ import org.exoplatform.webui.utils.TimeConvertUtils;
 
 public class DigestorServiceImpl implements DigestorService {
   private static final Log LOG = ExoLogger.getLogger(DigestorServiceImpl.class);
-  private static final Pattern LI_PATTERN = Pattern.compile("<li([^>]+)>(.+?)</li>");
+
+  private static final String ONE_MESSAGE_MARGIN = "margin: 0; background-color: #F9F9F9; padding: 15px 20px;";
+
+  /** The initial size of the buffers of a digest */
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /** The size of the buffers kept for the next digest of the thread */
+  private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+  /** The buffers of the digest messages list and of the mail body, reused by the digests of a thread */
+  private static final ThreadLocal<DigestWriter[]> BUFFERS = new ThreadLocal<DigestWriter[]>();
 
   public DigestorServiceImpl() {}
   
@@ -72,7 +78,8 @@ public class DigestorServiceImpl implements DigestorService {
       List<String> activeProviders = jobContext.getPluginSettingService().getActivePluginIds();
       NotificationContext nCtx = NotificationContextImpl.cloneInstance();
       
-      Writer writer = new StringWriter();
+      DigestWriter[] buffers = acquireBuffers();
+      DigestWriter writer = buffers[0];
 
       for (String providerId : activeProviders) {
         List<NotificationInfo> messages = notificationData.get(NotificationKey.key(providerId));
@@ -85,29 +92,21 @@ public class DigestorServiceImpl implements DigestorService {
         plugin.buildDigest(nCtx, writer);
       }
 
-      StringBuffer sb = ((StringWriter) writer).getBuffer();
-      if (sb.length() == 0) {
+      if (writer.length() == 0) {
         return null;
       }
 
-      String digestMessageList = sb.toString();
-      int totalDigestMsg = 0;
-      Matcher matcher = LI_PATTERN.matcher(digestMessageList);
-      String li_attribute = null;
-      while (matcher.find()) {
-        totalDigestMsg += 1;
-        li_attribute = matcher.group(1);
-      }
-
+      int totalDigestMsg = writer.getItemCount();
       if (totalDigestMsg == 1) {
-        int beginIndex = li_attribute.indexOf("margin");
-        int endIndex = li_attribute.indexOf(";", beginIndex) + 1;
-        String replacedStr = li_attribute.substring(beginIndex, endIndex);
-        digestMessageList = digestMessageList
-            .replace(replacedStr, "margin: 0; background-color: #F9F9F9; padding: 15px 20px;");
+        setOneMessageMargin(writer);
       }
 
-      DigestInfo digestInfo = new DigestInfo(jobContext, userSetting);
+      DigestProfileCache profiles = jobContext.value(NotificationJob.DIGEST_PROFILES);
+      if (profiles == null) {
+        //the users are loaded one by one out of a digest run
+        profiles = new DigestProfileCache();
+      }
+      DigestInfo digestInfo = new DigestInfo(jobContext, profiles, userSetting);
 
       TemplateContext ctx = new TemplateContext(digestInfo.getPluginId(), digestInfo.getLocale().getLanguage());
 
@@ -119,16 +118,21 @@ public class DigestorServiceImpl implements DigestorService {
       String subject = TemplateUtils.processSubject(ctx);
       
       ctx.put("FOOTER_LINK", digestInfo.getFooterLink());
-      ctx.put("DIGEST_MESSAGES_LIST", digestMessageList);
+      //the list is written into the body by the template without being converted to a String
+      ctx.put("DIGEST_MESSAGES_LIST", writer);
       ctx.put("HAS_ONE_MESSAGE", (totalDigestMsg == 1));
 
-      String body = TemplateUtils.processGroovy(ctx);
+      DigestWriter bodyWriter = buffers[1];
+      TemplateUtils.processGroovy(ctx, bodyWriter);
+      String body = bodyWriter.toString();
 
-      messageInfo.from(NotificationPluginUtils.getFrom(null)).subject(subject)
+      messageInfo.from(profiles.getFrom()).subject(subject)
                  .body(body).to(digestInfo.getSendTo());
     } catch (Exception e) {
       LOG.error("Can not build template of DigestorProviderImpl ", e);
       return null;
+    } finally {
+      releaseBuffers();
     }
     
     LOG.debug("End build template of DigestorProviderImpl ... " + (System.currentTimeMillis() - startTime) + " ms");
@@ -141,6 +145,60 @@ public class DigestorServiceImpl implements DigestorService {
     return messageInfo;
   }
   
+  /**
+   * Gets the buffers of the current thread, they are cleared before being used.
+   * 
+   * @return the buffer of the digest messages list and the one of the body
+   */
+  private DigestWriter[] acquireBuffers() {
+    DigestWriter[] buffers = BUFFERS.get();
+    if (buffers == null) {
+      buffers = new DigestWriter[] { new DigestWriter(BUFFER_SIZE, MAX_POOLED_BUFFER_SIZE),
+                                     new DigestWriter(BUFFER_SIZE, MAX_POOLED_BUFFER_SIZE) };
+      BUFFERS.set(buffers);
+    }
+    buffers[0].reset();
+    buffers[1].reset();
+    return buffers;
+  }
+
+  /**
+   * Clears the buffers of the current thread, they're dropped when they have
+   * grown too much for a big digest.
+   */
+  private void releaseBuffers() {
+    DigestWriter[] buffers = BUFFERS.get();
+    if (buffers != null) {
+      boolean keep = buffers[0].reset();
+      keep = buffers[1].reset() && keep;
+      if (keep == false) {
+        BUFFERS.remove();
+      }
+    }
+  }
+
+  /**
+   * Replaces the margin of the only item of the digest, it's displayed as a block.
+   * 
+   * @param writer the digest messages list
+   */
+  private void setOneMessageMargin(DigestWriter writer) {
+    int itemIndex = writer.indexOfItem();
+    if (itemIndex < 0) {
+      return;
+    }
+    int tagEnd = writer.indexOf(">", itemIndex);
+    int beginIndex = writer.indexOf("margin", itemIndex);
+    if (beginIndex < 0 || beginIndex > tagEnd) {
+      return;
+    }
+    int endIndex = writer.indexOf(";", beginIndex);
+    if (endIndex < 0 || endIndex > tagEnd) {
+      return;
+    }
+    writer.replace(beginIndex, endIndex + 1, ONE_MESSAGE_MARGIN);
+  }
+
   private class DigestInfo {
     private String  firstName;
 
@@ -162,13 +220,14 @@ public class DigestorServiceImpl implements DigestorService {
 
     private Boolean isWeekly;
 
-    public DigestInfo(NotificationContext context, UserSetting userSetting) {
-      firstName = NotificationPluginUtils.getFirstName(userSetting.getUserId());
-      sendTo = NotificationPluginUtils.getTo(userSetting.getUserId());
-      portalName = NotificationPluginUtils.getBrandingPortalName();
-      String language = NotificationPluginUtils.getLanguage(userSetting.getUserId());
-      portalHome = NotificationUtils.getPortalHome(portalName);
-      footerLink = NotificationUtils.getProfileUrl(userSetting.getUserId());
+    public DigestInfo(NotificationContext context, DigestProfileCache profiles, UserSetting userSetting) {
+      DigestProfileCache.Profile profile = profiles.getProfile(userSetting.getUserId());
+      firstName = profile.getFirstName();
+      sendTo = profile.getTo();
+      portalName = profiles.getPortalName();
+      String language = profile.getLanguage();
+      portalHome = profiles.getPortalHome();
+      footerLink = profiles.getProfileUrl(userSetting.getUserId());
       locale = NotificationUtils.getLocale(language);
       
       this.isWeekly = context.value(NotificationJob.JOB_WEEKLY);
@@ -132,12 +132,17 @@ public class NotificationPluginContainer implements PluginContainer, Startable {
     } catch (Exception e) {
       LOG.debug("Failed to register notification plugin " + plugin.getId());
     }
-    pluginMap.put(plugin.getKey(), plugin);
+    if (pluginMap.put(plugin.getKey(), plugin) != null) {
+      //the plugin is redeployed, its templates may have changed
+      TemplateUtils.invalidateTemplates(plugin.getId());
+    }
   }
 
   @Override
   public boolean remove(NotificationKey key) {
-    pluginMap.remove(key);
+    if (pluginMap.remove(key) != null) {
+      TemplateUtils.invalidateTemplates(key.getId());
+    }
     return true;
   }
 
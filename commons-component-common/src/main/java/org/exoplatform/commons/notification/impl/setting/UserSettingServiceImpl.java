@@ -16,10 +16,13 @@
  */
 package org.exoplatform.commons.notification.impl.setting;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jcr.Node;
@@ -41,6 +44,8 @@ import org.exoplatform.commons.notification.impl.AbstractService;
 import org.exoplatform.commons.notification.impl.NotificationSessionManager;
 import org.exoplatform.commons.notification.job.NotificationJob;
 import org.exoplatform.commons.utils.CommonsUtils;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
 import org.exoplatform.services.log.ExoLogger;
@@ -61,10 +66,14 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
   protected static final int MAX_LIMIT = 30;
   
   transient final ReentrantLock lock = new ReentrantLock();
+
+  /** The settings of the users, read once for all the notifications sent to them */
+  private final ExoCache<String, Snapshot> snapshotCache;
   
-  public UserSettingServiceImpl(SettingService settingService, NotificationConfiguration configuration) {
+  public UserSettingServiceImpl(SettingService settingService, NotificationConfiguration configuration, CacheService cacheService) {
     this.settingService = settingService;
     this.workspace = configuration.getWorkspace();
+    this.snapshotCache = cacheService.getCacheInstance(UserSettingService.class.getSimpleName());
   }
 
   private Node getUserSettingHome(Session session) throws Exception {
@@ -87,61 +96,69 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
     String dailys = NotificationUtils.listToString(model.getDailyProviders());
     String weeklys = NotificationUtils.listToString(model.getWeeklyProviders());
 
-    saveUserSetting(userId, EXO_IS_ACTIVE, String.valueOf(model.isActive()));
-    saveUserSetting(userId, EXO_INSTANTLY, instantlys);
-    saveUserSetting(userId, EXO_DAILY, dailys);
-    saveUserSetting(userId, EXO_WEEKLY, weeklys);
+    Map<String, SettingValue<?>> values = new HashMap<String, SettingValue<?>>();
+    values.put(EXO_IS_ACTIVE, SettingValue.create(String.valueOf(model.isActive())));
+    values.put(EXO_INSTANTLY, SettingValue.create(instantlys));
+    values.put(EXO_DAILY, SettingValue.create(dailys));
+    values.put(EXO_WEEKLY, SettingValue.create(weeklys));
+    //the settings of the user are saved at once
+    settingService.setAll(Context.USER.id(userId), NOTIFICATION_SCOPE, values);
+    snapshotCache.remove(userId);
 
     removeMixin(userId);
   }
 
-  /**
-   * Using the common setting service to store the data
-   * 
-   * @param userId the userId
-   * @param key the Setting key
-   * @param value the Setting value
-   */
-  private void saveUserSetting(String userId, String key, String value) {
-    settingService.set(Context.USER.id(userId), NOTIFICATION_SCOPE, key, SettingValue.create(value));
-  }
-
   @Override
   public UserSetting get(String userId) {
-    UserSetting model = UserSetting.getInstance();
-
-    List<String> instantlys = getArrayListValue(userId, EXO_INSTANTLY, null);
-    if (instantlys != null) {
-      model.setUserId(userId);
-      model.setActive(isActive(userId));
-      model.setInstantlyProviders(instantlys);
-      model.setDailyProviders(getArrayListValue(userId, EXO_DAILY, Collections.<String> emptyList()));
-      model.setWeeklyProviders(getArrayListValue(userId, EXO_WEEKLY, Collections.<String> emptyList()));
-    } else {
-      model = UserSetting.getDefaultInstance().setUserId(userId);
-      addMixin(userId);
+    Snapshot snapshot = snapshotCache.get(userId);
+    if (snapshot == null) {
+      snapshot = loadSnapshot(userId);
+      snapshotCache.put(userId, snapshot);
+    }
+    if (snapshot.instantlys == null) {
+      return UserSetting.getDefaultInstance().setUserId(userId);
     }
+    UserSetting model = UserSetting.getInstance();
+    model.setUserId(userId);
+    model.setActive(snapshot.active);
+    model.setInstantlyProviders(snapshot.instantlys);
+    model.setDailyProviders(snapshot.dailys);
+    model.setWeeklyProviders(snapshot.weeklys);
     return model;
   }
 
-  @SuppressWarnings("unchecked")
-  private SettingValue<String> getSettingValue(String userId, String propertyName) {
-    return (SettingValue<String>) settingService.get(Context.USER.id(userId), NOTIFICATION_SCOPE, propertyName);
+  /**
+   * Reads all the settings of a user at once.
+   * 
+   * @param userId the userId
+   * @return the snapshot of the settings, without providers when the user has the default setting
+   */
+  private Snapshot loadSnapshot(String userId) {
+    Map<String, SettingValue<?>> values = settingService.get(Context.USER.id(userId), NOTIFICATION_SCOPE);
+    List<String> instantlys = getArrayListValue(values, EXO_INSTANTLY, null);
+    if (instantlys == null) {
+      addMixin(userId);
+      return new Snapshot(false, null, null, null);
+    }
+    return new Snapshot(isActive(values),
+                        instantlys,
+                        getArrayListValue(values, EXO_DAILY, Collections.<String> emptyList()),
+                        getArrayListValue(values, EXO_WEEKLY, Collections.<String> emptyList()));
   }
 
-  private List<String> getArrayListValue(String userId, String propertyName, List<String> defaultValue) {
-    SettingValue<String> values = getSettingValue(userId, propertyName);
-    if (values != null) {
-      String strs = values.getValue();
-      return Arrays.asList(strs.split(","));
+  private List<String> getArrayListValue(Map<String, SettingValue<?>> values, String propertyName, List<String> defaultValue) {
+    SettingValue<?> value = values.get(propertyName);
+    if (value != null) {
+      String strs = String.valueOf(value.getValue());
+      return Collections.unmodifiableList(Arrays.asList(strs.split(",")));
     }
     return defaultValue;
   }
 
-  private boolean isActive(String userId) {
-    SettingValue<String> values = getSettingValue(userId, EXO_IS_ACTIVE);
-    if (values != null) {
-      return Boolean.valueOf(values.getValue());
+  private boolean isActive(Map<String, SettingValue<?>> values) {
+    SettingValue<?> value = values.get(EXO_IS_ACTIVE);
+    if (value != null) {
+      return Boolean.valueOf(String.valueOf(value.getValue()));
     }
     return false;
   }
@@ -320,6 +337,8 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
     
     StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(STG_SCOPE);
     strQuery.append(" WHERE ").append(buildQuery(context));
+    //the pages are read by offset, they must have the same order at each query
+    strQuery.append(" ORDER BY jcr:path");
     
     QueryManager qm = session.getWorkspace().getQueryManager();
     QueryImpl query = (QueryImpl) qm.createQuery(strQuery.toString(), Query.SQL);
@@ -386,6 +405,7 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
     StringBuilder strQuery = new StringBuilder("SELECT * FROM ").append(MIX_DEFAULT_SETTING);
     strQuery.append(" WHERE jcr:path LIKE '/").append(SETTING_USER_PATH)
             .append("/%' AND NOT jcr:path LIKE '/").append(SETTING_USER_PATH).append("/%/%'");
+    strQuery.append(" ORDER BY jcr:path");
 
     QueryManager qm = session.getWorkspace().getQueryManager();
     QueryImpl query = (QueryImpl) qm.createQuery(strQuery.toString(), Query.SQL);
@@ -421,5 +441,27 @@ public class UserSettingServiceImpl extends AbstractService implements UserSetti
 
     return users;
   }
- 
+
+  /**
+   * The immutable settings of a user kept in the cache, the lists are shared
+   * by the UserSetting returned to the callers.
+   */
+  private static class Snapshot implements Serializable {
+    private static final long  serialVersionUID = 1L;
+
+    private final boolean      active;
+
+    private final List<String> instantlys;
+
+    private final List<String> dailys;
+
+    private final List<String> weeklys;
+
+    Snapshot(boolean active, List<String> instantlys, List<String> dailys, List<String> weeklys) {
+      this.active = active;
+      this.instantlys = instantlys;
+      this.dailys = dailys;
+      this.weeklys = weeklys;
+    }
+  }
 }
@@ -22,6 +22,7 @@ import org.exoplatform.commons.api.notification.model.ArgumentLiteral;
 import org.exoplatform.commons.api.notification.service.NotificationCompletionService;
 import org.exoplatform.commons.notification.NotificationUtils;
 import org.exoplatform.commons.notification.impl.NotificationSessionManager;
+import org.exoplatform.commons.notification.impl.service.template.DigestProfileCache;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
@@ -42,6 +43,9 @@ public abstract class NotificationJob implements Job {
   /** Define the argument parameter for WEEKLY job with Boolean type */
   public final static ArgumentLiteral<Boolean> JOB_WEEKLY = new ArgumentLiteral<Boolean>(Boolean.class, "jobWeekly");
   
+  /** Define the argument parameter for the users' data loaded by the digest run */
+  public final static ArgumentLiteral<DigestProfileCache> DIGEST_PROFILES = new ArgumentLiteral<DigestProfileCache>(DigestProfileCache.class, "digestProfiles");
+  
   public NotificationJob() {}
 
   @Override
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2003-2013 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.stat;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The distribution of latencies in a fixed number of buckets, as done by HdrHistogram:
+ * the values less than 16 have their own bucket, then each power of 2 is split
+ * into 16 buckets, so a percentile is given with an error less than 1/16.
+ *
+ * The footprint doesn't depend on the number of values, about 5KB, the values
+ * greater than 2^40 are counted in the last bucket.
+ */
+public class LatencyHistogram implements Serializable {
+  private static final long     serialVersionUID = 1L;
+
+  private static final int      SUB_BUCKET_BITS  = 4;
+
+  private static final int      SUB_BUCKETS      = 1 << SUB_BUCKET_BITS;
+
+  private static final int      MAX_MAGNITUDE    = 40;
+
+  static final int              BUCKETS          = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts           = new AtomicLongArray(BUCKETS);
+
+  private final StripedCounter  count            = new StripedCounter();
+
+  private final StripedCounter  total            = new StripedCounter();
+
+  private final AtomicLong      max              = new AtomicLong();
+
+  private final AtomicLong      min              = new AtomicLong(Long.MAX_VALUE);
+
+  public void record(long value) {
+    value = Math.max(value, 0);
+    counts.incrementAndGet(bucket(value));
+    count.increment();
+    total.add(value);
+    //the bounds rarely change, they are read before trying to update them
+    for (long old = max.get(); value > old && !max.compareAndSet(old, value); old = max.get());
+    for (long old = min.get(); value < old && !min.compareAndSet(old, value); old = min.get());
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getTotal() {
+    return total.sum();
+  }
+
+  public long getMean() {
+    long executions = count.sum();
+    return executions > 0 ? total.sum() / executions : 0;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getMin() {
+    long value = min.get();
+    return value == Long.MAX_VALUE ? 0 : value;
+  }
+
+  /**
+   * @param percentile the percentile, between 0 and 100
+   * @return the highest value of the bucket holding the percentile, 0 if there is no value
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long recorded = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      recorded += snapshot[i];
+    }
+    if (recorded == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * recorded));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Counts the values by power of 2: the bucket i counts the values less
+   * than 2^i and at least 2^(i-1).
+   * @param buckets the number of buckets
+   */
+  public long[] getPowerOf2Histogram(int buckets) {
+    long[] result = new long[buckets];
+    for (int i = 0; i < BUCKETS; i++) {
+      long c = counts.get(i);
+      if (c > 0) {
+        result[Math.min(64 - Long.numberOfLeadingZeros(highestValue(i)), buckets - 1)] += c;
+      }
+    }
+    return result;
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    total.reset();
+    max.set(0);
+    min.set(Long.MAX_VALUE);
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    if (value >>> magnitude > 1) {
+      //greater than 2^(MAX_MAGNITUDE + 1)
+      sub = SUB_BUCKETS - 1;
+    }
+    return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+  }
+
+  static long highestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+  }
+}
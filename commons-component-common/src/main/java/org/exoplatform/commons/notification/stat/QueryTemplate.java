@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2003-2013 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.stat;
+
+/**
+ * Turns a query statement into its template, so the executions of a same
+ * query for different users and paths are counted together: the literals and
+ * the numbers are replaced by '?', a list of literals by a single '?', and
+ * the spaces are collapsed.
+ */
+public final class QueryTemplate {
+
+  private static final char PARAMETER = '?';
+
+  private QueryTemplate() {
+  }
+
+  public static String normalize(String statement) {
+    int length = statement.length();
+    StringBuilder sb = new StringBuilder(Math.min(length, 256));
+    boolean space = false;
+    for (int i = 0; i < length; i++) {
+      char c = statement.charAt(i);
+      if (c == '\'') {
+        //'' is a quote inside the literal
+        int end = i + 1;
+        while (end < length) {
+          if (statement.charAt(end) == '\'') {
+            if (end + 1 < length && statement.charAt(end + 1) == '\'') {
+              end += 2;
+              continue;
+            }
+            break;
+          }
+          end++;
+        }
+        space = appendParameter(sb, space);
+        i = end;
+      } else if (Character.isDigit(c) && (sb.length() == 0 || space || isIdentifierPart(sb.charAt(sb.length() - 1)) == false)) {
+        int end = i + 1;
+        while (end < length && (Character.isDigit(statement.charAt(end)) || statement.charAt(end) == '.')) {
+          end++;
+        }
+        space = appendParameter(sb, space);
+        i = end - 1;
+      } else if (Character.isWhitespace(c)) {
+        space = true;
+      } else {
+        if (space && sb.length() > 0) {
+          sb.append(' ');
+        }
+        space = false;
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Appends a parameter, unless it follows a parameter in a list.
+   * @return the new value of the pending space
+   */
+  private static boolean appendParameter(StringBuilder sb, boolean space) {
+    int end = sb.length();
+    if (end >= 2 && sb.charAt(end - 1) == ',' && sb.charAt(end - 2) == PARAMETER) {
+      sb.setLength(end - 1);
+      return false;
+    }
+    if (space && end > 0) {
+      sb.append(' ');
+    }
+    sb.append(PARAMETER);
+    return false;
+  }
+
+  private static boolean isIdentifierPart(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == ':' || c == '-';
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2003-2013 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.stat;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells, the threads add to the cell of their
+ * id so they don't contend on a same value. The cells are padded so that two
+ * cells don't share a cache line.
+ */
+public class StripedCounter implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** The number of cells, a power of 2 */
+  private static final int  STRIPES          = stripes();
+
+  /** 8 longs fill a cache line of 64 bytes */
+  private static final int  PADDING          = 8;
+
+  private final AtomicLongArray cells        = new AtomicLongArray(STRIPES * PADDING);
+
+  public void add(long value) {
+    cells.addAndGet(index(), value);
+  }
+
+  public void increment() {
+    add(1);
+  }
+
+  /**
+   * @return the sum of the cells, the concurrent additions may be missed
+   */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  public void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PADDING, 0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(sum());
+  }
+
+  private static int index() {
+    long id = Thread.currentThread().getId();
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+  }
+
+  private static int stripes() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    return Math.min(Integer.highestOneBit(Math.max(processors, 1) * 2 - 1) << 1, 64);
+  }
+}
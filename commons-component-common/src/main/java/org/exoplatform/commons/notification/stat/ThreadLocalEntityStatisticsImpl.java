@@ -16,8 +16,6 @@
  */
 package org.exoplatform.commons.notification.stat;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 import org.exoplatform.commons.api.notification.stat.EntityStatistics;
 
 /**
@@ -27,51 +25,52 @@ import org.exoplatform.commons.api.notification.stat.EntityStatistics;
  * Oct 11, 2013  
  */
 public class ThreadLocalEntityStatisticsImpl implements EntityStatistics {
+  private static final long serialVersionUID = 1L;
   
-  private AtomicLong deleteCount = new AtomicLong();
-  private AtomicLong insertCount = new AtomicLong();
-  private AtomicLong loadCount = new AtomicLong();
-  private AtomicLong updateCount = new AtomicLong();
+  private final StripedCounter deleteCount = new StripedCounter();
+  private final StripedCounter insertCount = new StripedCounter();
+  private final StripedCounter loadCount = new StripedCounter();
+  private final StripedCounter updateCount = new StripedCounter();
   
 
   @Override
   public long getDeleteCount() {
-    return deleteCount.get();
+    return deleteCount.sum();
   }
 
   @Override
   public long getInsertCount() {
-    return insertCount.get();
+    return insertCount.sum();
   }
 
   @Override
   public long getLoadCount() {
-    return loadCount.get();
+    return loadCount.sum();
   }
 
   @Override
   public long getUpdateCount() {
-    return updateCount.get();
+    return updateCount.sum();
   }
 
   @Override
   public void incrementDeleteCount() {
-    deleteCount.incrementAndGet();
+    deleteCount.increment();
   }
 
   @Override
   public void incrementInsertCount() {
-    insertCount.incrementAndGet();
+    insertCount.increment();
   }
 
   @Override
   public void incrementLoadCount() {
-    loadCount.incrementAndGet();
+    loadCount.increment();
   }
 
   @Override
   public void incrementUpdateCount() {
-    updateCount.incrementAndGet();
+    updateCount.increment();
   }
   
   @Override
@@ -16,8 +16,6 @@
  */
 package org.exoplatform.commons.notification.stat;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 import org.exoplatform.commons.api.notification.stat.PluginStatistics;
 
 /**
@@ -27,24 +25,41 @@ import org.exoplatform.commons.api.notification.stat.PluginStatistics;
  * Oct 10, 2013  
  */
 public class ThreadLocalPluginStatisticsImpl implements PluginStatistics {
+  private static final long serialVersionUID = 1L;
   
-  private AtomicLong createMessageInfoCount = new AtomicLong();
-  private AtomicLong createdNotificationInfoCount = new AtomicLong();
-  private AtomicLong createDigestCount = new AtomicLong();
+  private final StripedCounter createMessageInfoCount = new StripedCounter();
+  private final StripedCounter createdNotificationInfoCount = new StripedCounter();
+  private final StripedCounter createDigestCount = new StripedCounter();
+  private final LatencyHistogram executionTime = new LatencyHistogram();
 
   @Override
   public long getCreateMessageInfoCount() {
-    return createMessageInfoCount.get();
+    return createMessageInfoCount.sum();
   }
 
   @Override
   public long getCreateNotificationInfoCount() {
-    return createdNotificationInfoCount.get();
+    return createdNotificationInfoCount.sum();
   }
 
   @Override
   public long getCreateDigestCount() {
-    return createDigestCount.get();
+    return createDigestCount.sum();
+  }
+
+  @Override
+  public long getExecutionCount() {
+    return executionTime.getCount();
+  }
+
+  @Override
+  public long getExecutionMaxTime() {
+    return executionTime.getMax();
+  }
+
+  @Override
+  public long getExecutionTimePercentile(double percentile) {
+    return executionTime.getValueAtPercentile(percentile);
   }
   
   @Override
@@ -54,23 +69,30 @@ public class ThreadLocalPluginStatisticsImpl implements PluginStatistics {
     .append("createMessageCount=").append(this.createMessageInfoCount)
     .append(",createNotificationCount=").append(this.createdNotificationInfoCount)
     .append(",createDigestCount=").append(this.createDigestCount)
+    .append(",executionP50Time=").append(this.getExecutionTimePercentile(50))
+    .append(",executionP99Time=").append(this.getExecutionTimePercentile(99))
+    .append(",executionMaxTime=").append(this.getExecutionMaxTime())
     .append(']')
     .toString();
   }
 
   @Override
   public void incrementCreateMessageCount() {
-    this.createMessageInfoCount.incrementAndGet();
+    this.createMessageInfoCount.increment();
   }
 
   @Override
   public void incrementCreateNotificationCount() {
-    this.createdNotificationInfoCount.incrementAndGet();
+    this.createdNotificationInfoCount.increment();
   }
 
   @Override
   public void incrementCreateDigestCount() {
-    this.createDigestCount.incrementAndGet();
+    this.createDigestCount.increment();
   }
-}
 
+  @Override
+  public void executed(long time) {
+    executionTime.record(time);
+  }
+}
@@ -16,11 +16,6 @@
  */
 package org.exoplatform.commons.notification.stat;
 
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
 import org.exoplatform.commons.api.notification.stat.QueryStatistics;
 
 /**
@@ -28,88 +23,62 @@ import org.exoplatform.commons.api.notification.stat.QueryStatistics;
  * Author : eXoPlatform
  *          thanhvc@exoplatform.com
  * Oct 11, 2013  
+ *
+ * The executions of a query template, counted without lock.
  */
 public class ThreadLocalQueryStatisticsImpl implements QueryStatistics {
+  private static final long serialVersionUID = 1L;
 
-  private final AtomicLong executionCount = new AtomicLong();
-  private final AtomicLong executionRowCount = new AtomicLong();
-  private final AtomicLong executionMaxTime = new AtomicLong();
-  private final AtomicLong executionMinTime = new AtomicLong(Long.MAX_VALUE);
-  private final AtomicLong totalExecutionTime = new AtomicLong();
-  
-  private final Lock readLock;
-  private final Lock writeLock;
-  
-  {
-    ReadWriteLock lock = new ReentrantReadWriteLock();
-    readLock = lock.readLock();
-    writeLock = lock.writeLock();
-  }
-
+  private final StripedCounter executionRowCount = new StripedCounter();
+  private final LatencyHistogram executionTime = new LatencyHistogram();
   
   @Override
   public long getExecutionCount() {
-    return executionCount.get();
+    return executionTime.getCount();
   }
 
   @Override
   public long getExecutionRowCount() {
-    return executionRowCount.get();
+    return executionRowCount.sum();
   }
 
   @Override
   public long getExecutionAvgTime() {
- // We write lock here to be sure that we always calculate the average time
-    // with all updates from the executed applied: executionCount and totalExecutionTime
-    // both used in the calculation
-    writeLock.lock();
-    try {
-      long avgExecutionTime = 0;
-      if (executionCount.get() > 0) {
-        avgExecutionTime = totalExecutionTime.get() / executionCount.get();
-      }
-      return avgExecutionTime;
-    } finally {
-      writeLock.unlock();
-    }
+    return executionTime.getMean();
   }
 
   @Override
   public long getExecutionMaxTime() {
-    return executionMaxTime.get();
+    return executionTime.getMax();
   }
 
   @Override
   public long getExecutionMinTime() {
-    return executionMinTime.get();
+    return executionTime.getMin();
+  }
+
+  @Override
+  public long getExecutionTimePercentile(double percentile) {
+    return executionTime.getValueAtPercentile(percentile);
   }
 
   @Override
   public void executed(long rows, long time) {
- // read lock is enough, concurrent updates are supported by the underlying type AtomicLong
-    // this only guards executed(long, long) to be called, when another thread is executing getExecutionAvgTime()
-    readLock.lock();
-    try {
-      // Less chances for a context switch
-      for (long old = executionMinTime.get(); (time < old) && !executionMinTime.compareAndSet(old, time); old = executionMinTime.get());
-      for (long old = executionMaxTime.get(); (time > old) && !executionMaxTime.compareAndSet(old, time); old = executionMaxTime.get());
-      executionCount.getAndIncrement();
-      executionRowCount.addAndGet(rows);
-      totalExecutionTime.addAndGet(time);
-    } finally {
-      readLock.unlock();
-    }
+    executionRowCount.add(rows);
+    executionTime.record(time);
   }
   
   @Override
   public String toString() {
     return new StringBuilder()
         .append("QueryStatistics[")
-        .append("executionCount=").append(this.executionCount)
+        .append("executionCount=").append(this.getExecutionCount())
         .append(",executionRowCount=").append(this.executionRowCount)
         .append(",executionAvgTime=").append(this.getExecutionAvgTime())
-        .append(",executionMaxTime=").append(this.executionMaxTime)
-        .append(",executionMinTime=").append(this.executionMinTime)
+        .append(",executionP50Time=").append(this.getExecutionTimePercentile(50))
+        .append(",executionP99Time=").append(this.getExecutionTimePercentile(99))
+        .append(",executionMaxTime=").append(this.getExecutionMaxTime())
+        .append(",executionMinTime=").append(this.getExecutionMinTime())
         .append(']')
         .toString();
   }
@@ -16,8 +16,6 @@
  */
 package org.exoplatform.commons.notification.stat;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 import org.exoplatform.commons.api.notification.stat.QueueStatistics;
 
 /**
@@ -27,28 +25,45 @@ import org.exoplatform.commons.api.notification.stat.QueueStatistics;
  * Oct 11, 2013  
  */
 public class ThreadLocalQueueStatisticsImpl implements QueueStatistics {
+  private static final long serialVersionUID = 1L;
 
-  private AtomicLong putCount = new AtomicLong();
-  private AtomicLong pollCount = new AtomicLong();
+  private final StripedCounter putCount = new StripedCounter();
+  private final StripedCounter pollCount = new StripedCounter();
+  private final LatencyHistogram waitTime = new LatencyHistogram();
   
   @Override
   public long getPollCount() {
-    return pollCount.get();
+    return pollCount.sum();
   }
 
   @Override
   public long getPutCount() {
-    return putCount.get();
+    return putCount.sum();
   }
 
   @Override
   public void incrementPollCount() {
-    pollCount.incrementAndGet();
+    pollCount.increment();
   }
 
   @Override
   public void incrementPutCount() {
-    putCount.incrementAndGet();
+    putCount.increment();
+  }
+
+  @Override
+  public long getWaitMaxTime() {
+    return waitTime.getMax();
+  }
+
+  @Override
+  public long getWaitTimePercentile(double percentile) {
+    return waitTime.getValueAtPercentile(percentile);
+  }
+
+  @Override
+  public void waited(long time) {
+    waitTime.record(time);
   }
   
   @Override
@@ -57,6 +72,9 @@ public class ThreadLocalQueueStatisticsImpl implements QueueStatistics {
         .append("QueueStatistics[")
         .append("putCount=").append(this.putCount)
         .append(",pollCount=").append(this.pollCount)
+        .append(",waitP50Time=").append(this.getWaitTimePercentile(50))
+        .append(",waitP99Time=").append(this.getWaitTimePercentile(99))
+        .append(",waitMaxTime=").append(this.getWaitMaxTime())
         .append(']')
         .toString();
   }
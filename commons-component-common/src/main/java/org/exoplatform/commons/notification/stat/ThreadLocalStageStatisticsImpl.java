@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2003-2013 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.stat;
+
+import org.exoplatform.commons.api.notification.stat.StageStatistics;
+
+/**
+ * The latencies of a stage, the executions are counted without lock in a
+ * {@link LatencyHistogram}.
+ */
+public class ThreadLocalStageStatisticsImpl implements StageStatistics {
+  private static final long      serialVersionUID = 1L;
+
+  /** 2^39 microseconds is more than 6 days */
+  private static final int       BUCKETS          = 40;
+
+  private final LatencyHistogram executionTime    = new LatencyHistogram();
+
+  @Override
+  public long getExecutionCount() {
+    return executionTime.getCount();
+  }
+
+  @Override
+  public long getExecutionAvgTime() {
+    return executionTime.getMean();
+  }
+
+  @Override
+  public long getExecutionMaxTime() {
+    return executionTime.getMax();
+  }
+
+  @Override
+  public long getExecutionMinTime() {
+    return executionTime.getMin();
+  }
+
+  @Override
+  public long[] getHistogram() {
+    return executionTime.getPowerOf2Histogram(BUCKETS);
+  }
+
+  @Override
+  public long getExecutionTimePercentile(double percentile) {
+    return executionTime.getValueAtPercentile(percentile);
+  }
+
+  @Override
+  public void executed(long time) {
+    executionTime.record(time);
+  }
+
+  /**
+   * @return the index of the power of 2 bucket of a time in {@link #getHistogram()}
+   */
+  static int bucket(long time) {
+    return Math.min(64 - Long.numberOfLeadingZeros(time), BUCKETS - 1);
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder()
+        .append("StageStatistics[")
+        .append("executionCount=").append(this.getExecutionCount())
+        .append(",executionAvgTime=").append(this.getExecutionAvgTime())
+        .append(",executionP50Time=").append(this.getExecutionTimePercentile(50))
+        .append(",executionP99Time=").append(this.getExecutionTimePercentile(99))
+        .append(",executionMaxTime=").append(this.getExecutionMaxTime())
+        .append(",executionMinTime=").append(this.getExecutionMinTime())
+        .append(']')
+        .toString();
+  }
+}
@@ -24,6 +24,7 @@ import org.exoplatform.commons.api.notification.stat.EntityStatistics;
 import org.exoplatform.commons.api.notification.stat.PluginStatistics;
 import org.exoplatform.commons.api.notification.stat.QueryStatistics;
 import org.exoplatform.commons.api.notification.stat.QueueStatistics;
+import org.exoplatform.commons.api.notification.stat.StageStatistics;
 import org.exoplatform.commons.api.notification.stat.Statistics;
 import org.exoplatform.commons.api.notification.stat.StatisticsCollector;
 import org.exoplatform.commons.notification.impl.PluginStatisticService;
@@ -34,25 +35,35 @@ import org.hibernate.internal.util.collections.ArrayHelper;
  * Author : eXoPlatform
  *          thanhvc@exoplatform.com
  * Oct 10, 2013  
+ *
+ * The counters are striped so the threads of the notification don't contend
+ * on them, and the statistics by name are bounded: once {@link #MAX_KEYS} names
+ * are known, the others are counted under {@link #OTHER_KEY}.
  */
 public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollector {
 
+  /** The maximum number of names kept in each statistics map */
+  public static final int MAX_KEYS = 200;
+
+  /** The name under which the statistics are counted once a map is full */
+  public static final String OTHER_KEY = "<other>";
+
   private volatile boolean isStatisticsEnabled;
   private volatile long startTime;
   
-  private AtomicLong entityLoadCount = new AtomicLong();
-  private AtomicLong entityUpdateCount = new AtomicLong();
-  private AtomicLong entityInsertCount = new AtomicLong();
-  private AtomicLong entityDeleteCount = new AtomicLong();
+  private final StripedCounter entityLoadCount = new StripedCounter();
+  private final StripedCounter entityUpdateCount = new StripedCounter();
+  private final StripedCounter entityInsertCount = new StripedCounter();
+  private final StripedCounter entityDeleteCount = new StripedCounter();
   
-  private AtomicLong queuePutCount = new AtomicLong();
-  private AtomicLong queuePollCount = new AtomicLong();
+  private final StripedCounter queuePutCount = new StripedCounter();
+  private final StripedCounter queuePollCount = new StripedCounter();
   
-  private AtomicLong messageCreatedCount = new AtomicLong();
-  private AtomicLong notificationCreatedCount = new AtomicLong();
-  private AtomicLong digestCreatedCount = new AtomicLong();
+  private final StripedCounter messageCreatedCount = new StripedCounter();
+  private final StripedCounter notificationCreatedCount = new StripedCounter();
+  private final StripedCounter digestCreatedCount = new StripedCounter();
   
-  private AtomicLong queryExecutionCount = new AtomicLong();
+  private final StripedCounter queryExecutionCount = new StripedCounter();
   private AtomicLong queryExecutionMaxTime = new AtomicLong();
   private volatile String queryExecutionMaxTimeQueryString;
   
@@ -75,9 +86,13 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
    */
   private final ConcurrentMap<String, EntityStatistics> entityStatistics = new ConcurrentHashMap<String, EntityStatistics>();
   /**
-   * entity statistics per query string
+   * query statistics per query template
    */
   private final ConcurrentMap<String, QueryStatistics> queryStatistics = new ConcurrentHashMap<String, QueryStatistics>();
+  /**
+   * stage statistics per stage name
+   */
+  private final ConcurrentMap<String, StageStatistics> stageStatistics = new ConcurrentHashMap<String, StageStatistics>();
   
   public ThreadLocalStatisticsImpl(PluginStatisticService pluginStatistic) {
     clear();
@@ -86,71 +101,78 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
   
   @Override
   public void clear() {
-    entityLoadCount.set(0);
-    entityUpdateCount.set(0);
-    entityInsertCount.set(0);
-    entityDeleteCount.set(0);
+    entityLoadCount.reset();
+    entityUpdateCount.reset();
+    entityInsertCount.reset();
+    entityDeleteCount.reset();
     
-    queryExecutionCount.set(0);
+    queryExecutionCount.reset();
     queryExecutionMaxTime.set(0);
     
+    messageCreatedCount.reset();
+    notificationCreatedCount.reset();
+    digestCreatedCount.reset();
+    
     entityStatistics.clear();
     queryStatistics.clear();
+    stageStatistics.clear();
+    pluginStatistics.clear();
+    queueStatistics.clear();
     
-    queuePutCount.set(0);
-    queuePollCount.set(0);
+    queuePutCount.reset();
+    queuePollCount.reset();
     
     startTime = System.currentTimeMillis();
   }
   
   @Override
   public void createMessageInfoCount(String pluginId) {
-    messageCreatedCount.incrementAndGet();
+    messageCreatedCount.increment();
     pluginStatistic.increaseCreatedMessageCount(pluginId);
     getPluginStatistics(pluginId).incrementCreateMessageCount();
   }
 
   @Override
   public void createNotificationInfoCount(String pluginId) {
-    notificationCreatedCount.incrementAndGet();
+    notificationCreatedCount.increment();
     pluginStatistic.increaseCreatedNotifCount(pluginId);
     getPluginStatistics(pluginId).incrementCreateNotificationCount();
   }
 
   @Override
   public void createDigestCount(String pluginId) {
-    digestCreatedCount.incrementAndGet();
+    digestCreatedCount.increment();
     pluginStatistic.increaseCreatedDigestCount(pluginId);
     getPluginStatistics(pluginId).incrementCreateDigestCount();
   }
 
   @Override
   public void deleteEntity(String nodeType) {
-    entityDeleteCount.incrementAndGet();
+    entityDeleteCount.increment();
     getEntityStatistics(nodeType).incrementDeleteCount();
   }
 
   @Override
   public void insertEntity(String nodeType) {
-    entityInsertCount.incrementAndGet();
+    entityInsertCount.increment();
     getEntityStatistics(nodeType).incrementInsertCount();
   }
 
   @Override
   public void updateEntity(String nodeType) {
-    entityUpdateCount.incrementAndGet();
+    entityUpdateCount.increment();
     getEntityStatistics(nodeType).incrementUpdateCount();
   }
 
   @Override
   public void loadEntity(String nodeType) {
-    entityLoadCount.incrementAndGet();
+    entityLoadCount.increment();
     getEntityStatistics(nodeType).incrementLoadCount();
   }
 
   @Override
   public void queryExecuted(String statement, long rows, long time) {
-    queryExecutionCount.getAndIncrement();
+    queryExecutionCount.increment();
     boolean isLongestQuery = false;
     
     for ( long old = queryExecutionMaxTime.get();
@@ -162,32 +184,44 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
       queryExecutionMaxTimeQueryString = statement;
     }
     if ( statement != null ) {
-      getQueryStatistics(statement).executed(rows, time);
+      getQueryStatistics(QueryTemplate.normalize(statement)).executed(rows, time);
     }
     
   }
   
   @Override
   public void pollQueue(String pluginId) {
-    queuePollCount.incrementAndGet();
+    queuePollCount.increment();
     getQueueStatistics(pluginId).incrementPollCount();
   }
 
+  @Override
+  public void pollQueue(String pluginId, long waitTime) {
+    pollQueue(pluginId);
+    getQueueStatistics(pluginId).waited(waitTime);
+  }
+
   @Override
   public void putQueue(String pluginId) {
-    queuePutCount.incrementAndGet();
+    queuePutCount.increment();
     getQueueStatistics(pluginId).incrementPutCount();
   }
 
+  @Override
+  public void stageExecuted(String stage, long time) {
+    getStageStatistics(stage).executed(time);
+  }
+
+  @Override
+  public void pluginExecuted(String pluginId, long time) {
+    getPluginStatistics(pluginId).executed(time);
+  }
+
   @Override
   public PluginStatistics getPluginStatistics(String pluginId) {
     PluginStatistics ps = pluginStatistics.get(pluginId);
     if ( ps == null ) {
-      ps = new ThreadLocalPluginStatisticsImpl();
-      PluginStatistics previous;
-      if ( ( previous = pluginStatistics.putIfAbsent(pluginId, ps)) != null ) {
-        ps = previous;
-      }
+      ps = getOrCreate(pluginStatistics, pluginId, new ThreadLocalPluginStatisticsImpl());
     }
     return ps;
   }
@@ -196,11 +230,7 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
   public EntityStatistics getEntityStatistics(String nodeType) {
     EntityStatistics es = entityStatistics.get(nodeType);
     if ( es == null ) {
-      es = new ThreadLocalEntityStatisticsImpl();
-      EntityStatistics previous;
-      if ( ( previous = entityStatistics.putIfAbsent(nodeType, es)) != null ) {
-        es = previous;
-      }
+      es = getOrCreate(entityStatistics, nodeType, new ThreadLocalEntityStatisticsImpl());
     }
     return es;
   }
@@ -209,11 +239,7 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
   public QueueStatistics getQueueStatistics(String pluginId) {
     QueueStatistics qs = queueStatistics.get(pluginId);
     if ( qs == null ) {
-      qs = new ThreadLocalQueueStatisticsImpl();
-      QueueStatistics previous;
-      if ( ( previous = queueStatistics.putIfAbsent(pluginId, qs)) != null ) {
-        qs = previous;
-      }
+      qs = getOrCreate(queueStatistics, pluginId, new ThreadLocalQueueStatisticsImpl());
     }
     return qs;
   }
@@ -222,33 +248,54 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
   public QueryStatistics getQueryStatistics(String queryString) {
     QueryStatistics qs = queryStatistics.get(queryString);
     if ( qs == null ) {
-      qs = new ThreadLocalQueryStatisticsImpl();
-      QueryStatistics previous;
-      if ( ( previous = queryStatistics.putIfAbsent(queryString, qs)) != null ) {
-        qs = previous;
-      }
+      qs = getOrCreate(queryStatistics, queryString, new ThreadLocalQueryStatisticsImpl());
     }
     return qs;
   }
 
+  @Override
+  public StageStatistics getStageStatistics(String stage) {
+    StageStatistics ss = stageStatistics.get(stage);
+    if ( ss == null ) {
+      ss = getOrCreate(stageStatistics, stage, new ThreadLocalStageStatisticsImpl());
+    }
+    return ss;
+  }
+
+  /**
+   * Gets the statistics of a name, the statistics of {@link #OTHER_KEY} once
+   * the map is full.
+   */
+  private static <T> T getOrCreate(ConcurrentMap<String, T> statistics, String key, T created) {
+    if (statistics.size() >= MAX_KEYS) {
+      key = OTHER_KEY;
+      T other = statistics.get(key);
+      if (other != null) {
+        return other;
+      }
+    }
+    T previous = statistics.putIfAbsent(key, created);
+    return previous != null ? previous : created;
+  }
+
   @Override
   public long getEntityDeleteCount() {
-    return entityDeleteCount.get();
+    return entityDeleteCount.sum();
   }
 
   @Override
   public long getEntityLoadCount() {
-    return entityLoadCount.get();
+    return entityLoadCount.sum();
   }
 
   @Override
   public long getEntityInsertCount() {
-    return entityInsertCount.get();
+    return entityInsertCount.sum();
   }
 
   @Override
   public long getQueryExecutionCount() {
-    return queryExecutionCount.get();
+    return queryExecutionCount.sum();
   }
 
   @Override
@@ -275,6 +322,16 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
   public String[] getPluginNames() {
     return ArrayHelper.toStringArray( pluginStatistics.keySet() );
   }
+
+  @Override
+  public String[] getQueueNames() {
+    return ArrayHelper.toStringArray( queueStatistics.keySet() );
+  }
+
+  @Override
+  public String[] getStages() {
+    return ArrayHelper.toStringArray( stageStatistics.keySet() );
+  }
   
   public long getStartTime() {
     return startTime;
@@ -301,27 +358,27 @@ public class ThreadLocalStatisticsImpl implements Statistics, StatisticsCollecto
 
   @Override
   public long getQueuePutCount() {
-    return queuePutCount.get();
+    return queuePutCount.sum();
   }
 
   @Override
   public long getQueuePollCount() {
-    return queuePollCount.get();
+    return queuePollCount.sum();
   }
 
   @Override
   public long getMessageCreatedCount() {
-    return messageCreatedCount.get();
+    return messageCreatedCount.sum();
   }
 
   @Override
   public long getNotificationCreatedCount() {
-    return notificationCreatedCount.get();
+    return notificationCreatedCount.sum();
   }
 
   @Override
   public long getDigestCreatedCount() {
-    return digestCreatedCount.get();
+    return digestCreatedCount.sum();
   }
 
   @Override
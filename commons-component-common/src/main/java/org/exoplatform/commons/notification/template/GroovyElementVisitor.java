@@ -43,7 +43,14 @@ public class GroovyElementVisitor implements ElementVisitor {
   private final Writer writer;
   private TemplateContext ctx;
   public GroovyElementVisitor() {
-    writer = new StringWriter();
+    this(new StringWriter());
+  }
+
+  /**
+   * @param writer the writer receiving the content of the template
+   */
+  public GroovyElementVisitor(Writer writer) {
+    this.writer = writer;
   }
   
   @Override
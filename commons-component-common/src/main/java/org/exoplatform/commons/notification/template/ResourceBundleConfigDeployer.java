@@ -75,11 +75,17 @@ public class ResourceBundleConfigDeployer implements WebAppListener {
   }
 
   private void remove(WebApp webApp) {
-    contexts.remove(webApp.getContextPath());
+    if (contexts.remove(webApp.getContextPath()) != null) {
+      //the templates of the webapp are not available anymore
+      TemplateUtils.invalidateTemplates(null);
+    }
   }
 
   private void add(WebApp webApp) {
-    contexts.put(webApp.getContextPath(), webApp);
+    if (contexts.put(webApp.getContextPath(), webApp) != null) {
+      //the webapp is redeployed, its templates may have changed
+      TemplateUtils.invalidateTemplates(null);
+    }
   }
 
   /**
@@ -133,6 +139,8 @@ public class ResourceBundleConfigDeployer implements WebAppListener {
           addResourceBundleByPlugin(path);
         }
       }
+      //the templates cached before are built with the previous resource bundles
+      TemplateUtils.invalidateTemplates(null);
       
     } catch (Exception e) {
       LOG.debug("Error when initializing resource bundle of Notification.", e);
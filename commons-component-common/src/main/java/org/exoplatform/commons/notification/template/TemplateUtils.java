@@ -37,6 +37,8 @@ import org.exoplatform.commons.api.notification.service.template.TemplateContext
 import org.exoplatform.commons.api.notification.template.Element;
 import org.exoplatform.commons.api.notification.template.ElementVisitor;
 import org.exoplatform.commons.notification.NotificationUtils;
+import org.exoplatform.commons.notification.cache.ElementCacheKey;
+import org.exoplatform.commons.notification.cache.TemplateCaching;
 import org.exoplatform.commons.notification.impl.NotificationContextImpl;
 import org.exoplatform.commons.utils.CommonsUtils;
 import org.exoplatform.container.configuration.ConfigurationManager;
@@ -64,12 +66,31 @@ public class TemplateUtils {
    * @return
    */
   public static String processGroovy(TemplateContext ctx) {
-    Element groovyElement = loadGroovyElement(ctx.getPluginId(), ctx.getLanguage());
-    
     ElementVisitor visitor = new GroovyElementVisitor();
-    String content = visitor.with(ctx).visit(groovyElement).out();
+    String content = visitor.with(ctx).visit(getGroovyElement(ctx)).out();
     return content;
   }
+
+  /**
+   * Process the Groovy template associate with Template context, the content
+   * is written into the given writer.
+   * @param ctx
+   * @param out
+   */
+  public static void processGroovy(TemplateContext ctx, Writer out) {
+    new GroovyElementVisitor(out).with(ctx).visit(getGroovyElement(ctx));
+  }
+
+  private static Element getGroovyElement(TemplateContext ctx) {
+    Element groovyElement;
+    TemplateCaching templateCaching = CommonsUtils.getService(TemplateCaching.class);
+    if (templateCaching != null) {
+      groovyElement = templateCaching.getTemplateElement(new ElementCacheKey(ctx.getPluginId(), ctx.getLanguage()));
+    } else {
+      groovyElement = loadGroovyElement(ctx.getPluginId(), ctx.getLanguage());
+    }
+    return groovyElement;
+  }
   
   /**
    * Generate the Groovy Template
@@ -87,7 +108,7 @@ public class TemplateUtils {
         element.template(groovyTemplate);
       }
       if (groovyTemplate != null && groovyTemplate.length() > 0) {
-        GroovyTemplate gTemplate = new GroovyTemplate(groovyTemplate);
+        GroovyTemplate gTemplate = getGroovyTemplate(context.getPluginId(), element.getLanguage(), groovyTemplate);
         gTemplate.render(out, context);
       }
     } catch (ClassCastException e) {
@@ -97,6 +118,48 @@ public class TemplateUtils {
     }
   }
   
+  /**
+   * Gets the compiled template from the cache, the template is compiled
+   * on each call when the cache is not available.
+   * 
+   * @param pluginId
+   * @param language
+   * @param groovyTemplate the text of the template
+   * @return
+   * @throws Exception
+   */
+  private static GroovyTemplate getGroovyTemplate(String pluginId, String language, String groovyTemplate) throws Exception {
+    TemplateCaching templateCaching = CommonsUtils.getService(TemplateCaching.class);
+    if (templateCaching == null) {
+      return new GroovyTemplate(groovyTemplate);
+    }
+    return templateCaching.getGroovyTemplate(pluginId, language, groovyTemplate);
+  }
+
+  /**
+   * Removes the cached templates of a plugin when it's redeployed or when its
+   * resource bundles are reloaded.
+   * 
+   * @param pluginId the plugin's id, null for all the plugins
+   */
+  public static void invalidateTemplates(String pluginId) {
+    if (pluginId == null) {
+      cacheTemplate.clear();
+    } else {
+      String digestKey = makeTemplateKey(DIGEST_TEMPLATE_KEY, pluginId, "");
+      String simpleKey = makeTemplateKey(SIMPLE_TEMPLATE_KEY, pluginId, "");
+      for (String key : cacheTemplate.keySet()) {
+        if (key.startsWith(digestKey) || key.startsWith(simpleKey)) {
+          cacheTemplate.remove(key);
+        }
+      }
+    }
+    TemplateCaching templateCaching = CommonsUtils.getService(TemplateCaching.class);
+    if (templateCaching != null) {
+      templateCaching.invalidate(pluginId);
+    }
+  }
+
   /**
    * Gets InputStream for groovy template
    * 
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.search.impl;
+
+/**
+ * Brings the relevancy of the results of a connector to a common scale, so the
+ * results of the connectors can be merged by relevancy. The normalizer gets
+ * the range of the relevancies of the results of the connector for a search.
+ *
+ * The normalizer of a connector is set by search type in the
+ * relevancy.normalizers properties param of the SearchServiceImpl, with the
+ * name of a provided normalizer (none, max, minmax) or a class name.
+ */
+public interface RelevancyNormalizer {
+
+  /** The relevancy of the best result once normalized */
+  long                SCALE   = 1000000L;
+
+  /** Keeps the relevancy given by the connector */
+  RelevancyNormalizer NONE    = new RelevancyNormalizer() {
+                                public long normalize(long relevancy, long min, long max) {
+                                  return relevancy;
+                                }
+                              };
+
+  /** Divides the relevancy by the best relevancy of the connector */
+  RelevancyNormalizer MAX     = new RelevancyNormalizer() {
+                                public long normalize(long relevancy, long min, long max) {
+                                  return max <= 0 ? 0 : (long) ((double) relevancy / max * SCALE);
+                                }
+                              };
+
+  /** Spreads the relevancies of the connector between 0 and SCALE */
+  RelevancyNormalizer MIN_MAX = new RelevancyNormalizer() {
+                                public long normalize(long relevancy, long min, long max) {
+                                  return max == min ? SCALE : (long) ((double) (relevancy - min) / (max - min) * SCALE);
+                                }
+                              };
+
+  /**
+   * @param relevancy the relevancy of a result of the connector
+   * @param min the lowest relevancy of the results of the connector
+   * @param max the highest relevancy of the results of the connector
+   * @return the normalized relevancy
+   */
+  long normalize(long relevancy, long min, long max);
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.search.impl;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.exoplatform.commons.api.search.data.SearchContext;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.IdentityConstants;
+import org.exoplatform.services.security.MembershipEntry;
+import org.exoplatform.web.controller.QualifiedName;
+
+/**
+ * The key of a cached search: the normalized parameters of the search, the
+ * site and the router parameters of the search context, which are used to
+ * build the links of the results, the permissions of the user and the
+ * version of the index of the searched types.
+ * The searches differing by the case or the spaces of the query, or by the
+ * order of the sites and types share the same key.
+ */
+final class SearchCacheKey implements Serializable {
+
+  private static final long             serialVersionUID = 1L;
+
+  static final String                   ALL_TYPES        = "all";
+
+  private final String                  siteName;
+
+  private final TreeMap<String, String> routerParams;
+
+  private final String                  query;
+
+  private final List<String>            sites;
+
+  private final List<String>            types;
+
+  private final int                     offset;
+
+  private final int                     limit;
+
+  private final String                  sort;
+
+  private final String                  order;
+
+  private final String                  permissions;
+
+  private final long                    version;
+
+  private final int                     hashCode;
+
+  SearchCacheKey(String siteName, TreeMap<String, String> routerParams, String query, List<String> sites,
+                 List<String> types, int offset, int limit, String sort, String order, String permissions, long version) {
+    this.siteName = siteName;
+    this.routerParams = routerParams;
+    this.query = query;
+    this.sites = sites;
+    this.types = types;
+    this.offset = offset;
+    this.limit = limit;
+    this.sort = sort;
+    this.order = order;
+    this.permissions = permissions;
+    this.version = version;
+    int result = query.hashCode();
+    result = 31 * result + (siteName == null ? 0 : siteName.hashCode());
+    result = 31 * result + (routerParams == null ? 0 : routerParams.hashCode());
+    result = 31 * result + (sites == null ? 0 : sites.hashCode());
+    result = 31 * result + types.hashCode();
+    result = 31 * result + offset;
+    result = 31 * result + limit;
+    result = 31 * result + sort.hashCode();
+    result = 31 * result + order.hashCode();
+    result = 31 * result + permissions.hashCode();
+    result = 31 * result + (int) (version ^ (version >>> 32));
+    this.hashCode = result;
+  }
+
+  static SearchCacheKey create(SearchContext context, String query, Collection<String> sites, Collection<String> types,
+                               int offset, int limit, String sort, String order, long version) {
+    return new SearchCacheKey(context == null ? null : context.getSiteName(),
+                              context == null ? null : getRouterParams(context),
+                              normalizeQuery(query),
+                              sites == null ? null : sorted(sites),
+                              isAllTypes(types) ? Collections.singletonList(ALL_TYPES) : sorted(types),
+                              offset,
+                              limit,
+                              sort == null ? "" : sort.toLowerCase(Locale.ENGLISH),
+                              order == null ? "" : order.toLowerCase(Locale.ENGLISH),
+                              getPermissions(ConversationState.getCurrent()),
+                              version);
+  }
+
+  static boolean isAllTypes(Collection<String> types) {
+    return types == null || types.isEmpty() || types.contains(ALL_TYPES);
+  }
+
+  /**
+   * @return the query in lower case, with its spaces collapsed
+   */
+  static String normalizeQuery(String query) {
+    if (query == null) {
+      return "";
+    }
+    String normalized = Normalizer.normalize(query, Normalizer.Form.NFC).trim().replaceAll("\\s+", " ");
+    return normalized.toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * @return the user and a digest of the memberships of the user, so the
+   * results found with former memberships aren't seen once they change
+   */
+  static String getPermissions(ConversationState state) {
+    Identity identity = state == null ? null : state.getIdentity();
+    if (identity == null || identity.getUserId() == null) {
+      return IdentityConstants.ANONIM;
+    }
+    TreeSet<String> memberships = new TreeSet<String>();
+    for (MembershipEntry membership : identity.getMemberships()) {
+      memberships.add(membership.toString());
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      for (String membership : memberships) {
+        digest.update(membership.getBytes("UTF-8"));
+        digest.update((byte) '\n');
+      }
+      StringBuilder permissions = new StringBuilder(identity.getUserId()).append(':');
+      for (byte b : digest.digest()) {
+        permissions.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return permissions.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the router parameters of the context by name
+   */
+  static TreeMap<String, String> getRouterParams(SearchContext context) {
+    TreeMap<String, String> params = new TreeMap<String, String>();
+    for (Map.Entry<QualifiedName, String> param : context.getRouterParams().entrySet()) {
+      if (param.getValue() != null) {
+        params.put(param.getKey().getName(), param.getValue());
+      }
+    }
+    return params;
+  }
+
+  private static List<String> sorted(Collection<String> values) {
+    TreeSet<String> set = new TreeSet<String>();
+    for (String value : values) {
+      if (value != null) {
+        set.add(value);
+      }
+    }
+    return new ArrayList<String>(set);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof SearchCacheKey)) {
+      return false;
+    }
+    SearchCacheKey that = (SearchCacheKey) o;
+    return hashCode == that.hashCode && offset == that.offset && limit == that.limit && version == that.version
+        && query.equals(that.query) && equal(siteName, that.siteName) && equal(routerParams, that.routerParams)
+        && equal(sites, that.sites)
+        && types.equals(that.types) && sort.equals(that.sort) && order.equals(that.order)
+        && permissions.equals(that.permissions);
+  }
+
+  private static boolean equal(Object o1, Object o2) {
+    return o1 == null ? o2 == null : o1.equals(o2);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    return "SearchCacheKey[query=" + query + ", site=" + siteName + ", context=" + routerParams + ", sites=" + sites + ", types=" + types + ", offset=" + offset
+        + ", limit=" + limit + ", sort=" + sort + ", order=" + order + ", user=" + permissions + ", version=" + version + "]";
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.search.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.exoplatform.commons.api.search.data.SearchResult;
+
+/**
+ * Merges the results of several connectors into one page of results.
+ *
+ * The results are streamed connector by connector through a priority queue
+ * bounded to offset + limit results, whose head is the worst kept result, so
+ * a page costs O(n log(offset + limit)) for n results and only the page is
+ * sorted. The relevancy of the results of each connector is normalized before
+ * the merge, the normalized relevancy is set on the results.
+ */
+public final class SearchResultMerger {
+
+  public static final String SORT_RELEVANCY = "relevancy";
+
+  public static final String SORT_DATE      = "date";
+
+  public static final String SORT_TITLE     = "title";
+
+  public static final String ORDER_ASC      = "asc";
+
+  private SearchResultMerger() {
+  }
+
+  /**
+   * @param results the results by search type
+   * @param normalizers the normalizer by search type
+   * @param defaultNormalizer the normalizer of the search types without one
+   * @param offset the index of the first result of the page
+   * @param limit the size of the page
+   * @param sort relevancy, date or title, relevancy by default
+   * @param order asc or desc, desc by default
+   * @return the results of the page
+   */
+  public static List<SearchResult> merge(Map<String, Collection<SearchResult>> results,
+                                         Map<String, RelevancyNormalizer> normalizers,
+                                         RelevancyNormalizer defaultNormalizer,
+                                         int offset, int limit, String sort, String order) {
+    offset = Math.max(0, offset);
+    if (limit <= 0 || (long) offset + limit > Integer.MAX_VALUE) {
+      return new ArrayList<SearchResult>();
+    }
+    int size = offset + limit;
+    Comparator<SearchResult> comparator = getComparator(sort, order);
+    PriorityQueue<SearchResult> heap = new PriorityQueue<SearchResult>(Math.min(size, 1024) + 1,
+                                                                       Collections.reverseOrder(comparator));
+    for (Map.Entry<String, Collection<SearchResult>> e : results.entrySet()) {
+      Collection<SearchResult> connectorResults = e.getValue();
+      if (connectorResults == null || connectorResults.isEmpty()) {
+        continue;
+      }
+      RelevancyNormalizer normalizer = normalizers == null ? null : normalizers.get(e.getKey());
+      if (normalizer == null) {
+        normalizer = defaultNormalizer == null ? RelevancyNormalizer.NONE : defaultNormalizer;
+      }
+      normalize(connectorResults, normalizer);
+      for (SearchResult result : connectorResults) {
+        if (result == null) {
+          continue;
+        }
+        if (heap.size() < size) {
+          heap.add(result);
+        } else if (comparator.compare(result, heap.peek()) < 0) {
+          heap.poll();
+          heap.add(result);
+        }
+      }
+    }
+    //the heap gives the worst result first
+    SearchResult[] sorted = new SearchResult[heap.size()];
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      sorted[i] = heap.poll();
+    }
+    if (offset >= sorted.length) {
+      return new ArrayList<SearchResult>();
+    }
+    return new ArrayList<SearchResult>(Arrays.asList(sorted).subList(offset, sorted.length));
+  }
+
+  /**
+   * @return the comparator giving the best result first for the sort and order
+   */
+  public static Comparator<SearchResult> getComparator(String sort, String order) {
+    final boolean ascending = ORDER_ASC.equalsIgnoreCase(order);
+    if (SORT_DATE.equalsIgnoreCase(sort)) {
+      return new Comparator<SearchResult>() {
+        public int compare(SearchResult r1, SearchResult r2) {
+          int result = compareLong(r1.getDate(), r2.getDate());
+          return ascending ? tieBreak(result, r1, r2) : tieBreak(-result, r1, r2);
+        }
+      };
+    } else if (SORT_TITLE.equalsIgnoreCase(sort)) {
+      return new Comparator<SearchResult>() {
+        public int compare(SearchResult r1, SearchResult r2) {
+          int result = compareString(r1.getTitle(), r2.getTitle());
+          return ascending ? tieBreak(result, r1, r2) : tieBreak(-result, r1, r2);
+        }
+      };
+    }
+    return new Comparator<SearchResult>() {
+      public int compare(SearchResult r1, SearchResult r2) {
+        int result = compareLong(r1.getRelevancy(), r2.getRelevancy());
+        return ascending ? tieBreak(result, r1, r2) : tieBreak(-result, r1, r2);
+      }
+    };
+  }
+
+  private static void normalize(Collection<SearchResult> results, RelevancyNormalizer normalizer) {
+    if (normalizer == RelevancyNormalizer.NONE) {
+      return;
+    }
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    for (SearchResult result : results) {
+      if (result != null) {
+        min = Math.min(min, result.getRelevancy());
+        max = Math.max(max, result.getRelevancy());
+      }
+    }
+    for (SearchResult result : results) {
+      if (result != null) {
+        result.setRelevancy(normalizer.normalize(result.getRelevancy(), min, max));
+      }
+    }
+  }
+
+  /**
+   * Orders the results equal on the sort criteria by relevancy, then date,
+   * then url, so a page doesn't depend on the order of the connectors.
+   */
+  private static int tieBreak(int result, SearchResult r1, SearchResult r2) {
+    if (result != 0) {
+      return result;
+    }
+    result = compareLong(r2.getRelevancy(), r1.getRelevancy());
+    if (result != 0) {
+      return result;
+    }
+    result = compareLong(r2.getDate(), r1.getDate());
+    if (result != 0) {
+      return result;
+    }
+    return compareString(r1.getUrl(), r2.getUrl());
+  }
+
+  private static int compareLong(long l1, long l2) {
+    return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+  }
+
+  private static int compareString(String s1, String s2) {
+    if (s1 == null) {
+      return s2 == null ? 0 : 1;
+    }
+    return s2 == null ? -1 : s1.compareToIgnoreCase(s2);
+  }
+}
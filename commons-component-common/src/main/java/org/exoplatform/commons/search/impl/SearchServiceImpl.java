@@ -0,0 +1,589 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.search.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exoplatform.commons.api.event.EventManager;
+import org.exoplatform.commons.api.indexing.IndexingService;
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+
+import org.exoplatform.commons.api.search.SearchService;
+import org.exoplatform.commons.api.search.SearchServiceConnector;
+import org.exoplatform.commons.api.search.data.SearchContext;
+import org.exoplatform.commons.api.search.data.SearchResponse;
+import org.exoplatform.commons.api.search.data.SearchResult;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.PropertiesParam;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.services.cache.future.FutureExoCache;
+import org.exoplatform.services.cache.future.Loader;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.listener.Event;
+import org.exoplatform.services.listener.Listener;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+import org.picocontainer.Startable;
+
+/**
+ * Searches all the connectors at once in a bounded thread pool and gathers
+ * their results until the timeout of each connector or the deadline of the
+ * search, so a slow connector doesn't hold up the unified search.
+ *
+ * The connectors which haven't answered in time are reported as TIMEOUT and
+ * their search is left to finish in the background, it isn't interrupted as
+ * an interruption may close the JCR index files the connector is reading.
+ * The connector threads run with the container, the repository and the
+ * conversation state of the caller.
+ *
+ * The complete responses and the merged pages are cached by
+ * {@link SearchCacheKey}, for the time to live of the SearchService and
+ * SearchService.merged caches. The concurrent searches of a same key wait
+ * for the same search. The key holds the number of entries written to the
+ * IndexingService for the searched types, so the cached searches aren't
+ * seen once an entry of their types is written. The results of a cached
+ * search are shared by its callers, they aren't modified.
+ *
+ * Init params:
+ * <ul>
+ * <li>threads: the maximum number of connectors searched at once, 10 by default</li>
+ * <li>queue.size: the number of connector searches waiting for a thread, 100 by default</li>
+ * <li>connector.timeout: the time in milliseconds given to a connector, 5000 by default</li>
+ * <li>connector.timeouts: a properties param of the timeout by search type</li>
+ * <li>search.deadline: the time in milliseconds after which the search returns, 10000 by default</li>
+ * <li>relevancy.normalizer: the {@link RelevancyNormalizer} of the connectors merged by
+ * {@link #searchMerged(SearchContext, String, Collection, Collection, int, int, String, String)}, max by default</li>
+ * <li>relevancy.normalizers: a properties param of the normalizer by search type</li>
+ * </ul>
+ */
+public class SearchServiceImpl extends SearchService implements Startable {
+
+  public static final String                     THREADS               = "threads";
+
+  public static final String                     QUEUE_SIZE            = "queue.size";
+
+  public static final String                     CONNECTOR_TIMEOUT     = "connector.timeout";
+
+  public static final String                     CONNECTOR_TIMEOUTS    = "connector.timeouts";
+
+  public static final String                     SEARCH_DEADLINE       = "search.deadline";
+
+  public static final String                     RELEVANCY_NORMALIZER  = "relevancy.normalizer";
+
+  public static final String                     RELEVANCY_NORMALIZERS = "relevancy.normalizers";
+
+  private static final Log                       LOG                   = ExoLogger.getLogger(SearchServiceImpl.class);
+
+  private final ThreadPoolExecutor               executor;
+
+  private final long                             connectorTimeout;
+
+  private final Map<String, Long>                connectorTimeouts     = new HashMap<String, Long>();
+
+  private final long                             searchDeadline;
+
+  private final Map<String, RelevancyNormalizer> normalizers           = new ConcurrentHashMap<String, RelevancyNormalizer>();
+
+  private final RelevancyNormalizer              defaultNormalizer;
+
+  private static final String                    MERGED_CACHE_SUFFIX   = ".merged";
+
+  /** The complete responses, null when the searches aren't cached */
+  private final FutureExoCache<SearchCacheKey, SearchResponse, SearchCall> responseCache;
+
+  /** The merged pages of the complete responses, null when the searches aren't cached */
+  private final FutureExoCache<SearchCacheKey, List<SearchResult>, SearchCall> pageCache;
+
+  /** The number of entries written to the index */
+  private final AtomicLong                       writes                = new AtomicLong();
+
+  /** The number of entries written to the index by type */
+  private final ConcurrentMap<String, AtomicLong> writesByType         = new ConcurrentHashMap<String, AtomicLong>();
+
+  public SearchServiceImpl(InitParams params) {
+    this(params, null, null, null);
+  }
+
+  /**
+   * @param params The init params.
+   * @param cacheService The cache service of the SearchService and SearchService.merged caches.
+   * @param eventManager The event manager broadcasting the entries written to the index.
+   */
+  public SearchServiceImpl(InitParams params,
+                           CacheService cacheService,
+                           EventManager<IndexingService, SearchEntryId> eventManager) {
+    this(params,
+         cacheService.<SearchCacheKey, SearchResponse> getCacheInstance(SearchService.class.getSimpleName()),
+         cacheService.<SearchCacheKey, List<SearchResult>> getCacheInstance(SearchService.class.getSimpleName() + MERGED_CACHE_SUFFIX),
+         eventManager);
+  }
+
+  SearchServiceImpl(InitParams params,
+                    ExoCache<SearchCacheKey, SearchResponse> responses,
+                    ExoCache<SearchCacheKey, List<SearchResult>> pages,
+                    EventManager<IndexingService, SearchEntryId> eventManager) {
+    int threads = Integer.parseInt(getValue(params, THREADS, "10"));
+    int queueSize = Integer.parseInt(getValue(params, QUEUE_SIZE, "100"));
+    connectorTimeout = Long.parseLong(getValue(params, CONNECTOR_TIMEOUT, "5000"));
+    searchDeadline = Long.parseLong(getValue(params, SEARCH_DEADLINE, "10000"));
+    PropertiesParam timeoutsParam = params == null ? null : params.getPropertiesParam(CONNECTOR_TIMEOUTS);
+    if (timeoutsParam != null) {
+      for (Map.Entry<String, String> timeout : timeoutsParam.getProperties().entrySet()) {
+        connectorTimeouts.put(timeout.getKey(), Long.parseLong(timeout.getValue().trim()));
+      }
+    }
+    defaultNormalizer = getNormalizer(getValue(params, RELEVANCY_NORMALIZER, "max"));
+    PropertiesParam normalizersParam = params == null ? null : params.getPropertiesParam(RELEVANCY_NORMALIZERS);
+    if (normalizersParam != null) {
+      for (Map.Entry<String, String> normalizer : normalizersParam.getProperties().entrySet()) {
+        normalizers.put(normalizer.getKey(), getNormalizer(normalizer.getValue().trim()));
+      }
+    }
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "SearchService-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                      new ArrayBlockingQueue<Runnable>(queueSize), threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+    //the incomplete searches aren't cached, the next search asks the missing connectors again
+    responseCache = responses == null ? null
+        : new FutureExoCache<SearchCacheKey, SearchResponse, SearchCall>(new Loader<SearchCacheKey, SearchResponse, SearchCall>() {
+          @Override
+          public SearchResponse retrieve(SearchCall call, SearchCacheKey key) throws Exception {
+            call.search();
+            return call.response.isComplete() ? call.response : null;
+          }
+        }, responses);
+    pageCache = pages == null ? null
+        : new FutureExoCache<SearchCacheKey, List<SearchResult>, SearchCall>(new Loader<SearchCacheKey, List<SearchResult>, SearchCall>() {
+          @Override
+          public List<SearchResult> retrieve(SearchCall call, SearchCacheKey key) throws Exception {
+            call.merge();
+            return call.response.isComplete() ? call.page : null;
+          }
+        }, pages);
+    if (eventManager != null) {
+      eventManager.addEventListener(IndexingService.ENTRY_WRITTEN, new Listener<IndexingService, SearchEntryId>() {
+        @Override
+        public void onEvent(Event<IndexingService, SearchEntryId> event) throws Exception {
+          written(event.getData());
+        }
+      });
+    }
+  }
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop() {
+    executor.shutdown();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, Collection<SearchResult>> search(SearchContext context, String query, Collection<String> sites,
+                                                      Collection<String> types, int offset, int limit, String sort, String order) {
+    return searchWithStatus(context, query, sites, types, offset, limit, sort, order).getResults();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public SearchResponse searchWithStatus(SearchContext context, String query, Collection<String> sites,
+                                         Collection<String> types, int offset, int limit, String sort, String order) {
+    if (responseCache == null) {
+      return scatterGather(context, query, sites, types, offset, limit, sort, order);
+    }
+    SearchCall call = new SearchCall(context, query, sites, types, offset, limit, sort, order);
+    SearchResponse response = responseCache.get(call, getKey(call));
+    if (response == null) {
+      //the search isn't complete, or this call has waited for the incomplete search of another one
+      if (call.response == null) {
+        call.search();
+      }
+      response = call.response;
+    }
+    return copy(response);
+  }
+
+  private SearchResponse scatterGather(SearchContext context, String query, Collection<String> sites,
+                                       Collection<String> types, int offset, int limit, String sort, String order) {
+    long start = System.currentTimeMillis();
+    long deadline = start + searchDeadline;
+    CallerContext caller = new CallerContext();
+    //scatter
+    List<ConnectorSearch> searches = new ArrayList<ConnectorSearch>();
+    for (SearchServiceConnector connector : getConnectors()) {
+      if (accept(connector, types) == false) {
+        continue;
+      }
+      ConnectorSearch search = new ConnectorSearch(caller, connector, context, query, sites, offset, limit, sort, order);
+      try {
+        search.future = executor.submit(search);
+      } catch (RejectedExecutionException e) {
+        LOG.warn("The search of the connector " + connector.getSearchType() + " is rejected, all the search threads are busy");
+      }
+      searches.add(search);
+    }
+    //gather
+    SearchResponse response = new SearchResponse();
+    for (ConnectorSearch search : searches) {
+      String searchType = search.connector.getSearchType();
+      if (search.future == null) {
+        response.add(searchType, SearchResponse.Status.REJECTED, null, 0);
+        continue;
+      }
+      long timeout = Math.min(start + getTimeout(searchType), deadline) - System.currentTimeMillis();
+      try {
+        Collection<SearchResult> results = search.future.get(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+        if (results == null) {
+          results = Collections.emptyList();
+        }
+        response.add(searchType, SearchResponse.Status.OK, results, search.time);
+      } catch (TimeoutException e) {
+        search.future.cancel(false);
+        LOG.warn("The connector " + searchType + " hasn't answered in " + (System.currentTimeMillis() - start) + "ms");
+        response.add(searchType, SearchResponse.Status.TIMEOUT, null, System.currentTimeMillis() - start);
+      } catch (ExecutionException e) {
+        LOG.warn("The search of the connector " + searchType + " has failed", e.getCause());
+        response.add(searchType, SearchResponse.Status.FAILED, null, search.time);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        search.future.cancel(false);
+        response.add(searchType, SearchResponse.Status.TIMEOUT, null, System.currentTimeMillis() - start);
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Searches the connectors and merges their results into one page, the
+   * connectors are asked for offset + limit results and their relevancy is
+   * normalized, see {@link SearchResultMerger}.
+   * @param context The search context.
+   * @param query The query statement.
+   * @param sites Specified sites where the search is performed.
+   * @param types Specified types by which the search is performed.
+   * @param offset The start point from which the search results are returned.
+   * @param limit The limitation number of search results.
+   * @param sort The sorting criteria (title, relevancy and date).
+   * @param order The sorting order (ascending and descending).
+   * @return The page of results of all the connectors.
+   */
+  public List<SearchResult> searchMerged(SearchContext context, String query, Collection<String> sites,
+                                         Collection<String> types, int offset, int limit, String sort, String order) {
+    SearchCall call = new SearchCall(context, query, sites, types, offset, limit, sort, order);
+    if (pageCache == null) {
+      call.merge();
+      return call.page;
+    }
+    //the merge normalizes the relevancy of the results, so the pages don't share the results of the cached responses
+    List<SearchResult> page = pageCache.get(call, getKey(call));
+    if (page == null) {
+      if (call.page == null) {
+        call.merge();
+      }
+      page = call.page;
+    }
+    return new ArrayList<SearchResult>(page);
+  }
+
+  /**
+   * Sets the relevancy normalizer of a connector.
+   * @param searchType The search type of the connector.
+   * @param normalizer The normalizer.
+   */
+  public void setNormalizer(String searchType, RelevancyNormalizer normalizer) {
+    normalizers.put(searchType, normalizer);
+  }
+
+  private static RelevancyNormalizer getNormalizer(String name) {
+    if ("none".equalsIgnoreCase(name)) {
+      return RelevancyNormalizer.NONE;
+    } else if ("max".equalsIgnoreCase(name)) {
+      return RelevancyNormalizer.MAX;
+    } else if ("minmax".equalsIgnoreCase(name)) {
+      return RelevancyNormalizer.MIN_MAX;
+    }
+    try {
+      return (RelevancyNormalizer) Class.forName(name, true, Thread.currentThread().getContextClassLoader()).newInstance();
+    } catch (Exception e) {
+      LOG.warn("Can't create the relevancy normalizer " + name + ", the max normalizer is used", e);
+      return RelevancyNormalizer.MAX;
+    }
+  }
+
+  private SearchCacheKey getKey(SearchCall call) {
+    return SearchCacheKey.create(call.context, call.query, call.sites, call.types, call.offset, call.limit,
+                                 call.sort, call.order, getVersion(call.types));
+  }
+
+  /**
+   * @return the number of entries written to the index for the types
+   */
+  private long getVersion(Collection<String> types) {
+    if (SearchCacheKey.isAllTypes(types)) {
+      return writes.get();
+    }
+    long version = 0;
+    for (String type : types) {
+      AtomicLong count = type == null ? null : writesByType.get(type);
+      if (count != null) {
+        version += count.get();
+      }
+    }
+    return version;
+  }
+
+  private void written(SearchEntryId id) {
+    writes.incrementAndGet();
+    String type = id == null ? null : id.getType();
+    if (type == null) {
+      return;
+    }
+    AtomicLong count = writesByType.get(type);
+    if (count == null) {
+      count = new AtomicLong();
+      AtomicLong previous = writesByType.putIfAbsent(type, count);
+      if (previous != null) {
+        count = previous;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * @return a response sharing the results of another, with its own collections
+   */
+  private static SearchResponse copy(SearchResponse response) {
+    SearchResponse copy = new SearchResponse();
+    for (Map.Entry<String, SearchResponse.Status> status : response.getStatuses().entrySet()) {
+      Collection<SearchResult> results = response.getResults().get(status.getKey());
+      copy.add(status.getKey(),
+               status.getValue(),
+               results == null ? null : new ArrayList<SearchResult>(results),
+               response.getTime(status.getKey()));
+    }
+    return copy;
+  }
+
+  private long getTimeout(String searchType) {
+    Long timeout = searchType == null ? null : connectorTimeouts.get(searchType);
+    return timeout == null ? connectorTimeout : timeout;
+  }
+
+  private static boolean accept(SearchServiceConnector connector, Collection<String> types) {
+    return SearchCacheKey.isAllTypes(types) || types.contains(connector.getSearchType());
+  }
+
+  private static String getValue(InitParams params, String name, String defaultValue) {
+    if (params == null) {
+      return defaultValue;
+    }
+    ValueParam param = params.getValueParam(name);
+    if (param == null || param.getValue() == null || param.getValue().trim().length() == 0) {
+      return defaultValue;
+    }
+    return param.getValue().trim();
+  }
+
+  /**
+   * The parameters of a search, with its response once searched.
+   */
+  private class SearchCall {
+    private final SearchContext      context;
+
+    private final String             query;
+
+    private final Collection<String> sites;
+
+    private final Collection<String> types;
+
+    private final int                offset;
+
+    private final int                limit;
+
+    private final String             sort;
+
+    private final String             order;
+
+    private SearchResponse           response;
+
+    private List<SearchResult>       page;
+
+    private SearchCall(SearchContext context, String query, Collection<String> sites, Collection<String> types,
+                       int offset, int limit, String sort, String order) {
+      this.context = context;
+      this.query = query;
+      this.sites = sites;
+      this.types = types;
+      this.offset = offset;
+      this.limit = limit;
+      this.sort = sort;
+      this.order = order;
+    }
+
+    private void search() {
+      response = scatterGather(context, query, sites, types, offset, limit, sort, order);
+    }
+
+    /**
+     * Searches the connectors for offset + limit results and merges them
+     * into the page.
+     */
+    private void merge() {
+      int size = (int) Math.min(Integer.MAX_VALUE, (long) Math.max(0, offset) + Math.max(0, limit));
+      response = scatterGather(context, query, sites, types, 0, size, sort, order);
+      page = SearchResultMerger.merge(response.getResults(), normalizers, defaultNormalizer, offset, limit, sort, order);
+    }
+  }
+
+  /**
+   * The search of a connector, it measures its own execution time.
+   */
+  private static class ConnectorSearch implements Callable<Collection<SearchResult>> {
+    private final CallerContext          caller;
+
+    private final SearchServiceConnector connector;
+
+    private final SearchContext          context;
+
+    private final String                 query;
+
+    private final Collection<String>     sites;
+
+    private final int                    offset;
+
+    private final int                    limit;
+
+    private final String                 sort;
+
+    private final String                 order;
+
+    private Future<Collection<SearchResult>> future;
+
+    private volatile long                time;
+
+    private ConnectorSearch(CallerContext caller, SearchServiceConnector connector, SearchContext context, String query,
+                            Collection<String> sites, int offset, int limit, String sort, String order) {
+      this.caller = caller;
+      this.connector = connector;
+      this.context = context;
+      this.query = query;
+      this.sites = sites;
+      this.offset = offset;
+      this.limit = limit;
+      this.sort = sort;
+      this.order = order;
+    }
+
+    @Override
+    public Collection<SearchResult> call() throws Exception {
+      long start = System.currentTimeMillis();
+      caller.enter();
+      try {
+        return connector.search(context, query, sites, offset, limit, sort, order);
+      } finally {
+        caller.exit();
+        time = System.currentTimeMillis() - start;
+      }
+    }
+  }
+
+  /**
+   * The container, repository and conversation state of the thread calling
+   * the search, set on the connector threads.
+   */
+  private static class CallerContext {
+    private final ExoContainer      container;
+
+    private final String            repositoryName;
+
+    private final ConversationState state;
+
+    private CallerContext() {
+      container = ExoContainerContext.getCurrentContainerIfPresent();
+      state = ConversationState.getCurrent();
+      String name = null;
+      if (container != null) {
+        try {
+          RepositoryService repositoryService = (RepositoryService) container.getComponentInstanceOfType(RepositoryService.class);
+          if (repositoryService != null) {
+            name = repositoryService.getCurrentRepository().getConfiguration().getName();
+          }
+        } catch (Exception e) {
+          LOG.debug("Can't get the current repository", e);
+        }
+      }
+      repositoryName = name;
+    }
+
+    private void enter() {
+      if (container != null) {
+        ExoContainerContext.setCurrentContainer(container);
+        if (repositoryName != null) {
+          try {
+            RepositoryService repositoryService = (RepositoryService) container.getComponentInstanceOfType(RepositoryService.class);
+            repositoryService.setCurrentRepositoryName(repositoryName);
+          } catch (Exception e) {
+            LOG.debug("Can't set the current repository " + repositoryName, e);
+          }
+        }
+      }
+      ConversationState.setCurrent(state);
+    }
+
+    private void exit() {
+      ConversationState.setCurrent(null);
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.user;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.exoplatform.services.cache.CacheListener;
+import org.exoplatform.services.cache.CacheListenerContext;
+
+/**
+ * Keeps the last activity of the users in memory, so a ping is a compare and
+ * set on a timestamp and the online users are found without scanning the
+ * user state cache.
+ *
+ * The active users are also kept in a wheel of time slots covering the
+ * offline delay, a user is moved to the slot of its last activity when the
+ * activity passes to the next slot. The online users are then read from the
+ * slots of the last delay only, the slots are recycled when the wheel turns.
+ *
+ * The pinged users are marked as dirty until their last activity is written
+ * to the JCR by {@link UserStateService#flush()}. The tracker listens to the
+ * user state cache to follow the states saved or replicated from the other
+ * nodes of a cluster.
+ * @LevelAPI Experimental
+ */
+public class PresenceTracker implements CacheListener<Serializable, UserStateModel> {
+
+  /** The number of slots covering the offline delay */
+  static final int                        SLOTS     = 16;
+
+  private final long                      delay;
+
+  private final long                      slotWidth;
+
+  private final ConcurrentMap<String, Presence> presences = new ConcurrentHashMap<String, Presence>();
+
+  private final AtomicReferenceArray<Slot> wheel    = new AtomicReferenceArray<Slot>(SLOTS + 2);
+
+  private final ConcurrentMap<String, Boolean> dirty    = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * @param delay the time in milliseconds after which an inactive user is offline
+   */
+  public PresenceTracker(long delay) {
+    this.delay = delay;
+    this.slotWidth = Math.max(1, delay / SLOTS);
+  }
+
+  /**
+   * Records an activity of a user on this node, the user is marked as dirty.
+   * @param userId the user
+   * @param time the time of the activity
+   * @return the previous last activity of the user, 0 if the user wasn't tracked
+   */
+  public long touch(String userId, long time) {
+    long previous = update(userId, time, null);
+    dirty.put(userId, Boolean.TRUE);
+    return previous;
+  }
+
+  /**
+   * @return the last activity of the user, 0 if the user isn't tracked
+   */
+  public long getLastActivity(String userId) {
+    Presence presence = presences.get(userId);
+    return presence == null ? 0 : presence.lastActivity.get();
+  }
+
+  /**
+   * @return the last known status of the user, null if it's unknown
+   */
+  public String getStatus(String userId) {
+    Presence presence = presences.get(userId);
+    return presence == null ? null : presence.status;
+  }
+
+  public boolean isOnline(String userId, long now) {
+    return getLastActivity(userId) >= now - delay;
+  }
+
+  /**
+   * Marks the user state as published to the cache if it hasn't been since the
+   * given interval, only one of the concurrent callers gets true.
+   * @param userId the user
+   * @param now the current time
+   * @param interval the minimum time between two publications
+   * @return true if the caller has to publish the user state
+   */
+  public boolean tryPublish(String userId, long now, long interval) {
+    Presence presence = presences.get(userId);
+    if (presence == null) {
+      return false;
+    }
+    long published = presence.published.get();
+    return now - published >= interval && presence.published.compareAndSet(published, now);
+  }
+
+  /**
+   * Gets the users active during the offline delay, the slots older than the
+   * delay aren't read.
+   * @param now the current time
+   * @return a snapshot of the online users
+   */
+  public List<UserStateModel> getOnlineUsers(long now) {
+    List<UserStateModel> onlineUsers = new ArrayList<UserStateModel>();
+    long from = (now - delay) / slotWidth;
+    Set<String> seen = new HashSet<String>();
+    for (int i = 0; i < wheel.length(); i++) {
+      Slot slot = wheel.get(i);
+      if (slot == null || slot.epoch < from) {
+        continue;
+      }
+      for (String userId : slot.users) {
+        Presence presence = presences.get(userId);
+        if (presence == null || seen.add(userId) == false) {
+          continue;
+        }
+        long lastActivity = presence.lastActivity.get();
+        if (lastActivity >= now - delay) {
+          onlineUsers.add(new UserStateModel(userId, lastActivity, presence.status));
+        }
+      }
+    }
+    return onlineUsers;
+  }
+
+  /**
+   * Takes the users pinged since the previous call.
+   * @return the last activity of the dirty users
+   */
+  public Map<String, Long> drainDirty() {
+    Map<String, Long> activities = new HashMap<String, Long>();
+    for (Iterator<String> it = dirty.keySet().iterator(); it.hasNext();) {
+      String userId = it.next();
+      it.remove();
+      Presence presence = presences.get(userId);
+      if (presence != null) {
+        activities.put(userId, presence.lastActivity.get());
+      }
+    }
+    return activities;
+  }
+
+  /**
+   * Marks again users as dirty, when their last activity couldn't be written.
+   */
+  public void markDirty(Collection<String> userIds) {
+    for (String userId : userIds) {
+      dirty.put(userId, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Forgets the users offline and already written, so the tracker only keeps
+   * the recently active users.
+   * @param now the current time
+   * @return the number of forgotten users
+   */
+  public int purge(long now) {
+    int count = 0;
+    for (Map.Entry<String, Presence> e : presences.entrySet()) {
+      if (e.getValue().lastActivity.get() < now - delay && dirty.containsKey(e.getKey()) == false
+          && presences.remove(e.getKey(), e.getValue())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of tracked users
+   */
+  public int size() {
+    return presences.size();
+  }
+
+  public void remove(String userId) {
+    presences.remove(userId);
+    dirty.remove(userId);
+  }
+
+  public void clear() {
+    presences.clear();
+    dirty.clear();
+    for (int i = 0; i < wheel.length(); i++) {
+      wheel.set(i, null);
+    }
+  }
+
+  @Override
+  public void onExpire(CacheListenerContext context, Serializable key, UserStateModel obj) throws Exception {
+  }
+
+  @Override
+  public void onRemove(CacheListenerContext context, Serializable key, UserStateModel obj) throws Exception {
+    if (obj != null) {
+      remove(obj.getUserId());
+    }
+  }
+
+  @Override
+  public void onPut(CacheListenerContext context, Serializable key, UserStateModel obj) throws Exception {
+    if (obj != null && obj.getUserId() != null) {
+      update(obj.getUserId(), obj.getLastActivity(), obj.getStatus());
+    }
+  }
+
+  @Override
+  public void onGet(CacheListenerContext context, Serializable key, UserStateModel obj) throws Exception {
+  }
+
+  @Override
+  public void onClearCache(CacheListenerContext context) throws Exception {
+    clear();
+  }
+
+  private long update(String userId, long time, String status) {
+    Presence presence = presences.get(userId);
+    if (presence == null) {
+      presence = new Presence();
+      Presence previous = presences.putIfAbsent(userId, presence);
+      if (previous != null) {
+        presence = previous;
+      }
+    }
+    if (status != null) {
+      presence.status = status;
+    }
+    long previous = presence.lastActivity.get();
+    while (time > previous) {
+      if (presence.lastActivity.compareAndSet(previous, time)) {
+        //the user is moved only when its activity passes to another slot
+        long epoch = time / slotWidth;
+        if (previous / slotWidth != epoch) {
+          addToSlot(userId, epoch);
+          removeFromSlot(userId, previous / slotWidth);
+        }
+        break;
+      }
+      previous = presence.lastActivity.get();
+    }
+    return previous;
+  }
+
+  private void addToSlot(String userId, long epoch) {
+    int index = (int) (epoch % wheel.length());
+    while (true) {
+      Slot slot = wheel.get(index);
+      if (slot != null && slot.epoch == epoch) {
+        slot.users.add(userId);
+        return;
+      }
+      //the activity is older than the wheel
+      if (slot != null && slot.epoch > epoch) {
+        return;
+      }
+      wheel.compareAndSet(index, slot, new Slot(epoch));
+    }
+  }
+
+  private void removeFromSlot(String userId, long epoch) {
+    Slot slot = wheel.get((int) (epoch % wheel.length()));
+    if (slot != null && slot.epoch == epoch) {
+      slot.users.remove(userId);
+    }
+  }
+
+  private static class Presence {
+    private final AtomicLong lastActivity = new AtomicLong();
+
+    private final AtomicLong published    = new AtomicLong();
+
+    private volatile String  status;
+  }
+
+  /**
+   * The users whose last activity is in a time slot, the epoch is the index of
+   * the slot since 1970.
+   */
+  private static class Slot {
+    private final long        epoch;
+
+    private final Set<String> users = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private Slot(long epoch) {
+      this.epoch = epoch;
+    }
+  }
+}
@@ -20,14 +20,24 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.Session;
 
 import org.exoplatform.commons.utils.CommonsUtils;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.services.cache.CacheService;
 import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.services.jcr.RepositoryService;
 import org.exoplatform.services.jcr.core.ManageableRepository;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.jcr.ext.hierarchy.NodeHierarchyCreator;
@@ -35,9 +45,14 @@ import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.IdentityConstants;
+import org.picocontainer.Startable;
 
-
-public class UserStateService {
+/**
+ * The state of the users, their last activity is tracked in memory by a
+ * {@link PresenceTracker} by repository and written to the JCR by batch every
+ * user.status.flush.interval milliseconds, 3 minutes by default.
+ */
+public class UserStateService implements Startable {
   private static final Log LOG = ExoLogger.getLogger(UserStateService.class.getName());
   public static String VIDEOCALLS_BASE_PATH = "VideoCalls";
   public static String USER_STATATUS_NODETYPE = "exo:userState";
@@ -48,14 +63,62 @@ public class UserStateService {
   public int delay = 60*1000;
   public static final int _delay_update_DB = 3*60*1000; //3 mins
   public static int pingCounter = 0;
+  /** The number of user states written by JCR save */
+  private static final int FLUSH_BATCH_SIZE = 100;
   
   private final CacheService cacheService;
+
+  private final ConcurrentMap<String, PresenceTracker> trackers = new ConcurrentHashMap<String, PresenceTracker>();
+
+  private long flushInterval = _delay_update_DB;
+
+  private ScheduledExecutorService flusher;
    
   public UserStateService(CacheService cacheService) {
     this.cacheService = cacheService;
     if (System.getProperty("user.status.offline.delay") != null) {
       delay = Integer.parseInt(System.getProperty("user.status.offline.delay", "1000"));
     }
+    if (System.getProperty("user.status.flush.interval") != null) {
+      flushInterval = Long.parseLong(System.getProperty("user.status.flush.interval"));
+    }
+  }
+
+  @Override
+  public void start() {
+    final ExoContainer container = ExoContainerContext.getCurrentContainer();
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "UserStateService-flusher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        ExoContainerContext.setCurrentContainer(container);
+        try {
+          flush();
+        } catch (Exception e) {
+          LOG.warn("Failed to write the last activity of the users", e);
+        }
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (flusher != null) {
+      flusher.shutdown();
+      flusher = null;
+    }
+    try {
+      flush();
+    } catch (Exception e) {
+      LOG.warn("Failed to write the last activity of the users", e);
+    }
   }
 
   // Add or update a userState
@@ -103,8 +166,9 @@ public class UserStateService {
     String repoName = CommonsUtils.getRepository().getConfiguration().getName();
     String userKey = repoName + "_" + userId;
     ExoCache<Serializable, UserStateModel> userStateCache = getUserStateCache();
-    if(userStateCache != null && userStateCache.get(userKey) != null) {
-      model = userStateCache.get(userKey).clone();
+    UserStateModel cached = userStateCache == null ? null : userStateCache.get(userKey);
+    if (cached != null) {
+      model = cached.clone();
     } else {
       ConversationState state = ConversationState.getCurrent();
       if (state == null) {
@@ -120,6 +184,7 @@ public class UserStateService {
         model.setLastActivity(userState.getProperty(LAST_ACTIVITY_PROP).getLong());
         model.setStatus(userState.hasProperty(STATUS_PROP) ? userState.getProperty(STATUS_PROP).getString() : DEFAULT_STATUS);
         userStateCache.put(userKey, model);
+        model = model.clone();
       } catch (PathNotFoundException e) {
         return null;
       } catch (Exception e) {
@@ -131,71 +196,153 @@ public class UserStateService {
         sessionProvider.close();
       }
     }
+    //the last activity not yet published to the cache
+    long lastActivity = getTracker(repoName).getLastActivity(userId);
+    if (lastActivity > model.getLastActivity()) {
+      model.setLastActivity(lastActivity);
+    }
     return model;
   }
   
-  //Ping to update last activity
+  //Ping to update last activity, the state is published to the cache at most
+  //every half of the offline delay and written to the JCR by the flusher
   public void ping(String userId) {
     if (userId == null || IdentityConstants.ANONIM.equals(userId)) {
       return;
     }
-    UserStateModel model = getUserState(userId);
-
     long lastActivity = Calendar.getInstance().getTimeInMillis();
-
-    boolean isSave = (model == null || (lastActivity - model.getLastActivity()) > _delay_update_DB);
-
+    String repoName = CommonsUtils.getRepository().getConfiguration().getName();
+    PresenceTracker tracker = getTracker(repoName);
+    long previous = tracker.touch(userId, lastActivity);
+    if (tracker.tryPublish(userId, lastActivity, delay / 2) == false && previous != 0) {
+      return;
+    }
+    //the status is loaded on the first activity of the user on this node
+    UserStateModel model = previous == 0 ? getUserState(userId) : null;
     if (model == null) {
-      model = new UserStateModel(userId, lastActivity, DEFAULT_STATUS);
+      String status = tracker.getStatus(userId);
+      model = new UserStateModel(userId, lastActivity, status == null ? DEFAULT_STATUS : status);
     } else {
       model.setLastActivity(lastActivity);
-      String repoName = CommonsUtils.getRepository().getConfiguration().getName();
-      String userKey = repoName + "_" + userId;
-      getUserStateCache().put(userKey, model);
     }
-    if (isSave) {
-      save(model);
+    ExoCache<Serializable, UserStateModel> cache = getUserStateCache();
+    if (cache != null) {
+      cache.put(repoName + "_" + userId, model);
     }
   }
   
   //Get all users online
   public List<UserStateModel> online() {
-    List<UserStateModel> onlineUsers = new ArrayList<UserStateModel>();
-    List<UserStateModel> users = null;
     try {
-      ExoCache<Serializable, UserStateModel> userStateCache = getUserStateCache();
-      if (userStateCache == null){
-        LOG.warn("Cant get online users list from cache. Will return an empty list.");
-        return new ArrayList<UserStateModel>();
-      }
-      users = (List<UserStateModel>) userStateCache.getCachedObjects();     
-      for (UserStateModel userStateModel : users) {
-        if(isOnline(userStateModel)) {
-          onlineUsers.add(userStateModel);
-        }        
-      }
+      String repoName = CommonsUtils.getRepository().getConfiguration().getName();
+      return getTracker(repoName).getOnlineUsers(Calendar.getInstance().getTimeInMillis());
     } catch (Exception e) {
       LOG.error("Exception when getting online user: {}",e);
     }     
-    return onlineUsers;
+    return new ArrayList<UserStateModel>();
   }
   
   public boolean isOnline(String userId) {
-    UserStateModel model = getUserState(userId);
-    if (model != null) {
-      return isOnline(model);
+    String repoName = CommonsUtils.getRepository().getConfiguration().getName();
+    return getTracker(repoName).isOnline(userId, Calendar.getInstance().getTimeInMillis());
+  }
+
+  /**
+   * Writes the last activity of the users pinged since the previous flush to
+   * the JCR, FLUSH_BATCH_SIZE users by session save, and forgets the offline
+   * users.
+   */
+  public void flush() throws Exception {
+    RepositoryService repositoryService = CommonsUtils.getService(RepositoryService.class);
+    for (Map.Entry<String, PresenceTracker> e : trackers.entrySet()) {
+      PresenceTracker tracker = e.getValue();
+      Map<String, Long> activities = tracker.drainDirty();
+      if (activities.isEmpty() == false) {
+        repositoryService.setCurrentRepositoryName(e.getKey());
+        persist(tracker, activities);
+      }
+      tracker.purge(Calendar.getInstance().getTimeInMillis());
+    }
+  }
+
+  private void persist(PresenceTracker tracker, Map<String, Long> activities) {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    NodeHierarchyCreator nodeHierarchyCreator = CommonsUtils.getService(NodeHierarchyCreator.class);
+    List<String> pending = new ArrayList<String>();
+    List<String> failed = new ArrayList<String>();
+    try {
+      ManageableRepository repository = CommonsUtils.getRepository();
+      Session session = sessionProvider.getSession(repository.getConfiguration().getDefaultWorkspaceName(), repository);
+      for (Map.Entry<String, Long> e : activities.entrySet()) {
+        String userId = e.getKey();
+        try {
+          Node userNodeApp = nodeHierarchyCreator.getUserApplicationNode(sessionProvider, userId);
+          Node userState;
+          if (userNodeApp.hasNode(VIDEOCALLS_BASE_PATH)) {
+            userState = userNodeApp.getNode(VIDEOCALLS_BASE_PATH);
+          } else {
+            String status = tracker.getStatus(userId);
+            userState = userNodeApp.addNode(VIDEOCALLS_BASE_PATH, USER_STATATUS_NODETYPE);
+            userState.setProperty(USER_ID_PROP, userId);
+            userState.setProperty(STATUS_PROP, status == null ? DEFAULT_STATUS : status);
+          }
+          userState.setProperty(LAST_ACTIVITY_PROP, e.getValue());
+          pending.add(userId);
+        } catch (Exception ex) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Failed to write the last activity of " + userId, ex);
+          }
+          failed.add(userId);
+        }
+        if (pending.size() >= FLUSH_BATCH_SIZE) {
+          save(session, tracker, pending);
+        }
+      }
+      save(session, tracker, pending);
+      //the users are written again by the next flush
+      tracker.markDirty(failed);
+    } catch (Exception e) {
+      LOG.warn("Failed to write the last activity of " + activities.size() + " users", e);
+      //writing again the users already saved is harmless
+      tracker.markDirty(activities.keySet());
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  private void save(Session session, PresenceTracker tracker, List<String> pending) throws Exception {
+    if (pending.isEmpty()) {
+      return;
     }
-    return false;
+    try {
+      session.save();
+    } catch (Exception e) {
+      //the users are written again by the next flush
+      LOG.warn("Failed to write the last activity of " + pending.size() + " users", e);
+      session.refresh(false);
+      tracker.markDirty(pending);
+    }
+    pending.clear();
   }
 
-  private boolean isOnline(UserStateModel model) {
-    if (model != null) {
-      long iDate = Calendar.getInstance().getTimeInMillis();
-      if (model.getLastActivity() >= (iDate - delay)) {
-        return true;
+  /**
+   * @return the presence tracker of the repository, registered as listener of
+   *         the user state cache of the repository
+   */
+  PresenceTracker getTracker(String repoName) {
+    PresenceTracker tracker = trackers.get(repoName);
+    if (tracker == null) {
+      tracker = new PresenceTracker(delay);
+      PresenceTracker previous = trackers.putIfAbsent(repoName, tracker);
+      if (previous != null) {
+        return previous;
+      }
+      ExoCache<Serializable, UserStateModel> cache = getUserStateCache();
+      if (cache != null) {
+        cache.addCacheListener(tracker);
       }
     }
-    return false;
+    return tracker;
   }
   
   private ExoCache<Serializable, UserStateModel> getUserStateCache(){
@@ -16,17 +16,27 @@
  */
 package org.exoplatform.settings.cache;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exoplatform.commons.api.event.EventManager;
+import org.exoplatform.commons.api.settings.SettingListener;
 import org.exoplatform.commons.api.settings.SettingService;
 import org.exoplatform.commons.api.settings.SettingValue;
 import org.exoplatform.commons.api.settings.data.Context;
+import org.exoplatform.commons.api.settings.data.EventType;
 import org.exoplatform.commons.api.settings.data.Scope;
 import org.exoplatform.commons.api.settings.data.SettingContext;
+import org.exoplatform.commons.api.settings.data.SettingData;
 import org.exoplatform.commons.api.settings.data.SettingKey;
 import org.exoplatform.commons.api.settings.data.SettingScope;
 import org.exoplatform.services.cache.CacheService;
 import org.exoplatform.services.cache.ExoCache;
 import org.exoplatform.services.cache.future.FutureExoCache;
 import org.exoplatform.services.cache.future.Loader;
+import org.exoplatform.services.listener.Event;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.settings.cache.selector.SettingCacheSelector;
@@ -40,16 +50,39 @@ import org.gatein.common.logging.LoggerFactory;
  * CacheSettingServiceImpl is implemented for application which uses cache. CacheSettingServiceImpl contains also settingService for database. 
  * In case of saving and removing setting properties, CacheSettingService will effect the change in cache and database. 
  * Otherwise, it will search setting properties in cache at first and then in database, that allows to improve performance.
+ * The settings of a context or of a scope are removed from the cache through a {@link SettingCacheIndex} when the caches
+ * are local only. The index can't see the entries put by the other nodes of a cluster, so when the caches are replicated
+ * or distributed the whole cache is scanned instead.
  * @LevelAPI Experimental    
  */
 public class CacheSettingServiceImpl implements SettingService {
   /** Logger */
   private static final Log                                               LOG = ExoLogger.getLogger(CacheSettingServiceImpl.class);
 
+  private static final String                                            SCOPE_CACHE_SUFFIX = ".scope";
+
+  private static final String                                            MISSING_CACHE_SUFFIX = ".missing";
+
   protected ExoCache<SettingKey, SettingValue>                           settingCache;
 
   protected FutureExoCache<SettingKey, SettingValue, SettingServiceImpl> futureExoCache;
 
+  /** The values of a whole scope, read at once */
+  protected ExoCache<SettingScope, Map<String, SettingValue<?>>>         scopeCache;
+
+  protected FutureExoCache<SettingScope, Map<String, SettingValue<?>>, SettingServiceImpl> futureScopeCache;
+
+  /** The keys of the setting cache by context and scope, null when the cache is replicated or distributed */
+  protected SettingCacheIndex<SettingKey, SettingValue>                  settingIndex;
+
+  protected SettingCacheIndex<SettingScope, Map<String, SettingValue<?>>> scopeIndex;
+
+  /** The settings which don't exist in the database, with their own time to live */
+  protected ExoCache<SettingKey, MissingSetting>                         missingCache;
+
+  /** Increased each time settings are set, before they are removed from the missing cache */
+  private final AtomicLong                                               generation = new AtomicLong();
+
   private static final Logger                                            log = LoggerFactory.getLogger(CacheSettingServiceImpl.class);
 
   private final SettingServiceImpl                                       service;
@@ -57,20 +90,56 @@ public class CacheSettingServiceImpl implements SettingService {
  * Create cache setting service object with service for database and service for cache
  * @param service Setting service for database
  * @param cacheService Cache service
+ * @param eventManager Event manager to which the setting service broadcasts its changes
  * @LevelAPI Experimental
  */
-  public CacheSettingServiceImpl(SettingServiceImpl service, CacheService cacheService) {
+  public CacheSettingServiceImpl(SettingServiceImpl service, CacheService cacheService, EventManager<SettingService, SettingData> eventManager) {
 
     settingCache = cacheService.getCacheInstance(SettingService.class.getSimpleName());
+    missingCache = cacheService.getCacheInstance(SettingService.class.getSimpleName() + MISSING_CACHE_SUFFIX);
 
+    //the concurrent reads of a same key wait for the same load
     Loader<SettingKey, SettingValue, SettingServiceImpl> loader = new Loader<SettingKey, SettingValue, SettingServiceImpl>() {
       @Override
       public SettingValue retrieve(SettingServiceImpl service, SettingKey key) throws Exception {
-        return service.get(key.getContext(), key.getScope(), key.getKey());
+        long loadGeneration = generation.get();
+        SettingValue<?> value = service.get(key.getContext(), key.getScope(), key.getKey());
+        if (value == null) {
+          missingCache.put(key, MissingSetting.INSTANCE);
+          //a setting set during the load may have been unmarked before it was marked as missing
+          if (generation.get() != loadGeneration) {
+            missingCache.remove(key);
+          }
+        }
+        return value;
       }
     };
     futureExoCache = new FutureExoCache<SettingKey, SettingValue, SettingServiceImpl>(loader,
                                                                                       settingCache);
+
+    scopeCache = cacheService.getCacheInstance(SettingService.class.getSimpleName() + SCOPE_CACHE_SUFFIX);
+
+    Loader<SettingScope, Map<String, SettingValue<?>>, SettingServiceImpl> scopeLoader = new Loader<SettingScope, Map<String, SettingValue<?>>, SettingServiceImpl>() {
+      @Override
+      public Map<String, SettingValue<?>> retrieve(SettingServiceImpl service, SettingScope key) throws Exception {
+        return Collections.unmodifiableMap(service.get(key.getContext(), key.getScope()));
+      }
+    };
+    futureScopeCache = new FutureExoCache<SettingScope, Map<String, SettingValue<?>>, SettingServiceImpl>(scopeLoader,
+                                                                                                           scopeCache);
+
+    //the entries of a clustered cache can be put by the other nodes, which the index can't see
+    if (isLocal(settingCache) && isLocal(scopeCache)) {
+      settingIndex = new SettingCacheIndex<SettingKey, SettingValue>();
+      settingCache.addCacheListener(settingIndex);
+      scopeIndex = new SettingCacheIndex<SettingScope, Map<String, SettingValue<?>>>();
+      scopeCache.addCacheListener(scopeIndex);
+    }
+    //the settings changed through SettingServiceImpl directly are also seen
+    MissingSettingListener missingListener = new MissingSettingListener();
+    eventManager.addEventListener(EventType.SETTING_SET.toString(), missingListener);
+    eventManager.addEventListener(EventType.SETTING_SET_ALL.toString(), missingListener);
+    eventManager.addEventListener(EventType.SETTING_REMOVE_KEY.toString(), missingListener);
     this.service = service;
 
   }
@@ -89,17 +158,81 @@ public class CacheSettingServiceImpl implements SettingService {
     SettingKey settingKey = new SettingKey(context, scope, key);
     settingCache.put(settingKey, value);
     service.set(context, scope, key, value);
+    generation.incrementAndGet();
+    missingCache.remove(settingKey);
+    // the scope is read again with the new value
+    scopeCache.remove(new SettingScope(context, scope));
+  }
+
+  /**
+   * Set several values of a context and a scope. The values will be saved in the cache,
+   * and in the database at once.
+   * @param context context with which the values are to be associated
+   * @param scope   scope with which the values are to be associated
+   * @param values  values to be associated with their keys
+   * @LevelAPI Experimental
+   */
+  @Override
+  public void setAll(Context context, Scope scope, Map<String, SettingValue<?>> values) {
+    Map<SettingScope, Map<String, SettingValue<?>>> batch = new HashMap<SettingScope, Map<String, SettingValue<?>>>();
+    batch.put(new SettingScope(context, scope), values);
+    setAll(batch);
+  }
+
+  /**
+   * Set the values of several contexts and scopes. The values will be saved in the cache,
+   * and in the database at once.
+   * @param values values to be associated with their keys, for each context and scope
+   * @LevelAPI Experimental
+   */
+  @Override
+  public void setAll(Map<SettingScope, Map<String, SettingValue<?>>> values) {
+    for (Map.Entry<SettingScope, Map<String, SettingValue<?>>> entry : values.entrySet()) {
+      for (Map.Entry<String, SettingValue<?>> value : entry.getValue().entrySet()) {
+        settingCache.put(new SettingKey(entry.getKey().getContext(), entry.getKey().getScope(), value.getKey()), value.getValue());
+      }
+    }
+    service.setAll(values);
+    for (SettingScope settingScope : values.keySet()) {
+      scopeCache.remove(settingScope);
+    }
   }
 
   /**
    * Get setting value associated with composite key(context, scope, key)
-   * This service will search in the cache first and then in the database.
+   * This service will search in the cache first and then in the database. A setting which
+   * doesn't exist in the database is remembered as missing until the missing cache expires
+   * or the setting is set.
    * @return Setting value with type of setting property, and null if the cache and the database doesn't contain the value for the composite key
    * @LevelAPI Experimental
    */
   @Override
   public SettingValue<?> get(Context context, Scope scope, String key) {
-    return futureExoCache.get(service, new SettingKey(context, scope, key));
+    SettingKey settingKey = new SettingKey(context, scope, key);
+    //a value set meanwhile is found before the missing entry which may have been put by a late load
+    SettingValue<?> value = settingCache.get(settingKey);
+    if (value != null) {
+      return value;
+    }
+    if (missingCache.get(settingKey) != null) {
+      return null;
+    }
+    return futureExoCache.get(service, settingKey);
+  }
+
+  /**
+   * Get all the setting values associated with the context and the scope, they are read
+   * at once from the database and kept together in the cache.
+   * @return The values by key, an empty map if the cache and the database don't contain any value
+   * @LevelAPI Experimental
+   */
+  @Override
+  public Map<String, SettingValue<?>> get(Context context, Scope scope) {
+    Map<String, SettingValue<?>> values = futureScopeCache.get(service, new SettingScope(context, scope));
+    if (values == null) {
+      return Collections.emptyMap();
+    }
+    return values;
   }
 
   /** 
@@ -114,6 +247,7 @@ public class CacheSettingServiceImpl implements SettingService {
     SettingKey settingKey = new SettingKey(context, scope, key);
     settingCache.remove(settingKey);
     service.remove(context, scope, key);
+    scopeCache.remove(new SettingScope(context, scope));
   }
 
   /** remove all the value associated with the specified context and specified scope in cache and database also.
@@ -125,7 +259,8 @@ public class CacheSettingServiceImpl implements SettingService {
   public void remove(Context context, Scope scope) {
     SettingScope settingScope = new SettingScope(context, scope);
     try {
-      settingCache.select(new SettingCacheSelector(settingScope));
+      invalidate(settingCache, settingIndex, settingScope);
+      invalidate(scopeCache, scopeIndex, settingScope);
     } catch (Exception e) {
       LOG.error("Cannot get setting cache",e);
     }
@@ -140,11 +275,70 @@ public class CacheSettingServiceImpl implements SettingService {
   public void remove(Context context) {
     SettingContext settingContext = new SettingContext(context);
     try {
-      settingCache.select(new SettingCacheSelector(settingContext));
+      invalidate(settingCache, settingIndex, settingContext);
+      invalidate(scopeCache, scopeIndex, settingContext);
     } catch (Exception e) {
       LOG.error("cannot get setting context",e);
     }
     service.remove(context);
   }
 
+  /**
+   * Removes the entries of a context or of a scope from a cache. The keys are
+   * found by the index when there is one, otherwise the whole cache is scanned.
+   */
+  private <K extends SettingScope> void invalidate(ExoCache<K, ?> cache, SettingCacheIndex<K, ?> index, SettingContext provider) throws Exception {
+    if (index != null) {
+      for (K key : index.getKeys(provider)) {
+        cache.remove(key);
+      }
+    } else {
+      cache.select(new SettingCacheSelector(provider));
+    }
+  }
+
+  private static boolean isLocal(ExoCache<?, ?> cache) {
+    return cache.isDistributed() == false && cache.isReplicated() == false;
+  }
+
+  /**
+   * Keeps the missing cache up to date with the events of the setting service:
+   * a setting which is set isn't missing anymore, a setting which is removed is.
+   * The generation is increased first, so a load which read the setting before
+   * it was set doesn't mark it as missing again.
+   */
+  private class MissingSettingListener extends SettingListener {
+
+    @Override
+    public void onSet(Event<SettingService, SettingData> event) {
+      generation.incrementAndGet();
+      missingCache.remove((SettingKey) event.getData().getSettingContext());
+    }
+
+    @Override
+    public void onSetAll(Event<SettingService, SettingData> event) {
+      generation.incrementAndGet();
+      for (Map.Entry<SettingScope, Map<String, SettingValue<?>>> entry : event.getData().getSettingValues().entrySet()) {
+        for (String key : entry.getValue().keySet()) {
+          missingCache.remove(new SettingKey(entry.getKey().getContext(), entry.getKey().getScope(), key));
+        }
+      }
+    }
+
+    @Override
+    public void onRemoveKey(Event<SettingService, SettingData> event) {
+      SettingKey settingKey = (SettingKey) event.getData().getSettingContext();
+      settingCache.remove(settingKey);
+      missingCache.put(settingKey, MissingSetting.INSTANCE);
+    }
+
+    @Override
+    public void onRemoveScope(Event<SettingService, SettingData> event) {
+    }
+
+    @Override
+    public void onRemoveContext(Event<SettingService, SettingData> event) {
+    }
+  }
+
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.settings.cache;
+
+import java.io.Serializable;
+
+/**
+ * The value kept in the cache of the missing settings for a setting which
+ * doesn't exist in the database, as the setting cache can't keep a null value.
+ * @LevelAPI Experimental
+ */
+public final class MissingSetting implements Serializable {
+
+  private static final long          serialVersionUID = 4393126571628420375L;
+
+  /** The only instance, also when the value comes from a distributed cache */
+  public static final MissingSetting INSTANCE         = new MissingSetting();
+
+  private MissingSetting() {
+  }
+
+  private Object readResolve() {
+    return INSTANCE;
+  }
+
+  @Override
+  public String toString() {
+    return "MissingSetting";
+  }
+}
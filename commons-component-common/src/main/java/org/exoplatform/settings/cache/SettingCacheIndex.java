@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.settings.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.exoplatform.commons.api.settings.data.SettingContext;
+import org.exoplatform.commons.api.settings.data.SettingScope;
+import org.exoplatform.services.cache.CacheListener;
+import org.exoplatform.services.cache.CacheListenerContext;
+
+/**
+ * Indexes the keys of a setting cache by context and by scope, so the keys of
+ * a context or of a scope are found without scanning the whole cache.
+ *
+ * The index follows the puts, removals and expirations of the cache it listens to.
+ * The keys are grouped by context path, then by scope path, as
+ * {@link SettingContext#equals(Object)} and {@link SettingScope#equals(Object)}
+ * compare them.
+ *
+ * The cache listeners are only notified of the changes made on the local node,
+ * so the index is only accurate for a local cache: it must not be used with a
+ * replicated or distributed cache.
+ * @LevelAPI Experimental
+ */
+public class SettingCacheIndex<K extends SettingScope, V> implements CacheListener<K, V> {
+
+  private final ConcurrentMap<String, ContextEntry<K>> contexts = new ConcurrentHashMap<String, ContextEntry<K>>();
+
+  /**
+   * Adds a key to the index.
+   * @param key the key of the cache
+   * @LevelAPI Experimental
+   */
+  public void add(K key) {
+    String contextKey = contextKey(key);
+    while (true) {
+      ContextEntry<K> entry = contexts.get(contextKey);
+      if (entry == null) {
+        entry = new ContextEntry<K>();
+        ContextEntry<K> previous = contexts.putIfAbsent(contextKey, entry);
+        if (previous != null) {
+          entry = previous;
+        }
+      }
+      synchronized (entry) {
+        //the entry has been emptied and dropped meanwhile
+        if (entry.removed) {
+          continue;
+        }
+        Set<K> keys = entry.scopes.get(key.getScopePath());
+        if (keys == null) {
+          keys = new HashSet<K>();
+          entry.scopes.put(key.getScopePath(), keys);
+        }
+        keys.add(key);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes a key from the index.
+   * @param key the key of the cache
+   * @LevelAPI Experimental
+   */
+  public void remove(K key) {
+    String contextKey = contextKey(key);
+    ContextEntry<K> entry = contexts.get(contextKey);
+    if (entry == null) {
+      return;
+    }
+    synchronized (entry) {
+      Set<K> keys = entry.scopes.get(key.getScopePath());
+      if (keys == null || keys.remove(key) == false) {
+        return;
+      }
+      if (keys.isEmpty()) {
+        entry.scopes.remove(key.getScopePath());
+        if (entry.scopes.isEmpty()) {
+          entry.removed = true;
+          contexts.remove(contextKey, entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the keys of a context or of a scope.
+   * @param provider the context, or the scope when it's a SettingScope
+   * @return a copy of the keys
+   * @LevelAPI Experimental
+   */
+  public List<K> getKeys(SettingContext provider) {
+    List<K> result = new ArrayList<K>();
+    ContextEntry<K> entry = contexts.get(contextKey(provider));
+    if (entry == null) {
+      return result;
+    }
+    synchronized (entry) {
+      if (provider instanceof SettingScope) {
+        Set<K> keys = entry.scopes.get(((SettingScope) provider).getScopePath());
+        if (keys != null) {
+          result.addAll(keys);
+        }
+      } else {
+        for (Set<K> keys : entry.scopes.values()) {
+          result.addAll(keys);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of indexed keys
+   * @LevelAPI Experimental
+   */
+  public int size() {
+    int size = 0;
+    for (ContextEntry<K> entry : contexts.values()) {
+      synchronized (entry) {
+        for (Set<K> keys : entry.scopes.values()) {
+          size += keys.size();
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Empties the index.
+   * @LevelAPI Experimental
+   */
+  public void clear() {
+    for (Map.Entry<String, ContextEntry<K>> e : contexts.entrySet()) {
+      ContextEntry<K> entry = e.getValue();
+      synchronized (entry) {
+        entry.removed = true;
+        contexts.remove(e.getKey(), entry);
+      }
+    }
+  }
+
+  @Override
+  public void onExpire(CacheListenerContext context, K key, V obj) throws Exception {
+    remove(key);
+  }
+
+  @Override
+  public void onRemove(CacheListenerContext context, K key, V obj) throws Exception {
+    remove(key);
+  }
+
+  @Override
+  public void onPut(CacheListenerContext context, K key, V obj) throws Exception {
+    add(key);
+  }
+
+  @Override
+  public void onGet(CacheListenerContext context, K key, V obj) throws Exception {
+  }
+
+  @Override
+  public void onClearCache(CacheListenerContext context) throws Exception {
+    clear();
+  }
+
+  private static String contextKey(SettingContext context) {
+    return context.getRepositoryName() + '|' + context.getContextPath();
+  }
+
+  /**
+   * The keys of a context by scope path, the entry is dropped from the index
+   * once it's empty.
+   */
+  private static class ContextEntry<K> {
+    private final Map<String, Set<K>> scopes = new HashMap<String, Set<K>>();
+
+    private boolean                   removed;
+  }
+}
@@ -17,7 +17,6 @@
 package org.exoplatform.settings.cache.selector;
 
 import org.exoplatform.commons.api.settings.data.SettingContext;
-import org.exoplatform.commons.api.settings.data.SettingKey;
 import org.exoplatform.commons.api.settings.data.SettingScope;
 import org.exoplatform.services.cache.CachedObjectSelector;
 import org.exoplatform.services.cache.ExoCache;
@@ -28,12 +27,13 @@ import org.exoplatform.services.cache.ObjectCacheInfo;
  * Author : Nguyen Viet Bang
  *          bangnv@exoplatform.com
  * Nov 27, 2012  
- * This class allows to select all setting cache objects which are in a specified Context or Scope.
+ * This class allows to select all setting cache objects which are in a specified Context or Scope,
+ * the setting keys as well as the setting scopes of the scope cache.
  * The callback function of this selector is to remove all selected setting object.
  * @LevelAPI Experimental
  */
 
-public class SettingCacheSelector implements CachedObjectSelector<SettingKey,Object>{
+public class SettingCacheSelector implements CachedObjectSelector<SettingContext,Object>{
   private SettingContext provider;
   
   /**
@@ -55,13 +55,13 @@ public class SettingCacheSelector implements CachedObjectSelector<SettingKey,Obj
 
   /**
    * This function allows this selector could select right object.
-   * @param key 	the key which is composed by context, scope, key
+   * @param key 	the key which is composed by context, scope, key, or by context and scope
    * @param ocinfo	cache info (expire time, cache associated object) 
    * @return return true if compared key is equals to provider, false if not
    * @LevelAPI Experimental
    */   
   @Override  
-  public boolean select(SettingKey key, ObjectCacheInfo<? extends Object> ocinfo) {
+  public boolean select(SettingContext key, ObjectCacheInfo<? extends Object> ocinfo) {
     if (key!=null) {
       return provider.equals(key);
     }
@@ -77,8 +77,8 @@ public class SettingCacheSelector implements CachedObjectSelector<SettingKey,Obj
    * @LevelAPI Experimental
    */
   @Override  
-  public void onSelect(ExoCache<? extends SettingKey, ? extends Object> cache,
-                       SettingKey key,
+  public void onSelect(ExoCache<? extends SettingContext, ? extends Object> cache,
+                       SettingContext key,
                        ObjectCacheInfo<? extends Object> ocinfo) throws Exception {
     cache.remove(key)    ;
   }
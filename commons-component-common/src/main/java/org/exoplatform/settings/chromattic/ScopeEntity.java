@@ -1,5 +1,6 @@
 package org.exoplatform.settings.chromattic;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import org.chromattic.api.annotations.Destroy;
@@ -25,6 +26,11 @@ public abstract class ScopeEntity {
   public Object getValue(String name) {
     return getProperties().get(name);
   }
+
+  public Map<String, Object> getValues() {
+    return new HashMap<String, Object>(getProperties());
+  }
+
   public Object removeValue(String key) {
     return getProperties().remove(key);
   }
@@ -1,5 +1,8 @@
 package org.exoplatform.settings.impl;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.exoplatform.commons.api.settings.SettingService;
 import org.exoplatform.commons.api.settings.SettingValue;
 import org.exoplatform.commons.api.settings.data.Context;
@@ -65,6 +68,40 @@ public class SettingServiceImpl implements SettingService {
       SettingData data = new SettingData (EventType.SETTING_SET,new SettingKey(context, scope, key),value);
         eventManager.broadcastEvent(new Event<SettingServiceImpl,SettingData>(data.getEventType().toString(),this,data));
     }
+
+  public void setAll(Context context, Scope scope, Map<String, SettingValue<?>> values) {
+    Map<SettingScope, Map<String, SettingValue<?>>> batch = new HashMap<SettingScope, Map<String, SettingValue<?>>>();
+    batch.put(new SettingScope(context, scope), values);
+    setAll(batch);
+  }
+
+  public void setAll(final Map<SettingScope, Map<String, SettingValue<?>>> values) {
+    if (values.isEmpty()) {
+      return;
+    }
+    new SynchronizationTask<Object>() {
+      @Override
+      protected Object execute(SessionContext ctx) {
+
+        for (Map.Entry<SettingScope, Map<String, SettingValue<?>>> entry : values.entrySet()) {
+          Context context = entry.getKey().getContext();
+          Scope scope = entry.getKey().getScope();
+          // the scope is resolved once for all its values
+          ScopeEntity scopeEntity = getScope(context, scope);
+          if (scopeEntity == null) {
+            scopeEntity = createScope(context, scope);
+          }
+          for (Map.Entry<String, SettingValue<?>> value : entry.getValue().entrySet()) {
+            scopeEntity.setValue(value.getKey(), value.getValue().getValue());
+          }
+        }
+        ctx.getSession().save();
+        return null;
+      }
+    }.executeWith(chromatticLifeCycle);
+    SettingData data = new SettingData(EventType.SETTING_SET_ALL, values);
+    eventManager.broadcastEvent(new Event<SettingServiceImpl,SettingData>(data.getEventType().toString(),this,data));
+  }
     
   public SettingValue<?> get(final Context c, final Scope s, final String key) {
     Object got = new SynchronizationTask<Object>() {
@@ -80,6 +117,39 @@ public class SettingServiceImpl implements SettingService {
       }
     }.executeWith(chromatticLifeCycle);
 
+    return toSettingValue(got);
+  }
+
+  public Map<String, SettingValue<?>> get(final Context c, final Scope s) {
+    Map<String, Object> got = new SynchronizationTask<Map<String, Object>>() {
+      @Override
+      protected Map<String, Object> execute(SessionContext ctx) {
+
+        ScopeEntity scope = getScope(c, s);
+        if (scope == null) {
+          return null; // Scope doesn't exist
+        } else {
+          return scope.getValues();
+        }
+      }
+    }.executeWith(chromatticLifeCycle);
+
+    Map<String, SettingValue<?>> values = new HashMap<String, SettingValue<?>>();
+    if (got != null) {
+      for (Map.Entry<String, Object> entry : got.entrySet()) {
+        if (entry.getKey().startsWith("jcr:")) {
+          continue;
+        }
+        SettingValue<?> value = toSettingValue(entry.getValue());
+        if (value != null) {
+          values.put(entry.getKey(), value);
+        }
+      }
+    }
+    return values;
+  }
+
+  private static SettingValue<?> toSettingValue(Object got) {
     if (got instanceof Long) {
       return SettingValue.create((Long) got);
     } else if (got instanceof String) {
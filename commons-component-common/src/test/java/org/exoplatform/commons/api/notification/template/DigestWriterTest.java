@@ -0,0 +1,74 @@
+package org.exoplatform.commons.api.notification.template;
+
+import java.io.StringWriter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+public class DigestWriterTest extends TestCase {
+  /** The pattern which counted the items of the digest before */
+  private static final Pattern LI_PATTERN = Pattern.compile("<li([^>]+)>(.+?)</li>");
+
+  public void testItemsCountedAsThePattern() throws Exception {
+    String[] digests = { "<li style=\"margin: 0 0 5px;\">one</li><li>two</li>",
+                         "<li class=\"item\">three</li><link rel=\"x\"/><li>four</li>",
+                         "<li>plain</li><li>tags</li><li>only</li>",
+                         "<li class=\"empty\"></li><li class=\"item\">five</li>",
+                         "<li class=\"item\">on two\nlines</li><li\nclass=\"item\">six</li>",
+                         "<ul><li class=\"item\">seven</li></ul><li class=\"unclosed\">" };
+    for (String digest : digests) {
+      DigestWriter writer = new DigestWriter(16, 1024);
+      writer.write(digest);
+      assertEquals(digest, count(digest), writer.getItemCount());
+    }
+    DigestWriter writer = new DigestWriter(16, 1024);
+    writer.write("<li>plain</li><li>tags</li>");
+    assertEquals(0, writer.getItemCount());
+    assertEquals(-1, writer.indexOfItem());
+  }
+
+  public void testItemIndex() throws Exception {
+    DigestWriter writer = new DigestWriter(16, 1024);
+    writer.write("<ul><li>plain</li><li style=\"margin: 0 0 5px;\">one</li></ul>");
+    assertEquals(18, writer.indexOfItem());
+    assertEquals(1, writer.getItemCount());
+    writer.reset();
+    writer.write("<ul></ul><li");
+    assertEquals(-1, writer.indexOfItem());
+  }
+
+  public void testWriteTo() throws Exception {
+    DigestWriter writer = new DigestWriter(16, 1024);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      expected.append("<li class=\"item\">").append(i).append("</li>");
+    }
+    writer.write(expected.toString());
+    StringWriter out = new StringWriter();
+    writer.writeTo(out);
+    assertEquals(expected.toString(), out.toString());
+    assertEquals(2000, writer.getItemCount());
+  }
+
+  public void testReset() throws Exception {
+    DigestWriter writer = new DigestWriter(16, 1024);
+    writer.write("<li class=\"item\">one</li>");
+    assertEquals(1, writer.getItemCount());
+    assertTrue(writer.reset());
+    assertEquals(0, writer.length());
+    assertEquals(0, writer.getItemCount());
+    //a buffer grown over the max capacity should be dropped
+    writer.write(new char[4096]);
+    assertFalse(writer.reset());
+  }
+
+  private int count(String digest) {
+    int count = 0;
+    Matcher matcher = LI_PATTERN.matcher(digest);
+    while (matcher.find()) {
+      count++;
+    }
+    return count;
+  }
+}
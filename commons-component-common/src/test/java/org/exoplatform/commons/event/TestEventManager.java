@@ -19,6 +19,8 @@ package org.exoplatform.commons.event;
 
 import java.io.ByteArrayInputStream;
 import java.util.GregorianCalendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
@@ -30,11 +32,16 @@ import junit.framework.Assert;
 
 import org.exoplatform.commons.api.event.EventManager;
 import org.exoplatform.commons.api.event.data.File;
+import org.exoplatform.commons.event.impl.EventManagerImpl;
 import org.exoplatform.commons.event.impl.EventType;
+import org.exoplatform.commons.event.impl.ListenerStatistics;
 import org.exoplatform.commons.listener.impl.AbstractEventListener;
 import org.exoplatform.commons.model.impl.AbstractFile;
 import org.exoplatform.commons.testing.BaseCommonsTestCase;
+import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.services.listener.Event;
+import org.exoplatform.services.listener.Listener;
+import org.exoplatform.services.naming.InitialContextInitializer;
 
 /**
  * Created by The eXo Platform SARL
@@ -139,6 +146,79 @@ public class TestEventManager<S, D> extends BaseCommonsTestCase {
         dmsEventManager_.removeEventListener("DMSFile", dmsFileListener);
     }
     
+    /**
+     * The execution times of the listeners are recorded, also when a listener fails.
+     */
+    public void testListenerStatistics() {
+        EventManagerImpl<DMSFile, Integer> eventManager = (EventManagerImpl<DMSFile, Integer>) dmsEventManager_;
+        Listener<DMSFile, Integer> failingListener = new Listener<DMSFile, Integer>() {
+            @Override
+            public void onEvent(Event<DMSFile, Integer> event) throws Exception {
+                throw new Exception("Failing listener");
+            }
+        };
+        eventManager.addEventListener("TestStatistics", failingListener);
+        for (int i = 0; i < 3; i++) {
+            eventManager.broadcastEvent(new Event<DMSFile, Integer>("TestStatistics", null, EventType.CREATED));
+        }
+        ListenerStatistics statistics = eventManager.getListenerStatistics("TestStatistics", failingListener);
+        Assert.assertEquals(3, statistics.getExecutionCount());
+        Assert.assertEquals(3, statistics.getFailureCount());
+        Assert.assertTrue(eventManager.getListenerStatistics().contains("TestStatistics"));
+        eventManager.removeEventListener("TestStatistics", failingListener);
+        Assert.assertNull(eventManager.getListenerStatistics("TestStatistics", failingListener));
+    }
+
+    /**
+     * The events of a type with a dispatch lane are processed by the threads of the lane.
+     */
+    public void testDispatchLane() throws Exception {
+        EventManagerImpl<DMSFile, Integer> eventManager = (EventManagerImpl<DMSFile, Integer>) dmsEventManager_;
+        eventManager.addDispatchLane("TestLane", 10);
+        final CountDownLatch latch = new CountDownLatch(5);
+        final String[] threadName = new String[1];
+        Listener<DMSFile, Integer> listener = new Listener<DMSFile, Integer>() {
+            @Override
+            public void onEvent(Event<DMSFile, Integer> event) throws Exception {
+                threadName[0] = Thread.currentThread().getName();
+                latch.countDown();
+            }
+        };
+        eventManager.addEventListener("TestLane", listener);
+        for (int i = 0; i < 5; i++) {
+            eventManager.broadcastEvent(new Event<DMSFile, Integer>("TestLane", null, EventType.CREATED));
+        }
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(threadName[0].startsWith("EventManager-TestLane"));
+        Assert.assertTrue(eventManager.getLaneStatistics().contains("TestLane"));
+        eventManager.removeEventListener("TestLane", listener);
+    }
+
+    /**
+     * The threads of the lanes are stopped with the event manager, the next events are dispatched by the caller.
+     */
+    public void testStopShutsDownLanes() throws Exception {
+        EventManagerImpl<DMSFile, Integer> eventManager =
+            new EventManagerImpl<DMSFile, Integer>(getService(ExoContainerContext.class), getService(InitialContextInitializer.class), null);
+        eventManager.addDispatchLane("TestStop", 10);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final String[] threadName = new String[1];
+        eventManager.addEventListener("TestStop", new Listener<DMSFile, Integer>() {
+            @Override
+            public void onEvent(Event<DMSFile, Integer> event) throws Exception {
+                threadName[0] = Thread.currentThread().getName();
+                latch.countDown();
+            }
+        });
+        eventManager.broadcastEvent(new Event<DMSFile, Integer>("TestStop", null, EventType.CREATED));
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        //
+        eventManager.stop();
+        Assert.assertEquals("", eventManager.getLaneStatistics());
+        eventManager.broadcastEvent(new Event<DMSFile, Integer>("TestStop", null, EventType.CREATED));
+        Assert.assertEquals(Thread.currentThread().getName(), threadName[0]);
+    }
+
     private void broadcastEvent(DMSFile dmsFile, int eventType) {
         dmsEventManager_.broadcastEvent(new Event<DMSFile, Integer>(dmsFile.getObjectType(), dmsFile, eventType));
     }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.io.File;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.indexing.data.SearchEntry;
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+
+public class EmbeddedIndexingServiceTest extends TestCase {
+
+  private File                    directory;
+
+  private EmbeddedIndexingService service;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("commons-index", "");
+    directory.delete();
+    service = newService();
+    service.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    service.stop();
+    delete(directory);
+  }
+
+  public void testSearch() throws Exception {
+    service.add(entry("wiki", "page", "1", "title", "The eXo platform", "content", "Social intranet of the company"));
+    service.add(entry("wiki", "page", "2", "title", "Intranet", "content", "Intranet, intranet and intranet"));
+    service.add(entry("forum", "post", "3", "title", "D\u00e9j\u00e0 vu", "content", "A post about the intranet"));
+    // the buffered entries aren't searchable
+    assertEquals(0, service.search("intranet", null, null, 0, 10).size());
+    service.flush();
+    List<IndexHit> hits = service.search("intranet", null, null, 0, 10);
+    assertEquals(3, hits.size());
+    assertEquals("2", hits.get(0).getEntry().getId().getName());
+    assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+    assertEquals(1, service.search("intranet", "forum", null, 0, 10).size());
+    assertEquals(2, service.search("intranet", "wiki", "page", 0, 10).size());
+    assertEquals(0, service.search("intranet", "wiki", "post", 0, 10).size());
+    assertEquals("3", service.search("DEJA", null, null, 0, 10).get(0).getEntry().getId().getName());
+    assertEquals(1, service.search("intranet", null, null, 2, 10).size());
+    assertEquals(0, service.search("unknown", null, null, 0, 10).size());
+  }
+
+  public void testUpdateAndDelete() throws Exception {
+    service.add(entry("wiki", "page", "1", "title", "first version"));
+    service.add(entry("wiki", "page", "2", "title", "other page"));
+    service.flush();
+    Map<String, Object> changes = new HashMap<String, Object>();
+    changes.put("title", "second version");
+    changes.put("author", "john");
+    service.update(new SearchEntryId("wiki", "page", "1"), changes);
+    service.flush();
+    assertEquals(0, service.search("first", null, null, 0, 10).size());
+    List<IndexHit> hits = service.search("second", null, null, 0, 10);
+    assertEquals(1, hits.size());
+    Map<String, Object> content = hits.get(0).getEntry().getContent();
+    assertEquals("john", content.get("author"));
+    assertNotNull(content.get("se_dateIndexed"));
+    assertNotNull(content.get("se_lastUpdate"));
+    //
+    service.delete(new SearchEntryId("wiki", "page", "2"));
+    service.flush();
+    assertEquals(0, service.search("other", null, null, 0, 10).size());
+    assertEquals(1, service.getEntryCount());
+    // the deletions of the buffered entries
+    service.add(entry("wiki", "page", "3", "title", "buffered page"));
+    service.delete(new SearchEntryId("wiki", "page", "3"));
+    service.flush();
+    assertEquals(0, service.search("buffered", null, null, 0, 10).size());
+  }
+
+  public void testReopen() throws Exception {
+    Date date = new Date(1400000000000L);
+    service.add(entry("wiki", "page", "1", "title", "persisted page", "date", date, "size", 42L, "rating", 4.5d));
+    service.add(entry("wiki", "page", "2", "title", "deleted page"));
+    service.flush();
+    service.delete(new SearchEntryId("wiki", "page", "2"));
+    service.add(entry("wiki", "page", "3", "title", "buffered page"));
+    service.stop();
+    service = newService();
+    service.start();
+    assertEquals(2, service.getEntryCount());
+    assertEquals(0, service.search("deleted", null, null, 0, 10).size());
+    assertEquals(1, service.search("buffered", null, null, 0, 10).size());
+    Map<String, Object> content = service.search("persisted", null, null, 0, 10).get(0).getEntry().getContent();
+    assertEquals(date, content.get("date"));
+    assertEquals(42L, content.get("size"));
+    assertEquals(4.5d, content.get("rating"));
+  }
+
+  public void testMerge() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      for (int j = 0; j < 10; j++) {
+        service.add(entry("wiki", "page", i + "-" + j, "title", "page " + j + " of batch" + i));
+      }
+      if (i == 3) {
+        service.delete(new SearchEntryId("wiki", "page", "0-0"));
+      }
+      // the fourth segment is merged in the background with the others
+      service.flush();
+    }
+    for (int i = 0; i < 100 && service.getSegmentCount() > 1; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, service.getSegmentCount());
+    assertEquals(39, service.getEntryCount());
+    assertEquals(39, service.search("page", null, null, 0, 100).size());
+    assertEquals(10, service.search("batch3", null, null, 0, 100).size());
+    // the merged entries can be deleted and updated
+    service.delete(new SearchEntryId("wiki", "page", "1-1"));
+    service.flush();
+    assertEquals(9, service.search("batch1", null, null, 0, 100).size());
+    // the files of the merged segments are removed
+    assertEquals(3, directory.list().length);
+    service.stop();
+    service = newService();
+    service.start();
+    assertEquals(38, service.search("page", null, null, 0, 100).size());
+  }
+
+  public void testIdleFlush() throws Exception {
+    service.add(entry("wiki", "page", "1", "title", "first page"));
+    service.add(entry("wiki", "page", "2", "title", "second page"));
+    service.flush();
+    File manifest = new File(directory, "segments");
+    assertTrue(manifest.setLastModified(0));
+    // nothing changed, nothing is written
+    service.flush();
+    assertEquals(0, manifest.lastModified());
+    // a deletion only writes the tombstones of its segment
+    service.delete(new SearchEntryId("wiki", "page", "2"));
+    service.flush();
+    assertEquals(0, manifest.lastModified());
+    assertEquals(3, directory.list().length);
+    // a new segment is listed
+    service.add(entry("wiki", "page", "3", "title", "third page"));
+    service.flush();
+    assertTrue(manifest.lastModified() > 0);
+    service.stop();
+    service = newService();
+    service.start();
+    assertEquals(2, service.search("page", null, null, 0, 10).size());
+  }
+
+  public void testSharedDirectory() throws Exception {
+    service.add(entry("wiki", "page", "1", "title", "first page"));
+    service.flush();
+    service.stop();
+    File unrelated = new File(directory, "unrelated.txt");
+    assertTrue(unrelated.createNewFile());
+    File orphan = new File(directory, "_999.seg");
+    assertTrue(orphan.createNewFile());
+    File tmp = new File(directory, "_999.del.tmp");
+    assertTrue(tmp.createNewFile());
+    service = newService();
+    service.start();
+    // only the files of the index which aren't listed are removed
+    assertTrue(unrelated.exists());
+    assertFalse(orphan.exists());
+    assertFalse(tmp.exists());
+    assertEquals(1, service.search("page", null, null, 0, 10).size());
+  }
+
+  private EmbeddedIndexingService newService() {
+    InitParams params = new InitParams();
+    params.addParam(param(EmbeddedIndexingService.DIRECTORY, directory.getPath()));
+    params.addParam(param(EmbeddedIndexingService.FLUSH_INTERVAL, "0"));
+    params.addParam(param(EmbeddedIndexingService.MERGE_FACTOR, "4"));
+    return new EmbeddedIndexingService(params);
+  }
+
+  private static ValueParam param(String name, String value) {
+    ValueParam param = new ValueParam();
+    param.setName(name);
+    param.setValue(value);
+    return param;
+  }
+
+  private static SearchEntry entry(String collection, String type, String name, Object... fields) {
+    Map<String, Object> content = new HashMap<String, Object>();
+    for (int i = 0; i < fields.length; i += 2) {
+      content.put((String) fields[i], fields[i + 1]);
+    }
+    return new SearchEntry(collection, type, name, content);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+
+import org.exoplatform.commons.api.indexing.data.SearchEntry;
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+import org.exoplatform.commons.testing.BaseCommonsTestCase;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.container.xml.ValuesParam;
+
+public class JCRIndexingSourcePluginTest extends BaseCommonsTestCase {
+
+  private File                    directory;
+
+  private EmbeddedIndexingService index;
+
+  private QueuedIndexingService   queue;
+
+  private JCRIndexingSourcePlugin plugin;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("commons-index", "");
+    directory.delete();
+    InitParams indexParams = new InitParams();
+    indexParams.addParam(param(EmbeddedIndexingService.DIRECTORY, directory.getPath()));
+    indexParams.addParam(param(EmbeddedIndexingService.FLUSH_INTERVAL, "0"));
+    index = new EmbeddedIndexingService(indexParams);
+    index.start();
+    InitParams queueParams = new InitParams();
+    queueParams.addParam(param(QueuedIndexingService.BATCH_INTERVAL, "10"));
+    queue = new QueuedIndexingService(index, null, queueParams);
+    queue.start();
+    InitParams params = new InitParams();
+    params.addParam(param("query", "select * from nt:unstructured where jcr:path like '/indexing/%'"));
+    params.addParam(param("workspace", WORKSPACE_NAME));
+    params.addParam(param("collection", "jcr"));
+    params.addParam(param("type", "page"));
+    ValuesParam properties = new ValuesParam();
+    properties.setName("properties");
+    properties.getValues().add("title");
+    properties.getValues().add("rating");
+    params.addParam(properties);
+    plugin = new JCRIndexingSourcePlugin(repositoryService, params);
+    plugin.setName("pages");
+    queue.addSourcePlugin(plugin);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    queue.stop();
+    index.stop();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  public void testReindex() throws Exception {
+    Node folder = root.addNode("indexing", "nt:unstructured");
+    Node first = folder.addNode("first", "nt:unstructured");
+    first.setProperty("title", "first page");
+    first.setProperty("rating", 4L);
+    first.setProperty("author", "john");
+    folder.addNode("second", "nt:unstructured").setProperty("title", "second page");
+    session.save();
+    reindex();
+    List<IndexHit> hits = index.search("page", "jcr", "page", 0, 10);
+    assertEquals(2, hits.size());
+    SearchEntry entry = index.search("first", "jcr", "page", 0, 10).get(0).getEntry();
+    assertEquals("/indexing/first", entry.getId().getName());
+    assertEquals("first page", entry.getContent().get("title"));
+    assertEquals(4L, entry.getContent().get("rating"));
+    // only the configured properties are indexed
+    assertNull(entry.getContent().get("author"));
+    assertTrue(plugin.isSourceOf(new SearchEntryId("jcr", "page", "/indexing/first")));
+    assertFalse(plugin.isSourceOf(new SearchEntryId("wiki", "page", "/indexing/first")));
+  }
+
+  public void testReindexRemovesStaleEntries() throws Exception {
+    Node folder = root.addNode("indexing", "nt:unstructured");
+    folder.addNode("first", "nt:unstructured").setProperty("title", "first page");
+    folder.addNode("second", "nt:unstructured").setProperty("title", "second page");
+    session.save();
+    reindex();
+    queue.add(new SearchEntry("wiki", "page", "other", Collections.<String, Object> singletonMap("title", "other page")));
+    assertTrue(queue.awaitWritten(5000));
+    folder.getNode("second").remove();
+    session.save();
+    Thread.sleep(2);
+    reindex();
+    assertEquals(1, index.search("page", "jcr", "page", 0, 10).size());
+    assertEquals("/indexing/first", index.search("page", "jcr", "page", 0, 10).get(0).getEntry().getId().getName());
+    // the entries of the other sources are kept
+    assertEquals(1, index.search("page", "wiki", null, 0, 10).size());
+  }
+
+  private void reindex() throws Exception {
+    queue.reindex(plugin).get(30, TimeUnit.SECONDS);
+    assertTrue(queue.awaitWritten(5000));
+    index.flush();
+  }
+
+  private static ValueParam param(String name, String value) {
+    ValueParam param = new ValueParam();
+    param.setName(name);
+    param.setValue(value);
+    return param;
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.indexing.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.indexing.IndexingService;
+import org.exoplatform.commons.api.indexing.IndexingSourcePlugin;
+import org.exoplatform.commons.api.indexing.data.SearchEntry;
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+
+public class QueuedIndexingServiceTest extends TestCase {
+
+  private RecordingIndexingService delegate;
+
+  private QueuedIndexingService    service;
+
+  @Override
+  protected void setUp() throws Exception {
+    delegate = new RecordingIndexingService();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delegate.release();
+    if (service != null) {
+      service.stop();
+    }
+  }
+
+  public void testCoalesce() throws Exception {
+    service = newService(100, 100, 10, 60000);
+    service.add(entry("1", "title", "first"));
+    service.update(new SearchEntryId("wiki", "page", "1"), content("title", "second"));
+    service.update(new SearchEntryId("wiki", "page", "1"), content("author", "john"));
+    service.update(new SearchEntryId("wiki", "page", "2"), content("title", "lost"));
+    service.delete(new SearchEntryId("wiki", "page", "2"));
+    service.update(new SearchEntryId("wiki", "page", "2"), content("title", "deleted"));
+    service.add(entry("3", "title", "deleted"));
+    service.delete(new SearchEntryId("wiki", "page", "3"));
+    assertEquals(3, service.getQueuedEntries());
+    assertTrue(service.awaitWritten(5000));
+    assertEquals(Arrays.asList("add wiki/page/1 {title=first}",
+                               "update wiki/page/1 {author=john, title=second}",
+                               "delete wiki/page/2",
+                               "delete wiki/page/3"), delegate.operations);
+    assertEquals(5, service.getCoalescedCount());
+    assertEquals(3, service.getWrittenCount());
+  }
+
+  public void testBatch() throws Exception {
+    service = newService(100, 100, 10, 60000);
+    for (int i = 0; i < 25; i++) {
+      service.add(entry(String.valueOf(i), "title", "page " + i));
+    }
+    // the full batches are written without waiting for the interval
+    for (int i = 0; i < 100 && service.getWrittenCount() < 20; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(20, service.getWrittenCount());
+    assertEquals(5, service.getQueuedEntries());
+    assertTrue(service.getLag() >= 0);
+    assertTrue(service.awaitWritten(5000));
+    assertEquals(25, delegate.operations.size());
+    //
+    service.stop();
+    service.add(entry("26", "title", "written by the caller"));
+    assertEquals(26, delegate.operations.size());
+    service = null;
+  }
+
+  public void testBackpressure() throws Exception {
+    service = newService(5, 5, 2, 0);
+    delegate.block();
+    final AtomicInteger added = new AtomicInteger();
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 20; i++) {
+          service.add(entry(String.valueOf(i), "title", "page " + i));
+          added.incrementAndGet();
+        }
+      }
+    };
+    producer.start();
+    Thread.sleep(300);
+    // the writer holds a batch, the producer waits for the queue
+    assertTrue(added.get() < 20);
+    assertEquals(5, service.getQueuedEntries());
+    delegate.release();
+    producer.join(5000);
+    assertEquals(20, added.get());
+    assertTrue(service.awaitWritten(5000));
+    assertEquals(20, delegate.operations.size());
+  }
+
+  public void testReindex() throws Exception {
+    service = newService(100, 10, 10, 10);
+    final int size = 200;
+    IndexingSourcePlugin plugin = new IndexingSourcePlugin() {
+      @Override
+      public void reindex(IndexingService indexingService) throws Exception {
+        for (int i = 0; i < size; i++) {
+          if (i == 50) {
+            // a user changes an entry which isn't reindexed yet
+            service.update(new SearchEntryId("wiki", "page", "100"), content("title", "changed"));
+          }
+          indexingService.add(entry(String.valueOf(i), "title", "page " + i));
+        }
+      }
+    };
+    plugin.setName("wiki");
+    service.addSourcePlugin(plugin);
+    service.reindex(plugin).get(10, TimeUnit.SECONDS);
+    assertTrue(service.awaitWritten(5000));
+    assertEquals(1, service.getDroppedCount());
+    assertEquals(size, delegate.operations.size());
+    assertTrue(delegate.operations.contains("update wiki/page/100 {title=changed}"));
+    assertFalse(delegate.operations.contains("add wiki/page/100 {title=page 100}"));
+    assertEquals("[wiki]", service.getSources());
+  }
+
+  public void testReindexRemovesStaleEntries() throws Exception {
+    File directory = File.createTempFile("commons-index", "");
+    directory.delete();
+    InitParams indexParams = new InitParams();
+    indexParams.addParam(param(EmbeddedIndexingService.DIRECTORY, directory.getPath()));
+    indexParams.addParam(param(EmbeddedIndexingService.FLUSH_INTERVAL, "0"));
+    EmbeddedIndexingService index = new EmbeddedIndexingService(indexParams);
+    index.start();
+    try {
+      InitParams params = new InitParams();
+      params.addParam(param(QueuedIndexingService.BATCH_INTERVAL, "10"));
+      service = new QueuedIndexingService(index, null, params);
+      service.start();
+      final List<String> pages = new ArrayList<String>(Arrays.asList("1", "2", "3"));
+      IndexingSourcePlugin plugin = new IndexingSourcePlugin() {
+        @Override
+        public void reindex(IndexingService indexingService) throws Exception {
+          for (String page : pages) {
+            indexingService.add(entry(page, "title", "page " + page));
+          }
+        }
+
+        @Override
+        public boolean isSourceOf(SearchEntryId id) {
+          return "wiki".equals(id.getCollection()) && "page".equals(id.getType());
+        }
+      };
+      plugin.setName("wiki");
+      service.reindex(plugin).get(10, TimeUnit.SECONDS);
+      service.add(new SearchEntry("forum", "post", "1", content("title", "post")));
+      assertTrue(service.awaitWritten(5000));
+      index.flush();
+      assertEquals(4, index.getEntryCount());
+      // the page 3 is removed from the source
+      pages.remove("3");
+      Thread.sleep(2);
+      service.reindex(plugin).get(10, TimeUnit.SECONDS);
+      index.flush();
+      assertEquals(3, index.getEntryCount());
+      assertEquals(2, index.search("page", "wiki", "page", 0, 10).size());
+      assertEquals(1, index.search("post", "forum", null, 0, 10).size());
+    } finally {
+      service.stop();
+      service = null;
+      index.stop();
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  private QueuedIndexingService newService(int queueSize, int bulkQueueSize, int batchSize, long batchInterval) {
+    InitParams params = new InitParams();
+    params.addParam(param(QueuedIndexingService.QUEUE_SIZE, String.valueOf(queueSize)));
+    params.addParam(param(QueuedIndexingService.BULK_QUEUE_SIZE, String.valueOf(bulkQueueSize)));
+    params.addParam(param(QueuedIndexingService.BATCH_SIZE, String.valueOf(batchSize)));
+    params.addParam(param(QueuedIndexingService.BATCH_INTERVAL, String.valueOf(batchInterval)));
+    QueuedIndexingService queued = new QueuedIndexingService(delegate, null, params);
+    queued.start();
+    return queued;
+  }
+
+  private static ValueParam param(String name, String value) {
+    ValueParam param = new ValueParam();
+    param.setName(name);
+    param.setValue(value);
+    return param;
+  }
+
+  private static SearchEntry entry(String name, Object... fields) {
+    return new SearchEntry("wiki", "page", name, content(fields));
+  }
+
+  private static Map<String, Object> content(Object... fields) {
+    Map<String, Object> content = new HashMap<String, Object>();
+    for (int i = 0; i < fields.length; i += 2) {
+      content.put((String) fields[i], fields[i + 1]);
+    }
+    return content;
+  }
+
+  private static class RecordingIndexingService extends IndexingService {
+    private final List<String>      operations = Collections.synchronizedList(new ArrayList<String>());
+
+    private volatile CountDownLatch gate;
+
+    private void block() {
+      gate = new CountDownLatch(1);
+    }
+
+    private void release() {
+      if (gate != null) {
+        gate.countDown();
+      }
+    }
+
+    @Override
+    public void add(SearchEntry searchEntry) {
+      CountDownLatch current = gate;
+      if (current != null) {
+        try {
+          current.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      operations.add("add " + searchEntry.getId() + " " + new TreeMap<String, Object>(searchEntry.getContent()));
+    }
+
+    @Override
+    public void update(SearchEntryId id, Map<String, Object> changes) {
+      operations.add("update " + id + " " + new TreeMap<String, Object>(changes));
+    }
+
+    @Override
+    public void delete(SearchEntryId id) {
+      operations.add("delete " + id);
+    }
+  }
+}
@@ -1,5 +1,10 @@
 package org.exoplatform.commons.notification;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
@@ -15,9 +20,13 @@ import org.exoplatform.commons.api.notification.model.NotificationInfo;
 import org.exoplatform.commons.api.notification.model.NotificationKey;
 import org.exoplatform.commons.api.notification.model.UserSetting;
 import org.exoplatform.commons.api.notification.model.UserSetting.FREQUENCY;
+import org.exoplatform.commons.api.notification.service.setting.PluginSettingService;
+import org.exoplatform.commons.api.notification.service.setting.UserSettingService;
 import org.exoplatform.commons.api.notification.service.storage.NotificationDataStorage;
 import org.exoplatform.commons.api.notification.service.storage.NotificationService;
 import org.exoplatform.commons.notification.impl.NotificationContextImpl;
+import org.exoplatform.commons.notification.impl.StatisticsService;
+import org.exoplatform.commons.notification.impl.service.NotificationFanOut;
 import org.exoplatform.commons.notification.job.NotificationJob;
 import org.exoplatform.commons.notification.plugin.PluginTest;
 import org.exoplatform.commons.testing.BaseCommonsTestCase;
@@ -90,6 +99,8 @@ public class NotificationServiceTest extends BaseCommonsTestCase {
     assertEquals(1, list.size());
     
     assertTrue(list.get(0).equals(notification));
+    // the removals are applied at the end of the digest run
+    notificationDataStorage.removeMessageAfterSent(context);
     // after sent, user demo will auto remove from property daily
     NotificationInfo notification2 = getNotificationInfoByKeyIdAndParam(PluginTest.ID, "objectId=idofobject");
     assertNotNull(notification2);
@@ -163,6 +174,41 @@ public class NotificationServiceTest extends BaseCommonsTestCase {
     assertNull(notification2);
   }
 
+  public void testSaveDuringDigest() throws Exception {
+    NotificationInfo served = saveDailyNotification("served", "root", "john");
+    NotificationContext context = NotificationContextImpl.cloneInstance();
+    context.append(NotificationJob.JOB_DAILY, true);
+    context.append(NotificationJob.DAY_OF_JOB, String.valueOf(Calendar.getInstance().get(Calendar.DAY_OF_MONTH)));
+    context.append(NotificationJob.JOB_WEEKLY, false);
+    //
+    Map<NotificationKey, List<NotificationInfo>> map = notificationDataStorage.getByUser(context, createUserSetting("root", FREQUENCY.DAILY));
+    assertEquals(1, map.get(new NotificationKey(PluginTest.ID)).size());
+    // a message created during the run is left for the next run
+    Thread.sleep(10);
+    saveDailyNotification("created", "root", "john");
+    map = notificationDataStorage.getByUser(context, createUserSetting("john", FREQUENCY.DAILY));
+    List<NotificationInfo> list = map.get(new NotificationKey(PluginTest.ID));
+    assertEquals(1, list.size());
+    assertTrue(list.get(0).equals(served));
+    //
+    notificationDataStorage.removeMessageAfterSent(context);
+    // all the recipients of the first message are served, it's removed
+    assertNull(getNotificationInfoByKeyIdAndParam(PluginTest.ID, "objectId=served"));
+    NotificationInfo created = getNotificationInfoByKeyIdAndParam(PluginTest.ID, "objectId=created");
+    assertNotNull(created);
+    assertEquals(Arrays.asList("root", "john"), Arrays.asList(created.getSendToDaily()));
+  }
+
+  private NotificationInfo saveDailyNotification(String objectId, String... users) throws Exception {
+    NotificationInfo notification = NotificationInfo.instance();
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("objectId", objectId);
+    notification.key(PluginTest.ID).setSendToDaily(users).setOwnerParameter(params).setOrder(1);
+    notificationDataStorage.save(notification);
+    addMixin(notification.getId());
+    return notification;
+  }
+
   public void testWithUserNameContainSpecialCharacter() throws Exception {
     String userNameSpecial = "Rabe'e \"AbdelWahabô";
     NotificationContext context = NotificationContextImpl.cloneInstance();
@@ -185,6 +231,73 @@ public class NotificationServiceTest extends BaseCommonsTestCase {
     assertTrue(list.get(0).equals(notification));
   }
   
+  public void testProcessThroughFanOut() throws Exception {
+    getService(PluginSettingService.class).savePlugin(PluginTest.ID, true);
+    UserSettingService userSettingService = getService(UserSettingService.class);
+    userSettingService.save(createUserSetting("root", FREQUENCY.DAILY));
+    userSettingService.save(createUserSetting("demo", FREQUENCY.WEEKLY));
+    userSettingService.save(createUserSetting("john", FREQUENCY.INSTANTLY));
+    StatisticsService statisticsService = getService(StatisticsService.class);
+    statisticsService.activeStatistics();
+    try {
+      NotificationInfo notification = NotificationInfo.instance();
+      Map<String, String> params = new HashMap<String, String>();
+      params.put("objectId", "fanout");
+      notification.key(PluginTest.ID).setOwnerParameter(params).setOrder(1)
+                  .to(Arrays.asList("root", "demo", "john"));
+      // the notification completion service runs the stages on the caller's thread
+      notificationService.process(notification);
+      //
+      NotificationInfo saved = getNotificationInfoByKeyIdAndParam(PluginTest.ID, "objectId=fanout");
+      assertNotNull(saved);
+      assertEquals(Arrays.asList("root"), Arrays.asList(saved.getSendToDaily()));
+      assertEquals(Arrays.asList("demo"), Arrays.asList(saved.getSendToWeekly()));
+      assertEquals(1, statisticsService.getStageStatistics(NotificationFanOut.RESOLVE_STAGE).getExecutionCount());
+      assertEquals(1, statisticsService.getStageStatistics(NotificationFanOut.CLASSIFY_STAGE).getExecutionCount());
+      assertEquals(1, statisticsService.getStageStatistics(NotificationFanOut.RENDER_STAGE).getExecutionCount());
+    } finally {
+      statisticsService.deactiveStatistics();
+      statisticsService.clear();
+    }
+  }
+
+  public void testFanOutSavesWhenResolveFails() throws Exception {
+    final UserSettingService userSettingService = getService(UserSettingService.class);
+    UserSettingService failingService = (UserSettingService) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { UserSettingService.class }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("getUserSettingByPlugin".equals(method.getName())) {
+          throw new IllegalStateException("Failed to load the user settings");
+        }
+        try {
+          return method.invoke(userSettingService, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    });
+    NotificationFanOut fanOut = new NotificationFanOut(failingService, notificationDataStorage, 200, 10, 1);
+    //
+    NotificationInfo notification = NotificationInfo.instance();
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("objectId", "resolveFailed");
+    notification.key(PluginTest.ID).setOwnerParameter(params).setOrder(1).setSendAll(true);
+    fanOut.process(notification);
+    //the notification is saved for the digests of all the users in spite of the failure
+    NotificationInfo saved = getNotificationInfoByKeyIdAndParam(PluginTest.ID, "objectId=resolveFailed");
+    assertNotNull(saved);
+    assertTrue(saved.isSendAll());
+    assertEquals(0, fanOut.getPendingCount());
+  }
+
+  private UserSetting createUserSetting(String userId, FREQUENCY frequency) {
+    UserSetting userSetting = UserSetting.getInstance();
+    userSetting.setUserId(userId).addProvider(PluginTest.ID, frequency);
+    userSetting.setActive(true);
+    return userSetting;
+  }
+
   private void addMixin(String msgId) throws Exception {
     Node msgNode = getMessageNodeById(msgId);
     if (msgNode != null) {
@@ -0,0 +1,161 @@
+package org.exoplatform.commons.notification.cache;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.exoplatform.commons.api.notification.service.template.TemplateContext;
+import org.exoplatform.commons.api.notification.template.Element;
+import org.exoplatform.commons.notification.plugin.PluginTest;
+import org.exoplatform.commons.notification.template.GroovyElement;
+import org.exoplatform.commons.notification.template.TemplateUtils;
+import org.exoplatform.commons.testing.BaseCommonsTestCase;
+import org.exoplatform.groovyscript.GroovyTemplate;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+
+/**
+ * Checks that a digest template is compiled once, taken from the compiled
+ * templates cache on the next renderings and compiled again once invalidated.
+ * The cold and warm renderings are compared when their number is given by
+ * -Dnotification.template.benchmark.renderings.
+ */
+public class TemplateCachingTest extends BaseCommonsTestCase {
+  private static final String TEMPLATE              = "<div>Hello ${USER}</div><ul><% for (i in 1..COUNT) { %><li>item ${i}</li><% } %></ul>";
+
+  private static final String EXPECTED              = "<div>Hello root</div><ul><li>item 1</li><li>item 2</li><li>item 3</li></ul>";
+
+  private static final String COMPILED_CACHING_NAME = "common.notification.template.compiled";
+
+  private static final String BENCHMARK_RENDERINGS  = "notification.template.benchmark.renderings";
+
+  private TemplateCaching     templateCaching;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    templateCaching = getService(TemplateCaching.class);
+    templateCaching.invalidate(null);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    templateCaching.invalidate(null);
+    super.tearDown();
+  }
+
+  public void testCompiledOnce() throws Exception {
+    assertFalse(templateCaching.isCompiled(PluginTest.ID, "en", TEMPLATE));
+    assertEquals(EXPECTED, render(TEMPLATE));
+    assertTrue(templateCaching.isCompiled(PluginTest.ID, "en", TEMPLATE));
+    assertSame(templateCaching.getGroovyTemplate(PluginTest.ID, "en", TEMPLATE),
+               templateCaching.getGroovyTemplate(PluginTest.ID, "en", TEMPLATE));
+    //a changed template is compiled again
+    String changed = TEMPLATE + "<br/>";
+    assertFalse(templateCaching.isCompiled(PluginTest.ID, "en", changed));
+    assertEquals(EXPECTED + "<br/>", render(changed));
+  }
+
+  public void testInvalidate() throws Exception {
+    render(TEMPLATE);
+    templateCaching.getGroovyTemplate("otherPlugin", "en", TEMPLATE);
+    //
+    TemplateUtils.invalidateTemplates(PluginTest.ID);
+    assertFalse(templateCaching.isCompiled(PluginTest.ID, "en", TEMPLATE));
+    assertTrue(templateCaching.isCompiled("otherPlugin", "en", TEMPLATE));
+    //
+    TemplateUtils.invalidateTemplates(null);
+    assertFalse(templateCaching.isCompiled("otherPlugin", "en", TEMPLATE));
+  }
+
+  public void testConcurrentRendering() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < 40; i++) {
+        results.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            GroovyTemplate template = templateCaching.getGroovyTemplate(PluginTest.ID, "en", TEMPLATE);
+            StringWriter out = new StringWriter();
+            template.render(out, newContext());
+            return out.toString();
+          }
+        }));
+      }
+      for (Future<String> result : results) {
+        assertEquals(EXPECTED, result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testCacheHitOnSecondRender() throws Exception {
+    ExoCache<TemplateCacheKey, GroovyTemplate> compiledCache = getService(CacheService.class).getCacheInstance(COMPILED_CACHING_NAME);
+    int misses = compiledCache.getCacheMiss();
+    //the first rendering compiles the template
+    assertEquals(EXPECTED, render(TEMPLATE));
+    assertEquals(misses + 1, compiledCache.getCacheMiss());
+    assertEquals(1, compiledCache.getCacheSize());
+    GroovyTemplate compiled = templateCaching.getGroovyTemplate(PluginTest.ID, "en", TEMPLATE);
+    int hits = compiledCache.getCacheHit();
+    //the next renderings take the compiled template from the cache
+    for (int i = 0; i < 10; i++) {
+      assertEquals(EXPECTED, render(TEMPLATE));
+    }
+    assertEquals(misses + 1, compiledCache.getCacheMiss());
+    assertEquals(hits + 10, compiledCache.getCacheHit());
+    assertSame(compiled, templateCaching.getGroovyTemplate(PluginTest.ID, "en", TEMPLATE));
+    //the invalidated template is compiled again on the next rendering
+    TemplateUtils.invalidateTemplates(PluginTest.ID);
+    assertEquals(0, compiledCache.getCacheSize());
+    assertEquals(EXPECTED, render(TEMPLATE));
+    assertEquals(misses + 2, compiledCache.getCacheMiss());
+    assertNotSame(compiled, templateCaching.getGroovyTemplate(PluginTest.ID, "en", TEMPLATE));
+  }
+
+  public void testColdAndWarmRendering() throws Exception {
+    String benchmarkRenderings = System.getProperty(BENCHMARK_RENDERINGS);
+    if (benchmarkRenderings == null) {
+      return;
+    }
+    int renderings = Integer.parseInt(benchmarkRenderings);
+    //the cold renderings compile the template on each call
+    long coldTime = System.nanoTime();
+    for (int i = 0; i < renderings; i++) {
+      templateCaching.invalidate(PluginTest.ID);
+      assertEquals(EXPECTED, render(TEMPLATE));
+    }
+    coldTime = System.nanoTime() - coldTime;
+    //
+    render(TEMPLATE);
+    long warmTime = System.nanoTime();
+    for (int i = 0; i < renderings; i++) {
+      assertEquals(EXPECTED, render(TEMPLATE));
+    }
+    warmTime = System.nanoTime() - warmTime;
+    //
+    System.out.println(String.format("Rendering of the digest template: cold %s us/op, warm %s us/op",
+                                     coldTime / renderings / 1000,
+                                     warmTime / renderings / 1000));
+  }
+
+  private String render(String template) {
+    Element element = new GroovyElement().language("en").template(template);
+    StringWriter out = new StringWriter();
+    TemplateUtils.loadGroovy(newContext(), element, out);
+    return out.toString();
+  }
+
+  private TemplateContext newContext() {
+    TemplateContext context = new TemplateContext(PluginTest.ID, "en");
+    context.put("USER", "root");
+    context.put("COUNT", 3);
+    return context;
+  }
+}
@@ -0,0 +1,219 @@
+package org.exoplatform.commons.notification.impl.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+
+import org.exoplatform.commons.api.notification.NotificationContext;
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+import org.exoplatform.commons.api.notification.model.UserSetting;
+import org.exoplatform.commons.api.notification.service.setting.UserSettingService;
+import org.exoplatform.commons.api.notification.service.storage.NotificationDataStorage;
+import org.exoplatform.commons.api.notification.service.storage.NotificationService;
+import org.exoplatform.commons.api.settings.SettingService;
+import org.exoplatform.commons.notification.impl.NotificationContextImpl;
+import org.exoplatform.commons.notification.job.NotificationJob;
+import org.exoplatform.commons.notification.plugin.PluginTest;
+import org.exoplatform.commons.testing.BaseCommonsTestCase;
+
+/**
+ * Runs the partitioned digest against the repository of the tests, with one
+ * worker and with several workers. The throughput of the digest is measured
+ * when the number of users is given by -Dnotification.digest.benchmark.users.
+ */
+public class DigestThroughputTest extends BaseCommonsTestCase {
+  private static final int        USERS          = 200;
+
+  private static final int        PARTITION_SIZE = 20;
+
+  private static final String     BENCHMARK_USERS = "notification.digest.benchmark.users";
+
+  private NotificationServiceImpl notificationService;
+
+  private UserSettingService      userSettingService;
+
+  private NotificationDataStorage notificationDataStorage;
+
+  private SettingService          settingService;
+
+  private ExecutorService         executor;
+
+  private List<String>            userIds;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    notificationService = (NotificationServiceImpl) getService(NotificationService.class);
+    userSettingService = getService(UserSettingService.class);
+    notificationDataStorage = getService(NotificationDataStorage.class);
+    settingService = getService(SettingService.class);
+    executor = Executors.newFixedThreadPool(4);
+    //
+    userIds = new ArrayList<String>();
+    addUsers(USERS);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    if (session.itemExists("/eXoNotification/messageHome")) {
+      NodeIterator iterator = ((Node) session.getItem("/eXoNotification/messageHome")).getNodes();
+      while (iterator.hasNext()) {
+        iterator.nextNode().remove();
+      }
+      session.save();
+    }
+    super.tearDown();
+  }
+
+  public void testParallelDigest() throws Exception {
+    saveNotification();
+    long serialUsers = runDigest(1, newCheckpoint("serial"));
+    //
+    saveNotification();
+    long parallelUsers = runDigest(4, newCheckpoint("parallel"));
+    //
+    assertTrue(serialUsers >= USERS);
+    assertEquals(serialUsers, parallelUsers);
+  }
+
+  public void testThroughput() throws Exception {
+    String benchmarkUsers = System.getProperty(BENCHMARK_USERS);
+    if (benchmarkUsers == null) {
+      return;
+    }
+    addUsers(Integer.parseInt(benchmarkUsers));
+    //
+    saveNotification();
+    long serialTime = System.currentTimeMillis();
+    long serialUsers = runDigest(1, newCheckpoint("serial"));
+    serialTime = System.currentTimeMillis() - serialTime;
+    //
+    saveNotification();
+    long parallelTime = System.currentTimeMillis();
+    long parallelUsers = runDigest(4, newCheckpoint("parallel"));
+    parallelTime = System.currentTimeMillis() - parallelTime;
+    //
+    System.out.println(String.format("Digest of %s users: 1 worker %s users/s, 4 workers %s users/s",
+                                     serialUsers,
+                                     serialUsers * 1000 / Math.max(1, serialTime),
+                                     parallelUsers * 1000 / Math.max(1, parallelTime)));
+  }
+
+  public void testStableOrder() throws Exception {
+    NotificationContext context = NotificationContextImpl.cloneInstance();
+    context.append(NotificationJob.JOB_DAILY, true);
+    context.append(NotificationJob.JOB_WEEKLY, false);
+    //the ranges of a resumed run are offsets, the pages must be read in the same order
+    List<String> read = new ArrayList<String>();
+    for (int offset = 0;; offset += PARTITION_SIZE) {
+      List<UserSetting> page = userSettingService.getDigestSettingForAllUser(context, offset, PARTITION_SIZE);
+      if (page.isEmpty()) {
+        break;
+      }
+      for (UserSetting setting : page) {
+        read.add(setting.getUserId());
+      }
+    }
+    List<String> sorted = new ArrayList<String>(new TreeSet<String>(read));
+    assertEquals(sorted, read);
+    assertTrue(read.containsAll(userIds));
+  }
+
+  public void testResumeFromCheckpoint() throws Exception {
+    saveNotification();
+    long allUsers = runDigest(4, newCheckpoint("all"));
+    //
+    saveNotification();
+    DigestCheckpoint checkpoint = newCheckpoint("resume");
+    checkpoint.complete(PartitionedDigestProcessor.PASS_SETTING, 0);
+    checkpoint.complete(PartitionedDigestProcessor.PASS_SETTING, 1);
+    long resumedUsers = runDigest(4, checkpoint);
+    //
+    assertEquals(allUsers - 2 * PARTITION_SIZE, resumedUsers);
+    //the checkpoint is removed once the run is done
+    assertFalse(newCheckpoint("resume").load());
+  }
+
+  public void testCheckpointEncoding() throws Exception {
+    DigestCheckpoint checkpoint = new DigestCheckpoint(null, "test", "run", PARTITION_SIZE);
+    checkpoint.complete(PartitionedDigestProcessor.PASS_SETTING, 0);
+    checkpoint.complete(PartitionedDigestProcessor.PASS_SETTING, 1);
+    checkpoint.complete(PartitionedDigestProcessor.PASS_SETTING, 2);
+    checkpoint.complete(PartitionedDigestProcessor.PASS_SETTING, 5);
+    checkpoint.complete(PartitionedDigestProcessor.PASS_NO_SETTING, 3);
+    assertEquals("run|20|0-2,5||3", checkpoint.encode());
+    //
+    DigestCheckpoint other = new DigestCheckpoint(null, "test", "run", PARTITION_SIZE);
+    assertTrue(other.decode(checkpoint.encode()));
+    assertTrue(other.isCompleted(PartitionedDigestProcessor.PASS_SETTING, 2));
+    assertFalse(other.isCompleted(PartitionedDigestProcessor.PASS_SETTING, 3));
+    assertTrue(other.isCompleted(PartitionedDigestProcessor.PASS_NO_SETTING, 3));
+    //the progress of an other run or partition size is ignored
+    assertFalse(new DigestCheckpoint(null, "test", "other", PARTITION_SIZE).decode(checkpoint.encode()));
+    assertFalse(new DigestCheckpoint(null, "test", "run", 10).decode(checkpoint.encode()));
+  }
+
+  private long runDigest(int workers, DigestCheckpoint checkpoint) throws Exception {
+    NotificationContext context = NotificationContextImpl.cloneInstance();
+    context.append(NotificationJob.JOB_DAILY, true);
+    context.append(NotificationJob.DAY_OF_JOB, String.valueOf(Calendar.getInstance().get(Calendar.DAY_OF_MONTH)));
+    context.append(NotificationJob.JOB_WEEKLY, false);
+    //
+    PartitionedDigestProcessor processor = new PartitionedDigestProcessor(notificationService,
+                                                                          userSettingService,
+                                                                          executor,
+                                                                          workers,
+                                                                          PARTITION_SIZE);
+    processor.digest(context, UserSetting.getInstance(), checkpoint);
+    notificationDataStorage.removeMessageAfterSent(context);
+    return processor.getProcessedUsers();
+  }
+
+  private void addUsers(int number) throws Exception {
+    for (int i = userIds.size(); i < number; i++) {
+      String userId = "digest_user_" + i;
+      UserSetting setting = UserSetting.getInstance();
+      setting.setUserId(userId);
+      setting.setActive(true);
+      setting.setInstantlyProviders(Collections.<String> emptyList());
+      setting.setDailyProviders(Arrays.asList(PluginTest.ID));
+      setting.setWeeklyProviders(Collections.<String> emptyList());
+      userSettingService.save(setting);
+      addLastUpdateTime(userId);
+      userIds.add(userId);
+    }
+  }
+
+  private DigestCheckpoint newCheckpoint(String runId) {
+    return new DigestCheckpoint(settingService, "test", runId, PARTITION_SIZE);
+  }
+
+  private void saveNotification() throws Exception {
+    NotificationInfo notification = NotificationInfo.instance();
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("objectId", "idofobject");
+    notification.key(PluginTest.ID).setSendToDaily(userIds.toArray(new String[userIds.size()]))
+                .setOwnerParameter(params).setOrder(1);
+    notificationDataStorage.save(notification);
+  }
+
+  private void addLastUpdateTime(String userId) throws Exception {
+    Node userNode = session.getRootNode().getNode("settings").getNode("user").getNode(userId);
+    if (userNode.canAddMixin("exo:datetime")) {
+      userNode.addMixin("exo:datetime");
+    }
+    userNode.setProperty("exo:lastModifiedDate", Calendar.getInstance());
+    session.save();
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.exoplatform.commons.notification.impl.service.queue.JournalMailQueueStorage;
+import org.exoplatform.commons.notification.impl.service.queue.MailQueueStorage;
+import org.exoplatform.commons.notification.mock.MockMailService;
+import org.exoplatform.commons.testing.BaseCommonsTestCase;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.services.mail.Message;
+
+public class QueueMessageTest extends BaseCommonsTestCase {
+
+  private MemoryMailQueueStorage storage;
+
+  private RecordingMailService   mailService;
+
+  private QueueMessageImpl       queueMessage;
+
+  private SendEmailService       sendEmailService;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    storage = new MemoryMailQueueStorage();
+    mailService = new RecordingMailService();
+    queueMessage = new QueueMessageImpl(makeParams(), null, storage, mailService);
+    sendEmailService = new SendEmailService(queueMessage);
+    queueMessage.makeJob(30, 60000);
+  }
+
+  public void testPutByBatch() throws Exception {
+    List<MessageInfo> messages = makeMessages(450);
+    messages.add(new MessageInfo().from("admin@exoplatform.com").to("not an email").subject("subject").body("body").end());
+    messages.add(new MessageInfo().from("admin@exoplatform.com").subject("subject").body("body").end());
+    //
+    assertEquals(450, queueMessage.put(messages));
+    List<Integer> expected = new ArrayList<Integer>();
+    expected.add(QueueMessageImpl.PERSIST_BATCH_SIZE);
+    expected.add(QueueMessageImpl.PERSIST_BATCH_SIZE);
+    expected.add(450 - 2 * QueueMessageImpl.PERSIST_BATCH_SIZE);
+    assertEquals(expected, storage.saves);
+    assertEquals(450, sendEmailService.getCurrentCapacity());
+  }
+
+  public void testDrainByPage() throws Exception {
+    queueMessage.put(makeMessages(250));
+    //a page of 100 messages is sent by the jobs of 30 mails
+    queueMessage.send();
+    assertEquals(30, mailService.sent.size());
+    assertEquals(1, storage.loads.size());
+    queueMessage.send();
+    queueMessage.send();
+    assertEquals(90, mailService.sent.size());
+    assertEquals(1, storage.loads.size());
+    queueMessage.send();
+    assertEquals(120, mailService.sent.size());
+    assertEquals(2, storage.loads.size());
+    //the next page is read from the last message of the previous page
+    assertEquals(Long.valueOf(0), storage.loads.get(0));
+    assertEquals(Long.valueOf(100), storage.loads.get(1));
+    assertEquals("user119@exoplatform.com", mailService.sent.get(119));
+    //the sent messages are removed and uncounted
+    assertEquals(130, storage.messages.size());
+    assertEquals(130, sendEmailService.getCurrentCapacity());
+  }
+
+  public void testDrainWrapsAround() throws Exception {
+    queueMessage.put(makeMessages(5));
+    mailService.failing.add("user2@exoplatform.com");
+    queueMessage.send();
+    assertEquals(4, mailService.sent.size());
+    assertEquals(1, storage.messages.size());
+    assertEquals(1, sendEmailService.getCurrentCapacity());
+    //the tail was reached, the failed message is retried from the head of the queue
+    mailService.failing.clear();
+    queueMessage.send();
+    assertEquals(5, mailService.sent.size());
+    assertEquals("user2@exoplatform.com", mailService.sent.get(4));
+    assertEquals(0, storage.messages.size());
+    assertEquals(0, sendEmailService.getCurrentCapacity());
+    assertEquals(Long.valueOf(0), storage.loads.get(1));
+  }
+
+  public void testDrainWhileCompacting() throws Exception {
+    File directory = new File(System.getProperty("java.io.tmpdir"), "mailqueue-" + System.nanoTime());
+    InitParams params = new InitParams();
+    params.addParam(makeParam("directory", directory.getAbsolutePath()));
+    params.addParam(makeParam("segmentSize", "1"));
+    //the oldest segment is compacted as soon as there is another one
+    params.addParam(makeParam("compactionRatio", "100"));
+    JournalMailQueueStorage journal = new JournalMailQueueStorage(params);
+    try {
+      queueMessage = new QueueMessageImpl(makeParams(), null, journal, mailService);
+      sendEmailService = new SendEmailService(queueMessage);
+      queueMessage.makeJob(30, 60000);
+      queueMessage.put(makeMessages(8000));
+      assertTrue(journal.getSegments() > 1);
+      //the rest of each page is still buffered when the sent messages are removed and the segment is compacted
+      for (int i = 0; i < 1000 && journal.getPendingMessages() > 0; i++) {
+        queueMessage.send();
+      }
+      assertEquals(0, journal.getPendingMessages());
+      assertEquals(8000, mailService.sent.size());
+      Map<String, Integer> sent = new HashMap<String, Integer>();
+      for (String to : mailService.sent) {
+        Integer count = sent.get(to);
+        sent.put(to, count == null ? 1 : count + 1);
+      }
+      assertEquals(8000, sent.size());
+      assertEquals(0, sendEmailService.getCurrentCapacity());
+    } finally {
+      journal.stop();
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  private InitParams makeParams() {
+    InitParams params = new InitParams();
+    params.addParam(makeParam("pageSize", "100"));
+    return params;
+  }
+
+  private ValueParam makeParam(String name, String value) {
+    ValueParam param = new ValueParam();
+    param.setName(name);
+    param.setValue(value);
+    return param;
+  }
+
+  private List<MessageInfo> makeMessages(int number) {
+    List<MessageInfo> messages = new ArrayList<MessageInfo>();
+    for (int i = 0; i < number; i++) {
+      messages.add(new MessageInfo().from("admin@exoplatform.com").to("user" + i + "@exoplatform.com")
+                                    .subject("subject " + i).body("body " + i).end());
+    }
+    return messages;
+  }
+
+  private static class MemoryMailQueueStorage implements MailQueueStorage {
+    private final TreeMap<Long, MessageInfo> messages = new TreeMap<Long, MessageInfo>();
+
+    private final List<Integer>              saves    = new ArrayList<Integer>();
+
+    private final List<Long>                 loads    = new ArrayList<Long>();
+
+    private long                             lastCreatedTime;
+
+    @Override
+    public boolean save(List<MessageInfo> batch) {
+      saves.add(batch.size());
+      for (MessageInfo message : batch) {
+        message.setCreatedTime(++lastCreatedTime);
+        message.setId(String.valueOf(lastCreatedTime));
+        messages.put(lastCreatedTime, message);
+      }
+      return true;
+    }
+
+    @Override
+    public List<MessageInfo> load(long cursor, int limit) {
+      loads.add(cursor);
+      List<MessageInfo> page = new ArrayList<MessageInfo>();
+      for (MessageInfo message : messages.tailMap(cursor + 1).values()) {
+        if (page.size() == limit) {
+          break;
+        }
+        page.add(message);
+      }
+      return page;
+    }
+
+    @Override
+    public int remove(List<String> ids) {
+      int removed = 0;
+      for (String id : ids) {
+        if (messages.remove(Long.valueOf(id)) != null) {
+          ++removed;
+        }
+      }
+      return removed;
+    }
+
+    @Override
+    public int removeAll() {
+      int removed = messages.size();
+      messages.clear();
+      return removed;
+    }
+  }
+
+  private static class RecordingMailService extends MockMailService {
+    private final List<String> sent    = new ArrayList<String>();
+
+    private final Set<String>  failing = new HashSet<String>();
+
+    @Override
+    public void sendMessage(Message message) throws Exception {
+      if (failing.contains(message.getTo())) {
+        throw new IllegalStateException("Failed to send the mail to " + message.getTo());
+      }
+      sent.add(message.getTo());
+    }
+  }
+}
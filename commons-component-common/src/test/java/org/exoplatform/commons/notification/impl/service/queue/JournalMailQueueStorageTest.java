@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.notification.impl.service.queue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.model.MessageInfo;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+
+public class JournalMailQueueStorageTest extends TestCase {
+
+  private File                    directory;
+
+  private JournalMailQueueStorage storage;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = new File(System.getProperty("java.io.tmpdir"), "mailqueue-" + System.nanoTime());
+    storage = new JournalMailQueueStorage(makeParams());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    storage.stop();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  private InitParams makeParams() {
+    InitParams params = new InitParams();
+    ValueParam dir = new ValueParam();
+    dir.setName("directory");
+    dir.setValue(directory.getAbsolutePath());
+    params.addParam(dir);
+    ValueParam size = new ValueParam();
+    size.setName("segmentSize");
+    size.setValue("1");
+    params.addParam(size);
+    return params;
+  }
+
+  private List<MessageInfo> makeMessages(int number) {
+    List<MessageInfo> messages = new ArrayList<MessageInfo>();
+    for (int i = 0; i < number; i++) {
+      messages.add(new MessageInfo().from("admin@exoplatform.com").to("user" + i + "@exoplatform.com")
+                                    .subject("subject " + i).body("body " + i).end());
+    }
+    return messages;
+  }
+
+  private List<String> ids(List<MessageInfo> messages) {
+    List<String> ids = new ArrayList<String>();
+    for (MessageInfo message : messages) {
+      ids.add(message.getId());
+    }
+    return ids;
+  }
+
+  public void testSaveAndLoadInOrder() throws Exception {
+    assertTrue(storage.save(makeMessages(30)));
+    assertEquals(30, storage.getPendingMessages());
+    //
+    List<MessageInfo> first = storage.load(0, 20);
+    assertEquals(20, first.size());
+    assertEquals("user0@exoplatform.com", first.get(0).getTo());
+    assertEquals("body 19", first.get(19).getBody());
+    //
+    List<MessageInfo> second = storage.load(first.get(19).getCreatedTime(), 20);
+    assertEquals(10, second.size());
+    assertEquals("user20@exoplatform.com", second.get(0).getTo());
+    assertTrue(second.get(0).getCreatedTime() > first.get(19).getCreatedTime());
+  }
+
+  public void testRemoveAndRecover() throws Exception {
+    storage.save(makeMessages(10));
+    List<MessageInfo> page = storage.load(0, 10);
+    // the first 5 messages are sent, the others will be retried
+    assertEquals(5, storage.remove(ids(page.subList(0, 5))));
+    assertEquals(0, storage.remove(ids(page.subList(0, 5))));
+    storage.stop();
+    //
+    storage = new JournalMailQueueStorage(makeParams());
+    assertEquals(5, storage.getPendingMessages());
+    page = storage.load(0, 10);
+    assertEquals(5, page.size());
+    assertEquals("user5@exoplatform.com", page.get(0).getTo());
+  }
+
+  public void testTornRecordIsDropped() throws Exception {
+    storage.save(makeMessages(3));
+    storage.stop();
+    // corrupts the last byte of the payload of the last record
+    File segment = new File(directory, JournalSegment.fileName(0));
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    long position = raf.length() - 1;
+    do {
+      raf.seek(position--);
+    } while (raf.read() == 0);
+    raf.seek(position + 1);
+    raf.write('#');
+    raf.close();
+    //
+    storage = new JournalMailQueueStorage(makeParams());
+    assertEquals(2, storage.getPendingMessages());
+    assertTrue(storage.save(makeMessages(1)));
+    assertEquals(3, storage.load(0, 10).size());
+  }
+
+  public void testSegmentsAreDeletedAndCompacted() throws Exception {
+    List<MessageInfo> messages = makeMessages(20000);
+    for (int i = 0; i < messages.size(); i += 200) {
+      storage.save(messages.subList(i, i + 200));
+    }
+    assertTrue(storage.getSegments() > 1);
+    // keeps one message of each thousand pending
+    long cursor = 0;
+    List<MessageInfo> page;
+    while ((page = storage.load(cursor, 500)).size() > 0) {
+      List<String> sent = new ArrayList<String>();
+      for (MessageInfo message : page) {
+        if (message.getTo().startsWith("user999") == false) {
+          sent.add(message.getId());
+        }
+      }
+      storage.remove(sent);
+      cursor = page.get(page.size() - 1).getCreatedTime();
+    }
+    assertEquals(1, storage.getSegments());
+    assertEquals(11, storage.getPendingMessages());
+    //
+    assertEquals(11, storage.removeAll());
+    assertEquals(0, storage.getPendingMessages());
+    assertEquals(0, storage.load(0, 10).size());
+  }
+}
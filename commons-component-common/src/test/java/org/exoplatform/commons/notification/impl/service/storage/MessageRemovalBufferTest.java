@@ -0,0 +1,52 @@
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.notification.impl.service.storage.MessageRemovalBuffer.Removal;
+
+public class MessageRemovalBufferTest extends TestCase {
+
+  public void testCoalescePerNode() throws Exception {
+    MessageRemovalBuffer buffer = new MessageRemovalBuffer();
+    buffer.removeDailyRecipient("/m0", "root");
+    buffer.removeDailyRecipient("/m0", "demo");
+    buffer.removeDailyRecipient("/m0", "root");
+    buffer.removeDailyRecipient("/m1", "john");
+    buffer.removeNode("/m2");
+    buffer.removeNode("/m2");
+    assertEquals(4, buffer.getPending());
+    //
+    List<Removal> removals = buffer.drain(true);
+    assertEquals(3, removals.size());
+    for (Removal removal : removals) {
+      if ("/m0".equals(removal.getPath())) {
+        assertEquals(2, removal.getDailyRecipients().size());
+        assertEquals(2, removal.getMutations());
+      } else if ("/m2".equals(removal.getPath())) {
+        assertTrue(removal.isRemoveNode());
+        assertEquals(1, removal.getMutations());
+      }
+    }
+    assertEquals(0, buffer.getPending());
+    assertTrue(buffer.isEmpty());
+  }
+
+  public void testPartialDrain() throws Exception {
+    MessageRemovalBuffer buffer = new MessageRemovalBuffer();
+    buffer.removeDailyRecipient("/m0", "root");
+    buffer.clearDaily("/m1");
+    buffer.removeNode("/m2");
+    //
+    List<Removal> removals = buffer.drain(false);
+    assertEquals(1, removals.size());
+    assertEquals("/m0", removals.get(0).getPath());
+    assertEquals(2, buffer.getPending());
+    //a change after the drain goes to a new entry
+    buffer.removeDailyRecipient("/m0", "demo");
+    assertEquals(3, buffer.getPending());
+    assertEquals(3, buffer.drain(true).size());
+    assertTrue(buffer.isEmpty());
+  }
+}
@@ -0,0 +1,110 @@
+package org.exoplatform.commons.notification.impl.service.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.notification.model.NotificationInfo;
+
+public class NotificationIndexTest extends TestCase {
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = new File(System.getProperty("java.io.tmpdir"), "notification-index-" + System.nanoTime());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  public void testInMemoryIndex() throws Exception {
+    NotificationIndex index = buildIndex(1000000);
+    assertFalse(index.isSpilled());
+    assertIndex(index);
+    index.close();
+  }
+
+  public void testSpilledIndex() throws Exception {
+    NotificationIndex index = buildIndex(50);
+    assertTrue(index.isSpilled());
+    assertIndex(index);
+    index.close();
+    assertEquals(0, directory.listFiles().length);
+  }
+
+  public void testServedRecipients() throws Exception {
+    NotificationIndex index = new NotificationIndex("served", directory, 1000);
+    index.add(newMessage("root", "demo"), "/m0", new String[] { "root", "demo" });
+    index.add(newMessage(NotificationInfo.FOR_ALL_USER), "/m1", new String[] { NotificationInfo.FOR_ALL_USER });
+    index.build();
+    //
+    assertFalse(index.isForAll(0));
+    assertEquals(1, index.served(0));
+    assertEquals(0, index.served(0));
+    assertTrue(index.isForAll(1));
+    assertEquals(-1, index.served(1));
+    index.close();
+  }
+
+  /**
+   * 100 messages: the even ones are sent to user_<i % 10> and user_<i % 7>,
+   * one of ten is sent to all users.
+   */
+  private NotificationIndex buildIndex(int maxEntries) throws Exception {
+    NotificationIndex index = new NotificationIndex("plugin/d1#daily", directory, maxEntries);
+    for (int i = 0; i < 100; i++) {
+      String[] recipients;
+      if (i % 10 == 5) {
+        recipients = new String[] { NotificationInfo.FOR_ALL_USER };
+      } else if (i % 2 == 0) {
+        recipients = new String[] { "user_" + (i % 10), "user_" + (i % 7) };
+      } else {
+        recipients = new String[] { "other_" + i };
+      }
+      NotificationInfo message = newMessage(recipients);
+      message.setFrom("sender_" + i).with("objectId", "id, " + i);
+      index.add(message, "/message" + i, recipients);
+    }
+    index.build();
+    return index;
+  }
+
+  private void assertIndex(NotificationIndex index) throws Exception {
+    assertEquals(100, index.size());
+    //
+    int[] seqs = index.getMessages("user_4");
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 100; i++) {
+      if (i % 10 == 5 || (i % 2 == 0 && (i % 10 == 4 || i % 7 == 4))) {
+        expected.add(i);
+      }
+    }
+    assertEquals(expected.size(), seqs.length);
+    for (int i = 0; i < seqs.length; i++) {
+      assertEquals(expected.get(i).intValue(), seqs[i]);
+    }
+    //
+    NotificationInfo message = index.getMessage(seqs[1]);
+    assertEquals("sender_" + seqs[1], message.getFrom());
+    assertEquals("id, " + seqs[1], message.getValueOwnerParameter("objectId"));
+    assertEquals("/message" + seqs[1], index.getPath(seqs[1]));
+    //
+    assertEquals(1, index.getMessages("other_3").length - 10);
+    assertEquals(10, index.getMessages("unknown").length);
+  }
+
+  private NotificationInfo newMessage(String... recipients) {
+    return NotificationInfo.instance().key("plugin").setSendToDaily(recipients).setOrder(1);
+  }
+}
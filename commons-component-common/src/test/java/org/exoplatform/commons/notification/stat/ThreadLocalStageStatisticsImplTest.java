@@ -0,0 +1,30 @@
+package org.exoplatform.commons.notification.stat;
+
+import junit.framework.TestCase;
+
+public class ThreadLocalStageStatisticsImplTest extends TestCase {
+
+  public void testBuckets() {
+    assertEquals(0, ThreadLocalStageStatisticsImpl.bucket(0));
+    assertEquals(1, ThreadLocalStageStatisticsImpl.bucket(1));
+    assertEquals(2, ThreadLocalStageStatisticsImpl.bucket(2));
+    assertEquals(2, ThreadLocalStageStatisticsImpl.bucket(3));
+    assertEquals(11, ThreadLocalStageStatisticsImpl.bucket(1500));
+    assertEquals(39, ThreadLocalStageStatisticsImpl.bucket(Long.MAX_VALUE));
+  }
+
+  public void testExecuted() {
+    ThreadLocalStageStatisticsImpl stats = new ThreadLocalStageStatisticsImpl();
+    stats.executed(3);
+    stats.executed(1500);
+    stats.executed(1700);
+    //
+    assertEquals(3, stats.getExecutionCount());
+    assertEquals(3, stats.getExecutionMinTime());
+    assertEquals(1700, stats.getExecutionMaxTime());
+    assertEquals(1067, stats.getExecutionAvgTime());
+    long[] histogram = stats.getHistogram();
+    assertEquals(1, histogram[2]);
+    assertEquals(2, histogram[11]);
+  }
+}
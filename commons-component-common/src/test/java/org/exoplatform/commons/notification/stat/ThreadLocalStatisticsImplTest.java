@@ -0,0 +1,102 @@
+package org.exoplatform.commons.notification.stat;
+
+import org.exoplatform.commons.api.notification.stat.QueryStatistics;
+import org.exoplatform.commons.api.notification.stat.QueueStatistics;
+import org.exoplatform.commons.notification.impl.PluginStatisticService;
+
+import junit.framework.TestCase;
+
+public class ThreadLocalStatisticsImplTest extends TestCase {
+
+  public void testQueryTemplate() {
+    assertEquals("SELECT * FROM ntf:message WHERE jcr:path LIKE ? AND exo:createdTime > ?",
+                 QueryTemplate.normalize("SELECT * FROM ntf:message  WHERE jcr:path LIKE '/eXoNotification/john/%'\n AND exo:createdTime > 1385984410000"));
+    assertEquals("SELECT * FROM t WHERE id IN (?)", QueryTemplate.normalize("SELECT * FROM t WHERE id IN ('a', 'b''c', 3)"));
+    assertEquals("SELECT * FROM exo:user2 WHERE x = ?", QueryTemplate.normalize("SELECT * FROM exo:user2 WHERE x = 2.5"));
+  }
+
+  public void testHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getValueAtPercentile(50));
+    assertEquals(0, histogram.getMin());
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500, histogram.getMean());
+    assertEquals(1, histogram.getMin());
+    assertEquals(1000, histogram.getMax());
+    // the error of a percentile is less than 1/16
+    long p50 = histogram.getValueAtPercentile(50);
+    assertTrue(p50 >= 500 && p50 < 500 + 500 / 16);
+    long p99 = histogram.getValueAtPercentile(99);
+    assertTrue(p99 >= 990 && p99 <= 1000);
+    assertEquals(1000, histogram.getValueAtPercentile(100));
+    //
+    for (long value = 1; value < (1L << 40); value = value * 3 + 1) {
+      assertTrue(LatencyHistogram.highestValue(LatencyHistogram.bucket(value)) >= value);
+    }
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    //
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+  }
+
+  public void testStripedCounter() throws Exception {
+    final StripedCounter counter = new StripedCounter();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            counter.increment();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(40000, counter.sum());
+    counter.reset();
+    assertEquals(0, counter.sum());
+  }
+
+  public void testStatistics() {
+    ThreadLocalStatisticsImpl stats = new ThreadLocalStatisticsImpl(new PluginStatisticService());
+    stats.queryExecuted("SELECT * FROM ntf:message WHERE jcr:path LIKE '/a/%'", 2, 10);
+    stats.queryExecuted("SELECT * FROM ntf:message WHERE jcr:path LIKE '/b/%'", 3, 30);
+    assertEquals(1, stats.getQueries().length);
+    QueryStatistics qs = stats.getQueryStatistics(stats.getQueries()[0]);
+    assertEquals(2, qs.getExecutionCount());
+    assertEquals(5, qs.getExecutionRowCount());
+    assertEquals(30, qs.getExecutionMaxTime());
+    assertEquals(2, stats.getQueryExecutionCount());
+    //
+    stats.putQueue("LikePlugin");
+    stats.pollQueue("LikePlugin", 250);
+    QueueStatistics queue = stats.getQueueStatistics("LikePlugin");
+    assertEquals(1, queue.getPutCount());
+    assertEquals(1, queue.getPollCount());
+    assertEquals(250, queue.getWaitMaxTime());
+    assertEquals(1, stats.getQueueNames().length);
+    //
+    stats.createMessageInfoCount("LikePlugin");
+    stats.pluginExecuted("LikePlugin", 120);
+    assertEquals(1, stats.getPluginStatistics("LikePlugin").getExecutionCount());
+    assertEquals(1, stats.getMessageCreatedCount());
+    // the names are bounded
+    for (int i = 0; i < ThreadLocalStatisticsImpl.MAX_KEYS + 10; i++) {
+      stats.stageExecuted("stage" + i, i);
+    }
+    assertEquals(ThreadLocalStatisticsImpl.MAX_KEYS + 1, stats.getStages().length);
+    assertEquals(10, stats.getStageStatistics(ThreadLocalStatisticsImpl.OTHER_KEY).getExecutionCount());
+    //
+    stats.clear();
+    assertEquals(0, stats.getQueries().length);
+    assertEquals(0, stats.getQueueNames().length);
+    assertEquals(0, stats.getMessageCreatedCount());
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.search.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.search.data.SearchResult;
+
+public class SearchResultMergerTest extends TestCase {
+
+  public void testMerge() throws Exception {
+    Random random = new Random(42);
+    Map<String, Collection<SearchResult>> results = new LinkedHashMap<String, Collection<SearchResult>>();
+    List<SearchResult> all = new ArrayList<SearchResult>();
+    for (int i = 0; i < 3; i++) {
+      List<SearchResult> connectorResults = new ArrayList<SearchResult>();
+      for (int j = 0; j < 500; j++) {
+        connectorResults.add(result("/type" + i + "/" + j, "title" + j, random.nextInt(1000), random.nextInt(100)));
+      }
+      results.put("type" + i, connectorResults);
+      all.addAll(connectorResults);
+    }
+    String[][] sorts = { { "relevancy", "desc" }, { "date", "asc" }, { "title", "asc" }, { "title", "desc" } };
+    for (String[] sort : sorts) {
+      List<SearchResult> expected = new ArrayList<SearchResult>(all);
+      Collections.sort(expected, SearchResultMerger.getComparator(sort[0], sort[1]));
+      List<SearchResult> page = SearchResultMerger.merge(results, null, RelevancyNormalizer.NONE, 20, 10, sort[0], sort[1]);
+      assertEquals(expected.subList(20, 30), page);
+    }
+    //
+    List<SearchResult> page = SearchResultMerger.merge(results, null, RelevancyNormalizer.NONE, 0, 5, "relevancy", "desc");
+    assertEquals(5, page.size());
+    for (int i = 1; i < page.size(); i++) {
+      assertTrue(page.get(i - 1).getRelevancy() >= page.get(i).getRelevancy());
+    }
+    assertEquals(0, SearchResultMerger.merge(results, null, RelevancyNormalizer.NONE, 1500, 10, "relevancy", "desc").size());
+    assertEquals(0, SearchResultMerger.merge(results, null, RelevancyNormalizer.NONE, 0, 0, "relevancy", "desc").size());
+    assertEquals(10, SearchResultMerger.merge(results, null, RelevancyNormalizer.NONE, 1490, 100, "relevancy", "desc").size());
+  }
+
+  public void testNormalization() throws Exception {
+    Map<String, Collection<SearchResult>> results = new LinkedHashMap<String, Collection<SearchResult>>();
+    List<SearchResult> people = new ArrayList<SearchResult>();
+    people.add(result("/people/1", "john", 100, 0));
+    people.add(result("/people/2", "mary", 50, 0));
+    List<SearchResult> files = new ArrayList<SearchResult>();
+    files.add(result("/file/1", "doc", 10000, 0));
+    files.add(result("/file/2", "xls", 9000, 0));
+    files.add(result("/file/3", "ppt", 1000, 0));
+    results.put("people", people);
+    results.put("file", files);
+    // the best result of each connector has the same relevancy
+    List<SearchResult> page = SearchResultMerger.merge(results, null, RelevancyNormalizer.MAX, 0, 5, "relevancy", "desc");
+    assertEquals(RelevancyNormalizer.SCALE, page.get(0).getRelevancy());
+    assertEquals(RelevancyNormalizer.SCALE, page.get(1).getRelevancy());
+    assertEquals("/people/1", page.get(1).getUrl());
+    assertEquals("/file/2", page.get(2).getUrl());
+    assertEquals("/people/2", page.get(3).getUrl());
+    assertEquals(RelevancyNormalizer.SCALE / 2, page.get(3).getRelevancy());
+    //
+    Map<String, RelevancyNormalizer> normalizers = new HashMap<String, RelevancyNormalizer>();
+    normalizers.put("file", RelevancyNormalizer.MIN_MAX);
+    page = SearchResultMerger.merge(results, normalizers, RelevancyNormalizer.NONE, 0, 5, "relevancy", "desc");
+    assertEquals(RelevancyNormalizer.SCALE, page.get(0).getRelevancy());
+    assertEquals(0, page.get(4).getRelevancy());
+    assertEquals("/file/3", page.get(4).getUrl());
+  }
+
+  private static SearchResult result(String url, String title, long relevancy, long date) {
+    return new SearchResult(url, title, "", "", "", date, relevancy);
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.commons.search.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.commons.api.event.EventManager;
+import org.exoplatform.commons.api.indexing.IndexingService;
+import org.exoplatform.commons.api.indexing.data.SearchEntryId;
+import org.exoplatform.commons.api.search.SearchServiceConnector;
+import org.exoplatform.commons.api.search.data.SearchContext;
+import org.exoplatform.commons.api.search.data.SearchResponse;
+import org.exoplatform.commons.api.search.data.SearchResult;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.PropertiesParam;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.services.cache.concurrent.ConcurrentFIFOExoCache;
+import org.exoplatform.services.listener.Event;
+import org.exoplatform.services.listener.Listener;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.MembershipEntry;
+
+/**
+ * Searches local connectors with an injected latency.
+ */
+public class SearchServiceImplTest extends TestCase {
+
+  private SearchServiceImpl searchService;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (searchService != null) {
+      searchService.stop();
+    }
+  }
+
+  public void testParallelSearch() throws Exception {
+    searchService = new SearchServiceImpl(params("10", "5000", "10000"));
+    for (int i = 0; i < 4; i++) {
+      searchService.addConnector(new StubConnector("type" + i, 200, false));
+    }
+    long start = System.currentTimeMillis();
+    SearchResponse response = searchService.searchWithStatus(null, "eXo", null, null, 0, 10, "relevancy", "desc");
+    long time = System.currentTimeMillis() - start;
+    assertTrue(response.isComplete());
+    assertEquals(4, response.getResults().size());
+    assertEquals(1, response.getResults().get("type2").size());
+    assertEquals(SearchResponse.Status.OK, response.getStatus("type0"));
+    assertTrue(response.getTime("type0") >= 200);
+    // the connectors are searched at once
+    assertTrue("The search took " + time + "ms", time < 600);
+    //
+    assertEquals(2, searchService.search(null, "eXo", null, Arrays.asList("type1", "type3"), 0, 10, "relevancy", "desc").size());
+  }
+
+  public void testConnectorTimeout() throws Exception {
+    InitParams params = params("10", "5000", "10000");
+    PropertiesParam timeouts = new PropertiesParam();
+    timeouts.setName(SearchServiceImpl.CONNECTOR_TIMEOUTS);
+    timeouts.setProperty("slow", "100");
+    params.addParam(timeouts);
+    searchService = new SearchServiceImpl(params);
+    searchService.addConnector(new StubConnector("fast", 10, false));
+    searchService.addConnector(new StubConnector("slow", 2000, false));
+    searchService.addConnector(new StubConnector("failing", 10, true));
+    long start = System.currentTimeMillis();
+    SearchResponse response = searchService.searchWithStatus(null, "eXo", null, null, 0, 10, "relevancy", "desc");
+    long time = System.currentTimeMillis() - start;
+    assertFalse(response.isComplete());
+    assertEquals(1, response.getResults().size());
+    assertEquals(SearchResponse.Status.OK, response.getStatus("fast"));
+    assertEquals(SearchResponse.Status.TIMEOUT, response.getStatus("slow"));
+    assertEquals(SearchResponse.Status.FAILED, response.getStatus("failing"));
+    assertTrue("The search took " + time + "ms", time < 1000);
+  }
+
+  public void testSearchDeadline() throws Exception {
+    searchService = new SearchServiceImpl(params("10", "5000", "300"));
+    searchService.addConnector(new StubConnector("fast", 10, false));
+    searchService.addConnector(new StubConnector("slow1", 2000, false));
+    searchService.addConnector(new StubConnector("slow2", 2000, false));
+    long start = System.currentTimeMillis();
+    SearchResponse response = searchService.searchWithStatus(null, "eXo", null, null, 0, 10, "relevancy", "desc");
+    long time = System.currentTimeMillis() - start;
+    assertEquals(SearchResponse.Status.OK, response.getStatus("fast"));
+    assertEquals(SearchResponse.Status.TIMEOUT, response.getStatus("slow1"));
+    assertEquals(SearchResponse.Status.TIMEOUT, response.getStatus("slow2"));
+    // the deadline is shared by the connectors
+    assertTrue("The search took " + time + "ms", time >= 300 && time < 1000);
+  }
+
+  public void testRejectedSearch() throws Exception {
+    InitParams params = params("1", "5000", "500");
+    ValueParam queueSize = new ValueParam();
+    queueSize.setName(SearchServiceImpl.QUEUE_SIZE);
+    queueSize.setValue("1");
+    params.addParam(queueSize);
+    searchService = new SearchServiceImpl(params);
+    for (int i = 0; i < 3; i++) {
+      searchService.addConnector(new StubConnector("type" + i, 100, false));
+    }
+    SearchResponse response = searchService.searchWithStatus(null, "eXo", null, null, 0, 10, "relevancy", "desc");
+    assertEquals(SearchResponse.Status.OK, response.getStatus("type0"));
+    assertEquals(SearchResponse.Status.OK, response.getStatus("type1"));
+    assertEquals(SearchResponse.Status.REJECTED, response.getStatus("type2"));
+  }
+
+  public void testSearchMerged() throws Exception {
+    searchService = new SearchServiceImpl(params("10", "5000", "10000"));
+    for (int i = 0; i < 4; i++) {
+      searchService.addConnector(new StubConnector("type" + i, 10, false));
+    }
+    List<SearchResult> page = searchService.searchMerged(null, "eXo", null, null, 1, 2, "relevancy", "desc");
+    assertEquals(2, page.size());
+    assertEquals("/type1/eXo", page.get(0).getUrl());
+    assertEquals(RelevancyNormalizer.SCALE, page.get(0).getRelevancy());
+  }
+
+  public void testCache() throws Exception {
+    StubEventManager eventManager = new StubEventManager();
+    searchService = newCachedService(eventManager);
+    StubConnector people = new StubConnector("people", 10, false);
+    StubConnector wiki = new StubConnector("wiki", 10, false);
+    StubConnector failing = new StubConnector("failing", 10, true);
+    searchService.addConnector(people);
+    searchService.addConnector(wiki);
+    searchService.addConnector(failing);
+    try {
+      ConversationState.setCurrent(new ConversationState(new Identity("john", Arrays.asList(new MembershipEntry("/platform/users")))));
+      List<String> types = Arrays.asList("people", "wiki");
+      searchService.searchWithStatus(null, "eXo", null, types, 0, 10, "relevancy", "desc");
+      SearchResponse response = searchService.searchWithStatus(null, "  EXO ", null, Arrays.asList("wiki", "people"), 0, 10, "Relevancy", "DESC");
+      assertTrue(response.isComplete());
+      assertEquals(1, people.calls.get());
+      // the results are cached by user
+      ConversationState.setCurrent(new ConversationState(new Identity("mary", Arrays.asList(new MembershipEntry("/platform/users")))));
+      searchService.searchWithStatus(null, "eXo", null, types, 0, 10, "relevancy", "desc");
+      assertEquals(2, people.calls.get());
+      // the writes of the other types don't invalidate the results
+      eventManager.written(new SearchEntryId("collection", "file", "1"));
+      searchService.searchWithStatus(null, "eXo", null, types, 0, 10, "relevancy", "desc");
+      assertEquals(2, people.calls.get());
+      eventManager.written(new SearchEntryId("collection", "wiki", "1"));
+      searchService.searchWithStatus(null, "eXo", null, types, 0, 10, "relevancy", "desc");
+      assertEquals(3, people.calls.get());
+      // the merged pages don't change the relevancy of the cached responses
+      List<SearchResult> page = searchService.searchMerged(null, "eXo", null, types, 0, 10, "relevancy", "desc");
+      assertEquals(RelevancyNormalizer.SCALE, page.get(0).getRelevancy());
+      assertEquals(page, searchService.searchMerged(null, "eXo", null, types, 0, 10, "relevancy", "desc"));
+      assertEquals(4, people.calls.get());
+      response = searchService.searchWithStatus(null, "eXo", null, types, 0, 10, "relevancy", "desc");
+      assertEquals(1, response.getResults().get("people").iterator().next().getRelevancy());
+      assertEquals(4, people.calls.get());
+      // the incomplete responses aren't cached
+      searchService.searchWithStatus(null, "eXo", null, Arrays.asList("failing"), 0, 10, "relevancy", "desc");
+      searchService.searchWithStatus(null, "eXo", null, Arrays.asList("failing"), 0, 10, "relevancy", "desc");
+      assertEquals(2, failing.calls.get());
+    } finally {
+      ConversationState.setCurrent(null);
+    }
+  }
+
+  public void testCacheByContext() throws Exception {
+    searchService = newCachedService(null);
+    StubConnector people = new StubConnector("people", 10, false);
+    searchService.addConnector(people);
+    List<String> types = Arrays.asList("people");
+    searchService.searchWithStatus(context("intranet", "en", "/search"), "eXo", null, types, 0, 10, "relevancy", "desc");
+    searchService.searchWithStatus(context("intranet", "en", "/search"), "eXo", null, types, 0, 10, "relevancy", "desc");
+    assertEquals(1, people.calls.get());
+    // the links of the results depend on the router parameters of the context
+    searchService.searchWithStatus(context("intranet", "fr", "/search"), "eXo", null, types, 0, 10, "relevancy", "desc");
+    assertEquals(2, people.calls.get());
+    searchService.searchWithStatus(context("intranet", "en", "/other"), "eXo", null, types, 0, 10, "relevancy", "desc");
+    assertEquals(3, people.calls.get());
+    searchService.searchWithStatus(context("acme", "en", "/search"), "eXo", null, types, 0, 10, "relevancy", "desc");
+    assertEquals(4, people.calls.get());
+    searchService.searchWithStatus(context("intranet", "en", "/search").siteType("group"), "eXo", null, types, 0, 10, "relevancy", "desc");
+    assertEquals(5, people.calls.get());
+    searchService.searchWithStatus(context("intranet", "en", "/search"), "eXo", null, types, 0, 10, "relevancy", "desc");
+    assertEquals(5, people.calls.get());
+  }
+
+  public void testConcurrentMisses() throws Exception {
+    searchService = newCachedService(null);
+    final StubConnector people = new StubConnector("people", 300, false);
+    searchService.addConnector(people);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          searchService.searchWithStatus(null, "eXo", null, null, 0, 10, "relevancy", "desc");
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+    // the concurrent searches have waited for the same search
+    assertEquals(1, people.calls.get());
+  }
+
+  private static SearchContext context(String siteName, String lang, String path) {
+    return new SearchContext(null, siteName).siteName(siteName).siteType("portal").lang(lang).path(path).handler("portal");
+  }
+
+  private static SearchServiceImpl newCachedService(EventManager<IndexingService, SearchEntryId> eventManager) {
+    return new SearchServiceImpl(params("10", "5000", "10000"),
+                                 new ConcurrentFIFOExoCache<SearchCacheKey, SearchResponse>("SearchService", 100),
+                                 new ConcurrentFIFOExoCache<SearchCacheKey, List<SearchResult>>("SearchService.merged", 100),
+                                 eventManager);
+  }
+
+  private static InitParams params(String threads, String connectorTimeout, String deadline) {
+    InitParams params = new InitParams();
+    params.addParam(valueParam(SearchServiceImpl.THREADS, threads));
+    params.addParam(valueParam(SearchServiceImpl.CONNECTOR_TIMEOUT, connectorTimeout));
+    params.addParam(valueParam(SearchServiceImpl.SEARCH_DEADLINE, deadline));
+    return params;
+  }
+
+  private static ValueParam valueParam(String name, String value) {
+    ValueParam param = new ValueParam();
+    param.setName(name);
+    param.setValue(value);
+    return param;
+  }
+
+  private static InitParams connectorParams(String searchType) {
+    InitParams params = new InitParams();
+    PropertiesParam constructorParams = new PropertiesParam();
+    constructorParams.setName("constructor.params");
+    constructorParams.setProperty("searchType", searchType);
+    constructorParams.setProperty("displayName", searchType);
+    params.addParam(constructorParams);
+    return params;
+  }
+
+  /**
+   * A connector answering one result after a latency.
+   */
+  private static class StubConnector extends SearchServiceConnector {
+    private final long    latency;
+
+    private final boolean failing;
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private StubConnector(String searchType, long latency, boolean failing) {
+      super(connectorParams(searchType));
+      this.latency = latency;
+      this.failing = failing;
+    }
+
+    @Override
+    public Collection<SearchResult> search(SearchContext context, String query, Collection<String> sites, int offset,
+                                           int limit, String sort, String order) {
+      calls.incrementAndGet();
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (failing) {
+        throw new IllegalStateException("The connector " + getSearchType() + " has failed");
+      }
+      List<SearchResult> results = new ArrayList<SearchResult>();
+      results.add(new SearchResult("/" + getSearchType() + "/" + query, query, "", "", "", 0, 1));
+      return results;
+    }
+  }
+
+  /**
+   * An event manager dispatching the events in the broadcasting thread.
+   */
+  private static class StubEventManager implements EventManager<IndexingService, SearchEntryId> {
+    private final Map<String, List<Listener<IndexingService, SearchEntryId>>> listeners = new HashMap<String, List<Listener<IndexingService, SearchEntryId>>>();
+
+    private void written(SearchEntryId id) {
+      broadcastEvent(new Event<IndexingService, SearchEntryId>(IndexingService.ENTRY_WRITTEN, null, id));
+    }
+
+    public void addEventListener(Listener<IndexingService, SearchEntryId> listener) {
+      addEventListener(listener.getName(), listener);
+    }
+
+    public synchronized void addEventListener(String eventName, Listener<IndexingService, SearchEntryId> listener) {
+      List<Listener<IndexingService, SearchEntryId>> list = listeners.get(eventName);
+      if (list == null) {
+        list = new CopyOnWriteArrayList<Listener<IndexingService, SearchEntryId>>();
+        listeners.put(eventName, list);
+      }
+      list.add(listener);
+    }
+
+    public void removeEventListener(Listener<IndexingService, SearchEntryId> listener) {
+      removeEventListener(listener.getName(), listener);
+    }
+
+    public synchronized void removeEventListener(String eventName, Listener<IndexingService, SearchEntryId> listener) {
+      List<Listener<IndexingService, SearchEntryId>> list = listeners.get(eventName);
+      if (list != null) {
+        list.remove(listener);
+      }
+    }
+
+    public void broadcastEvent(Event<IndexingService, SearchEntryId> event) {
+      for (Listener<IndexingService, SearchEntryId> listener : getEventListeners(event.getEventName())) {
+        try {
+          listener.onEvent(event);
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+
+    public synchronized List<Listener<IndexingService, SearchEntryId>> getEventListeners(String type) {
+      List<Listener<IndexingService, SearchEntryId>> list = listeners.get(type);
+      return list == null ? new ArrayList<Listener<IndexingService, SearchEntryId>>() : list;
+    }
+  }
+}
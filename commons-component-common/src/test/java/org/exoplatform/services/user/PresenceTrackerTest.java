@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.user;
+
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class PresenceTrackerTest extends TestCase {
+
+  private static final long DELAY = 60000;
+
+  public void testTouch() throws Exception {
+    PresenceTracker tracker = new PresenceTracker(DELAY);
+    long now = 1000000000L;
+    assertEquals(0, tracker.touch("john", now));
+    assertEquals(now, tracker.touch("john", now + 10));
+    // an older activity doesn't go back in time
+    assertEquals(now + 10, tracker.touch("john", now));
+    assertEquals(now + 10, tracker.getLastActivity("john"));
+    assertTrue(tracker.isOnline("john", now + DELAY));
+    assertFalse(tracker.isOnline("john", now + DELAY + 11));
+    assertFalse(tracker.isOnline("mary", now));
+    //
+    assertTrue(tracker.tryPublish("john", now, DELAY / 2));
+    assertFalse(tracker.tryPublish("john", now + 10, DELAY / 2));
+    assertTrue(tracker.tryPublish("john", now + DELAY / 2, DELAY / 2));
+  }
+
+  public void testOnlineUsers() throws Exception {
+    PresenceTracker tracker = new PresenceTracker(DELAY);
+    long now = 1000000000L;
+    tracker.touch("john", now - 2 * DELAY);
+    tracker.touch("mary", now - DELAY / 2);
+    tracker.touch("demo", now - 3 * DELAY);
+    tracker.onPut(null, "repository_root", new UserStateModel("root", now - DELAY / 4, "away"));
+    // the users move through the slots
+    for (long time = now - DELAY; time <= now; time += DELAY / 8) {
+      tracker.touch("demo", time);
+    }
+    List<UserStateModel> onlineUsers = tracker.getOnlineUsers(now);
+    assertEquals(3, onlineUsers.size());
+    for (UserStateModel model : onlineUsers) {
+      assertFalse("john".equals(model.getUserId()));
+      if ("root".equals(model.getUserId())) {
+        assertEquals("away", model.getStatus());
+      }
+    }
+    assertEquals(1, tracker.getOnlineUsers(now + DELAY).size());
+    assertEquals(0, tracker.getOnlineUsers(now + 10 * DELAY).size());
+    //
+    tracker.onClearCache(null);
+    assertEquals(0, tracker.getOnlineUsers(now).size());
+    assertEquals(0, tracker.size());
+  }
+
+  public void testDirty() throws Exception {
+    PresenceTracker tracker = new PresenceTracker(DELAY);
+    long now = 1000000000L;
+    tracker.touch("john", now - 2 * DELAY);
+    tracker.touch("mary", now);
+    // the states coming from the cache are already written
+    tracker.onPut(null, "repository_root", new UserStateModel("root", now - 2 * DELAY, "away"));
+    Map<String, Long> activities = tracker.drainDirty();
+    assertEquals(2, activities.size());
+    assertEquals(Long.valueOf(now), activities.get("mary"));
+    assertEquals(0, tracker.drainDirty().size());
+    //
+    tracker.markDirty(activities.keySet());
+    assertEquals(1, tracker.purge(now));
+    assertEquals(2, tracker.drainDirty().size());
+    assertEquals(1, tracker.purge(now));
+    assertEquals(1, tracker.size());
+    assertEquals(0, tracker.getLastActivity("john"));
+  }
+
+  public void testConcurrentTouch() throws Exception {
+    final PresenceTracker tracker = new PresenceTracker(DELAY);
+    final long now = System.currentTimeMillis();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int offset = i;
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            tracker.touch("user" + (j % 1000), now - DELAY + (j / 100) * 100 + offset);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    List<UserStateModel> onlineUsers = tracker.getOnlineUsers(now);
+    assertEquals(1000, onlineUsers.size());
+    for (UserStateModel model : onlineUsers) {
+      int user = Integer.parseInt(model.getUserId().substring(4));
+      assertEquals(now - DELAY + (9000 + user) / 100 * 100 + 3, model.getLastActivity());
+    }
+  }
+}
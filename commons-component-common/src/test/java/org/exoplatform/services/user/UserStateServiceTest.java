@@ -189,7 +189,33 @@ public class UserStateServiceTest extends BaseCommonsTestCase {
     loginUser("demo", true);
     assertTrue(userStateService.isOnline("demo"));
   }
-  
+
+  public void testFlush() throws Exception {
+    UserStateModel userModel =
+        new UserStateModel(session.getUserID(),
+                           new Date().getTime() - 10 * 60 * 1000,
+                           UserStateService.DEFAULT_STATUS);
+    userStateService.save(userModel);
+    userStateService.ping(userModel.getUserId());
+    long lastActivity = userStateService.getUserState(session.getUserID()).getLastActivity();
+    assertTrue(userModel.getLastActivity() != lastActivity);
+    // the ping isn't written to the JCR until the flush
+    assertEquals(userModel.getLastActivity(), getStoredLastActivity(session.getUserID()));
+    userStateService.flush();
+    assertEquals(lastActivity, getStoredLastActivity(session.getUserID()));
+  }
+
+  private long getStoredLastActivity(String userId) throws Exception {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Node userNodeApp = nodeHierarchyCreator.getUserApplicationNode(sessionProvider, userId);
+      Node videoCallNode = userNodeApp.getNode(VIDEOCALLS_BASE_PATH);
+      return videoCallNode.getProperty(LAST_ACTIVITY_PROP).getLong();
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
   private void loginUser(String userId, boolean hasPing) {
     Collection<MembershipEntry> membershipEntries = new ArrayList<MembershipEntry>();
     MembershipEntry membershipEntry = new MembershipEntry("/platform/administrators", "*");
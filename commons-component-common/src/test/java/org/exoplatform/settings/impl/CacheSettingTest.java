@@ -16,17 +16,23 @@
  */
 package org.exoplatform.settings.impl;
 
+import java.util.Map;
+
 import org.exoplatform.commons.api.settings.SettingService;
 import org.exoplatform.commons.api.settings.SettingValue;
 import org.exoplatform.commons.api.settings.data.Context;
 import org.exoplatform.commons.api.settings.data.Scope;
 import org.exoplatform.commons.api.settings.data.SettingKey;
+import org.exoplatform.commons.api.settings.data.SettingScope;
+import org.exoplatform.commons.chromattic.ChromatticManager;
+import org.exoplatform.commons.event.impl.EventManagerImpl;
 import org.exoplatform.commons.testing.BaseCommonsTestCase;
 import org.exoplatform.services.cache.CacheService;
 import org.exoplatform.services.cache.ExoCache;
 import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.Identity;
 import org.exoplatform.settings.cache.CacheSettingServiceImpl;
+import org.exoplatform.settings.cache.MissingSetting;
 
 /** test just for the cache
  * Created by The eXo Platform SAS Author : eXoPlatform bangnv@exoplatform.com
@@ -37,6 +43,10 @@ public class CacheSettingTest extends BaseCommonsTestCase {
 
   private ExoCache<SettingKey, SettingValue<?>> settingCache;
 
+  private ExoCache<SettingScope, Map<String, SettingValue<?>>> scopeCache;
+
+  private ExoCache<SettingKey, MissingSetting>  missingCache;
+
   @Override
   public void setUp() throws Exception {
     super.setUp();
@@ -45,6 +55,10 @@ public class CacheSettingTest extends BaseCommonsTestCase {
     ConversationState c = new ConversationState(new Identity(session.getUserID()));
     ConversationState.setCurrent(c);  
     settingCache.clearCache();
+    scopeCache = getService(CacheService.class).getCacheInstance(SettingService.class.getSimpleName() + ".scope");
+    scopeCache.clearCache();
+    missingCache = getService(CacheService.class).getCacheInstance(SettingService.class.getSimpleName() + ".missing");
+    missingCache.clearCache();
   }
 
   public void testSetAndSimpleRemove() {
@@ -109,4 +123,83 @@ public class CacheSettingTest extends BaseCommonsTestCase {
     assertEquals(0, settingCache.getCacheSize());
   }
 
+  public void testGetScope() {
+    settingService.set(Context.USER, Scope.PAGE.id("name5"), "x1", SettingValue.create("y1"));
+    settingService.set(Context.USER, Scope.PAGE.id("name5"), "x2", SettingValue.create(true));
+    Map<String, SettingValue<?>> values = settingService.get(Context.USER, Scope.PAGE.id("name5"));
+    assertEquals(2, values.size());
+    assertEquals("y1", values.get("x1").getValue());
+    assertEquals(true, values.get("x2").getValue());
+    assertEquals(1, scopeCache.getCacheSize());
+    assertSame(values, settingService.get(Context.USER, Scope.PAGE.id("name5")));
+
+    // a new value is read with the scope
+    settingService.set(Context.USER, Scope.PAGE.id("name5"), "x3", SettingValue.create(new Long(3)));
+    assertEquals(0, scopeCache.getCacheSize());
+    values = settingService.get(Context.USER, Scope.PAGE.id("name5"));
+    assertEquals(3, values.size());
+    assertEquals(new Long(3), values.get("x3").getValue());
+
+    // remove
+    settingService.remove(Context.USER, Scope.PAGE.id("name5"));
+    assertEquals(0, scopeCache.getCacheSize());
+    assertTrue(settingService.get(Context.USER, Scope.PAGE.id("name5")).isEmpty());
+    settingService.remove(Context.USER);
+    assertEquals(0, scopeCache.getCacheSize());
+  }
+
+  public void testMissingSetting() {
+    SettingKey key = new SettingKey(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x1");
+    assertNull(settingService.get(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x1"));
+    assertEquals(0, settingCache.getCacheSize());
+    assertSame(MissingSetting.INSTANCE, missingCache.get(key));
+    assertNull(settingService.get(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x1"));
+
+    // a setting set without the cache isn't missing anymore
+    getService(SettingServiceImpl.class).set(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x1", SettingValue.create("y1"));
+    assertNull(missingCache.get(key));
+    assertEquals("y1", settingService.get(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x1").getValue());
+
+    // a removed setting is missing again
+    settingService.remove(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x1");
+    assertNull(settingCache.get(key));
+    assertSame(MissingSetting.INSTANCE, missingCache.get(key));
+    assertNull(settingService.get(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x1"));
+
+    // set through the cache
+    settingService.set(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x1", SettingValue.create("y2"));
+    assertNull(missingCache.get(key));
+    assertEquals("y2", settingService.get(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x1").getValue());
+    settingService.remove(Context.GLOBAL, Scope.APPLICATION.id("missing"));
+  }
+
+  public void testSetDuringMissingLoad() throws Exception {
+    final SettingKey key = new SettingKey(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x2");
+    final SettingService[] cacheService = new SettingService[1];
+    //the setting is set once the load has read that it doesn't exist
+    SettingServiceImpl service = new SettingServiceImpl(getService(EventManagerImpl.class), getService(ChromatticManager.class)) {
+      private boolean loaded;
+
+      @Override
+      public SettingValue<?> get(Context context, Scope scope, String key) {
+        SettingValue<?> value = super.get(context, scope, key);
+        if (loaded == false) {
+          loaded = true;
+          cacheService[0].set(context, scope, key, SettingValue.create("y3"));
+        }
+        return value;
+      }
+    };
+    cacheService[0] = new CacheSettingServiceImpl(service, getService(CacheService.class), getService(EventManagerImpl.class));
+    try {
+      assertNull(cacheService[0].get(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x2"));
+      //the late load doesn't mark the setting as missing
+      assertNull(missingCache.get(key));
+      settingCache.remove(key);
+      assertEquals("y3", cacheService[0].get(Context.GLOBAL, Scope.APPLICATION.id("missing"), "x2").getValue());
+    } finally {
+      settingService.remove(Context.GLOBAL, Scope.APPLICATION.id("missing"));
+    }
+  }
+
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.settings.impl;
+
+import java.util.List;
+
+import org.exoplatform.commons.api.settings.SettingValue;
+import org.exoplatform.commons.api.settings.data.Context;
+import org.exoplatform.commons.api.settings.data.Scope;
+import org.exoplatform.commons.api.settings.data.SettingContext;
+import org.exoplatform.commons.api.settings.data.SettingKey;
+import org.exoplatform.commons.api.settings.data.SettingScope;
+import org.exoplatform.commons.testing.BaseCommonsTestCase;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.settings.cache.SettingCacheIndex;
+import org.exoplatform.settings.cache.selector.SettingCacheSelector;
+
+/**
+ * Checks that the index of the setting cache finds the keys of a user or of a
+ * scope as the scan of the cache does.
+ *
+ * The invalidation of the settings of a user by scanning the cache is compared
+ * with the one through the index when the number of entries is given, run it with
+ * -Dsettings.index.benchmark.entries=1000000 for the 1M entries comparison.
+ */
+public class SettingCacheIndexTest extends BaseCommonsTestCase {
+  private static final int                               KEYS_BY_USER = 5;
+
+  private static final int                               SAMPLES      = 20;
+
+  private static final int                               USERS        = 1000;
+
+  private ExoCache<SettingKey, SettingValue>             cache;
+
+  private SettingCacheIndex<SettingKey, SettingValue>    index;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    cache = getService(CacheService.class).getCacheInstance("SettingCacheIndexTest");
+    cache.clearCache();
+    index = new SettingCacheIndex<SettingKey, SettingValue>();
+    cache.addCacheListener(index);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    cache.clearCache();
+    super.tearDown();
+  }
+
+  public void testIndex() throws Exception {
+    cache.setMaxSize(100);
+    cache.put(new SettingKey(Context.USER.id("john"), Scope.PAGE.id("p1"), "a"), SettingValue.create("1"));
+    cache.put(new SettingKey(Context.USER.id("john"), Scope.PAGE.id("p1"), "b"), SettingValue.create("2"));
+    cache.put(new SettingKey(Context.USER.id("john"), Scope.PAGE.id("p2"), "a"), SettingValue.create("3"));
+    cache.put(new SettingKey(Context.USER.id("mary"), Scope.PAGE.id("p1"), "a"), SettingValue.create("4"));
+    cache.put(new SettingKey(Context.GLOBAL, Scope.PAGE.id("p1"), "a"), SettingValue.create("5"));
+    assertEquals(5, index.size());
+    //
+    assertEquals(2, index.getKeys(new SettingScope(Context.USER.id("john"), Scope.PAGE.id("p1"))).size());
+    assertEquals(3, index.getKeys(new SettingContext(Context.USER.id("john"))).size());
+    assertEquals(1, index.getKeys(new SettingContext(Context.GLOBAL)).size());
+    // the index follows the removals of the cache
+    cache.remove(new SettingKey(Context.USER.id("john"), Scope.PAGE.id("p2"), "a"));
+    assertEquals(2, index.getKeys(new SettingContext(Context.USER.id("john"))).size());
+    assertEquals(0, index.getKeys(new SettingScope(Context.USER.id("john"), Scope.PAGE.id("p2"))).size());
+    //
+    cache.clearCache();
+    assertEquals(0, index.size());
+    assertEquals(0, index.getKeys(new SettingContext(Context.USER.id("mary"))).size());
+  }
+
+  public void testInvalidation() throws Exception {
+    cache.setMaxSize(USERS * KEYS_BY_USER);
+    for (int i = 0; i < USERS; i++) {
+      for (int j = 0; j < KEYS_BY_USER; j++) {
+        cache.put(new SettingKey(Context.USER.id("user" + i), Scope.APPLICATION.id("app" + (j % 2)), "key" + j),
+                  SettingValue.create("value"));
+      }
+    }
+    assertEquals(USERS * KEYS_BY_USER, cache.getCacheSize());
+    assertEquals(USERS * KEYS_BY_USER, index.size());
+    //the settings of the even users are removed by scanning the cache, the ones of the odd users through the index
+    for (int i = 0; i < SAMPLES; i++) {
+      cache.select(new SettingCacheSelector(new SettingContext(Context.USER.id("user" + (i * 2)))));
+      List<SettingKey> keys = index.getKeys(new SettingContext(Context.USER.id("user" + (i * 2 + 1))));
+      assertEquals(KEYS_BY_USER, keys.size());
+      for (SettingKey key : keys) {
+        cache.remove(key);
+      }
+    }
+    //both ways remove the same keys and the index follows the scan
+    assertEquals((USERS - 2 * SAMPLES) * KEYS_BY_USER, cache.getCacheSize());
+    assertEquals((USERS - 2 * SAMPLES) * KEYS_BY_USER, index.size());
+    assertEquals(0, index.getKeys(new SettingContext(Context.USER.id("user0"))).size());
+    assertNull(cache.get(new SettingKey(Context.USER.id("user0"), Scope.APPLICATION.id("app0"), "key0")));
+    assertNull(cache.get(new SettingKey(Context.USER.id("user1"), Scope.APPLICATION.id("app0"), "key0")));
+    assertNotNull(cache.get(new SettingKey(Context.USER.id("user" + (USERS - 1)), Scope.APPLICATION.id("app0"), "key0")));
+    //the keys of a scope are found apart from the other scopes of the user
+    assertEquals(3, index.getKeys(new SettingScope(Context.USER.id("user" + (USERS - 1)), Scope.APPLICATION.id("app0"))).size());
+    assertEquals(2, index.getKeys(new SettingScope(Context.USER.id("user" + (USERS - 1)), Scope.APPLICATION.id("app1"))).size());
+  }
+
+  public void testInvalidationBenchmark() throws Exception {
+    Integer entries = Integer.getInteger("settings.index.benchmark.entries");
+    if (entries == null) {
+      return;
+    }
+    int users = entries / KEYS_BY_USER;
+    cache.setMaxSize(entries);
+    for (int i = 0; i < users; i++) {
+      for (int j = 0; j < KEYS_BY_USER; j++) {
+        cache.put(new SettingKey(Context.USER.id("user" + i), Scope.APPLICATION.id("app" + (j % 2)), "key" + j),
+                  SettingValue.create("value"));
+      }
+    }
+    //
+    long scanTime = System.nanoTime();
+    for (int i = 0; i < SAMPLES; i++) {
+      cache.select(new SettingCacheSelector(new SettingContext(Context.USER.id("user" + (i * 2)))));
+    }
+    scanTime = System.nanoTime() - scanTime;
+    //
+    long indexTime = System.nanoTime();
+    for (int i = 0; i < SAMPLES; i++) {
+      for (SettingKey key : index.getKeys(new SettingContext(Context.USER.id("user" + (i * 2 + 1))))) {
+        cache.remove(key);
+      }
+    }
+    indexTime = System.nanoTime() - indexTime;
+    //
+    System.out.println(String.format("Invalidation of the settings of a user among %s entries: scan %s us/op, index %s us/op",
+                                     entries,
+                                     scanTime / SAMPLES / 1000,
+                                     indexTime / SAMPLES / 1000));
+  }
+}
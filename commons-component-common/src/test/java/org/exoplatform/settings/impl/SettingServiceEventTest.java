@@ -16,6 +16,9 @@
  */
 package org.exoplatform.settings.impl;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.exoplatform.commons.api.event.EventManager;
 import org.exoplatform.commons.api.settings.SettingListener;
 import org.exoplatform.commons.api.settings.SettingService;
@@ -66,6 +69,21 @@ public class SettingServiceEventTest extends BaseCommonsTestCase {
     assertEquals(listener.eventype, EventType.SETTING_SET);
   }
 
+  public void testEventForSetAllMethod() {
+    ListenerImpl listener = new ListenerImpl();
+    listener.setName(EventType.SETTING_SET_ALL.toString());
+    eventManager.addEventListener(listener);
+    Map<String, SettingValue<?>> values = new HashMap<String, SettingValue<?>>();
+    values.put("x1", SettingValue.create("y1"));
+    values.put("x2", SettingValue.create(true));
+    settingService.setAll(Context.USER, Scope.SPACE.id("all"), values);
+    // one event for all the values
+    assertEquals(1, listener.setAllCount);
+    assertEquals(listener.settingContext, new SettingScope(Context.USER, Scope.SPACE.id("all")));
+    assertEquals(values, listener.settingValues.get(new SettingScope(Context.USER, Scope.SPACE.id("all"))));
+    assertEquals(listener.eventype, EventType.SETTING_SET_ALL);
+  }
+
   public void testEventForKeyRemove() {
     ListenerImpl listener = new ListenerImpl();
     listener.setName(EventType.SETTING_REMOVE_KEY.toString());
@@ -115,6 +133,10 @@ public class SettingServiceEventTest extends BaseCommonsTestCase {
 
     private SettingValue<?> settingValue   = null;
 
+    private Map<SettingScope, Map<String, SettingValue<?>>> settingValues = null;
+
+    private int             setAllCount;
+
     EventType               eventype;
 
     @Override
@@ -128,6 +150,15 @@ public class SettingServiceEventTest extends BaseCommonsTestCase {
       eventype = event.getData().getEventType();
     }
 
+    @Override
+    public void onSetAll(Event<SettingService, SettingData> event) {
+      clearData();
+      setAllCount++;
+      settingContext = event.getData().getSettingContext();
+      settingValues = event.getData().getSettingValues();
+      eventype = event.getData().getEventType();
+    }
+
     @Override
     public void onRemoveKey(Event<SettingService, SettingData> event) {
       clearData();
@@ -156,6 +187,7 @@ public class SettingServiceEventTest extends BaseCommonsTestCase {
     private void clearData() {
       settingContext = null;
       settingValue = null;
+      settingValues = null;
       eventype = null;
     }
   }
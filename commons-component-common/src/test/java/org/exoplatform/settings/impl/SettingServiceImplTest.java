@@ -16,10 +16,14 @@
  */
 package org.exoplatform.settings.impl;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.exoplatform.commons.api.settings.SettingService;
 import org.exoplatform.commons.api.settings.SettingValue;
 import org.exoplatform.commons.api.settings.data.Context;
 import org.exoplatform.commons.api.settings.data.Scope;
+import org.exoplatform.commons.api.settings.data.SettingScope;
 import org.exoplatform.commons.testing.BaseCommonsTestCase;
 import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.Identity;
@@ -142,4 +146,34 @@ public class SettingServiceImplTest extends BaseCommonsTestCase {
 
   }
 
+  public void testSetAll() {
+    Map<String, SettingValue<?>> values = new HashMap<String, SettingValue<?>>();
+    values.put("x1", SettingValue.create("y1"));
+    values.put("x2", SettingValue.create(new Long(2)));
+    settingService.setAll(Context.USER, Scope.PAGE.id("name5"), values);
+    assertEquals("y1", settingService.get(Context.USER, Scope.PAGE.id("name5"), "x1").getValue());
+    assertEquals(new Long(2), settingService.get(Context.USER, Scope.PAGE.id("name5"), "x2").getValue());
+
+    // several contexts and scopes
+    Map<SettingScope, Map<String, SettingValue<?>>> batch = new HashMap<SettingScope, Map<String, SettingValue<?>>>();
+    for (int i = 0; i < 3; i++) {
+      Map<String, SettingValue<?>> userValues = new HashMap<String, SettingValue<?>>();
+      userValues.put("x1", SettingValue.create("user" + i));
+      userValues.put("x2", SettingValue.create(i % 2 == 0));
+      batch.put(new SettingScope(Context.USER.id("user" + i), Scope.APPLICATION.id("batch")), userValues);
+    }
+    batch.put(new SettingScope(Context.GLOBAL, Scope.APPLICATION.id("batch")), values);
+    settingService.setAll(batch);
+    for (int i = 0; i < 3; i++) {
+      Map<String, SettingValue<?>> userValues = settingService.get(Context.USER.id("user" + i), Scope.APPLICATION.id("batch"));
+      assertEquals(2, userValues.size());
+      assertEquals("user" + i, userValues.get("x1").getValue());
+      assertEquals(i % 2 == 0, userValues.get("x2").getValue());
+      settingService.remove(Context.USER.id("user" + i));
+    }
+    assertEquals("y1", settingService.get(Context.GLOBAL, Scope.APPLICATION.id("batch"), "x1").getValue());
+    settingService.remove(Context.GLOBAL, Scope.APPLICATION.id("batch"));
+    settingService.remove(Context.USER, Scope.PAGE.id("name5"));
+  }
+
 }
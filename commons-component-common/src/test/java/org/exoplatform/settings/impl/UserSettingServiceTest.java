@@ -77,6 +77,26 @@ public class UserSettingServiceTest extends BaseCommonsTestCase {
     assertEquals(2, list.size());
   }
 
+  public void testGetSavedSetting() throws Exception {
+    userSettingService.save(createUserSetting("root", Arrays.asList("1", "2"), Arrays.asList("3"), Arrays.asList("5", "6")));
+    UserSetting setting = userSettingService.get("root");
+    assertTrue(setting.isActive());
+    assertTrue(setting.isInInstantly("2"));
+    assertTrue(setting.isInDaily("3"));
+    assertTrue(setting.isInWeekly("6"));
+    // read from the cache, a changed copy doesn't change the cached setting
+    setting.setActive(false);
+    setting.setDailyProviders(Arrays.asList("4"));
+    setting = userSettingService.get("root");
+    assertTrue(setting.isActive());
+    assertTrue(setting.isInDaily("3"));
+    // a saved setting is read again
+    userSettingService.save(createUserSetting("root", Arrays.asList("1"), Arrays.asList("4"), Arrays.asList("5")));
+    setting = userSettingService.get("root");
+    assertFalse(setting.isInInstantly("2"));
+    assertTrue(setting.isInDaily("4"));
+  }
+
   private void runUpgrade() throws Exception {
     // run upgrade by run daily
     NotificationContext context = NotificationContextImpl.cloneInstance();